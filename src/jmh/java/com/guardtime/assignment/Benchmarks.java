@@ -0,0 +1,79 @@
+package com.guardtime.assignment;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/**
+ * Shared set up of the benchmarks. Every benchmark runs in a forked JVM whose containers and
+ * source files are kept under {@code build/jmh}, so the ones in {@code src/main/resources} are
+ * never touched. Signing goes through a {@link LocalAggregator} that answers at once.
+ */
+final class Benchmarks {
+
+  static final String CONTAINERS_DIR = "-Dcontainers.dir=build/jmh/containers";
+  static final String FILES_DIR = "-Dfiles.dir=build/jmh/files";
+
+  private Benchmarks() {}
+
+  /** @return an API on empty containers and source directories. */
+  static ContainerApi newContainerApi() throws IOException {
+    clear(ContainerApi.CONTAINERS_PATH);
+    clear(ContainerApi.SOURCE_DIR);
+    return new ContainerApi(new LocalAggregator());
+  }
+
+  /**
+   * Replaces the source files with new ones. Every other file is text and compresses, the rest
+   * are random bytes stored as already compressed images.
+   *
+   * @param count of the files.
+   * @param size of every file in bytes.
+   */
+  static void writeSourceFiles(int count, int size) throws IOException {
+    clear(ContainerApi.SOURCE_DIR);
+    Random random = new Random(count * 31L + size);
+    byte[] words = "container datafile manifest signature aggregator calendar "
+        .getBytes(StandardCharsets.US_ASCII);
+    byte[] content = new byte[size];
+    for (int i = 0; i < count; i++) {
+      String name;
+      if (i % 2 == 0) {
+        for (int j = 0; j < size; j++) {
+          content[j] = words[random.nextInt(words.length)];
+        }
+        name = "file" + i + ".txt";
+      } else {
+        random.nextBytes(content);
+        name = "image" + i + ".png";
+      }
+      try (OutputStream out = Files.newOutputStream(ContainerApi.SOURCE_DIR.resolve(name))) {
+        out.write(content);
+      }
+    }
+  }
+
+  /** Fails the benchmark if the API answered with an error. */
+  static void check(String result) {
+    if (!result.isEmpty()) {
+      throw new IllegalStateException(result);
+    }
+  }
+
+  private static void clear(Path directory) throws IOException {
+    if (Files.exists(directory)) {
+      try (Stream<Path> paths = Files.walk(directory)) {
+        paths
+            .sorted(Comparator.reverseOrder())
+            .filter(path -> !path.equals(directory))
+            .forEach(path -> path.toFile().delete());
+      }
+    }
+    Files.createDirectories(directory);
+  }
+}
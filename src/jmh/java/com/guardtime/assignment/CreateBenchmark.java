@@ -0,0 +1,62 @@
+package com.guardtime.assignment;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/** Creating a container of the source files, across file counts and sizes. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 10, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 5, jvmArgsAppend = {Benchmarks.CONTAINERS_DIR, Benchmarks.FILES_DIR})
+@State(Scope.Benchmark)
+public class CreateBenchmark {
+
+  @Param({"1", "10", "100"})
+  private int fileCount;
+
+  @Param({"1024", "262144"})
+  private int fileSize;
+
+  private ContainerApi containerApi;
+
+  @Setup
+  public void setUp() throws IOException {
+    containerApi = Benchmarks.newContainerApi();
+    Benchmarks.writeSourceFiles(fileCount, fileSize);
+  }
+
+  @TearDown
+  public void tearDown() {
+    containerApi.close();
+  }
+
+  @Benchmark
+  public void createContainer() {
+    Benchmarks.check(containerApi.createContainer("container"));
+  }
+
+  /**
+   * The container is deleted again, so the disk does not fill up during the run. The next one has
+   * the same name and is created in the same shard, as in a store that has all its shards.
+   */
+  @TearDown(Level.Invocation)
+  public void deleteContainer() throws IOException {
+    Files.delete(ContainerApi.getContainerPath("container"));
+  }
+}
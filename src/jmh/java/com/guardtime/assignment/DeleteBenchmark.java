@@ -0,0 +1,67 @@
+package com.guardtime.assignment;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Deleting the signature of a user from a container, versus how many signatures the container
+ * has. The signature is added back before every invocation, outside of the measurement.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 15, time = 2)
+@Measurement(iterations = 15, time = 2)
+@Fork(
+    value = 5,
+    jvmArgsAppend = {
+      Benchmarks.CONTAINERS_DIR,
+      Benchmarks.FILES_DIR,
+      "-Dsigning.batch.wait.ms=0"
+    })
+@State(Scope.Benchmark)
+public class DeleteBenchmark {
+
+  @Param({"1", "10", "100"})
+  private int signatureCount;
+
+  private ContainerApi containerApi;
+
+  @Setup
+  public void setUp() throws IOException {
+    containerApi = Benchmarks.newContainerApi();
+    Benchmarks.writeSourceFiles(10, 65536);
+    Benchmarks.check(containerApi.createContainer("container"));
+    for (int i = 1; i < signatureCount; i++) {
+      Benchmarks.check(containerApi.sign("container", "user" + i));
+    }
+  }
+
+  @TearDown
+  public void tearDown() {
+    containerApi.close();
+  }
+
+  @Setup(Level.Invocation)
+  public void sign() {
+    Benchmarks.check(containerApi.sign("container", "John.Smith"));
+  }
+
+  @Benchmark
+  public void delete() {
+    Benchmarks.check(containerApi.delete("container", "John.Smith"));
+  }
+}
@@ -0,0 +1,60 @@
+package com.guardtime.assignment;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Re-hashing the datafiles of a container with {@link ContainerApi#getMetaDataList}, the bytes
+ * hashed per second are the score times {@code fileCount * fileSize}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 10, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 3, jvmArgsAppend = {Benchmarks.CONTAINERS_DIR, Benchmarks.FILES_DIR})
+@State(Scope.Benchmark)
+public class HashingBenchmark {
+
+  @Param({"10"})
+  private int fileCount;
+
+  @Param({"65536", "1048576"})
+  private int fileSize;
+
+  private ContainerApi containerApi;
+  private ContainerArchive archive;
+
+  @Setup
+  public void setUp() throws IOException {
+    containerApi = Benchmarks.newContainerApi();
+    Benchmarks.writeSourceFiles(fileCount, fileSize);
+    Benchmarks.check(containerApi.createContainer("container"));
+    archive =
+        ContainerArchive.openForReading(ContainerApi.getContainerPath("container"));
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    archive.close();
+    containerApi.close();
+  }
+
+  @Benchmark
+  public List<MetaData> getMetaDataList() {
+    return containerApi.getMetaDataList(archive);
+  }
+}
@@ -0,0 +1,51 @@
+package com.guardtime.assignment;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/** Listing the containers, versus how many containers there are. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 10, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 3, jvmArgsAppend = {Benchmarks.CONTAINERS_DIR, Benchmarks.FILES_DIR})
+@State(Scope.Benchmark)
+public class ReadBenchmark {
+
+  @Param({"10", "1000", "10000"})
+  private int containerCount;
+
+  private ContainerApi containerApi;
+
+  @Setup
+  public void setUp() throws IOException {
+    containerApi = Benchmarks.newContainerApi();
+    Benchmarks.writeSourceFiles(1, 16);
+    for (int i = 0; i < containerCount; i++) {
+      Benchmarks.check(containerApi.createContainer("container" + i));
+    }
+  }
+
+  @TearDown
+  public void tearDown() {
+    containerApi.close();
+  }
+
+  @Benchmark
+  public String readContainers() {
+    return containerApi.readContainers();
+  }
+}
@@ -0,0 +1,62 @@
+package com.guardtime.assignment;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Signing a container with the {@link LocalAggregator}, so the score is the cost of the service
+ * itself: reading the digest index, writing the manifest and the signature, and the batching of
+ * {@link SigningAggregator}. The signature is deleted after every invocation, outside of the
+ * measurement, so the container does not grow and every invocation signs it unsigned.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 15, time = 2)
+@Measurement(iterations = 15, time = 2)
+@Fork(value = 5, jvmArgsAppend = {Benchmarks.CONTAINERS_DIR, Benchmarks.FILES_DIR})
+@State(Scope.Benchmark)
+public class SignBenchmark {
+
+  // How long the first request of a signing round waits for others to join it
+  @Param({"0", "10"})
+  private String batchWaitMillis;
+
+  private ContainerApi containerApi;
+
+  @Setup
+  public void setUp() throws IOException {
+    System.setProperty("signing.batch.wait.ms", batchWaitMillis);
+    containerApi = Benchmarks.newContainerApi();
+    Benchmarks.writeSourceFiles(10, 65536);
+    Benchmarks.check(containerApi.createContainer("container"));
+  }
+
+  @TearDown
+  public void tearDown() {
+    containerApi.close();
+  }
+
+  @Benchmark
+  public void sign() {
+    Benchmarks.check(containerApi.sign("container", "John.Smith"));
+  }
+
+  @TearDown(Level.Invocation)
+  public void delete() {
+    Benchmarks.check(containerApi.delete("container", "John.Smith"));
+  }
+}
@@ -0,0 +1,453 @@
+package com.guardtime.assignment;
+
+import com.guardtime.ksi.exceptions.KSIException;
+import com.guardtime.ksi.pdu.PduVersion;
+import com.guardtime.ksi.service.Future;
+import com.guardtime.ksi.service.client.KSIClientException;
+import com.guardtime.ksi.service.client.KSISigningClient;
+import com.guardtime.ksi.service.client.ServiceCredentials;
+import com.guardtime.ksi.tlv.TLVElement;
+import org.apache.commons.io.IOUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Signing client that spreads the aggregation requests over several aggregators. Each request goes
+ * to the aggregator that is expected to answer first, judged by its recent latency and by how many
+ * requests it already has. If the answer takes longer than 95% of the recent answers did, the same
+ * request is sent to another aggregator as well and whichever answers first wins. A request that
+ * fails is sent to another aggregator.
+ *
+ * <p>An aggregator that fails {@code failureThreshold} times in a row is left alone for {@code
+ * openMillis}, after which a single request tries it again. Hedged and retried requests are paid
+ * for from a budget of the aggregator they are sent to, which every request sent to it first adds
+ * {@code retryRatio} to, so an aggregator in trouble is not buried under the extra requests.
+ *
+ * <p>The requests are signed with the credentials of the first aggregator, so all of them have to
+ * accept the same login.
+ */
+class AggregatorPool implements KSISigningClient {
+
+  // Statuses of an aggregation response that another aggregator is asked about
+  private static final int TOO_MANY_REQUESTS = 0x0106;
+  private static final int SERVER_ERRORS = 0x0200;
+  // How many latencies the percentile is taken of, and how many there have to be
+  private static final int LATENCY_WINDOW = 512;
+  private static final int MIN_LATENCIES = 20;
+  private static final Metrics.Counter HEDGED =
+      Metrics.REGISTRY.counter(
+          "ksi_hedged_requests_total", "Aggregation requests also sent to another aggregator.");
+  private static final Metrics.Counter RETRIED =
+      Metrics.REGISTRY.counter(
+          "ksi_retried_requests_total", "Failed aggregation requests sent to another aggregator.");
+
+  private final List<Endpoint> endpoints = new ArrayList<>();
+  private final long minHedgeNanos;
+  private final int failureThreshold;
+  private final long openNanos;
+  private final double retryRatio;
+  private final double retryBudget;
+  private final ExecutorService requestExecutor;
+  private final ScheduledExecutorService hedgeScheduler;
+
+  // The latest latencies of all the aggregators, guarded by itself
+  private final long[] latencies = new long[LATENCY_WINDOW];
+  private long latencyCount;
+  // 0 until there are enough latencies
+  private volatile long hedgeDelayNanos;
+
+  private final AtomicLong hedgeCount = new AtomicLong();
+  private final AtomicLong retryCount = new AtomicLong();
+
+  /**
+   * @param clients of the aggregators by their names, in the order of preference.
+   * @param minHedgeMillis the least a request waits for its answer before it is hedged.
+   * @param failureThreshold how many failures in a row make an aggregator be left alone.
+   * @param openMillis how long an aggregator is left alone.
+   * @param retryRatio how many extra requests each request allows the aggregator, e.g. 0.1.
+   * @param retryBudget how many extra requests an aggregator may save up, and starts with.
+   */
+  AggregatorPool(
+      Map<String, KSISigningClient> clients,
+      long minHedgeMillis,
+      int failureThreshold,
+      long openMillis,
+      double retryRatio,
+      double retryBudget) {
+    if (clients.isEmpty()) {
+      throw new IllegalArgumentException("There has to be at least one aggregator.");
+    }
+    for (Map.Entry<String, KSISigningClient> client : clients.entrySet()) {
+      endpoints.add(new Endpoint(client.getKey(), client.getValue()));
+    }
+    this.minHedgeNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, minHedgeMillis));
+    this.failureThreshold = Math.max(1, failureThreshold);
+    this.openNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, openMillis));
+    this.retryRatio = Math.max(0, retryRatio);
+    this.retryBudget = Math.max(0, retryBudget);
+    for (Endpoint endpoint : endpoints) {
+      endpoint.budget = this.retryBudget;
+    }
+    AtomicInteger count = new AtomicInteger();
+    this.requestExecutor =
+        Executors.newCachedThreadPool(
+            runnable -> {
+              Thread thread = new Thread(runnable, "aggregator-request-" + count.incrementAndGet());
+              thread.setDaemon(true);
+              return thread;
+            });
+    this.hedgeScheduler =
+        Executors.newSingleThreadScheduledExecutor(
+            runnable -> {
+              Thread thread = new Thread(runnable, "aggregator-hedge");
+              thread.setDaemon(true);
+              return thread;
+            });
+  }
+
+  /**
+   * Creates a pool configured with the system properties {@code aggregator.hedge.min.ms} (10 by
+   * default), {@code aggregator.breaker.failures} (5 by default), {@code
+   * aggregator.breaker.open.ms} (10000 by default), {@code aggregator.retry.ratio} (0.1 by
+   * default) and {@code aggregator.retry.budget} (10 by default).
+   */
+  static AggregatorPool fromSystemProperties(Map<String, KSISigningClient> clients) {
+    return new AggregatorPool(
+        clients,
+        Long.getLong("aggregator.hedge.min.ms", 10),
+        Integer.getInteger("aggregator.breaker.failures", 5),
+        Long.getLong("aggregator.breaker.open.ms", 10_000),
+        Double.parseDouble(System.getProperty("aggregator.retry.ratio", "0.1")),
+        Double.parseDouble(System.getProperty("aggregator.retry.budget", "10")));
+  }
+
+  @Override
+  public Future<TLVElement> sign(InputStream request) throws KSIClientException {
+    byte[] bytes;
+    try {
+      bytes = IOUtils.toByteArray(request);
+    } catch (IOException e) {
+      throw new KSIClientException("Could not read the aggregation request.", e);
+    }
+    Call call = new Call(bytes);
+    if (!call.send(false)) {
+      throw new KSIClientException("Every aggregator is failing, none was tried.");
+    }
+    long delay = hedgeDelayNanos;
+    if (delay > 0) {
+      hedgeScheduler.schedule(call::hedge, delay, TimeUnit.NANOSECONDS);
+    }
+    CompletableFuture<TLVElement> result = call.result;
+    return new Future<TLVElement>() {
+      @Override
+      public TLVElement getResult() throws KSIException {
+        try {
+          return result.get();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new KSIClientException("Interrupted while waiting for the response.", e);
+        } catch (ExecutionException e) {
+          if (e.getCause() instanceof KSIException) {
+            throw (KSIException) e.getCause();
+          }
+          throw new KSIClientException("The aggregation request failed.", e.getCause());
+        }
+      }
+
+      @Override
+      public boolean isFinished() {
+        return result.isDone();
+      }
+    };
+  }
+
+  @Override
+  public ServiceCredentials getServiceCredentials() {
+    return endpoints.get(0).client.getServiceCredentials();
+  }
+
+  @Override
+  public PduVersion getPduVersion() {
+    return endpoints.get(0).client.getPduVersion();
+  }
+
+  @Override
+  public void close() throws IOException {
+    hedgeScheduler.shutdownNow();
+    requestExecutor.shutdownNow();
+    for (Endpoint endpoint : endpoints) {
+      endpoint.client.close();
+    }
+  }
+
+  /** @return how many requests were also sent to another aggregator because they were slow. */
+  long getHedgeCount() {
+    return hedgeCount.get();
+  }
+
+  /** @return how many requests were sent to another aggregator because they failed. */
+  long getRetryCount() {
+    return retryCount.get();
+  }
+
+  /** @return whether the aggregator is being left alone because it failed. */
+  boolean isOpen(String name) {
+    for (Endpoint endpoint : endpoints) {
+      if (endpoint.name.equals(name)) {
+        synchronized (endpoint) {
+          return endpoint.open;
+        }
+      }
+    }
+    throw new IllegalArgumentException("No aggregator " + name);
+  }
+
+  /**
+   * Picks the aggregator expected to answer first, and counts the request in to it.
+   *
+   * @param tried the aggregators the request was already sent to.
+   * @param extra whether the request is hedged or retried, and has to fit in the budget.
+   * @return the aggregator, or null if none can take the request.
+   */
+  private Endpoint choose(Set<Endpoint> tried, boolean extra) {
+    long now = System.nanoTime();
+    Endpoint best = null;
+    double bestScore = Double.MAX_VALUE;
+    for (Endpoint endpoint : endpoints) {
+      if (tried.contains(endpoint)) {
+        continue;
+      }
+      synchronized (endpoint) {
+        if (!endpoint.available(now) || (extra && endpoint.budget < 1)) {
+          continue;
+        }
+        // One that has not answered yet is tried first
+        double score = (endpoint.averageNanos + 1) * (endpoint.inFlight + 1);
+        if (score < bestScore) {
+          best = endpoint;
+          bestScore = score;
+        }
+      }
+    }
+    if (best != null) {
+      synchronized (best) {
+        // Checked again, another request may have taken the probe or the budget meanwhile
+        if (!best.available(now) || (extra && best.budget < 1)) {
+          return null;
+        }
+        best.inFlight++;
+        best.probing = best.open;
+        best.budget =
+            extra ? best.budget - 1 : Math.min(retryBudget, best.budget + retryRatio);
+      }
+    }
+    return best;
+  }
+
+  private void recordLatency(long nanos) {
+    synchronized (latencies) {
+      latencies[(int) (latencyCount++ % LATENCY_WINDOW)] = nanos;
+      // The percentile is taken again every now and then, not on every answer
+      if (latencyCount >= MIN_LATENCIES && latencyCount % 16 == 0) {
+        long[] sorted = Arrays.copyOf(latencies, (int) Math.min(latencyCount, LATENCY_WINDOW));
+        Arrays.sort(sorted);
+        hedgeDelayNanos = Math.max(minHedgeNanos, sorted[(int) (sorted.length * 0.95)]);
+      }
+    }
+  }
+
+  /**
+   * @return the status of an aggregation response, or 0 if it has none, e.g. because it answers a
+   *     configuration request.
+   */
+  private static long statusOf(TLVElement response) {
+    try {
+      TLVElement payload = response.getFirstChildElement(0x02);
+      TLVElement status = payload == null ? null : payload.getFirstChildElement(0x04);
+      return status == null ? 0 : status.getDecodedLong();
+    } catch (KSIException e) {
+      return 0;
+    }
+  }
+
+  /** An aggregator, how fast it has been and whether it has been failing. */
+  private final class Endpoint {
+
+    private final String name;
+    private final KSISigningClient client;
+    private final Metrics.Histogram duration;
+    private final Metrics.Counter failures;
+    // Smoothed latency in nanoseconds, guarded by this
+    private double averageNanos;
+    // Requests sent and not answered yet, guarded by this
+    private int inFlight;
+    // Failures since the last answer, guarded by this
+    private int failuresInRow;
+    // Whether it is left alone, and until when, guarded by this
+    private boolean open;
+    private long openUntil;
+    // Whether the request that tries it again has been sent, guarded by this
+    private boolean probing;
+    // Extra requests it may still be sent, guarded by this
+    private double budget;
+
+    Endpoint(String name, KSISigningClient client) {
+      this.name = name;
+      this.client = client;
+      this.duration =
+          Metrics.REGISTRY.histogram(
+              "ksi_aggregator_request_duration_seconds",
+              "Time an aggregator took to answer a request.",
+              "aggregator",
+              name);
+      this.failures =
+          Metrics.REGISTRY.counter(
+              "ksi_aggregator_failures_total",
+              "Aggregation requests an aggregator failed.",
+              "aggregator",
+              name);
+      // Replaces the series of a pool that was set up before this one
+      Metrics.REGISTRY.gauge(
+          "ksi_aggregator_open",
+          "Whether the aggregator is left alone because it has been failing.",
+          () -> {
+            synchronized (this) {
+              return open ? 1 : 0;
+            }
+          },
+          "aggregator",
+          name);
+    }
+
+    private boolean available(long now) {
+      return !open || (now - openUntil >= 0 && !probing);
+    }
+
+    private synchronized void answered(long nanos) {
+      inFlight--;
+      averageNanos = averageNanos == 0 ? nanos : 0.8 * averageNanos + 0.2 * nanos;
+      failuresInRow = 0;
+      open = false;
+      probing = false;
+      duration.recordNanos(nanos);
+    }
+
+    private synchronized void failed() {
+      inFlight--;
+      failures.increment();
+      if (probing || ++failuresInRow >= failureThreshold) {
+        open = true;
+        openUntil = System.nanoTime() + openNanos;
+        probing = false;
+      }
+    }
+  }
+
+  /** One aggregation request and the aggregators it was sent to. */
+  private final class Call {
+
+    private final byte[] request;
+    private final CompletableFuture<TLVElement> result = new CompletableFuture<>();
+    // Guarded by this
+    private final Set<Endpoint> tried = new HashSet<>();
+    private int outstanding;
+    // The answer of an aggregator that failed, given if no other aggregator answers
+    private TLVElement failedResponse;
+
+    Call(byte[] request) {
+      this.request = request;
+    }
+
+    /** Sends the request to another aggregator if it has not been answered yet. */
+    void hedge() {
+      if (!result.isDone() && send(true)) {
+        hedgeCount.incrementAndGet();
+        HEDGED.increment();
+      }
+    }
+
+    /**
+     * @param extra whether the request was already sent.
+     * @return whether it was sent to an aggregator.
+     */
+    private boolean send(boolean extra) {
+      Endpoint endpoint;
+      synchronized (this) {
+        if (result.isDone()) {
+          return false;
+        }
+        endpoint = choose(tried, extra);
+        if (endpoint == null) {
+          return false;
+        }
+        tried.add(endpoint);
+        outstanding++;
+      }
+      long startedAt = System.nanoTime();
+      requestExecutor.execute(
+          () -> {
+            TLVElement response;
+            try {
+              response = endpoint.client.sign(new ByteArrayInputStream(request)).getResult();
+            } catch (Exception e) {
+              endpoint.failed();
+              failed(null, e);
+              return;
+            }
+            long status = statusOf(response);
+            if (status == TOO_MANY_REQUESTS || status >= SERVER_ERRORS) {
+              endpoint.failed();
+              failed(response, null);
+              return;
+            }
+            long nanos = System.nanoTime() - startedAt;
+            endpoint.answered(nanos);
+            recordLatency(nanos);
+            result.complete(response);
+          });
+      return true;
+    }
+
+    /** Retries on another aggregator, or gives up if none is left and none is still asked. */
+    private void failed(TLVElement response, Exception exception) {
+      synchronized (this) {
+        outstanding--;
+        if (response != null) {
+          failedResponse = response;
+        }
+      }
+      if (send(true)) {
+        retryCount.incrementAndGet();
+        RETRIED.increment();
+        return;
+      }
+      synchronized (this) {
+        if (outstanding > 0) {
+          return;
+        }
+        if (failedResponse != null) {
+          // The signer tells the status of the response apart better than a bare failure
+          result.complete(failedResponse);
+        } else {
+          result.completeExceptionally(exception);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,81 @@
+package com.guardtime.assignment;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * The datafiles of a container whose content is kept in the {@link BlobStore} instead of in the
+ * container itself. Each datafile refers to its blob by the SHA-256 digest of the content, with the
+ * CRC and sizes of the compressed blob, so the datafiles can be listed without opening the blobs.
+ */
+class BlobIndex {
+
+  static final String ENTRY_NAME = "META-INF/blobs.json";
+
+  private static final Gson GSON = new Gson();
+  private static final Type REFERENCE_LIST = new TypeToken<List<Reference>>() {}.getType();
+
+  private BlobIndex() {}
+
+  /** @return the references of the datafiles as the content of the index entry. */
+  static byte[] toBytes(List<Reference> references) {
+    return GSON.toJson(references, REFERENCE_LIST).getBytes(StandardCharsets.UTF_8);
+  }
+
+  /** @return the references of the datafiles read from the content of the index entry. */
+  static List<Reference> read(InputStream in) throws IOException {
+    try (Reader reader = new InputStreamReader(in, StandardCharsets.UTF_8)) {
+      return GSON.fromJson(reader, REFERENCE_LIST);
+    }
+  }
+
+  /** A datafile of the container and the blob that holds its content. */
+  static class Reference {
+
+    private final String uri;
+    private final String blob;
+    private final int method;
+    private final long dosTime;
+    private final long crc;
+    private final long compressedSize;
+    private final long size;
+
+    /**
+     * @param uri name of the datafile in the container.
+     * @param blob key of the blob.
+     * @param entry the entry of the content in the blob.
+     * @param dosTime last modification time of the datafile.
+     */
+    Reference(String uri, String blob, ZipEntryRecord entry, long dosTime) {
+      this.uri = uri;
+      this.blob = blob;
+      this.method = entry.getMethod();
+      this.dosTime = dosTime;
+      this.crc = entry.getCrc();
+      this.compressedSize = entry.getCompressedSize();
+      this.size = entry.getSize();
+    }
+
+    String getUri() {
+      return uri;
+    }
+
+    String getBlob() {
+      return blob;
+    }
+
+    /** @return the record of the datafile as if it was an entry of the container. */
+    ZipEntryRecord toRecord() {
+      return new ZipEntryRecord(
+          uri, method, ZipWriter.FLAG_UTF8, dosTime, crc, compressedSize, size, -1);
+    }
+  }
+}
@@ -0,0 +1,295 @@
+package com.guardtime.assignment;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Content addressed store of datafiles, so that a datafile is compressed and stored once however
+ * many containers have it. A blob is a zip archive of the one compressed datafile, named after the
+ * SHA-256 digest of the content and kept in a directory named after the first byte of the digest.
+ * Next to each blob is the number of containers that refer to it. A blob whose last reference is
+ * released is deleted.
+ *
+ * <p>References are counted before the container that holds them is written, so a crash can only
+ * leave a blob with too many references, never too few. A blob whose count is lost or unreadable
+ * may still be shared, so it is kept until the references are counted again. {@link
+ * #main(String[])} counts the references of the containers again and deletes the blobs that none
+ * of them refers to.
+ */
+class BlobStore {
+
+  private static final String EXTENSION = ".zip";
+  private static final String REFERENCES_EXTENSION = ".refs";
+  private static final String TEMPORARY_EXTENSION = ".tmp";
+  // The count of a blob whose references could not be read
+  static final long UNKNOWN_REFERENCES = -1;
+
+  private final Path root;
+  // A reference count is changed by one thread at a time, blobs are spread over the locks
+  private final Object[] locks = new Object[64];
+
+  /** @param root directory of the store. */
+  BlobStore(Path root) {
+    this.root = root;
+    for (int i = 0; i < locks.length; i++) {
+      locks[i] = new Object();
+    }
+  }
+
+  /** @return the store of blobs behind the containers of the container store. */
+  static BlobStore of(ContainerStore containerStore) {
+    return new BlobStore(containerStore.getRoot().resolve(".blobs"));
+  }
+
+  /**
+   * @param sha256 hex encoded SHA-256 digest of the content, in either case.
+   * @return the key of the blob of the content.
+   */
+  static String keyOf(String sha256) {
+    return sha256.toLowerCase(Locale.ROOT);
+  }
+
+  /** @return whether any blob has ever been stored. */
+  boolean exists() {
+    return Files.isDirectory(root);
+  }
+
+  /** @return where the blob is stored, whether it exists or not. */
+  Path pathOf(String key) {
+    return root.resolve(key.substring(0, 2)).resolve(key + EXTENSION);
+  }
+
+  /**
+   * Adds a reference to a blob, if it is stored.
+   *
+   * @return false if there is no such blob, it has to be added with {@link #commit(Path, String)}.
+   */
+  boolean retain(String key) throws IOException {
+    synchronized (lockOf(key)) {
+      if (!Files.exists(pathOf(key))) {
+        return false;
+      }
+      addReference(key);
+      return true;
+    }
+  }
+
+  /** @return a new empty file that a blob can be written to before it is committed. */
+  Path newTemporary() throws IOException {
+    Files.createDirectories(root);
+    return Files.createTempFile(root, "blob", TEMPORARY_EXTENSION);
+  }
+
+  /**
+   * Stores a blob written to a temporary file with one reference to it. If the blob was stored
+   * meanwhile, the temporary file is deleted and a reference is added to the stored blob.
+   *
+   * @param temporary the blob, as a zip archive of one entry.
+   * @param key of the content of the entry.
+   */
+  void commit(Path temporary, String key) throws IOException {
+    Path path = pathOf(key);
+    synchronized (lockOf(key)) {
+      if (Files.exists(path)) {
+        Files.delete(temporary);
+        addReference(key);
+        return;
+      }
+      Files.createDirectories(path.getParent());
+      writeReferences(key, 1);
+      try {
+        Files.move(temporary, path, StandardCopyOption.ATOMIC_MOVE);
+      } catch (AtomicMoveNotSupportedException e) {
+        Files.move(temporary, path);
+      }
+    }
+  }
+
+  /**
+   * Removes a reference to a blob, deleting the blob if it was the last one. A blob whose count
+   * can not be read is kept.
+   */
+  void release(String key) throws IOException {
+    synchronized (lockOf(key)) {
+      long references = readReferences(key);
+      if (references == UNKNOWN_REFERENCES) {
+        System.err.println("Keeping blob " + key + " until its references are counted again.");
+        return;
+      }
+      references--;
+      if (references > 0) {
+        writeReferences(key, references);
+      } else {
+        Files.deleteIfExists(pathOf(key));
+        Files.deleteIfExists(referencesOf(key));
+      }
+    }
+  }
+
+  /** @return how many containers refer to the blob, or {@link #UNKNOWN_REFERENCES}. */
+  long references(String key) throws IOException {
+    synchronized (lockOf(key)) {
+      return readReferences(key);
+    }
+  }
+
+  /** @return the record of the entry in the blob, with its CRC and sizes. */
+  ZipEntryRecord getEntry(String key) throws IOException {
+    try (ContainerArchive blob = ContainerArchive.openForReading(pathOf(key))) {
+      return blob.getEntries().iterator().next();
+    }
+  }
+
+  /** @return the uncompressed content of the blob. */
+  InputStream getInputStream(String key) throws IOException {
+    ContainerArchive blob = ContainerArchive.openForReading(pathOf(key));
+    try {
+      return closing(blob.getInputStream(blob.getEntries().iterator().next()), blob);
+    } catch (IOException | RuntimeException e) {
+      blob.close();
+      throw e;
+    }
+  }
+
+  /** @return the compressed content of the blob, as it is stored in the entry. */
+  InputStream getRawInputStream(String key) throws IOException {
+    ContainerArchive blob = ContainerArchive.openForReading(pathOf(key));
+    try {
+      return closing(blob.getRawInputStream(blob.getEntries().iterator().next()), blob);
+    } catch (IOException | RuntimeException e) {
+      blob.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Counts the references of every container in the container store again and deletes the blobs
+   * that no container refers to, along with temporary files left behind. Nothing may use the
+   * stores while this runs.
+   *
+   * @return the number of blobs deleted.
+   */
+  int collectGarbage(ContainerStore containerStore) throws IOException {
+    Map<String, Long> counted = new HashMap<>();
+    for (String name : containerStore.names()) {
+      Path container = containerStore.pathOf(name);
+      try (ContainerArchive archive = ContainerArchive.openForReading(container)) {
+        ZipEntryRecord index = archive.getEntry(BlobIndex.ENTRY_NAME);
+        if (index != null) {
+          for (BlobIndex.Reference reference : BlobIndex.read(archive.getInputStream(index))) {
+            counted.merge(reference.getBlob(), 1L, Long::sum);
+          }
+        }
+      }
+    }
+
+    int deleted = 0;
+    if (!Files.isDirectory(root)) {
+      return deleted;
+    }
+    try (DirectoryStream<Path> paths = Files.newDirectoryStream(root, "*" + TEMPORARY_EXTENSION)) {
+      for (Path path : paths) {
+        Files.delete(path);
+      }
+    }
+    try (DirectoryStream<Path> shards = Files.newDirectoryStream(root, Files::isDirectory)) {
+      for (Path shard : shards) {
+        try (DirectoryStream<Path> paths = Files.newDirectoryStream(shard, "*" + EXTENSION)) {
+          for (Path path : paths) {
+            String fileName = path.getFileName().toString();
+            String key = fileName.substring(0, fileName.length() - EXTENSION.length());
+            long references = counted.getOrDefault(key, 0L);
+            if (references > 0) {
+              writeReferences(key, references);
+            } else {
+              Files.delete(path);
+              Files.deleteIfExists(referencesOf(key));
+              deleted++;
+            }
+          }
+        }
+      }
+    }
+    return deleted;
+  }
+
+  private Object lockOf(String key) {
+    return locks[Math.floorMod(key.hashCode(), locks.length)];
+  }
+
+  private Path referencesOf(String key) {
+    return root.resolve(key.substring(0, 2)).resolve(key + REFERENCES_EXTENSION);
+  }
+
+  /** Adds a reference to a stored blob, a count that can not be read is left as it is. */
+  private void addReference(String key) throws IOException {
+    long references = readReferences(key);
+    if (references != UNKNOWN_REFERENCES) {
+      writeReferences(key, references + 1);
+    }
+  }
+
+  private long readReferences(String key) throws IOException {
+    Path path = referencesOf(key);
+    try {
+      long references =
+          Long.parseLong(new String(Files.readAllBytes(path), StandardCharsets.US_ASCII).trim());
+      if (references > 0) {
+        return references;
+      }
+      System.err.println("Blob " + key + " has " + references + " references in " + path + ".");
+    } catch (NoSuchFileException e) {
+      // Can only be lost in a crash
+      System.err.println("Blob " + key + " has lost its references, " + path + " is missing.");
+    } catch (NumberFormatException e) {
+      System.err.println("Blob " + key + " has unreadable references in " + path + ".");
+    }
+    return UNKNOWN_REFERENCES;
+  }
+
+  private void writeReferences(String key, long references) throws IOException {
+    Path path = referencesOf(key);
+    Path temporary = path.resolveSibling(key + REFERENCES_EXTENSION + TEMPORARY_EXTENSION);
+    Files.write(temporary, Long.toString(references).getBytes(StandardCharsets.US_ASCII));
+    try {
+      Files.move(temporary, path, StandardCopyOption.ATOMIC_MOVE);
+    } catch (AtomicMoveNotSupportedException e) {
+      Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING);
+    }
+  }
+
+  /** @return a stream that closes the blob when it is closed. */
+  private static InputStream closing(InputStream in, ContainerArchive blob) {
+    return new FilterInputStream(in) {
+      @Override
+      public void close() throws IOException {
+        try {
+          super.close();
+        } finally {
+          blob.close();
+        }
+      }
+    };
+  }
+
+  /**
+   * Counts the references to the blobs of {@code containers.dir} again and deletes the blobs that
+   * no container refers to. The server must not be running on the store meanwhile.
+   */
+  public static void main(String[] args) throws IOException {
+    ContainerStore containerStore = ContainerStore.fromSystemProperties();
+    int deleted = of(containerStore).collectGarbage(containerStore);
+    System.out.println("Deleted " + deleted + " blobs no container refers to.");
+  }
+}
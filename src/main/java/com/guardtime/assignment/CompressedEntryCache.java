@@ -0,0 +1,383 @@
+package com.guardtime.assignment;
+
+import com.google.gson.Gson;
+import com.guardtime.ksi.util.Base16;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * The files of the source directory as they were deflated by an earlier create, so the next
+ * container of the same files copies the compressed data instead of deflating it again. An entry is
+ * found by the path, size and modification time of the file, and is only used if the content of
+ * the file still has the digests it had when it was compressed.
+ *
+ * <p>Each entry is a zip archive of the compressed file and its key, named after the SHA-256 digest
+ * of the path. The least recently used entries are deleted once all of them take more than the
+ * given number of bytes. The entries outlive restarts, they are only ever a copy of what the source
+ * directory has, so a broken one is simply deleted.
+ */
+class CompressedEntryCache {
+
+  private static final String KEY_ENTRY = "key.json";
+  private static final String TEMPORARY_EXTENSION = ".tmp";
+  private static final Gson GSON = new Gson();
+
+  private final ContainerStore entries;
+  private final long maxBytes;
+  // Keys of the cached files by path, the least recently used first
+  private final LinkedHashMap<String, Key> keys = new LinkedHashMap<>(16, 0.75f, true);
+  // Total size of the entries in the index
+  private long bytes;
+
+  /**
+   * Indexes the entries left from before, deleting those that can not be read.
+   *
+   * @param directory where the entries are kept.
+   * @param maxBytes the entries may take in total.
+   */
+  CompressedEntryCache(Path directory, long maxBytes) throws IOException {
+    this.entries = new ContainerStore(directory, 1);
+    this.maxBytes = maxBytes;
+    if (!Files.isDirectory(directory)) {
+      return;
+    }
+    try (DirectoryStream<Path> paths =
+        Files.newDirectoryStream(directory, "*" + TEMPORARY_EXTENSION)) {
+      for (Path path : paths) {
+        Files.delete(path);
+      }
+    }
+    List<Path> paths = new ArrayList<>();
+    for (String name : entries.names()) {
+      paths.add(entries.pathOf(name));
+    }
+    // Entries are touched when they are used, so the order survives restarts
+    paths.sort(Comparator.comparing(CompressedEntryCache::lastModifiedTime));
+    synchronized (keys) {
+      for (Path path : paths) {
+        try (ContainerArchive archive = ContainerArchive.openForReading(path)) {
+          Key key = readKey(archive);
+          key.bytes = Files.size(path);
+          keys.put(key.path, key);
+          bytes += key.bytes;
+        } catch (IOException | RuntimeException e) {
+          System.err.println("Deleting unreadable compressed entry " + path + ": " + e);
+          Files.deleteIfExists(path);
+        }
+      }
+      evict();
+    }
+  }
+
+  /**
+   * Keeps the entries in {@code .compressed} of the container store, taking up to {@code
+   * container.create.cache.mb} megabytes, by default 512.
+   *
+   * @return the cache, or null if the size is 0.
+   */
+  static CompressedEntryCache fromSystemProperties(ContainerStore containerStore)
+      throws IOException {
+    long maxBytes = Integer.getInteger("container.create.cache.mb", 512) * 1024L * 1024L;
+    if (maxBytes <= 0) {
+      return null;
+    }
+    return new CompressedEntryCache(containerStore.getRoot().resolve(".compressed"), maxBytes);
+  }
+
+  /**
+   * Opens the cached entry of a file, if the file has the same size and modification time as when
+   * it was compressed. The caller still has to check that the content has the same digests.
+   *
+   * @param path of the file relative to the source directory.
+   * @param size of the file.
+   * @param lastModified time of the file in milliseconds.
+   * @return the entry, or null if there is none for the file as it is now.
+   */
+  Entry open(String path, long size, long lastModified) {
+    synchronized (keys) {
+      Key key = keys.get(path);
+      if (key == null || key.size != size || key.lastModified != lastModified) {
+        return null;
+      }
+    }
+    Path file = entries.pathOf(nameOf(path));
+    ContainerArchive archive = null;
+    try {
+      archive = ContainerArchive.openForReading(file);
+      Key key = readKey(archive);
+      // Evicted and written again meanwhile
+      if (!key.path.equals(path) || key.size != size || key.lastModified != lastModified) {
+        archive.close();
+        return null;
+      }
+      Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+      return new Entry(archive, archive.getEntry(path), key.metaData);
+    } catch (NoSuchFileException e) {
+      // Evicted meanwhile
+    } catch (IOException | RuntimeException e) {
+      e.printStackTrace();
+    }
+    if (archive != null) {
+      try {
+        archive.close();
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Starts writing the entry of a file as it is deflated.
+   *
+   * @param path of the file relative to the source directory.
+   * @param size of the file.
+   * @param lastModified time of the file in milliseconds.
+   * @return the writer, or null if the entry can not be written.
+   */
+  Writer newWriter(String path, long size, long lastModified) {
+    if (path.equals(KEY_ENTRY)) {
+      // Would be mistaken for the key
+      return null;
+    }
+    try {
+      return new Writer(new Key(path, size, lastModified));
+    } catch (IOException e) {
+      e.printStackTrace();
+      return null;
+    }
+  }
+
+  /** @return the total size of the cached entries. */
+  long size() {
+    synchronized (keys) {
+      return bytes;
+    }
+  }
+
+  private void commit(Path temporary, Key key) throws IOException {
+    Path path = entries.pathOf(nameOf(key.path));
+    key.bytes = Files.size(temporary);
+    if (key.bytes > maxBytes) {
+      // Would only push everything else out
+      Files.delete(temporary);
+      return;
+    }
+    synchronized (keys) {
+      Files.createDirectories(path.getParent());
+      try {
+        Files.move(
+            temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      } catch (AtomicMoveNotSupportedException e) {
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING);
+      }
+      Key replaced = keys.put(key.path, key);
+      bytes += key.bytes - (replaced == null ? 0 : replaced.bytes);
+      evict();
+    }
+  }
+
+  /** Deletes the least recently used entries until the rest fit. */
+  private void evict() throws IOException {
+    Iterator<Key> eldest = keys.values().iterator();
+    while (bytes > maxBytes && eldest.hasNext()) {
+      Key key = eldest.next();
+      Files.deleteIfExists(entries.pathOf(nameOf(key.path)));
+      eldest.remove();
+      bytes -= key.bytes;
+    }
+  }
+
+  private static Key readKey(ContainerArchive archive) throws IOException {
+    ZipEntryRecord entry = archive.getEntry(KEY_ENTRY);
+    if (entry == null) {
+      throw new IOException("Compressed entry has no " + KEY_ENTRY);
+    }
+    try (Reader reader =
+        new InputStreamReader(archive.getInputStream(entry), StandardCharsets.UTF_8)) {
+      return GSON.fromJson(reader, Key.class);
+    }
+  }
+
+  /** @return the name of the entry of a file, the path itself may not be a valid file name. */
+  private static String nameOf(String path) {
+    try {
+      byte[] digest =
+          MessageDigest.getInstance("SHA-256").digest(path.getBytes(StandardCharsets.UTF_8));
+      return Base16.encode(digest).toLowerCase(Locale.ROOT);
+    } catch (NoSuchAlgorithmException e) {
+      // Every JVM has SHA-256
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static FileTime lastModifiedTime(Path path) {
+    try {
+      return Files.getLastModifiedTime(path);
+    } catch (IOException e) {
+      return FileTime.fromMillis(0);
+    }
+  }
+
+  /** What a cached entry was compressed from. */
+  private static class Key {
+
+    private final String path;
+    private final long size;
+    private final long lastModified;
+    private List<MetaData> metaData;
+    // Size of the entry on disk, not persisted
+    private transient long bytes;
+
+    Key(String path, long size, long lastModified) {
+      this.path = path;
+      this.size = size;
+      this.lastModified = lastModified;
+    }
+  }
+
+  /** A cached entry open for copying, the digests of its file have yet to be compared. */
+  static class Entry implements Closeable {
+
+    private final ContainerArchive archive;
+    private final ZipEntryRecord record;
+    private final List<MetaData> metaData;
+
+    Entry(ContainerArchive archive, ZipEntryRecord record, List<MetaData> metaData)
+        throws IOException {
+      if (record == null || metaData == null) {
+        throw new IOException("Compressed entry is incomplete");
+      }
+      this.archive = archive;
+      this.record = record;
+      this.metaData = metaData;
+    }
+
+    /** @return the record of the compressed file, with its CRC and sizes. */
+    ZipEntryRecord getRecord() {
+      return record;
+    }
+
+    /** @return the digests the file had when it was compressed. */
+    List<MetaData> getMetaData() {
+      return metaData;
+    }
+
+    /** @return the compressed content of the file. */
+    InputStream getRawInputStream() throws IOException {
+      return archive.getRawInputStream(record);
+    }
+
+    @Override
+    public void close() throws IOException {
+      archive.close();
+    }
+  }
+
+  /**
+   * Writes the entry of a file next to the container it is compressed for. The container must not
+   * fail because of the cache, so a failure only drops the entry.
+   */
+  class Writer implements Closeable {
+
+    private final Key key;
+    private final Path temporary;
+    private final OutputStream out;
+    private final ZipWriter zipWriter;
+    // Whether the entry was committed or dropped
+    private boolean done;
+
+    private Writer(Key key) throws IOException {
+      this.key = key;
+      Files.createDirectories(entries.getRoot());
+      this.temporary = Files.createTempFile(entries.getRoot(), "entry", TEMPORARY_EXTENSION);
+      this.out = new BufferedOutputStream(Files.newOutputStream(temporary), 64 * 1024);
+      this.zipWriter = new ZipWriter(out);
+      try {
+        zipWriter.beginDeflated(key.path, key.lastModified);
+      } catch (IOException e) {
+        close();
+        throw e;
+      }
+    }
+
+    /** Writes raw deflate data of the file. */
+    void write(byte[] data, int offset, int length) {
+      if (!done) {
+        try {
+          zipWriter.writeDeflated(data, offset, length);
+        } catch (IOException e) {
+          e.printStackTrace();
+          close();
+        }
+      }
+    }
+
+    /**
+     * Adds the entry to the cache, replacing the one the file had before. The entry is dropped if
+     * the file turned out to be of another size than it was when the writer was created.
+     *
+     * @param crc of the file.
+     * @param size of the file.
+     * @param metaData digests of the file.
+     */
+    void commit(long crc, long size, List<MetaData> metaData) {
+      if (done || size != key.size) {
+        close();
+        return;
+      }
+      done = true;
+      key.metaData = metaData;
+      try {
+        zipWriter.endDeflated(crc, size);
+        zipWriter.writeEntry(KEY_ENTRY, GSON.toJson(key).getBytes(StandardCharsets.UTF_8));
+        zipWriter.finish();
+        out.close();
+        CompressedEntryCache.this.commit(temporary, key);
+      } catch (IOException e) {
+        e.printStackTrace();
+        drop();
+      }
+    }
+
+    /** Drops the entry unless it was committed, e.g. if the container could not be created. */
+    @Override
+    public void close() {
+      if (!done) {
+        done = true;
+        drop();
+      }
+    }
+
+    private void drop() {
+      try {
+        out.close();
+        Files.deleteIfExists(temporary);
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+  }
+}
@@ -1,54 +1,219 @@
 package com.guardtime.assignment;
 
 import com.google.gson.JsonArray;
+import com.google.gson.JsonNull;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
 import com.google.gson.JsonPrimitive;
 import com.guardtime.ksi.Reader;
 import com.guardtime.ksi.SignatureReader;
-import com.guardtime.ksi.blocksigner.IdentityMetadata;
-import com.guardtime.ksi.blocksigner.KsiBlockSigner;
 import com.guardtime.ksi.exceptions.KSIException;
-import com.guardtime.ksi.hashing.DataHasher;
+import com.guardtime.ksi.hashing.DataHash;
 import com.guardtime.ksi.hashing.HashAlgorithm;
 import com.guardtime.ksi.service.client.KSIServiceCredentials;
 import com.guardtime.ksi.service.client.KSISigningClient;
 import com.guardtime.ksi.service.client.ServiceCredentials;
 import com.guardtime.ksi.service.client.http.CredentialsAwareHttpSettings;
 import com.guardtime.ksi.service.http.simple.SimpleHttpSigningClient;
-import com.guardtime.ksi.unisignature.Identity;
 import com.guardtime.ksi.unisignature.KSISignature;
-import com.guardtime.ksi.util.Base16;
-import org.apache.commons.io.IOUtils;
+import com.sun.net.httpserver.HttpExchange;
 
 import java.io.*;
-import java.net.URI;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
-import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.stream.Collectors;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntConsumer;
 
-public class ContainerApi {
+public class ContainerApi implements Closeable {
 
-  private static KSISigningClient ksiSigningClient;
-  private static Reader reader;
+  private final KSISigningClient ksiSigningClient;
+  // Concurrent sign requests share aggregator rounds
+  private final SigningAggregator signingAggregator;
+  private final Reader reader = new SignatureReader();
+  // Hashes the datafiles of containers that have no digest index, and of those being verified
+  private static final DatafileHasher datafileHasher = DatafileHasher.fromSystemProperties();
 
   // Specifies where containers are stored
-  private static final Path CONTAINERS_PATH = Paths.get("src", "main", "resources", "containers");
+  static final ContainerStore CONTAINER_STORE = ContainerStore.fromSystemProperties();
+  static final Path CONTAINERS_PATH = CONTAINER_STORE.getRoot();
+  // Datafiles of the containers created with -Dcontainers.dedup=true, stored once for all of them
+  static final BlobStore BLOB_STORE = BlobStore.of(CONTAINER_STORE);
+  // Signing and deleting are recorded in it first, opening it finishes those cut short by a crash
+  static final ContainerJournal CONTAINER_JOURNAL = newContainerJournal();
+  private static final boolean DEDUPLICATE = Boolean.getBoolean("containers.dedup");
+  private static final ContainerCreator containerCreator = newContainerCreator();
   // The source directory of the files to be compressed
-  private static final Path SOURCE_DIR = Paths.get("src", "main", "resources", "files");
+  static final Path SOURCE_DIR =
+      Paths.get(System.getProperty("files.dir", "src/main/resources/files"));
+  // Whether signing re-hashes the datafiles to check them against the digest index
+  private static final boolean VERIFY_DIGEST_INDEX = Boolean.getBoolean("container.index.verify");
+  // How many containers one bulk sign request may have
+  private static final int MAX_BULK_SIZE = Integer.getInteger("signing.bulk.max", 10_000);
+  // Reads and writes the containers of bulk sign requests
+  private static final ExecutorService bulkExecutor = newBulkExecutor();
+  private static final Metrics.Counter HASHED_BYTES =
+      Metrics.REGISTRY.counter("container_hashed_bytes_total", "Bytes of datafiles hashed.");
+  private static final Metrics.Histogram HASHING_DURATION =
+      Metrics.REGISTRY.histogram(
+          "container_hashing_duration_seconds",
+          "Time it took to hash all the datafiles of a container.");
+
+  // Names of the containers, kept in memory so no request needs to walk the directory
+  private final ContainerCatalog containerCatalog;
+  // Serializes the changes to each container, different containers are changed in parallel
+  private final ContainerLocks containerLocks = ContainerLocks.fromSystemProperties();
+  // Sign requests that are answered before the signing is done
+  private final SigningJobs signingJobs;
+  // Verifies the signatures of containers and remembers the results
+  private final ContainerVerifier containerVerifier;
+  // Containers with their datafiles in the blob store, rendered for downloading
+  private final RenderedContainers renderedContainers;
+  // Numbers of the signatures waiting for the aggregator, by container
+  private final Map<String, Set<Integer>> pendingSignatureNumbers = new HashMap<>();
 
   public ContainerApi() {
-    setUpKsi();
+    this(newSigningClient());
+  }
+
+  /** @param ksiSigningClient that the signing rounds are sent with. */
+  ContainerApi(KSISigningClient ksiSigningClient) {
+    this.ksiSigningClient = ksiSigningClient;
+    this.signingAggregator = SigningAggregator.fromSystemProperties(ksiSigningClient);
+    try {
+      containerCatalog = new ContainerCatalog(CONTAINER_STORE);
+    } catch (IOException e) {
+      throw new UncheckedIOException("Could not read the containers directory.", e);
+    }
+    try {
+      signingJobs =
+          SigningJobs.fromSystemProperties(
+              CONTAINERS_PATH.resolve(".jobs"),
+              new SigningJobs.Signer() {
+                @Override
+                public String sign(
+                    String fileName, String userId, IntConsumer reserved, IntConsumer signed) {
+                  return ContainerApi.this.sign(fileName, userId, reserved, signed);
+                }
+
+                @Override
+                public boolean isSigned(String fileName, String userId, int signatureNumber)
+                    throws IOException, KSIException {
+                  return ContainerApi.this.isSigned(fileName, userId, signatureNumber);
+                }
+              });
+    } catch (IOException e) {
+      throw new UncheckedIOException("Could not create the signing jobs directory.", e);
+    }
+    try {
+      renderedContainers = RenderedContainers.fromSystemProperties(CONTAINER_STORE, BLOB_STORE);
+    } catch (IOException e) {
+      throw new UncheckedIOException("Could not clear the rendered containers.", e);
+    }
+    try {
+      containerVerifier = ContainerVerifier.fromSystemProperties();
+    } catch (KSIException e) {
+      throw new IllegalStateException("Could not set up the verification of signatures.", e);
+    }
+    registerMetrics();
+  }
+
+  /**
+   * @param fileName of the container.
+   * @return where the container is stored, whether it exists or not.
+   */
+  public static Path getContainerPath(String fileName) {
+    return CONTAINER_STORE.pathOf(fileName);
+  }
+
+  /** Registers the gauges of the state kept by this instance, replacing those of earlier ones. */
+  private void registerMetrics() {
+    Metrics.REGISTRY.gauge(
+        "containers", "Containers in the catalog.", () -> containerCatalog.names().size());
+    Metrics.REGISTRY.gauge(
+        "container_locks", "Containers locked or waited for.", containerLocks::size);
+    Metrics.REGISTRY.gauge(
+        "signing_jobs_pending", "Sign requests accepted but not done yet.", signingJobs::pending);
+    Metrics.REGISTRY.counter(
+        "verification_cache_hits_total",
+        "Signature results found in the verification cache.",
+        containerVerifier::getCacheHits);
+    Metrics.REGISTRY.counter(
+        "verification_cache_misses_total",
+        "Signatures that had to be verified.",
+        containerVerifier::getCacheMisses);
+  }
+
+  /**
+   * Runs the signing jobs that were queued or running when the server stopped. Called once the API
+   * is set up, the jobs are only run again by the first instance that does so.
+   */
+  public void recoverSigningJobs() {
+    try {
+      signingJobs.recover();
+    } catch (IOException e) {
+      throw new UncheckedIOException("Could not read the signing jobs.", e);
+    }
+  }
+
+  /**
+   * Stops signing: the signing jobs are stopped, requests waiting for an aggregator round are
+   * failed and the client of the aggregator is closed. The catalog stops watching the containers
+   * directory.
+   */
+  @Override
+  public void close() {
+    signingJobs.shutdown();
+    signingAggregator.shutdown();
+    try {
+      ksiSigningClient.close();
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+    try {
+      containerCatalog.close();
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
   }
 
-  void setUpKsi() {
+  /**
+   * Creates the client of the aggregator given by the system property {@code ksi.client}: {@code
+   * http} (the default) for the aggregator at {@code aggregator.url}, {@code local} for a {@link
+   * LocalAggregator} in this process, or the name of a class implementing {@link KSISigningClient}
+   * that has a public constructor without parameters. A comma separated list of aggregator URLs,
+   * or {@code local.aggregator.count} above 1, gives an {@link AggregatorPool} of them.
+   */
+  private static KSISigningClient newSigningClient() {
+    String client = System.getProperty("ksi.client", "http");
+    if (client.equals("local")) {
+      int count = Integer.getInteger("local.aggregator.count", 1);
+      if (count <= 1) {
+        return LocalAggregator.fromSystemProperties();
+      }
+      Map<String, KSISigningClient> aggregators = new LinkedHashMap<>();
+      for (int i = 1; i <= count; i++) {
+        aggregators.put("local-" + i, LocalAggregator.fromSystemProperties());
+      }
+      return AggregatorPool.fromSystemProperties(aggregators);
+    }
+    if (!client.equals("http")) {
+      try {
+        return (KSISigningClient) Class.forName(client).getConstructor().newInstance();
+      } catch (ReflectiveOperationException | ClassCastException e) {
+        throw new IllegalStateException("Could not create the signing client " + client, e);
+      }
+    }
 
     String aggregatorUrl = System.getProperty("aggregator.url");
     String loginId = System.getProperty("ksi.login.id");
@@ -56,60 +221,117 @@ public class ContainerApi {
 
     ServiceCredentials credentials = new KSIServiceCredentials(loginId, loginKey);
 
-    ksiSigningClient =
-        new SimpleHttpSigningClient(new CredentialsAwareHttpSettings(aggregatorUrl, credentials));
-
-    reader = new SignatureReader();
+    if (aggregatorUrl == null || !aggregatorUrl.contains(",")) {
+      return new SimpleHttpSigningClient(
+          new CredentialsAwareHttpSettings(aggregatorUrl, credentials));
+    }
+    Map<String, KSISigningClient> aggregators = new LinkedHashMap<>();
+    for (String url : aggregatorUrl.split(",")) {
+      if (!url.trim().isEmpty()) {
+        aggregators.put(
+            url.trim(),
+            new SimpleHttpSigningClient(
+                new CredentialsAwareHttpSettings(url.trim(), credentials)));
+      }
+    }
+    return AggregatorPool.fromSystemProperties(aggregators);
   }
 
   /**
    * First part of the assignment - Creating a container. All the files in the files directory will
    * get compressed in to a .zip file, the name will be provided by the user. Since a container
    * might need to be fetched later, it needs to be identifiable. That is achieved by each container
-   * having a distinct name. After checking the name, it proceeds to compress all the files.
+   * having a distinct name. After reserving the name, it proceeds to compress all the files. Files
+   * are compressed in parallel and streamed in to the container, already compressed files (such as
+   * .pdf and .png) are stored as they are. With {@code -Dcontainers.dedup=true} the files are kept
+   * in the blob store instead, and only those the store does not have yet are compressed.
    *
    * @param fileName of the .zip container to be created.
    * @return an error message in the form of Json if the name is not satisfactory or will return and
    *     empty string if the container was created successfully.
    */
   public String createContainer(String fileName) {
+    // Streams all the content in directory through the parallel compression in to the .zip
+    // container, so neither the size of the files nor the heap limits it
+    if (DEDUPLICATE) {
+      return createContainer(
+          fileName, out -> containerCreator.create(SOURCE_DIR, out, BLOB_STORE));
+    }
+    return createContainer(fileName, out -> containerCreator.create(SOURCE_DIR, out));
+  }
+
+  /**
+   * Creates a container of datafiles uploaded in the request body, as a zip or a tar archive or as
+   * a multipart form. The upload is compressed in to the container and hashed as it arrives, so
+   * it is read only once and never staged on disk.
+   *
+   * @param fileName of the .zip container to be created.
+   * @param contentType of the upload.
+   * @param body of the request.
+   * @return an error message in the form of Json if the name or the upload is not satisfactory or
+   *     will return an empty string if the container was created successfully.
+   */
+  public String createContainer(String fileName, String contentType, InputStream body) {
+    if (!Upload.isSupported(contentType)) {
+      return errorMessageAsJson(
+          "Upload the datafiles as a zip or tar archive or as a multipart form.");
+    }
+    if (DEDUPLICATE) {
+      return createContainer(
+          fileName,
+          out -> containerCreator.create(Upload.open(contentType, body), out, BLOB_STORE));
+    }
+    return createContainer(
+        fileName, out -> containerCreator.create(Upload.open(contentType, body), out));
+  }
+
+  private String createContainer(String fileName, ContainerContent content) {
 
     if (fileName == null || fileName.length() < 1) {
       return errorMessageAsJson("Provide a name for the container.");
     }
 
 
-    if (isContainerNameDistinct(fileName)) {
+    if (!ContainerCatalog.isValidName(fileName)) {
+      return errorMessageAsJson(
+          "Container name can not contain path separators or start with a dot.");
+    }
+
+    // Reserving the name makes sure no one else creates a container with the same name meanwhile
+    if (!containerCatalog.reserve(fileName)) {
       return errorMessageAsJson("Container with that name already exists!");
     }
 
-    // Define the input and output points for the compression
-    String fileUri = ("src/main/resources/containers/" + fileName + ".zip");
-    // Goes through all the content in directory, reads it to a byte array, which can contain up to
-    // 2GB and writes to the .zip container
+    // Define the output point for the compression
+    Path containerPath = CONTAINER_STORE.pathOf(fileName);
+    OutputStream outputStream;
     try {
-      final ZipOutputStream outputStream = new ZipOutputStream(new FileOutputStream(fileUri));
-      Files.walkFileTree(
-          SOURCE_DIR,
-          new SimpleFileVisitor<Path>() {
-            @Override
-            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
-              try {
-                Path targetFile = SOURCE_DIR.relativize(file);
-                outputStream.putNextEntry(new ZipEntry(targetFile.toString()));
-                byte[] bytes = Files.readAllBytes(file);
-                outputStream.write(bytes, 0, bytes.length);
-                outputStream.closeEntry();
-              } catch (IOException e) {
-                e.printStackTrace();
-              }
-              return FileVisitResult.CONTINUE;
-            }
-          });
-      outputStream.close();
+      Files.createDirectories(containerPath.getParent());
+      outputStream =
+          new BufferedOutputStream(
+              Files.newOutputStream(containerPath, StandardOpenOption.CREATE_NEW), 64 * 1024);
+    } catch (FileAlreadyExistsException e) {
+      containerCatalog.release(fileName);
+      return errorMessageAsJson("Container with that name already exists!");
+    } catch (IOException e) {
+      e.printStackTrace();
+      containerCatalog.release(fileName);
+      return errorMessageAsJson("Container could not be created.");
+    }
+
+    try (OutputStream out = outputStream) {
+      content.writeTo(out);
     } catch (IOException e) {
       e.printStackTrace();
+      try {
+        Files.deleteIfExists(containerPath);
+      } catch (IOException ignored) {
+        // Nothing more to do, the original error was already reported
+      }
+      containerCatalog.release(fileName);
+      return errorMessageAsJson("Container could not be created.");
     }
+    containerCatalog.commit(fileName);
 
     return "";
   }
@@ -120,7 +342,7 @@ public class ContainerApi {
    * @return a json with the names of all the containers and how many there are.
    */
   public String readContainers() {
-    List<String> filesInFolder = getAllContainerNamesInDir();
+    List<String> filesInFolder = containerCatalog.names();
 
     JsonObject jsonObject = new JsonObject();
     jsonObject.add("numberOfContainers", new JsonPrimitive(filesInFolder.size()));
@@ -131,9 +353,73 @@ public class ContainerApi {
     return jsonObject.toString();
   }
 
+  /**
+   * Second part of the assignment, for stores too large to be listed at once. Sends a page of the
+   * containers as the response of a listing request, see {@link ContainerListing} for the query.
+   *
+   * @param exchange of the listing request, answered here if the query is valid.
+   * @return a json with the appropriate error message or empty string if the listing was sent.
+   */
+  public String readContainers(HttpExchange exchange) {
+    ContainerListing.Query query;
+    try {
+      query = ContainerListing.Query.parse(exchange.getRequestURI().getRawQuery());
+    } catch (IllegalArgumentException e) {
+      return errorMessageAsJson(e.getMessage());
+    }
+    try {
+      ContainerListing.send(exchange, containerCatalog, query, this::summarize);
+    } catch (IOException e) {
+      e.printStackTrace();
+      // Once the response is partly sent, the caller can only close the connection
+      if (exchange.getResponseCode() < 0) {
+        return errorMessageAsJson("Containers could not be listed.");
+      }
+    }
+    return "";
+  }
+
+  /**
+   * @param fileName of the container.
+   * @param signatures whether to count the signatures. They are left uncounted if the container
+   *     is busy, the listing does not wait for it.
+   * @return the fields of the container in a listing, or null if the container was deleted.
+   */
+  private ContainerListing.Summary summarize(String fileName, boolean signatures)
+      throws IOException {
+    Path containerPath = CONTAINER_STORE.pathOf(fileName);
+    try {
+      long size = Files.size(containerPath);
+      if (!signatures) {
+        return new ContainerListing.Summary(size, null);
+      }
+      ContainerLocks.Lock lock = containerLocks.tryAcquireRead(fileName);
+      if (lock == null) {
+        return new ContainerListing.Summary(size, null);
+      }
+      try (ContainerLocks.Lock held = lock;
+          ContainerArchive archive = ContainerArchive.openForReading(containerPath)) {
+        int count = 0;
+        for (ZipEntryRecord entry : archive.getEntries()) {
+          String name = entry.getName();
+          if (name.startsWith("META-INF/signature") && name.endsWith(".ksi")) {
+            count++;
+          }
+        }
+        return new ContainerListing.Summary(Files.size(containerPath), count);
+      }
+    } catch (NoSuchFileException e) {
+      return null;
+    }
+  }
+
   /**
    * Third part of the assignment. Creates a manifest file from the contents of the .zip container.
-   * Signs the manifest file. Persists the signature to the .zip container.
+   * Signs the manifest file. Persists the signature to the .zip container. The content is taken
+   * from the digest index of the container, re-hashing the datafiles only if the container has no
+   * index or if verifying it is turned on with {@code -Dcontainer.index.verify=true}. The signature
+   * is not extended to a publication, the assignment did not say where an extended signature
+   * should be kept.
    *
    * @param fileName of the .zip container wished to be signed.
    * @param userId of the user whose name on it will be signed. Used later to know which signature
@@ -141,6 +427,16 @@ public class ContainerApi {
    * @return a json with the appropriate error message or empty string if signing was successful.
    */
   public String sign(String fileName, String userId) {
+    return sign(fileName, userId, signatureNumber -> {}, signatureNumber -> {});
+  }
+
+  /**
+   * Signs the container like {@link #sign(String, String)}.
+   *
+   * @param reserved is given the number of the signature before the manifest is signed.
+   * @param signed is given the number of the signature once it is persisted.
+   */
+  String sign(String fileName, String userId, IntConsumer reserved, IntConsumer signed) {
 
     if (fileName == null || fileName.length() < 1) {
       return errorMessageAsJson("Provide the name of a container you wish to sign.");
@@ -150,42 +446,447 @@ public class ContainerApi {
       return errorMessageAsJson("Provide your name to sign the content.");
     }
 
-    Map<String, String> env = new HashMap<>();
-    env.put("create", "true");
+    if (!containerCatalog.contains(fileName)) {
+      return errorMessageAsJson("Container with that name does not exist.");
+    }
+
+    // The container is only locked to read it and to write the signature, not while it is signed
+    PendingSignature pending;
+    try (ContainerLocks.Lock lock = containerLocks.acquireRead(fileName)) {
+      pending = prepareSignature(fileName);
+    } catch (ContainerLocks.LockTimeoutException e) {
+      return errorMessageAsJson("Container is busy, try again later.");
+    } catch (Exception e) {
+      e.printStackTrace();
+      return errorMessageAsJson("Container could not be signed.");
+    }
+    if (pending == null) {
+      return errorMessageAsJson("Container content does not match its digest index.");
+    }
 
-    URI uri = URI.create("jar:" + CONTAINERS_PATH.toUri() + "/" + fileName + ".zip");
-    // List of POJO to store each file's uri, hash-algorithm and hash.
-    List<MetaData> metaData;
+    try {
+      reserved.accept(pending.signatureNumber);
+      // Waits for the block signing round the manifest hash ends up in
+      KSISignature signature = signingAggregator.sign(pending.manifestHash, userId);
+      try (ContainerLocks.Lock lock = containerLocks.acquireWrite(fileName)) {
+        commitSignature(pending, userId, signature);
+      }
+      signed.accept(pending.signatureNumber);
+    } catch (ContainerLocks.LockTimeoutException e) {
+      return errorMessageAsJson("Container is busy, try again later.");
+    } catch (Exception e) {
+      e.printStackTrace();
+      return errorMessageAsJson("Container could not be signed.");
+    } finally {
+      releaseSignatureNumber(pending);
+    }
 
-    try (FileSystem fs = FileSystems.newFileSystem(uri, env)) {
-      metaData = getMetaDataList(fs);
+    return "";
+  }
 
-      // Creates "META-INF" directory
-      Path newDir = fs.getPath("META-INF");
-      if (Files.notExists(newDir)) {
-        Files.createDirectory(newDir);
+  /**
+   * Signs many containers in the name of the same user. The manifests are built in parallel, their
+   * hashes are signed together in as few aggregator rounds as the batching allows, and the
+   * signatures are written back in parallel as soon as they arrive. Each container is locked while
+   * its manifest is built and while its signature is written, not while it waits for the
+   * aggregator.
+   *
+   * @param fileNames of the .zip containers wished to be signed, a name listed twice is signed
+   *     once.
+   * @param userId of the user whose name on them will be signed.
+   * @return a json with the number of the signature or the error of each container, or with the
+   *     appropriate error message if none of them could be signed.
+   */
+  public String signBulk(List<String> fileNames, String userId) {
+    if (fileNames == null || fileNames.isEmpty()) {
+      return errorMessageAsJson("Provide the names of the containers you wish to sign.");
+    }
+
+    if (userId == null || userId.length() < 1) {
+      return errorMessageAsJson("Provide your name to sign the content.");
+    }
+
+    if (fileNames.size() > MAX_BULK_SIZE) {
+      return errorMessageAsJson("At most " + MAX_BULK_SIZE + " containers can be signed at once.");
+    }
+
+    Map<String, CompletableFuture<JsonObject>> results = new LinkedHashMap<>();
+    for (String fileName : fileNames) {
+      results.computeIfAbsent(fileName, name -> signInBulk(name, userId));
+    }
+    JsonArray data = new JsonArray();
+    for (CompletableFuture<JsonObject> result : results.values()) {
+      data.add(result.join());
+    }
+    JsonObject jsonObject = new JsonObject();
+    jsonObject.add("results", data);
+    return jsonObject.toString();
+  }
+
+  /** Signs one container of a bulk sign request, without blocking the calling thread. */
+  private CompletableFuture<JsonObject> signInBulk(String fileName, String userId) {
+    CompletableFuture<JsonObject> result = new CompletableFuture<>();
+    if (fileName == null || !containerCatalog.contains(fileName)) {
+      result.complete(bulkResult(fileName, null, "Container with that name does not exist."));
+      return result;
+    }
+
+    bulkExecutor.execute(
+        () -> {
+          PendingSignature pending;
+          try (ContainerLocks.Lock lock = containerLocks.acquireRead(fileName)) {
+            pending = prepareSignature(fileName);
+          } catch (ContainerLocks.LockTimeoutException e) {
+            result.complete(bulkResult(fileName, null, "Container is busy, try again later."));
+            return;
+          } catch (IOException | KSIException | RuntimeException e) {
+            e.printStackTrace();
+            result.complete(bulkResult(fileName, null, "Container could not be signed."));
+            return;
+          }
+          if (pending == null) {
+            result.complete(
+                bulkResult(fileName, null, "Container content does not match its digest index."));
+            return;
+          }
+          signingAggregator
+              .submit(pending.manifestHash, userId)
+              .whenCompleteAsync(
+                  (signature, error) -> {
+                    try {
+                      result.complete(commitInBulk(pending, userId, signature, error));
+                    } finally {
+                      releaseSignatureNumber(pending);
+                    }
+                  },
+                  bulkExecutor);
+        });
+    return result;
+  }
+
+  /**
+   * Checks whether a signature was written to the container, e.g. by a signing job that was
+   * running when the server stopped.
+   *
+   * @return whether the signer index of the container has the signature of the user.
+   */
+  private boolean isSigned(String fileName, String userId, int signatureNumber)
+      throws IOException, KSIException {
+    if (!containerCatalog.contains(fileName)) {
+      return false;
+    }
+    try (ContainerLocks.Lock lock = containerLocks.acquireRead(fileName);
+        ContainerArchive archive =
+            ContainerArchive.openForReading(CONTAINER_STORE.pathOf(fileName), BLOB_STORE)) {
+      return getSignerIndex(archive).get(userId).contains(signatureNumber);
+    } catch (ContainerLocks.LockTimeoutException e) {
+      throw new IOException("Container is busy.", e);
+    }
+  }
+
+  /**
+   * Builds the manifest of the next signature of a container and reserves the number of the
+   * signature until {@link #releaseSignatureNumber(PendingSignature)}. The caller holds a lock of
+   * the container, at least for reading.
+   *
+   * @return the manifest, or null if the datafiles do not match the digest index.
+   */
+  private PendingSignature prepareSignature(String fileName) throws IOException, KSIException {
+    Path containerPath = CONTAINER_STORE.pathOf(fileName);
+    try (ContainerArchive archive = ContainerArchive.openForReading(containerPath, BLOB_STORE)) {
+      List<MetaData> metaData = getCheckedMetaDataList(archive);
+      if (metaData == null) {
+        return null;
       }
+      int signatureNumber = reserveSignatureNumber(fileName, getSignerIndex(archive));
+      try {
+        // Only the hash is kept until the commit, where the manifest is encoded again
+        Manifest manifest = new Manifest(metaData, signatureNumber);
+        return new PendingSignature(fileName, signatureNumber, manifest);
+      } catch (IOException | RuntimeException e) {
+        releaseSignatureNumber(fileName, signatureNumber);
+        throw e;
+      }
+    }
+  }
 
-      int signatureNumber = getSignatureNumber(fs);
-
-      // Creates a new manifest file
-      Path manifestFile = fs.getPath("META-INF", "manifest" + signatureNumber + ".tlv");
-      try (Writer writer =
-          Files.newBufferedWriter(
-              manifestFile, StandardCharsets.UTF_8, StandardOpenOption.CREATE)) {
-        for (MetaData df : metaData) {
-          writer.write("Datafile\n");
-          writer.write("\turi=" + df.getUri() + "\n");
-          writer.write("\thash-algorithm=" + df.getHashAlgorithm() + "\n");
-          writer.write("\thash=" + df.getHash() + "\n");
-        }
-        writer.write("signature-uri=META-INF/signature" + signatureNumber + ".ksi");
+  /**
+   * Takes the next signature number of a container that is neither in the signer index nor
+   * reserved by another signing, so concurrent signings of a container can wait for the
+   * aggregator without holding its lock. The caller holds a lock of the container, so no signature
+   * is committed meanwhile.
+   */
+  private int reserveSignatureNumber(String fileName, SignerIndex signerIndex) {
+    synchronized (pendingSignatureNumbers) {
+      Set<Integer> reserved =
+          pendingSignatureNumbers.computeIfAbsent(fileName, name -> new HashSet<>());
+      int signatureNumber = signerIndex.nextSignatureNumber();
+      while (!reserved.add(signatureNumber)) {
+        signatureNumber++;
       }
+      return signatureNumber;
+    }
+  }
 
-      signTheManifest(manifestFile, fs, signatureNumber, userId);
+  /** Gives up the number of a signature, once it is committed or could not be signed. */
+  private void releaseSignatureNumber(PendingSignature pending) {
+    releaseSignatureNumber(pending.fileName, pending.signatureNumber);
+  }
 
-    } catch (Exception e) {
+  private void releaseSignatureNumber(String fileName, int signatureNumber) {
+    synchronized (pendingSignatureNumbers) {
+      Set<Integer> reserved = pendingSignatureNumbers.get(fileName);
+      if (reserved != null && reserved.remove(signatureNumber) && reserved.isEmpty()) {
+        pendingSignatureNumbers.remove(fileName);
+      }
+    }
+  }
+
+  /**
+   * Writes the manifest, its signature and the updated signer index in to the container in one
+   * go. The signer index is read again, it may have changed while the manifest was being signed.
+   * The caller holds the write lock of the container.
+   */
+  private void commitSignature(PendingSignature pending, String userId, KSISignature signature)
+      throws IOException, KSIException {
+    Path containerPath = CONTAINER_STORE.pathOf(pending.fileName);
+    try (ContainerArchive archive =
+        ContainerArchive.open(containerPath, BLOB_STORE, CONTAINER_JOURNAL)) {
+      ByteArrayOutputStream signatureBytes = new ByteArrayOutputStream();
+      signature.writeTo(signatureBytes);
+      int signatureNumber = pending.signatureNumber;
+      SignerIndex signerIndex = getSignerIndex(archive);
+      signerIndex.add(userId, signatureNumber);
+      byte[] signatureContent = signatureBytes.toByteArray();
+      byte[] signerIndexContent = signerIndex.toBytes();
+      Map<String, ZipWriter.EntryContent> entries = new LinkedHashMap<>();
+      entries.put(Manifest.entryName(signatureNumber), pending.manifest);
+      entries.put(
+          "META-INF/signature" + signatureNumber + ".ksi", out -> out.write(signatureContent));
+      entries.put(SignerIndex.ENTRY_NAME, out -> out.write(signerIndexContent));
+      archive.updateStreamed(Collections.emptySet(), entries);
+      containerCatalog.modified(pending.fileName);
+    }
+  }
+
+  /**
+   * Commits a signature of a bulk sign request, taking the write lock of the container.
+   *
+   * @return the result of the container for the bulk sign response.
+   */
+  private JsonObject commitInBulk(
+      PendingSignature pending, String userId, KSISignature signature, Throwable error) {
+    if (error != null) {
+      error.printStackTrace();
+      return bulkResult(pending.fileName, null, "Container could not be signed.");
+    }
+    try (ContainerLocks.Lock lock = containerLocks.acquireWrite(pending.fileName)) {
+      commitSignature(pending, userId, signature);
+      return bulkResult(pending.fileName, pending.signatureNumber, null);
+    } catch (ContainerLocks.LockTimeoutException e) {
+      return bulkResult(pending.fileName, null, "Container is busy, try again later.");
+    } catch (IOException | KSIException | RuntimeException e) {
+      e.printStackTrace();
+      return bulkResult(pending.fileName, null, "Container could not be signed.");
+    }
+  }
+
+  private static JsonObject bulkResult(String fileName, Integer signatureNumber, String error) {
+    JsonObject result = new JsonObject();
+    result.add("name", fileName == null ? JsonNull.INSTANCE : new JsonPrimitive(fileName));
+    if (signatureNumber != null) {
+      result.add("signatureNumber", new JsonPrimitive(signatureNumber));
+    }
+    if (error != null) {
+      result.add("Error", new JsonPrimitive(error));
+    }
+    return result;
+  }
+
+  private static ContainerCreator newContainerCreator() {
+    try {
+      return ContainerCreator.fromSystemProperties(CONTAINER_STORE);
+    } catch (IOException e) {
+      throw new UncheckedIOException("Could not read the compressed entry cache.", e);
+    }
+  }
+
+  /**
+   * Opens the journal and then moves the containers left in another layout, e.g. by a version
+   * that kept them all in the root, to where they are looked up. The journal names the containers
+   * by their paths, so it is replayed before they move.
+   */
+  private static ContainerJournal newContainerJournal() {
+    ContainerJournal journal;
+    try {
+      journal = ContainerJournal.fromSystemProperties(CONTAINER_STORE);
+    } catch (IOException e) {
+      throw new UncheckedIOException("Could not recover the container journal.", e);
+    }
+    try {
+      int moved = CONTAINER_STORE.migrate();
+      if (moved > 0) {
+        System.err.println(
+            "Moved " + moved + " containers in to " + CONTAINER_STORE.getLevels() + " levels"
+                + " under " + CONTAINERS_PATH + ".");
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException("Could not move the containers in to their shards.", e);
+    }
+    return journal;
+  }
+
+  private static ExecutorService newBulkExecutor() {
+    int threads =
+        Integer.getInteger(
+            "signing.bulk.threads", 2 * Runtime.getRuntime().availableProcessors());
+    AtomicInteger count = new AtomicInteger();
+    return Executors.newFixedThreadPool(
+        Math.max(1, threads),
+        runnable -> {
+          Thread thread = new Thread(runnable, "bulk-sign-" + count.incrementAndGet());
+          thread.setDaemon(true);
+          return thread;
+        });
+  }
+
+  /**
+   * Queues the signing of a container to be done in the background. The container and the user
+   * are checked straight away, the outcome of the signing can be read with {@link #readJob}.
+   *
+   * @param fileName of the .zip container wished to be signed.
+   * @param userId of the user whose name on it will be signed.
+   * @return a json with the id of the job or with the appropriate error message.
+   */
+  public String signAsync(String fileName, String userId) {
+    if (fileName == null || fileName.length() < 1) {
+      return errorMessageAsJson("Provide the name of a container you wish to sign.");
+    }
+
+    if (userId == null || userId.length() < 1) {
+      return errorMessageAsJson("Provide your name to sign the content.");
+    }
+
+    if (!containerCatalog.contains(fileName)) {
+      return errorMessageAsJson("Container with that name does not exist.");
+    }
+
+    SigningJobs.Job job;
+    try {
+      job = signingJobs.submit(fileName, userId);
+    } catch (IOException e) {
+      e.printStackTrace();
+      return errorMessageAsJson("Signing could not be queued.");
+    }
+    if (job == null) {
+      return errorMessageAsJson("Too many containers are waiting to be signed, try again later.");
+    }
+
+    JsonObject jsonObject = new JsonObject();
+    jsonObject.add("jobId", new JsonPrimitive(job.getId()));
+    return jsonObject.toString();
+  }
+
+  /**
+   * Reads the status of a signing job.
+   *
+   * @param jobId given when the signing was queued.
+   * @return a json with the status of the job and the number of the signature once it is done, or
+   *     empty string if there is no such job.
+   */
+  public String readJob(String jobId) {
+    if (!SigningJobs.isValidId(jobId)) {
+      return "";
+    }
+    SigningJobs.Job job = signingJobs.get(jobId);
+    return job == null ? "" : job.toStatusJson();
+  }
+
+  /**
+   * Verifies the signatures of a container. The datafiles are hashed again and checked against the
+   * manifest of each signature, and each KSI signature is verified against its manifest. The
+   * container is locked for reading meanwhile.
+   *
+   * @param fileName of the .zip container to be verified.
+   * @return a json with the result of each signature and whether all of them are valid, or with
+   *     the appropriate error message.
+   */
+  public String verify(String fileName) {
+    if (fileName == null || fileName.length() < 1) {
+      return errorMessageAsJson("Provide the name of a container you wish to verify.");
+    }
+
+    if (!containerCatalog.contains(fileName)) {
+      return errorMessageAsJson("Container with that name does not exist.");
+    }
+
+    Path containerPath = CONTAINER_STORE.pathOf(fileName);
+
+    try (ContainerLocks.Lock lock = containerLocks.acquireRead(fileName);
+        ContainerArchive archive = ContainerArchive.openForReading(containerPath, BLOB_STORE)) {
+      return containerVerifier
+          .verify(
+              fileName,
+              archive,
+              getMetaDataList(archive),
+              algorithm -> getMetaDataList(archive, Collections.singletonList(algorithm)))
+          .toString();
+    } catch (ContainerLocks.LockTimeoutException e) {
+      return errorMessageAsJson("Container is busy, try again later.");
+    } catch (IOException e) {
+      e.printStackTrace();
+      return errorMessageAsJson("Container could not be read.");
+    }
+  }
+
+  /**
+   * Sends a container as the response of a download request. A snapshot of the container is taken
+   * while it is locked for reading, so the client gets it as it was before or after a change,
+   * never in between. It is sent after the lock is released, so a slow client does not hold up
+   * the changes to the container. A container with its datafiles in the blob store is sent as a
+   * rendering with the datafiles.
+   *
+   * @param fileName of the container to be downloaded.
+   * @param exchange of the download request, answered here if the container exists.
+   * @return a json with the appropriate error message or empty string if the container was sent.
+   */
+  public String download(String fileName, HttpExchange exchange) {
+    if (fileName == null || fileName.length() < 1) {
+      return errorMessageAsJson("Provide the name of a container you wish to download.");
+    }
+
+    if (!containerCatalog.contains(fileName)) {
+      return errorMessageAsJson("Container with that name does not exist.");
+    }
+
+    Path containerPath = CONTAINER_STORE.pathOf(fileName);
+
+    ContainerDownload.Snapshot snapshot;
+    try (ContainerLocks.Lock lock = containerLocks.acquireRead(fileName)) {
+      Path file = renderedContainers.get(fileName, containerPath);
+      // A rendering is replaced as a whole, only the container itself is changed in place
+      long stableLength = Long.MAX_VALUE;
+      if (file.equals(containerPath)) {
+        try (ContainerArchive archive = ContainerArchive.openForReading(containerPath)) {
+          stableLength = archive.getRewritableOffset();
+        }
+      }
+      snapshot = ContainerDownload.snapshot(file, stableLength);
+    } catch (ContainerLocks.LockTimeoutException e) {
+      return errorMessageAsJson("Container is busy, try again later.");
+    } catch (IOException e) {
+      e.printStackTrace();
+      return errorMessageAsJson("Container could not be read.");
+    }
+
+    try (ContainerDownload.Snapshot sent = snapshot) {
+      ContainerDownload.send(exchange, sent);
+    } catch (IOException e) {
       e.printStackTrace();
+      // Once the response is partly sent, the caller can only close the connection
+      if (exchange.getResponseCode() < 0) {
+        return errorMessageAsJson("Container could not be read.");
+      }
     }
 
     return "";
@@ -209,80 +910,40 @@ public class ContainerApi {
       return errorMessageAsJson("Provide your name to delete the signature from the container.");
     }
 
-    URI uri = URI.create("jar:" + CONTAINERS_PATH.toUri() + "/" + fileName + ".zip");
+    if (!containerCatalog.contains(fileName)) {
+      return errorMessageAsJson("Container with that name does not exist.");
+    }
 
-    Map<String, String> env = new HashMap<>();
-    env.put("create", "false");
+    Path containerPath = CONTAINER_STORE.pathOf(fileName);
 
-    /* Create ZIP file System */
-    try (FileSystem fs = FileSystems.newFileSystem(uri, env)) {
+    try (ContainerLocks.Lock lock = containerLocks.acquireWrite(fileName);
+        ContainerArchive archive =
+            ContainerArchive.open(containerPath, BLOB_STORE, CONTAINER_JOURNAL)) {
 
-      Path root = fs.getRootDirectories().iterator().next();
-      try {
-        Files.walk(root)
-            .filter(path -> path.toString().contains("/META-INF/signature"))
-            .filter(path -> path.toString().contains(".ksi"))
-            .filter(path -> Files.isRegularFile(path))
-            .forEach(
-                path -> {
-                  try {
-                    KSISignature signature = reader.read(Files.newInputStream(path));
-                    if (isItToBeDeleted(signature.getAggregationHashChainIdentity(), userId)) {
-                      // find the corresponding manifest file
-                      String manifest = path.toString().replace("signature", "manifest");
-                      manifest = manifest.replace("ksi", "tlv");
-                      Path manifestPath = fs.getPath(manifest);
-                      // delete tha manifest and then the signature file
-                      Files.delete(manifestPath);
-                      Files.delete(path);
-                    }
-                  } catch (Exception e) {
-                    e.printStackTrace();
-                  }
-                });
-      } catch (Exception e) {
-        // will receive NoSuchFileExceptions, due to the files being deleted. That is to be expected
-        e.printStackTrace();
+      // The signer index tells which files are the user's, no other signature needs to be read
+      SignerIndex signerIndex = getSignerIndex(archive);
+      List<Integer> signatureNumbers = signerIndex.remove(userId);
+      if (!signatureNumbers.isEmpty()) {
+        // delete tha manifest and the signature files, only the entries after them are rewritten
+        List<String> deleted = new ArrayList<>();
+        for (int signatureNumber : signatureNumbers) {
+          deleted.add(Manifest.entryName(signatureNumber));
+          deleted.add("META-INF/signature" + signatureNumber + ".ksi");
+        }
+        archive.update(
+            deleted, Collections.singletonMap(SignerIndex.ENTRY_NAME, signerIndex.toBytes()));
+        containerCatalog.modified(fileName);
       }
 
-    } catch (IOException e) {
+    } catch (ContainerLocks.LockTimeoutException e) {
+      return errorMessageAsJson("Container is busy, try again later.");
+    } catch (IOException | KSIException e) {
       e.printStackTrace();
     }
 
     return "";
   }
 
-  /** @return all container names. */
-  private List<String> getAllContainerNamesInDir() {
-    List<String> filesInFolder = new ArrayList<>();
-    try {
-      filesInFolder =
-          Files.walk(CONTAINERS_PATH)
-              .filter(Files::isRegularFile)
-              .filter(path -> !path.toString().contains(".DS_S"))
-              .map(Path::toString)
-              .map(s -> s.substring(30, s.length() - 4))
-              .collect(Collectors.toList());
-    } catch (IOException e) {
-      e.printStackTrace();
-    }
-
-    return filesInFolder;
-  }
-
-  /**
-   * Since a container might need to be fetched later, it needs to be identifiable. That is achieved
-   * by each container having a distinct name.
-   *
-   * @param name for the .zip file container.
-   * @return whether the container with the same name already exists in the directory where all
-   *     containers are kept.
-   */
-  private boolean isContainerNameDistinct(String name) {
-    List<String> filesInFolder = getAllContainerNamesInDir();
-    return filesInFolder.contains(name);
-  }
-
   /**
    * @param message that gives more info on why the request created an error.
    * @return a string in json format.
@@ -294,112 +955,129 @@ public class ContainerApi {
   }
 
   /**
-   * Determines the next signature number. Finds the manifest file with the biggest number and adds
-   * one.
+   * Reads the metadata of the datafiles from the digest index, or by hashing the datafiles if the
+   * container has no index or its index lacks an algorithm of the hashing policy. Verifies the
+   * index against the datafiles if that is turned on.
    *
-   * @param fs of the zip file.
-   * @return next signature number.
+   * @return the metadata of the datafiles with the algorithms of the hashing policy, or null if
+   *     they do not match the digest index.
    */
-  private int getSignatureNumber(FileSystem fs) {
-    Path root = fs.getRootDirectories().iterator().next();
-    try {
-      return Files.walk(root)
-              .filter(path -> path.toString().contains("/META-INF"))
-              .filter(path -> path.toString().contains("/manifest"))
-              .map(
-                  path ->
-                      Integer.parseInt(path.toString().substring(18, path.toString().indexOf("."))))
-              .reduce(0, Integer::max)
-          + 1;
-    } catch (IOException e) {
-      e.printStackTrace();
+  private List<MetaData> getCheckedMetaDataList(ContainerArchive archive) throws IOException {
+    List<MetaData> indexed = getIndexedMetaDataList(archive);
+    if (indexed == null) {
+      return getMetaDataList(archive);
+    }
+    Set<String> policy = new HashSet<>();
+    for (HashAlgorithm algorithm : datafileHasher.getAlgorithms()) {
+      policy.add(algorithm.getName());
+    }
+    Set<String> indexedAlgorithms = new HashSet<>();
+    List<MetaData> metaData = new ArrayList<>();
+    for (MetaData datafile : indexed) {
+      indexedAlgorithms.add(datafile.getHashAlgorithm());
+      if (policy.contains(datafile.getHashAlgorithm())) {
+        metaData.add(datafile);
+      }
+    }
+    if (!indexed.isEmpty() && !indexedAlgorithms.containsAll(policy)) {
+      // Created with another policy
+      return getMetaDataList(archive);
+    }
+    if (VERIFY_DIGEST_INDEX && !DigestIndex.matches(metaData, getMetaDataList(archive))) {
+      return null;
+    }
+    return metaData;
+  }
+
+  /**
+   * Reads the signer index of the container. Containers signed before the index existed get their
+   * index built once by reading the signatures in them, it is persisted with the next change.
+   *
+   * @param archive the .zip container.
+   * @return the signer index, which also gives the next signature number.
+   */
+  private SignerIndex getSignerIndex(ContainerArchive archive) throws IOException, KSIException {
+    ZipEntryRecord index = archive.getEntry(SignerIndex.ENTRY_NAME);
+    if (index != null) {
+      try (InputStream in = archive.getInputStream(index)) {
+        return SignerIndex.read(in);
+      }
     }
-    return 1;
+    return SignerIndex.build(archive, in -> SignerIndex.getSignerId(reader.read(in)));
   }
 
   /**
-   * Walking through all the files in .zip container and generating the content for each to add to
-   * the manifest file.
+   * Goes through all the files in .zip container and generating the content for each to add to
+   * the manifest file. The files are hashed in parallel with the algorithms of the hashing policy.
    *
-   * @param fs for the .zip container.
+   * @param archive the .zip container.
    * @return a list containing metadata about the containers content files.
    */
-  private List<MetaData> getMetaDataList(FileSystem fs) {
-    List<MetaData> metaData = new ArrayList<>();
-    Path root = fs.getRootDirectories().iterator().next();
-    try {
-      Files.walk(root)
-          .forEach(
-              path -> {
-                try {
-                  if (Files.isRegularFile(path)) {
-                    if (!path.toString().contains("/META-INF")
-                        && !path.toString().contains("/.DS_S")) {
-                      // Removing the slash ("/") from the front  of the name
-                      String fileUri = path.toString().substring(1, path.toString().length());
-                      // Generating the hash
-                      DataHasher dh = new DataHasher(HashAlgorithm.SHA2_256);
-                      String hashAlgorithm = HashAlgorithm.SHA2_256.getName();
-                      dh.addData(Files.newInputStream(path));
-                      String hash = Base16.encode(dh.getHash().getValue());
-                      metaData.add(new MetaData(fileUri, hashAlgorithm, hash));
-                    }
-                  }
-                } catch (Exception e) {
-                  e.printStackTrace();
-                }
-              });
-    } catch (Exception e) {
-      e.printStackTrace();
+  List<MetaData> getMetaDataList(ContainerArchive archive) {
+    return getMetaDataList(archive, datafileHasher.getAlgorithms());
+  }
+
+  /**
+   * @param archive the .zip container.
+   * @param algorithms each file is hashed with.
+   * @return a list containing metadata about the containers content files, for each file one for
+   *     each algorithm.
+   */
+  List<MetaData> getMetaDataList(ContainerArchive archive, List<HashAlgorithm> algorithms) {
+    long startedAt = System.nanoTime();
+    List<ZipEntryRecord> datafiles = new ArrayList<>();
+    long size = 0;
+    for (ZipEntryRecord entry : archive.getEntries()) {
+      String fileUri = entry.getName();
+      if (fileUri.endsWith("/") || fileUri.startsWith("META-INF/") || fileUri.contains(".DS_S")) {
+        continue;
+      }
+      datafiles.add(entry);
+      size += entry.getSize();
     }
+    List<MetaData> metaData = datafileHasher.hash(archive, datafiles, algorithms);
+    HASHED_BYTES.add(size);
+    HASHING_DURATION.recordNanos(System.nanoTime() - startedAt);
     return metaData;
   }
 
   /**
-   * Signs the file and persists the signature to the container. Does not extend the signature.
-   * Although found the following statement: "A general recommendation is to extend the signature to
-   * the closest publication as soon as possible. This is what the Catena-DB also does with all
-   * signatures it persists.", but was not sure where to save the extended signature and the
-   * assignment did not specify. UserId is used to later know which signature to delete.
+   * Reads the metadata of the datafiles from the digest index written when the container was
+   * created, so the datafiles need not be hashed again.
    *
-   * @param manifestFile to be signed using the KSI.
-   * @param fs for the .zip container.
-   * @param signatureNumber for this signature.
-   * @param userId to know which user signed it.
+   * @param archive the .zip container.
+   * @return a list containing metadata about the containers content files or null if the
+   *     container has no digest index.
    */
-  private void signTheManifest(Path manifestFile, FileSystem fs, int signatureNumber, String userId)
-      throws IOException, KSIException {
-    // Makes a temporary identical copy of the manifest file
-    InputStream in = Files.newInputStream(manifestFile);
-    final File maniFestFile = File.createTempFile("prefix", "sufix");
-    maniFestFile.deleteOnExit();
-    try (FileOutputStream out = new FileOutputStream(maniFestFile)) {
-      IOUtils.copy(in, out);
+  private List<MetaData> getIndexedMetaDataList(ContainerArchive archive) throws IOException {
+    ZipEntryRecord index = archive.getEntry(DigestIndex.ENTRY_NAME);
+    if (index == null) {
+      return null;
     }
+    try (InputStream in = archive.getInputStream(index)) {
+      return DigestIndex.read(in);
+    }
+  }
 
-    KsiBlockSigner ksiBlockSigner = new KsiBlockSigner(ksiSigningClient);
-    DataHasher dh = new DataHasher(HashAlgorithm.SHA2_256);
-    dh.addData(maniFestFile);
+  /** The manifest of a signature that is waiting for the aggregator. */
+  private static class PendingSignature {
 
-    ksiBlockSigner.add(dh.getHash(), new IdentityMetadata(userId));
-    List<KSISignature> signatures = ksiBlockSigner.sign();
+    private final String fileName;
+    private final int signatureNumber;
+    private final Manifest manifest;
+    private final DataHash manifestHash;
 
-    // Persists signature to file
-    Path signaturePath = fs.getPath("META-INF", "signature" + signatureNumber + ".ksi");
-    try (OutputStream outputStream =
-        Files.newOutputStream(signaturePath, StandardOpenOption.CREATE)) {
-      signatures.get(0).writeTo(outputStream);
+    PendingSignature(String fileName, int signatureNumber, Manifest manifest) throws IOException {
+      this.fileName = fileName;
+      this.signatureNumber = signatureNumber;
+      this.manifest = manifest;
+      this.manifestHash = manifest.getHash();
     }
   }
 
-  /**
-   * Checks for userId in the identity metadata.
-   *
-   * @return whether the manifest was signed by the given user.
-   */
-  private boolean isItToBeDeleted(Identity[] identity, String userId) {
-    StringBuilder stringBuilder = new StringBuilder();
-    stringBuilder.append(identity[identity.length - 1].getDecodedClientId());
-    return stringBuilder.toString().equals(userId);
+  /** Writes the datafiles of a new container. */
+  private interface ContainerContent {
+
+    void writeTo(OutputStream out) throws IOException;
   }
 }
@@ -0,0 +1,496 @@
+package com.guardtime.assignment;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+
+/**
+ * A zip container opened for reading and for updating in place. Updates never touch the bytes of
+ * entries that come before the first entry being replaced or removed: new entries are written
+ * after the last kept entry, followed by a fresh central directory. Because the datafiles come
+ * first and the entries that change (manifests, signatures and the signer index) come last,
+ * signing or deleting a signature costs the same regardless of how big the datafiles are. This
+ * replaces the zipfs provider, which rewrites the whole archive when it is closed. Opened with a
+ * {@link ContainerJournal}, the rewritten end is recorded in it first, so an update cut short by a
+ * crash is finished when the journal is opened again.
+ *
+ * <p>A container whose datafiles are kept in a {@link BlobStore} has only the {@link BlobIndex}
+ * of them. Opened with the blob store, the datafiles are listed and read as if they were entries of
+ * the container, before its own entries, and {@link #render(OutputStream)} writes the container
+ * with the datafiles in it.
+ */
+class ContainerArchive implements Closeable {
+
+  // The end of central directory record is 22 bytes, followed by a comment of up to 64KB
+  private static final int MAX_END_SEARCH = 22 + 0xFFFF;
+  private static final Metrics.Histogram UPDATE_DURATION =
+      Metrics.REGISTRY.histogram(
+          "container_update_duration_seconds",
+          "Time it took to rewrite the end of a container when signing or deleting.");
+
+  private final Path path;
+  private final FileChannel channel;
+  // Keyed by name, ordered by the position of the local entries in the file
+  private final Map<String, ZipEntryRecord> entries = new LinkedHashMap<>();
+  private long centralDirectoryOffset;
+  private final BlobStore blobStore;
+  // Datafiles kept in the blob store, keyed by name, and the keys of their blobs
+  private final Map<String, ZipEntryRecord> referenced = new LinkedHashMap<>();
+  private final Map<String, String> blobKeys = new HashMap<>();
+  // Updates are written through it, if there is one
+  private final ContainerJournal journal;
+
+  private ContainerArchive(
+      Path path, FileChannel channel, BlobStore blobStore, ContainerJournal journal)
+      throws IOException {
+    this.path = path;
+    this.channel = channel;
+    this.blobStore = blobStore;
+    this.journal = journal;
+    try {
+      readCentralDirectory();
+      readBlobIndex();
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  /** Opens the container for reading only. */
+  static ContainerArchive openForReading(Path path) throws IOException {
+    return openForReading(path, null);
+  }
+
+  /**
+   * Opens the container for reading only.
+   *
+   * @param blobStore the datafiles are read from if they are not in the container.
+   */
+  static ContainerArchive openForReading(Path path, BlobStore blobStore) throws IOException {
+    return new ContainerArchive(
+        path, FileChannel.open(path, StandardOpenOption.READ), blobStore, null);
+  }
+
+  /** Opens the container for reading and updating. */
+  static ContainerArchive open(Path path) throws IOException {
+    return open(path, null);
+  }
+
+  /**
+   * Opens the container for reading and updating.
+   *
+   * @param blobStore the datafiles are read from if they are not in the container.
+   */
+  static ContainerArchive open(Path path, BlobStore blobStore) throws IOException {
+    return open(path, blobStore, null);
+  }
+
+  /**
+   * Opens the container for reading and updating.
+   *
+   * @param blobStore the datafiles are read from if they are not in the container.
+   * @param journal the updates are recorded in before they are written, or null.
+   */
+  static ContainerArchive open(Path path, BlobStore blobStore, ContainerJournal journal)
+      throws IOException {
+    return new ContainerArchive(
+        path,
+        FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE),
+        blobStore,
+        journal);
+  }
+
+  /** @return the entries in the order they are stored in. */
+  Collection<ZipEntryRecord> getEntries() {
+    if (referenced.isEmpty()) {
+      return entries.values();
+    }
+    List<ZipEntryRecord> all = new ArrayList<>(referenced.size() + entries.size());
+    all.addAll(referenced.values());
+    all.addAll(entries.values());
+    return all;
+  }
+
+  /** @return the entry with the name, or null if there is none. */
+  ZipEntryRecord getEntry(String name) {
+    ZipEntryRecord entry = entries.get(name);
+    return entry != null ? entry : referenced.get(name);
+  }
+
+  /**
+   * @return where the entries that signing and deleting may rewrite start. The datafiles and the
+   *     digest index before that offset are never written again.
+   */
+  long getRewritableOffset() {
+    long offset = centralDirectoryOffset;
+    for (ZipEntryRecord entry : entries.values()) {
+      String name = entry.getName();
+      if (name.startsWith("META-INF/") && !name.equals(DigestIndex.ENTRY_NAME)) {
+        offset = Math.min(offset, entry.getLocalHeaderOffset());
+      }
+    }
+    return offset;
+  }
+
+  /** @return whether the datafiles are kept in the blob store. */
+  boolean hasReferencedDatafiles() {
+    return !referenced.isEmpty();
+  }
+
+  /** @return the uncompressed content of the entry. */
+  InputStream getInputStream(ZipEntryRecord entry) throws IOException {
+    if (entry.getLocalHeaderOffset() < 0) {
+      return blobStore.getInputStream(blobKeys.get(entry.getName()));
+    }
+    InputStream raw = getRawInputStream(entry);
+    switch (entry.getMethod()) {
+      case ZipEntryRecord.STORED:
+        return raw;
+      case ZipEntryRecord.DEFLATED:
+        return new RawInflaterInputStream(raw);
+      default:
+        throw new ZipException(
+            "Unsupported compression method " + entry.getMethod() + " of " + entry.getName());
+    }
+  }
+
+  /** @return the content of the entry as it is stored, i.e. compressed if it is deflated. */
+  InputStream getRawInputStream(ZipEntryRecord entry) throws IOException {
+    if (entry.getLocalHeaderOffset() < 0) {
+      return blobStore.getRawInputStream(blobKeys.get(entry.getName()));
+    }
+    ByteBuffer localHeader = read(entry.getLocalHeaderOffset(), 30);
+    if (localHeader.getInt(0) != ZipWriter.LOCAL_HEADER_SIGNATURE) {
+      throw new ZipException("Invalid local header of " + entry.getName());
+    }
+    long dataStart =
+        entry.getLocalHeaderOffset()
+            + 30
+            + (localHeader.getShort(26) & 0xFFFF)
+            + (localHeader.getShort(28) & 0xFFFF);
+    return new ChannelInputStream(channel, dataStart, entry.getCompressedSize());
+  }
+
+  /**
+   * Writes the container with all its entries in it, the datafiles of the blob store included.
+   * The entries are copied as they are, nothing is compressed again. The references to the blobs
+   * are left out, they only mean something to this store.
+   *
+   * @param out where the container is written to. Is not closed.
+   */
+  void render(OutputStream out) throws IOException {
+    ZipWriter zipWriter = new ZipWriter(out);
+    for (ZipEntryRecord entry : getEntries()) {
+      if (entry.getName().equals(BlobIndex.ENTRY_NAME)) {
+        continue;
+      }
+      try (InputStream raw = getRawInputStream(entry)) {
+        zipWriter.copyEntry(entry, raw);
+      }
+    }
+    zipWriter.finish();
+  }
+
+  /**
+   * Removes and adds entries. Adding an entry with the name of an existing one replaces it. The
+   * archive is rewritten starting from the first entry that is removed or replaced, or from the
+   * central directory if entries are only added.
+   *
+   * @param remove names of the entries to be removed.
+   * @param add names and contents of the entries to be added, in the order they are written.
+   */
+  void update(Collection<String> remove, Map<String, byte[]> add) throws IOException {
+    Map<String, ZipWriter.EntryContent> contents = new LinkedHashMap<>();
+    for (Map.Entry<String, byte[]> entry : add.entrySet()) {
+      byte[] content = entry.getValue();
+      contents.put(entry.getKey(), out -> out.write(content));
+    }
+    updateStreamed(remove, contents);
+  }
+
+  /**
+   * Removes and adds entries like {@link #update(Collection, Map)}, but the contents of the added
+   * entries are written as they are produced. The new end of the archive is put together in memory
+   * and written at once, through the journal if the archive was opened with one.
+   *
+   * @param remove names of the entries to be removed.
+   * @param add names and writers of the entries to be added, in the order they are written.
+   */
+  void updateStreamed(Collection<String> remove, Map<String, ZipWriter.EntryContent> add)
+      throws IOException {
+    long startedAt = System.nanoTime();
+    long rewriteFrom = centralDirectoryOffset;
+    for (ZipEntryRecord entry : entries.values()) {
+      if (remove.contains(entry.getName()) || add.containsKey(entry.getName())) {
+        rewriteFrom = Math.min(rewriteFrom, entry.getLocalHeaderOffset());
+      }
+    }
+
+    // The new end of the archive, from rewriteFrom on, is put together before any of it is written
+    ByteArrayOutputStream tail = new ByteArrayOutputStream();
+    List<ZipEntryRecord> ordered = new ArrayList<>(entries.values());
+    List<ZipEntryRecord> kept = new ArrayList<>();
+    for (int i = 0; i < ordered.size(); i++) {
+      ZipEntryRecord entry = ordered.get(i);
+      if (entry.getLocalHeaderOffset() < rewriteFrom) {
+        kept.add(entry);
+      } else if (!remove.contains(entry.getName()) && !add.containsKey(entry.getName())) {
+        // Moves the local entry, with its data descriptor, down over the removed ones
+        long end =
+            i + 1 < ordered.size()
+                ? ordered.get(i + 1).getLocalHeaderOffset()
+                : centralDirectoryOffset;
+        kept.add(entry.withLocalHeaderOffset(rewriteFrom + tail.size()));
+        copy(entry.getLocalHeaderOffset(), end - entry.getLocalHeaderOffset(), tail);
+      }
+    }
+
+    ZipWriter zipWriter = new ZipWriter(tail, rewriteFrom + tail.size(), kept);
+    for (Map.Entry<String, ZipWriter.EntryContent> entry : add.entrySet()) {
+      zipWriter.writeEntry(entry.getKey(), entry.getValue());
+    }
+    zipWriter.finish();
+    if (journal != null) {
+      journal.write(path, channel, rewriteFrom, tail.toByteArray());
+    } else {
+      ContainerJournal.writeTail(channel, rewriteFrom, tail.toByteArray());
+    }
+
+    // The central directory just written is what the archive now consists of
+    List<ZipEntryRecord> written = zipWriter.getEntries();
+    entries.clear();
+    for (ZipEntryRecord entry : written) {
+      entries.put(entry.getName(), entry);
+    }
+    centralDirectoryOffset = zipWriter.getCentralDirectoryOffset();
+    UPDATE_DURATION.recordNanos(System.nanoTime() - startedAt);
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+
+  private void readBlobIndex() throws IOException {
+    ZipEntryRecord index = entries.get(BlobIndex.ENTRY_NAME);
+    if (index == null || blobStore == null) {
+      return;
+    }
+    for (BlobIndex.Reference reference : BlobIndex.read(getInputStream(index))) {
+      referenced.put(reference.getUri(), reference.toRecord());
+      blobKeys.put(reference.getUri(), reference.getBlob());
+    }
+  }
+
+  /** Copies bytes of the file to the stream. */
+  private void copy(long from, long length, OutputStream out) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(64 * 1024, Math.max(length, 1)));
+    long copied = 0;
+    while (copied < length) {
+      buffer.clear();
+      buffer.limit((int) Math.min(buffer.capacity(), length - copied));
+      int read = channel.read(buffer, from + copied);
+      if (read < 0) {
+        throw new EOFException("Archive ended while moving an entry.");
+      }
+      out.write(buffer.array(), 0, read);
+      copied += read;
+    }
+  }
+
+  private void readCentralDirectory() throws IOException {
+    entries.clear();
+    long size = channel.size();
+    if (size < 22) {
+      throw new ZipException("Not a zip archive, it is too short.");
+    }
+    int searched = (int) Math.min(size, MAX_END_SEARCH);
+    ByteBuffer tail = read(size - searched, searched);
+    int end = -1;
+    for (int i = searched - 22; i >= 0; i--) {
+      if (tail.getInt(i) == ZipWriter.END_SIGNATURE) {
+        end = i;
+        break;
+      }
+    }
+    if (end < 0) {
+      throw new ZipException("End of central directory not found.");
+    }
+
+    long entryCount = tail.getShort(end + 10) & 0xFFFF;
+    long centralDirectorySize = tail.getInt(end + 12) & ZipWriter.ZIP64_MAGIC;
+    centralDirectoryOffset = tail.getInt(end + 16) & ZipWriter.ZIP64_MAGIC;
+    long endPosition = size - searched + end;
+    if (endPosition >= 20) {
+      ByteBuffer locator = read(endPosition - 20, 20);
+      if (locator.getInt(0) == ZipWriter.ZIP64_LOCATOR_SIGNATURE) {
+        ByteBuffer zip64End = read(locator.getLong(8), 56);
+        if (zip64End.getInt(0) != ZipWriter.ZIP64_END_SIGNATURE) {
+          throw new ZipException("Invalid zip64 end of central directory.");
+        }
+        entryCount = zip64End.getLong(32);
+        centralDirectorySize = zip64End.getLong(40);
+        centralDirectoryOffset = zip64End.getLong(48);
+      }
+    }
+
+    ByteBuffer centralDirectory = read(centralDirectoryOffset, (int) centralDirectorySize);
+    List<ZipEntryRecord> records = new ArrayList<>();
+    int position = 0;
+    for (long i = 0; i < entryCount; i++) {
+      if (centralDirectory.getInt(position) != ZipWriter.CENTRAL_HEADER_SIGNATURE) {
+        throw new ZipException("Invalid central directory header.");
+      }
+      int nameLength = centralDirectory.getShort(position + 28) & 0xFFFF;
+      int extraLength = centralDirectory.getShort(position + 30) & 0xFFFF;
+      int commentLength = centralDirectory.getShort(position + 32) & 0xFFFF;
+      long compressedSize = centralDirectory.getInt(position + 20) & ZipWriter.ZIP64_MAGIC;
+      long uncompressedSize = centralDirectory.getInt(position + 24) & ZipWriter.ZIP64_MAGIC;
+      long localHeaderOffset = centralDirectory.getInt(position + 42) & ZipWriter.ZIP64_MAGIC;
+
+      byte[] name = new byte[nameLength];
+      centralDirectory.position(position + 46);
+      centralDirectory.get(name);
+
+      // Sizes and offset that did not fit are in the zip64 extra field, in this order
+      int extra = position + 46 + nameLength;
+      int extraEnd = extra + extraLength;
+      while (extra + 4 <= extraEnd) {
+        int id = centralDirectory.getShort(extra) & 0xFFFF;
+        int length = centralDirectory.getShort(extra + 2) & 0xFFFF;
+        if (id == ZipWriter.ZIP64_EXTRA_ID) {
+          int field = extra + 4;
+          if (uncompressedSize == ZipWriter.ZIP64_MAGIC) {
+            uncompressedSize = centralDirectory.getLong(field);
+            field += 8;
+          }
+          if (compressedSize == ZipWriter.ZIP64_MAGIC) {
+            compressedSize = centralDirectory.getLong(field);
+            field += 8;
+          }
+          if (localHeaderOffset == ZipWriter.ZIP64_MAGIC) {
+            localHeaderOffset = centralDirectory.getLong(field);
+          }
+        }
+        extra += 4 + length;
+      }
+
+      records.add(
+          new ZipEntryRecord(
+              new String(name, StandardCharsets.UTF_8),
+              centralDirectory.getShort(position + 10) & 0xFFFF,
+              centralDirectory.getShort(position + 8) & 0xFFFF,
+              centralDirectory.getInt(position + 12) & ZipWriter.ZIP64_MAGIC,
+              centralDirectory.getInt(position + 16) & ZipWriter.ZIP64_MAGIC,
+              compressedSize,
+              uncompressedSize,
+              localHeaderOffset));
+      position = extraEnd + commentLength;
+    }
+
+    records.sort(Comparator.comparingLong(ZipEntryRecord::getLocalHeaderOffset));
+    for (ZipEntryRecord record : records) {
+      entries.put(record.getName(), record);
+    }
+  }
+
+  private ByteBuffer read(long position, int length) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, position + buffer.position()) < 0) {
+        throw new EOFException("Archive ended unexpectedly.");
+      }
+    }
+    buffer.flip();
+    return buffer;
+  }
+
+  /** Reads a range of the file without moving the position of the channel. */
+  private static class ChannelInputStream extends InputStream {
+
+    private final FileChannel channel;
+    private long position;
+    private long remaining;
+
+    ChannelInputStream(FileChannel channel, long position, long length) {
+      this.channel = channel;
+      this.position = position;
+      this.remaining = length;
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (remaining <= 0) {
+        return -1;
+      }
+      ByteBuffer buffer = ByteBuffer.wrap(b, off, (int) Math.min(len, remaining));
+      int read = channel.read(buffer, position);
+      if (read < 0) {
+        throw new EOFException("Archive ended in the middle of an entry.");
+      }
+      position += read;
+      remaining -= read;
+      return read;
+    }
+
+    @Override
+    public int available() {
+      return (int) Math.min(Integer.MAX_VALUE, remaining);
+    }
+  }
+
+  /** Inflates raw deflate data, giving the inflater the extra byte it may need at the end. */
+  private static class RawInflaterInputStream extends InflaterInputStream {
+
+    private boolean eof;
+
+    RawInflaterInputStream(InputStream in) {
+      super(in, new Inflater(true), 8192);
+    }
+
+    @Override
+    protected void fill() throws IOException {
+      if (eof) {
+        throw new EOFException("Unexpected end of deflated data.");
+      }
+      len = in.read(buf, 0, buf.length);
+      if (len == -1) {
+        buf[0] = 0;
+        len = 1;
+        eof = true;
+      }
+      inf.setInput(buf, 0, len);
+    }
+
+    @Override
+    public void close() throws IOException {
+      super.close();
+      inf.end();
+    }
+  }
+}
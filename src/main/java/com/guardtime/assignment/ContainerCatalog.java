@@ -0,0 +1,276 @@
+package com.guardtime.assignment;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * In-memory catalog of the containers in the store. It is built once by listing the store and then
+ * kept up to date by the writes of the API itself. Changes made by anyone else are picked up by a
+ * {@link WatchService} when the containers are in the root of the store. A sharded store has too
+ * many directories to watch, there every existence check looks the container up on disk, and the
+ * catalog takes in the containers created and drops the ones deleted by anyone else. Existence
+ * checks are constant time, one lookup of a known path when sharded, and names can be reserved
+ * atomically before the container file is created, so two concurrent creates
+ * of the same name can not both succeed. The names are kept sorted, so a page of them is found
+ * without going through the rest.
+ */
+class ContainerCatalog implements Closeable {
+
+  static final String EXTENSION = ".zip";
+
+  private enum State {
+    RESERVED,
+    PRESENT
+  }
+
+  private final ContainerStore store;
+  private final ConcurrentNavigableMap<String, State> containers = new ConcurrentSkipListMap<>();
+  // Incremented on every change, lets readers tell whether the catalog has changed
+  private final AtomicLong version = new AtomicLong();
+  // Tells the versions of this catalog from those of a catalog of an earlier run
+  private final long epoch = ThreadLocalRandom.current().nextLong();
+  private final WatchService watchService;
+  private final Thread watcher;
+
+  /**
+   * Lists the store and, if it is not sharded, starts watching it.
+   *
+   * @param store where the containers are stored.
+   */
+  ContainerCatalog(ContainerStore store) throws IOException {
+    this.store = store;
+    Path directory = store.getRoot();
+    Files.createDirectories(directory);
+    if (store.getLevels() == 0) {
+      watchService = directory.getFileSystem().newWatchService();
+      directory.register(
+          watchService,
+          StandardWatchEventKinds.ENTRY_CREATE,
+          StandardWatchEventKinds.ENTRY_DELETE,
+          StandardWatchEventKinds.OVERFLOW);
+    } else {
+      watchService = null;
+    }
+    rescan();
+    if (watchService != null) {
+      watcher = new Thread(this::watch, "container-catalog-watcher");
+      watcher.setDaemon(true);
+      watcher.start();
+    } else {
+      watcher = null;
+    }
+  }
+
+  /** @return whether a container with the name exists or is being created. */
+  boolean contains(String name) {
+    State state = containers.get(name);
+    if (watchService != null || state == State.RESERVED) {
+      return state != null;
+    }
+    boolean exists = Files.isRegularFile(store.pathOf(name));
+    if (exists && state == null) {
+      // Created by someone else in the sharded store
+      if (containers.putIfAbsent(name, State.PRESENT) == null) {
+        version.incrementAndGet();
+      }
+    } else if (!exists && state == State.PRESENT) {
+      // Deleted by someone else in the sharded store
+      if (containers.remove(name, State.PRESENT)) {
+        version.incrementAndGet();
+      }
+    }
+    return exists;
+  }
+
+  /**
+   * Reserves the name for a container that is about to be created. The reservation has to be
+   * followed by either {@link #commit(String)} or {@link #release(String)}.
+   *
+   * @return false if the name is already taken.
+   */
+  boolean reserve(String name) {
+    if (containers.putIfAbsent(name, State.RESERVED) == null) {
+      return true;
+    }
+    if (watchService == null
+        && !Files.exists(store.pathOf(name))
+        && containers.replace(name, State.PRESENT, State.RESERVED)) {
+      // Deleted by someone else in the sharded store
+      version.incrementAndGet();
+      return true;
+    }
+    return false;
+  }
+
+  /** Marks the reserved container as created. */
+  void commit(String name) {
+    containers.put(name, State.PRESENT);
+    version.incrementAndGet();
+  }
+
+  /** Gives up the reservation of a container that could not be created. */
+  void release(String name) {
+    containers.remove(name, State.RESERVED);
+  }
+
+  /** Removes a container that was deleted. */
+  void remove(String name) {
+    if (containers.remove(name) != null) {
+      version.incrementAndGet();
+    }
+  }
+
+  /** Notes that a container was changed, e.g. signed. */
+  void modified(String name) {
+    version.incrementAndGet();
+  }
+
+  /** @return names of all the created containers. */
+  List<String> names() {
+    List<String> names = new ArrayList<>();
+    for (Map.Entry<String, State> container : containers.entrySet()) {
+      if (container.getValue() == State.PRESENT) {
+        names.add(container.getKey());
+      }
+    }
+    return names;
+  }
+
+  /**
+   * @param prefix the names start with, empty for all of them.
+   * @param after the name the listing continues after, or null to start from the first.
+   * @return names of the created containers in order, read from the catalog as they are consumed.
+   */
+  Stream<String> names(String prefix, String after) {
+    NavigableMap<String, State> range = containers;
+    String end = successor(prefix);
+    if (end != null) {
+      range = range.headMap(end, false);
+    }
+    range =
+        after == null || after.compareTo(prefix) < 0
+            ? range.tailMap(prefix, true)
+            : range.tailMap(after, false);
+    return range.entrySet().stream()
+        .filter(container -> container.getValue() == State.PRESENT)
+        .map(Map.Entry::getKey);
+  }
+
+  /**
+   * @return a number that changes whenever containers are added, removed or changed. It starts
+   *     over with every catalog, so it is only compared together with {@link #epoch()}.
+   */
+  long version() {
+    return version.get();
+  }
+
+  /** @return a random number of this catalog, that another one, e.g. after a restart, has not. */
+  long epoch() {
+    return epoch;
+  }
+
+  /**
+   * @return whether the name can be used for a container, i.e. it does not point outside the
+   *     containers directory.
+   */
+  static boolean isValidName(String name) {
+    return name != null
+        && name.length() > 0
+        && name.indexOf('/') < 0
+        && name.indexOf('\\') < 0
+        && !name.startsWith(".");
+  }
+
+  /** Stops watching the directory and waits for the watcher thread to end. */
+  @Override
+  public void close() throws IOException {
+    if (watchService != null) {
+      watchService.close();
+      try {
+        watcher.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /** Brings the catalog in line with the store, leaving reservations untouched. */
+  private void rescan() throws IOException {
+    Set<String> found = new HashSet<>(store.names());
+    for (String name : found) {
+      containers.putIfAbsent(name, State.PRESENT);
+    }
+    containers.entrySet().removeIf(
+        container -> container.getValue() == State.PRESENT && !found.contains(container.getKey()));
+    version.incrementAndGet();
+  }
+
+  private void watch() {
+    try {
+      while (true) {
+        WatchKey key = watchService.take();
+        for (WatchEvent<?> event : key.pollEvents()) {
+          if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+            rescan();
+            continue;
+          }
+          Path path = (Path) event.context();
+          if (!path.toString().endsWith(EXTENSION)) {
+            continue;
+          }
+          String name = toName(path);
+          if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+            // A reserved container stays reserved until its creator commits it
+            if (containers.putIfAbsent(name, State.PRESENT) == null) {
+              version.incrementAndGet();
+            }
+          } else if (containers.remove(name, State.PRESENT)) {
+            version.incrementAndGet();
+          }
+        }
+        if (!key.reset()) {
+          return;
+        }
+      }
+    } catch (InterruptedException | ClosedWatchServiceException e) {
+      // The catalog was closed
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  /** @return the least string greater than all those with the prefix, null if there is none. */
+  private static String successor(String prefix) {
+    int end = prefix.length();
+    while (end > 0 && prefix.charAt(end - 1) == Character.MAX_VALUE) {
+      end--;
+    }
+    if (end == 0) {
+      return null;
+    }
+    return prefix.substring(0, end - 1) + (char) (prefix.charAt(end - 1) + 1);
+  }
+
+  private static String toName(Path path) {
+    String fileName = path.getFileName().toString();
+    return fileName.substring(0, fileName.length() - EXTENSION.length());
+  }
+}
@@ -0,0 +1,610 @@
+package com.guardtime.assignment;
+
+import com.guardtime.ksi.hashing.HashAlgorithm;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Creates containers by streaming the datafiles through a parallel deflate pipeline. Each file is
+ * read in fixed size chunks, the chunks are deflated independently on a fork-join pool (every
+ * chunk is primed with the tail of the previous one, so the compression ratio barely suffers) and
+ * the results are written to the zip in order. Only a bounded number of chunks is in flight at a
+ * time, so the memory needed does not depend on the size of the files. Files that are already
+ * compressed are stored as they are.
+ *
+ * <p>While a file is read for compression it is also hashed, so the digests of the datafiles come
+ * as a by-product and are persisted as the {@link DigestIndex} of the container.
+ *
+ * <p>Containers can also be created with their datafiles in a {@link BlobStore}. Each datafile is
+ * then compressed in to a blob of its own, unless the store already has the same content, and the
+ * container has only the {@link BlobIndex} and the digest index.
+ *
+ * <p>Otherwise the files of the source directory are deflated once and kept in a {@link
+ * CompressedEntryCache}, if there is one. A file that has not changed since is hashed and its
+ * compressed data copied to the next container as it is.
+ */
+class ContainerCreator {
+
+  private static final int CHUNK_SIZE = 512 * 1024;
+  private static final int DICTIONARY_SIZE = 32 * 1024;
+  private static final Set<String> STORED_EXTENSIONS =
+      new HashSet<>(
+          Arrays.asList(
+              "pdf", "png", "jpg", "jpeg", "gif", "webp", "zip", "gz", "bz2", "xz", "7z", "mp3",
+              "mp4", "mov", "docx", "xlsx", "pptx", "odt", "asice", "bdoc"));
+  private static final HashAlgorithm BLOB_KEY_ALGORITHM = HashAlgorithm.SHA2_256;
+  private static final Metrics.Counter HASHED_BYTES =
+      Metrics.REGISTRY.counter("container_hashed_bytes_total", "Bytes of datafiles hashed.");
+  private static final Metrics.Counter CACHED_ENTRIES =
+      Metrics.REGISTRY.counter(
+          "container_cached_entries_total", "Datafiles copied compressed from the entry cache.");
+
+  private final ForkJoinPool pool;
+  // How many pieces may be waiting to be written before the reader has to wait
+  private final int window;
+  // The datafiles are hashed with each of them for the digest index
+  private final List<HashAlgorithm> algorithms;
+  // Those and the algorithm blobs are keyed with
+  private final List<HashAlgorithm> blobAlgorithms;
+  // Files of the source directory as they were deflated before, null if they are not kept
+  private final CompressedEntryCache cache;
+
+  ContainerCreator(ForkJoinPool pool) {
+    this(pool, Collections.singletonList(HashAlgorithm.SHA2_256), null);
+  }
+
+  /**
+   * @param pool the datafiles are compressed and hashed on.
+   * @param algorithms of the hashing policy, the digest index has a digest of each.
+   * @param cache of compressed files of the source directory, or null.
+   */
+  ContainerCreator(
+      ForkJoinPool pool, List<HashAlgorithm> algorithms, CompressedEntryCache cache) {
+    this.pool = pool;
+    this.cache = cache;
+    this.window = 2 * pool.getParallelism() + 2;
+    this.algorithms = algorithms;
+    this.blobAlgorithms = new ArrayList<>(algorithms);
+    if (!algorithms.contains(BLOB_KEY_ALGORITHM)) {
+      blobAlgorithms.add(BLOB_KEY_ALGORITHM);
+    }
+  }
+
+  /**
+   * Creates a creator using a pool of the size given with the system property {@code
+   * container.create.threads}, by default the number of available processors, the hashing
+   * policy of {@link DatafileHasher#policyFromSystemProperties()} and the cache of {@link
+   * CompressedEntryCache#fromSystemProperties(ContainerStore)}.
+   *
+   * @param containerStore the cache is kept in.
+   */
+  static ContainerCreator fromSystemProperties(ContainerStore containerStore)
+      throws IOException {
+    int threads =
+        Integer.getInteger(
+            "container.create.threads", Runtime.getRuntime().availableProcessors());
+    return new ContainerCreator(
+        new ForkJoinPool(Math.max(1, threads)),
+        DatafileHasher.policyFromSystemProperties(),
+        CompressedEntryCache.fromSystemProperties(containerStore));
+  }
+
+  /**
+   * Compresses all the files in the source directory in to a zip container, followed by the digest
+   * index of the files.
+   *
+   * @param sourceDir whose files will be the datafiles of the container.
+   * @param out where the container is written to. Is not closed.
+   * @return metadata of the datafiles, in the order they were written.
+   */
+  List<MetaData> create(Path sourceDir, OutputStream out) throws IOException {
+    ZipWriter zipWriter = new ZipWriter(out);
+    try (Pipeline pipeline = new Pipeline(zipWriter, algorithms)) {
+      Files.walkFileTree(
+          sourceDir,
+          new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes)
+                throws IOException {
+              String name = sourceDir.relativize(file).toString().replace('\\', '/');
+              long lastModified = attributes.lastModifiedTime().toMillis();
+              if (isCompressed(name)) {
+                pipeline.addStored(name, lastModified, file, attributes.size());
+              } else if (cache != null) {
+                pipeline.addCached(name, lastModified, file, attributes.size());
+              } else {
+                try (InputStream in = Files.newInputStream(file)) {
+                  pipeline.addDeflated(name, lastModified, in, Deflater.DEFAULT_COMPRESSION);
+                }
+              }
+              return FileVisitResult.CONTINUE;
+            }
+          });
+      return finish(pipeline, zipWriter);
+    }
+  }
+
+  /**
+   * Compresses the uploaded datafiles in to a zip container, followed by the digest index of the
+   * files. The upload is read once, the datafiles are hashed while they are compressed. Since the
+   * size of an uploaded file is not known before it has been read, files that are already
+   * compressed can not be stored as they are. They are written as deflate blocks without
+   * compression instead, which costs hardly more than storing them.
+   *
+   * @param upload whose files will be the datafiles of the container.
+   * @param out where the container is written to. Is not closed.
+   * @return metadata of the datafiles, in the order they were written.
+   * @throws IOException if the upload could not be read, or has the same datafile twice.
+   */
+  List<MetaData> create(Upload upload, OutputStream out) throws IOException {
+    ZipWriter zipWriter = new ZipWriter(out);
+    Pipeline pipeline = new Pipeline(zipWriter, algorithms);
+    Set<String> names = new HashSet<>();
+    while (upload.next()) {
+      String name = upload.getName();
+      if (!names.add(name)) {
+        throw new IOException("Datafile " + name + " is uploaded more than once.");
+      }
+      int level = isCompressed(name) ? Deflater.NO_COMPRESSION : Deflater.DEFAULT_COMPRESSION;
+      pipeline.addDeflated(name, upload.getLastModified(), upload.getContent(), level);
+    }
+    return finish(pipeline, zipWriter);
+  }
+
+  /**
+   * Creates a container of the files in the source directory, with the files kept in the blob
+   * store. The files are hashed first, in parallel, so content the store already has is only read
+   * once and never compressed.
+   *
+   * @param sourceDir whose files will be the datafiles of the container.
+   * @param out where the container is written to. Is not closed.
+   * @param blobStore the datafiles are kept in.
+   * @return metadata of the datafiles, in the order they were written.
+   */
+  List<MetaData> create(Path sourceDir, OutputStream out, BlobStore blobStore) throws IOException {
+    List<Path> files = new ArrayList<>();
+    Files.walkFileTree(
+        sourceDir,
+        new SimpleFileVisitor<Path>() {
+          @Override
+          public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+            files.add(file);
+            return FileVisitResult.CONTINUE;
+          }
+        });
+    List<ForkJoinTask<FileDigest>> digests = new ArrayList<>(files.size());
+    for (Path file : files) {
+      String name = sourceDir.relativize(file).toString().replace('\\', '/');
+      digests.add(pool.submit(() -> digestOf(name, file, blobAlgorithms)));
+    }
+
+    Blobs blobs = new Blobs(blobStore);
+    try {
+      for (int i = 0; i < files.size(); i++) {
+        Path file = files.get(i);
+        String name = sourceDir.relativize(file).toString().replace('\\', '/');
+        FileDigest digest = digests.get(i).join();
+        String key = blobs.keyOf(digest.metaData);
+        long lastModified = Files.getLastModifiedTime(file).toMillis();
+        if (!blobStore.retain(key)) {
+          Path temporary = blobStore.newTemporary();
+          writeBlob(
+              temporary,
+              pipeline -> {
+                if (isCompressed(name)) {
+                  pipeline.addStored(name, lastModified, file, Files.size(file));
+                } else {
+                  try (InputStream in = Files.newInputStream(file)) {
+                    pipeline.addDeflated(name, lastModified, in, Deflater.DEFAULT_COMPRESSION);
+                  }
+                }
+              });
+          blobStore.commit(temporary, key);
+        }
+        blobs.add(name, key, lastModified, digest.metaData);
+      }
+      return blobs.finish(out);
+    } catch (IOException | RuntimeException e) {
+      blobs.releaseAll();
+      throw e;
+    }
+  }
+
+  /**
+   * Creates a container of the uploaded datafiles, with the datafiles kept in the blob store. The
+   * upload is read once, so each datafile is compressed in to a blob while it is hashed, and the
+   * blob is dropped if the store turns out to have the same content already.
+   *
+   * @param upload whose files will be the datafiles of the container.
+   * @param out where the container is written to. Is not closed.
+   * @param blobStore the datafiles are kept in.
+   * @return metadata of the datafiles, in the order they were written.
+   * @throws IOException if the upload could not be read, or has the same datafile twice.
+   */
+  List<MetaData> create(Upload upload, OutputStream out, BlobStore blobStore) throws IOException {
+    Blobs blobs = new Blobs(blobStore);
+    try {
+      Set<String> names = new HashSet<>();
+      while (upload.next()) {
+        String name = upload.getName();
+        if (!names.add(name)) {
+          throw new IOException("Datafile " + name + " is uploaded more than once.");
+        }
+        long lastModified = upload.getLastModified();
+        int level = isCompressed(name) ? Deflater.NO_COMPRESSION : Deflater.DEFAULT_COMPRESSION;
+        Path temporary = blobStore.newTemporary();
+        List<MetaData> metaData;
+        try {
+          metaData =
+              writeBlob(
+                  temporary,
+                  pipeline ->
+                      pipeline.addDeflated(name, lastModified, upload.getContent(), level));
+        } catch (IOException | RuntimeException e) {
+          Files.deleteIfExists(temporary);
+          throw e;
+        }
+        String key = blobs.keyOf(metaData);
+        blobStore.commit(temporary, key);
+        blobs.add(name, key, lastModified, metaData);
+      }
+      return blobs.finish(out);
+    } catch (IOException | RuntimeException e) {
+      blobs.releaseAll();
+      throw e;
+    }
+  }
+
+  /**
+   * Writes a blob, a zip archive of a single datafile.
+   *
+   * @return metadata of the datafile, hashed with the algorithms of the policy and the blob key.
+   */
+  private List<MetaData> writeBlob(Path path, BlobContent content) throws IOException {
+    try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(path), 64 * 1024)) {
+      ZipWriter zipWriter = new ZipWriter(out);
+      Pipeline pipeline = new Pipeline(zipWriter, blobAlgorithms);
+      content.addTo(pipeline);
+      pipeline.drain(0);
+      zipWriter.finish();
+      return pipeline.metaData;
+    }
+  }
+
+  private static List<MetaData> finish(Pipeline pipeline, ZipWriter zipWriter)
+      throws IOException {
+    pipeline.drain(0);
+    zipWriter.writeEntry(DigestIndex.ENTRY_NAME, DigestIndex.toBytes(pipeline.metaData));
+    zipWriter.finish();
+    return pipeline.metaData;
+  }
+
+  /** @return whether the file is of a type that is already compressed. */
+  static boolean isCompressed(String name) {
+    int dot = name.lastIndexOf('.');
+    return dot >= 0 && STORED_EXTENSIONS.contains(name.substring(dot + 1).toLowerCase(Locale.ROOT));
+  }
+
+  /**
+   * Deflates one chunk of an entry as a part of a single raw deflate stream. All but the last
+   * chunk end with a sync flush, so the compressed chunks can simply be concatenated.
+   *
+   * @param data to be compressed.
+   * @param length of the data in the array.
+   * @param dictionary the end of the previous chunk, or null for the first chunk.
+   * @param last whether this chunk ends the entry.
+   * @param level of the compression.
+   * @return the compressed chunk.
+   */
+  static byte[] deflateChunk(
+      byte[] data, int length, byte[] dictionary, boolean last, int level) {
+    Deflater deflater = new Deflater(level, true);
+    try {
+      if (dictionary != null) {
+        deflater.setDictionary(dictionary);
+      }
+      deflater.setInput(data, 0, length);
+      ByteArrayOutputStream compressed = new ByteArrayOutputStream(length / 2 + 64);
+      byte[] buffer = new byte[64 * 1024];
+      if (last) {
+        deflater.finish();
+        while (!deflater.finished()) {
+          int written = deflater.deflate(buffer);
+          compressed.write(buffer, 0, written);
+        }
+      } else {
+        int written;
+        do {
+          written = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+          compressed.write(buffer, 0, written);
+        } while (written == buffer.length);
+      }
+      return compressed.toByteArray();
+    } finally {
+      deflater.end();
+    }
+  }
+
+  /**
+   * Keeps the pieces of the container in the order they have to be written in. Compression runs
+   * ahead on the pool, the calling thread reads the input and writes the finished pieces. Closing
+   * the pipeline drops the cache entries that were opened or started for pieces never written.
+   */
+  private class Pipeline implements Closeable {
+
+    private final ZipWriter zipWriter;
+    // The entries are hashed with each of them
+    private final List<HashAlgorithm> algorithms;
+    private final Deque<Piece> pieces = new ArrayDeque<>();
+    // Filled in as the entries get written
+    private final List<MetaData> metaData = new ArrayList<>();
+    // Cache entries being read or written by the pieces
+    private final List<Closeable> cacheEntries = new ArrayList<>();
+
+    Pipeline(ZipWriter zipWriter, List<HashAlgorithm> algorithms) {
+      this.zipWriter = zipWriter;
+      this.algorithms = algorithms;
+    }
+
+    /** Adds a deflated entry whose content is read from the stream. */
+    void addDeflated(String name, long lastModified, InputStream in, int level)
+        throws IOException {
+      addDeflated(name, lastModified, in, level, null);
+    }
+
+    /**
+     * Adds a deflated entry whose content is read from the stream, writing the compressed data to
+     * the cache as well.
+     *
+     * @param cacheWriter of the entry in the cache, or null.
+     */
+    private void addDeflated(
+        String name,
+        long lastModified,
+        InputStream in,
+        int level,
+        CompressedEntryCache.Writer cacheWriter)
+        throws IOException {
+      add(writer -> writer.beginDeflated(name, lastModified));
+      CRC32 crc = new CRC32();
+      DatafileHasher.Digests digests = new DatafileHasher.Digests(algorithms);
+      long size = 0;
+      byte[] dictionary = null;
+      while (true) {
+        byte[] chunk = new byte[CHUNK_SIZE];
+        int length = readFully(in, chunk);
+        crc.update(chunk, 0, length);
+        digests.update(chunk, 0, length);
+        size += length;
+        boolean last = length < CHUNK_SIZE;
+        byte[] chunkDictionary = dictionary;
+        ForkJoinTask<byte[]> compressed =
+            pool.submit(() -> deflateChunk(chunk, length, chunkDictionary, last, level));
+        add(
+            writer -> {
+              byte[] data = compressed.join();
+              writer.writeDeflated(data, 0, data.length);
+              if (cacheWriter != null) {
+                cacheWriter.write(data, 0, data.length);
+              }
+            });
+        if (last) {
+          break;
+        }
+        dictionary = Arrays.copyOfRange(chunk, length - DICTIONARY_SIZE, length);
+      }
+      HASHED_BYTES.add(size);
+      long entryCrc = crc.getValue();
+      long entrySize = size;
+      List<MetaData> entryMetaData = digests.toMetaData(name);
+      add(
+          writer -> {
+            writer.endDeflated(entryCrc, entrySize);
+            metaData.addAll(entryMetaData);
+            if (cacheWriter != null) {
+              cacheWriter.commit(entryCrc, entrySize, entryMetaData);
+            }
+          });
+    }
+
+    /**
+     * Adds a deflated entry of a file, copied from the cache if the file has the same digests as
+     * when it was compressed before. The file is hashed on the calling thread, like it would be
+     * while it was read for compression. Otherwise the file is deflated and its entry cached.
+     */
+    void addCached(String name, long lastModified, Path file, long size) throws IOException {
+      CompressedEntryCache.Entry cached = cache.open(name, size, lastModified);
+      if (cached != null) {
+        cacheEntries.add(cached);
+        FileDigest digest = digestOf(name, file, algorithms);
+        if (digest.crc == cached.getRecord().getCrc()
+            && digest.metaData.equals(cached.getMetaData())) {
+          add(
+              writer -> {
+                try (InputStream in = cached.getRawInputStream()) {
+                  writer.copyEntry(cached.getRecord(), in);
+                }
+                cached.close();
+                metaData.addAll(digest.metaData);
+                CACHED_ENTRIES.increment();
+              });
+          return;
+        }
+        cached.close();
+      }
+      CompressedEntryCache.Writer cacheWriter = cache.newWriter(name, size, lastModified);
+      if (cacheWriter != null) {
+        cacheEntries.add(cacheWriter);
+      }
+      try (InputStream in = Files.newInputStream(file)) {
+        addDeflated(name, lastModified, in, Deflater.DEFAULT_COMPRESSION, cacheWriter);
+      }
+    }
+
+    /** Adds a stored entry. Its CRC and hash are calculated on the pool before it is written. */
+    void addStored(String name, long lastModified, Path file, long size) throws IOException {
+      ForkJoinTask<FileDigest> digest = pool.submit(() -> digestOf(name, file, algorithms));
+      add(
+          writer -> {
+            FileDigest fileDigest = digest.join();
+            try (InputStream in = Files.newInputStream(file)) {
+              writer.writeStored(name, lastModified, fileDigest.crc, size, in);
+            }
+            metaData.addAll(fileDigest.metaData);
+          });
+    }
+
+    private void add(Piece piece) throws IOException {
+      pieces.add(piece);
+      drain(window);
+    }
+
+    /** Writes pieces until no more than the given number is left waiting. */
+    void drain(int maxWaiting) throws IOException {
+      while (pieces.size() > maxWaiting) {
+        pieces.poll().writeTo(zipWriter);
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      for (Closeable cacheEntry : cacheEntries) {
+        cacheEntry.close();
+      }
+    }
+  }
+
+  private FileDigest digestOf(String name, Path file, List<HashAlgorithm> algorithms)
+      throws IOException {
+    CRC32 crc = new CRC32();
+    DatafileHasher.Digests digests = new DatafileHasher.Digests(algorithms);
+    byte[] buffer = new byte[64 * 1024];
+    try (InputStream in = Files.newInputStream(file)) {
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        crc.update(buffer, 0, read);
+        digests.update(buffer, 0, read);
+        HASHED_BYTES.add(read);
+      }
+    }
+    return new FileDigest(crc.getValue(), digests.toMetaData(name));
+  }
+
+  /** Reads until the buffer is full or the stream ends. */
+  private static int readFully(InputStream in, byte[] buffer) throws IOException {
+    int length = 0;
+    while (length < buffer.length) {
+      int read = in.read(buffer, length, buffer.length - length);
+      if (read < 0) {
+        break;
+      }
+      length += read;
+    }
+    return length;
+  }
+
+  /** CRC and digests of a file. */
+  private static class FileDigest {
+
+    private final long crc;
+    private final List<MetaData> metaData;
+
+    FileDigest(long crc, List<MetaData> metaData) {
+      this.crc = crc;
+      this.metaData = metaData;
+    }
+  }
+
+  /**
+   * The datafiles of a container being created in to the blob store, with the references to their
+   * blobs that were added so far.
+   */
+  private class Blobs {
+
+    private final BlobStore blobStore;
+    private final List<BlobIndex.Reference> references = new ArrayList<>();
+    private final List<MetaData> metaData = new ArrayList<>();
+
+    Blobs(BlobStore blobStore) {
+      this.blobStore = blobStore;
+    }
+
+    /** @return the key of the blob of a datafile with the metadata. */
+    String keyOf(List<MetaData> datafile) {
+      for (MetaData hash : datafile) {
+        if (hash.getHashAlgorithm().equals(BLOB_KEY_ALGORITHM.getName())) {
+          return BlobStore.keyOf(hash.getHash());
+        }
+      }
+      throw new IllegalStateException("Datafile was not hashed with " + BLOB_KEY_ALGORITHM);
+    }
+
+    /** Adds a datafile whose blob has just been referenced. */
+    void add(String name, String key, long lastModified, List<MetaData> datafile)
+        throws IOException {
+      references.add(
+          new BlobIndex.Reference(
+              name, key, blobStore.getEntry(key), ZipWriter.toDosTime(lastModified)));
+      for (MetaData hash : datafile) {
+        if (algorithms.contains(HashAlgorithm.getByName(hash.getHashAlgorithm()))) {
+          metaData.add(hash);
+        }
+      }
+    }
+
+    /** Writes the container, i.e. the blob index and the digest index. */
+    List<MetaData> finish(OutputStream out) throws IOException {
+      ZipWriter zipWriter = new ZipWriter(out);
+      zipWriter.writeEntry(BlobIndex.ENTRY_NAME, BlobIndex.toBytes(references));
+      zipWriter.writeEntry(DigestIndex.ENTRY_NAME, DigestIndex.toBytes(metaData));
+      zipWriter.finish();
+      return metaData;
+    }
+
+    /** Releases the blobs of a container that could not be created. */
+    void releaseAll() {
+      for (BlobIndex.Reference reference : references) {
+        try {
+          blobStore.release(reference.getBlob());
+        } catch (IOException e) {
+          e.printStackTrace();
+        }
+      }
+    }
+  }
+
+  /** Adds the one datafile of a blob to the pipeline writing the blob. */
+  private interface BlobContent {
+
+    void addTo(Pipeline pipeline) throws IOException;
+  }
+
+  /** Part of the container that is written once everything before it has been written. */
+  private interface Piece {
+
+    void writeTo(ZipWriter zipWriter) throws IOException;
+  }
+}
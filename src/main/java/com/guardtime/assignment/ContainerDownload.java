@@ -0,0 +1,293 @@
+package com.guardtime.assignment;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+
+/**
+ * Sends a container file as the response of a download request. The file is handed to the
+ * response with {@link FileChannel#transferTo}, a part at a time, so it is never read in to the
+ * heap as a whole. Conditional requests ({@code If-None-Match}, {@code If-Modified-Since}) are
+ * answered with 304 when the container has not changed, and a single {@code Range} is answered
+ * with 206 so interrupted downloads can be resumed.
+ *
+ * <p>A container is changed in place, but only from the first entry that is rewritten on. A
+ * {@link Snapshot} copies that end of the container and keeps the file open for the rest, so the
+ * container may be changed again while a slow client is still downloading it.
+ */
+class ContainerDownload {
+
+  // How much is handed over to the response at once
+  private static final long TRANSFER_SIZE = 1024 * 1024;
+
+  private ContainerDownload() {}
+
+  /**
+   * Sends the file, or a part of it, depending on the headers of the request. The caller makes
+   * sure the file does not change while it is sent.
+   *
+   * @param exchange of a GET or HEAD request.
+   * @param path of the container.
+   * @throws IOException if the file could not be read or the response could not be written.
+   */
+  static void send(HttpExchange exchange, Path path) throws IOException {
+    try (Snapshot snapshot = snapshot(path, Long.MAX_VALUE)) {
+      send(exchange, snapshot);
+    }
+  }
+
+  /**
+   * Takes a snapshot of the file, to be sent once the container is no longer locked. The caller
+   * makes sure the file does not change while the snapshot is taken.
+   *
+   * @param path of the container.
+   * @param stableLength how much of the file is never written again, the rest is copied.
+   * @return the snapshot, to be closed once it has been sent.
+   * @throws IOException if the file could not be read.
+   */
+  static Snapshot snapshot(Path path, long stableLength) throws IOException {
+    FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+    try {
+      long size = channel.size();
+      long lastModified = Files.getLastModifiedTime(path).toMillis();
+      long stable = Math.max(0, Math.min(stableLength, size));
+      ByteBuffer tail = ByteBuffer.allocate(Math.toIntExact(size - stable));
+      while (tail.hasRemaining()) {
+        if (channel.read(tail, stable + tail.position()) < 0) {
+          throw new EOFException("Container ended before its snapshot was taken.");
+        }
+      }
+      return new Snapshot(channel, stable, tail.array(), lastModified);
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Sends the snapshot, or a part of it, depending on the headers of the request.
+   *
+   * @param exchange of a GET or HEAD request.
+   * @param snapshot of the container.
+   * @throws IOException if the file could not be read or the response could not be written.
+   */
+  static void send(HttpExchange exchange, Snapshot snapshot) throws IOException {
+    long size = snapshot.size();
+    long lastModified = snapshot.lastModified;
+    String eTag = eTag(size, lastModified);
+
+    Headers requestHeaders = exchange.getRequestHeaders();
+    Headers responseHeaders = exchange.getResponseHeaders();
+    responseHeaders.set("ETag", eTag);
+    responseHeaders.set("Last-Modified", formatDate(lastModified));
+    responseHeaders.set("Accept-Ranges", "bytes");
+
+    if (notModified(requestHeaders, eTag, lastModified)) {
+      exchange.sendResponseHeaders(304, -1);
+      return;
+    }
+
+    long start = 0;
+    long end = size - 1;
+    int statusCode = 200;
+    String range = requestHeaders.getFirst("Range");
+    if (range != null && rangeApplies(requestHeaders.getFirst("If-Range"), eTag, lastModified)) {
+      long[] bounds = parseRange(range, size);
+      if (bounds == null) {
+        responseHeaders.set("Content-Range", "bytes */" + size);
+        exchange.sendResponseHeaders(416, -1);
+        return;
+      }
+      if (bounds.length == 2) {
+        start = bounds[0];
+        end = bounds[1];
+        statusCode = 206;
+        responseHeaders.set("Content-Range", "bytes " + start + "-" + end + "/" + size);
+      }
+    }
+
+    responseHeaders.set("Content-Type", "application/zip");
+    long length = end - start + 1;
+    if ("HEAD".equals(exchange.getRequestMethod())) {
+      responseHeaders.set("Content-Length", Long.toString(length));
+      exchange.sendResponseHeaders(statusCode, -1);
+      return;
+    }
+    // -1 tells the server there is no body, 0 would make it chunked
+    exchange.sendResponseHeaders(statusCode, length > 0 ? length : -1);
+    if (length > 0) {
+      try (OutputStream output = exchange.getResponseBody()) {
+        transfer(snapshot, start, length, Channels.newChannel(output));
+      }
+    }
+  }
+
+  private static void transfer(
+      Snapshot snapshot, long position, long count, WritableByteChannel target)
+      throws IOException {
+    long end = position + count;
+    long stableEnd = Math.min(end, snapshot.stableLength);
+    while (position < stableEnd) {
+      long transferred =
+          snapshot.channel.transferTo(
+              position, Math.min(TRANSFER_SIZE, stableEnd - position), target);
+      if (transferred <= 0) {
+        throw new IOException("Container ended before it was sent.");
+      }
+      position += transferred;
+    }
+    if (position < end) {
+      ByteBuffer tail =
+          ByteBuffer.wrap(
+              snapshot.tail,
+              (int) (position - snapshot.stableLength),
+              (int) (end - position));
+      while (tail.hasRemaining()) {
+        target.write(tail);
+      }
+    }
+  }
+
+  /** The entity tag changes whenever the container is written, since its size changes too. */
+  static String eTag(long size, long lastModified) {
+    return "\"" + Long.toHexString(size) + "-" + Long.toHexString(lastModified) + "\"";
+  }
+
+  private static boolean notModified(Headers headers, String eTag, long lastModified) {
+    String ifNoneMatch = headers.getFirst("If-None-Match");
+    if (ifNoneMatch != null) {
+      return matches(ifNoneMatch, eTag);
+    }
+    Long ifModifiedSince = parseDate(headers.getFirst("If-Modified-Since"));
+    // Dates in headers have only a precision of seconds
+    return ifModifiedSince != null && lastModified / 1000 <= ifModifiedSince / 1000;
+  }
+
+  /**
+   * @param ifNoneMatch value of the If-None-Match header.
+   * @param eTag of the current response.
+   * @return whether the client already has the response.
+   */
+  static boolean matches(String ifNoneMatch, String eTag) {
+    for (String tag : ifNoneMatch.split(",")) {
+      tag = tag.trim();
+      if (tag.equals("*") || tag.equals(eTag) || tag.equals("W/" + eTag)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** A range is only served if the client still has the same version of the container. */
+  private static boolean rangeApplies(String ifRange, String eTag, long lastModified) {
+    if (ifRange == null) {
+      return true;
+    }
+    if (ifRange.startsWith("\"")) {
+      return ifRange.equals(eTag);
+    }
+    Long date = parseDate(ifRange);
+    return date != null && lastModified / 1000 == date / 1000;
+  }
+
+  /**
+   * @param range value of the Range header.
+   * @param size of the container.
+   * @return the first and last byte of the range, an empty array if the whole container is to be
+   *     sent instead (multiple ranges or an unknown unit), or null if the range can not be
+   *     satisfied.
+   */
+  static long[] parseRange(String range, long size) {
+    if (!range.startsWith("bytes=") || range.indexOf(',') >= 0) {
+      return new long[0];
+    }
+    String spec = range.substring("bytes=".length()).trim();
+    int dash = spec.indexOf('-');
+    if (dash < 0) {
+      return new long[0];
+    }
+    try {
+      long start;
+      long end;
+      if (dash == 0) {
+        // The last n bytes
+        long suffix = Long.parseLong(spec.substring(1));
+        if (suffix <= 0 || size == 0) {
+          return null;
+        }
+        start = Math.max(0, size - suffix);
+        end = size - 1;
+      } else {
+        start = Long.parseLong(spec.substring(0, dash));
+        String last = spec.substring(dash + 1);
+        end = last.isEmpty() ? size - 1 : Math.min(Long.parseLong(last), size - 1);
+        if (start >= size || end < start) {
+          return null;
+        }
+      }
+      return new long[] {start, end};
+    } catch (NumberFormatException e) {
+      return new long[0];
+    }
+  }
+
+  private static String formatDate(long millis) {
+    return DateTimeFormatter.RFC_1123_DATE_TIME.format(
+        ZonedDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneOffset.UTC));
+  }
+
+  private static Long parseDate(String date) {
+    if (date == null) {
+      return null;
+    }
+    try {
+      return ZonedDateTime.parse(date, DateTimeFormatter.RFC_1123_DATE_TIME)
+          .toInstant()
+          .toEpochMilli();
+    } catch (DateTimeParseException e) {
+      return null;
+    }
+  }
+
+  /** A container as it was when the snapshot was taken. */
+  static final class Snapshot implements Closeable {
+
+    private final FileChannel channel;
+    // The part of the file that is read when it is sent, the rest was copied to the tail
+    private final long stableLength;
+    private final byte[] tail;
+    private final long lastModified;
+
+    private Snapshot(FileChannel channel, long stableLength, byte[] tail, long lastModified) {
+      this.channel = channel;
+      this.stableLength = stableLength;
+      this.tail = tail;
+      this.lastModified = lastModified;
+    }
+
+    long size() {
+      return stableLength + tail.length;
+    }
+
+    @Override
+    public void close() throws IOException {
+      channel.close();
+    }
+  }
+}
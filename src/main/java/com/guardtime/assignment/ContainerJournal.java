@@ -0,0 +1,320 @@
+package com.guardtime.assignment;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead journal of the changes made to containers in place. A change to a container rewrites
+ * its end, from the first entry that changes on, so the journal records the new end and where it
+ * starts. The record is made durable before the container is touched, and the container is not
+ * synced at all: if the server stops while the container is being written, the record is written
+ * to it again when the journal is opened next.
+ *
+ * <p>Changes are committed in groups. Whoever syncs the journal syncs the records of everyone who
+ * appended meanwhile, so under load many changes share one fsync. Once the journal has grown past
+ * its limit, the containers changed since the last checkpoint are synced and the journal is
+ * emptied. A record that was not written in full was never acknowledged nor applied, so recovery
+ * stops at the first broken record.
+ *
+ * <p>A change that is recorded but can not be written to the container is written again at once.
+ * If that fails too, it is undone by recording the end the container had before, so the change is
+ * not replayed later for a caller that was told it failed.
+ */
+final class ContainerJournal implements Closeable {
+
+  private static final String FILE_NAME = "containers.journal";
+  // "CJRN", marks the start of every record
+  private static final int RECORD_MAGIC = 0x434A524E;
+  // Magic, length of the body and CRC of the body
+  private static final int HEADER_SIZE = 12;
+  private static final Metrics.Counter RECORDS =
+      Metrics.REGISTRY.counter("container_journal_records_total", "Changes journaled.");
+  private static final Metrics.Counter SYNCS =
+      Metrics.REGISTRY.counter("container_journal_syncs_total", "Syncs of the journal.");
+
+  private final Path root;
+  private final long checkpointBytes;
+  private final FileChannel channel;
+  // Changes hold it for reading from the record to the write, checkpoints for writing
+  private final ReadWriteLock checkpointLock = new ReentrantReadWriteLock();
+  private final Object syncLock = new Object();
+  // Records appended, guarded by this
+  private long appended;
+  // Records known to be durable, guarded by syncLock
+  private long synced;
+  private final AtomicLong records = new AtomicLong();
+  private final AtomicLong syncs = new AtomicLong();
+  // Containers written since the last checkpoint, they are not synced yet
+  private final Set<Path> changed = ConcurrentHashMap.newKeySet();
+  // Whether a container could not be written after its record was, the records are written again
+  private volatile boolean failed;
+
+  /**
+   * Opens the journal and writes the changes recorded in it to their containers again, in the
+   * order they were made, then empties it.
+   *
+   * @param root the containers are stored under, the journal is kept in {@code .journal} of it.
+   * @param checkpointBytes the journal may grow to before the containers are synced.
+   */
+  ContainerJournal(Path root, long checkpointBytes) throws IOException {
+    this.root = root;
+    this.checkpointBytes = checkpointBytes;
+    Path directory = root.resolve(".journal");
+    Files.createDirectories(directory);
+    this.channel =
+        FileChannel.open(
+            directory.resolve(FILE_NAME),
+            StandardOpenOption.CREATE,
+            StandardOpenOption.READ,
+            StandardOpenOption.WRITE);
+    try {
+      int replayed = replay();
+      if (replayed > 0) {
+        System.err.println("Wrote " + replayed + " journaled changes to the containers again.");
+      }
+      checkpoint();
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Keeps the journal in the container store, checkpointed once it grows past {@code
+   * containers.journal.checkpoint.mb} megabytes, by default 16.
+   */
+  static ContainerJournal fromSystemProperties(ContainerStore containerStore) throws IOException {
+    return new ContainerJournal(
+        containerStore.getRoot(),
+        Integer.getInteger("containers.journal.checkpoint.mb", 16) * 1024L * 1024L);
+  }
+
+  /**
+   * Records the new end of a container and writes it once the record is durable. The caller holds
+   * the write lock of the container.
+   *
+   * @param container path of the container.
+   * @param target the container open for writing.
+   * @param offset where the new end starts.
+   * @param tail the new end, the container is truncated after it.
+   */
+  void write(Path container, FileChannel target, long offset, byte[] tail) throws IOException {
+    String name = root.relativize(container).toString();
+    // What the change is undone with, should it be recorded but not written
+    byte[] previous = readTail(target, offset);
+    boolean checkpoint;
+    checkpointLock.readLock().lock();
+    try {
+      sync(append(name, offset, tail));
+      try {
+        writeTail(target, offset, tail);
+      } catch (IOException | RuntimeException e) {
+        if (!writeAgain(container, offset, tail, e)) {
+          // Replayed after the change, so the container is left as it was
+          sync(append(name, offset, previous));
+          if (!writeAgain(container, offset, previous, e)) {
+            failed = true;
+          }
+          changed.add(container);
+          throw e;
+        }
+        System.err.println("Wrote the change to " + container + " again after: " + e);
+      }
+      changed.add(container);
+      checkpoint = channel.size() > checkpointBytes;
+    } finally {
+      checkpointLock.readLock().unlock();
+    }
+    if (checkpoint) {
+      checkpoint();
+    }
+  }
+
+  /**
+   * Syncs the containers changed since the last checkpoint and empties the journal. Waits for the
+   * changes being made to finish, and holds up new ones meanwhile.
+   */
+  void checkpoint() throws IOException {
+    checkpointLock.writeLock().lock();
+    try {
+      if (failed) {
+        // Every record since the last checkpoint is written again, the last one of each wins
+        replay();
+        failed = false;
+      }
+      for (Path container : changed) {
+        try (FileChannel file = FileChannel.open(container, StandardOpenOption.WRITE)) {
+          file.force(true);
+        } catch (NoSuchFileException e) {
+          // Deleted since
+        }
+      }
+      changed.clear();
+      synchronized (this) {
+        channel.truncate(0);
+        channel.force(true);
+      }
+    } finally {
+      checkpointLock.writeLock().unlock();
+    }
+  }
+
+  /** @return how many changes were journaled. */
+  long getRecordCount() {
+    return records.get();
+  }
+
+  /** @return how many times the journal was synced for them. */
+  long getSyncCount() {
+    return syncs.get();
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      checkpoint();
+    } finally {
+      channel.close();
+    }
+  }
+
+  /** @return the number of the record. */
+  private synchronized long append(String container, long offset, byte[] tail) throws IOException {
+    byte[] name = container.getBytes(StandardCharsets.UTF_8);
+    ByteBuffer body = ByteBuffer.allocate(4 + name.length + 8 + tail.length);
+    body.putInt(name.length).put(name).putLong(offset).put(tail);
+    body.flip();
+    CRC32 crc = new CRC32();
+    crc.update(body.array(), 0, body.limit());
+    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+    header.putInt(RECORD_MAGIC).putInt(body.limit()).putInt((int) crc.getValue());
+    header.flip();
+    long position = channel.size();
+    while (header.hasRemaining()) {
+      position += channel.write(header, position);
+    }
+    while (body.hasRemaining()) {
+      position += channel.write(body, position);
+    }
+    records.incrementAndGet();
+    RECORDS.increment();
+    return ++appended;
+  }
+
+  /** Returns once the record is durable, syncing it and those appended with it if need be. */
+  private void sync(long record) throws IOException {
+    synchronized (syncLock) {
+      if (synced >= record) {
+        return;
+      }
+      long covered;
+      synchronized (this) {
+        covered = appended;
+      }
+      channel.force(false);
+      syncs.incrementAndGet();
+      SYNCS.increment();
+      synced = covered;
+    }
+  }
+
+  /** @return the number of records written to their containers. */
+  private int replay() throws IOException {
+    int replayed = 0;
+    long position = 0;
+    long size = channel.size();
+    while (position + HEADER_SIZE <= size) {
+      ByteBuffer header = read(position, HEADER_SIZE);
+      int length = header.getInt(4);
+      if (header.getInt(0) != RECORD_MAGIC
+          || length < 12
+          || position + HEADER_SIZE + length > size) {
+        break;
+      }
+      ByteBuffer body = read(position + HEADER_SIZE, length);
+      CRC32 crc = new CRC32();
+      crc.update(body.array(), 0, length);
+      if ((int) crc.getValue() != header.getInt(8)) {
+        break;
+      }
+      byte[] name = new byte[body.getInt()];
+      body.get(name);
+      long offset = body.getLong();
+      byte[] tail = new byte[body.remaining()];
+      body.get(tail);
+
+      Path container = root.resolve(new String(name, StandardCharsets.UTF_8));
+      try (FileChannel file = FileChannel.open(container, StandardOpenOption.WRITE)) {
+        writeTail(file, offset, tail);
+        changed.add(container);
+        replayed++;
+      } catch (NoSuchFileException e) {
+        // Deleted since
+      }
+      position += HEADER_SIZE + length;
+    }
+    return replayed;
+  }
+
+  private ByteBuffer read(long position, int length) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(length);
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, position + buffer.position()) < 0) {
+        throw new EOFException("Journal ended in the middle of a record.");
+      }
+    }
+    buffer.flip();
+    return buffer;
+  }
+
+  /**
+   * Writes the end of a container through a channel of its own.
+   *
+   * @param failure the failure of the first write, is given the failure of this one.
+   * @return whether the end was written.
+   */
+  private static boolean writeAgain(Path container, long offset, byte[] tail, Exception failure) {
+    try (FileChannel file = FileChannel.open(container, StandardOpenOption.WRITE)) {
+      writeTail(file, offset, tail);
+      return true;
+    } catch (IOException | RuntimeException e) {
+      failure.addSuppressed(e);
+      return false;
+    }
+  }
+
+  /** @return the end of the container from the offset on. */
+  private static byte[] readTail(FileChannel target, long offset) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate((int) Math.max(0, target.size() - offset));
+    while (buffer.hasRemaining()) {
+      if (target.read(buffer, offset + buffer.position()) < 0) {
+        break;
+      }
+    }
+    return Arrays.copyOf(buffer.array(), buffer.position());
+  }
+
+  /** Writes the new end of a container and cuts off what was after it. */
+  static void writeTail(FileChannel target, long offset, byte[] tail) throws IOException {
+    ByteBuffer buffer = ByteBuffer.wrap(tail);
+    while (buffer.hasRemaining()) {
+      target.write(buffer, offset + buffer.position());
+    }
+    target.truncate(offset + tail.length);
+  }
+}
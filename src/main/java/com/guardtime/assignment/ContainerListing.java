@@ -0,0 +1,236 @@
+package com.guardtime.assignment;
+
+import com.google.gson.stream.JsonWriter;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Sends the containers of the catalog as the response of a listing request, a page at a time. The
+ * names are sorted, so a page continues after the last name of the previous one and only the
+ * containers of the page are looked at. The JSON is written to the response while the names are
+ * read, gzipped if the client accepts it. The entity tag is the version of the catalog, so a client
+ * that has the listing gets 304 until a container is added, removed or changed. The version starts
+ * over when the server does, so the tag has the epoch of the catalog too.
+ *
+ * <p>The query may have {@code prefix} the names start with, {@code after} the name of the
+ * previous page ends with, {@code limit} on the containers of the page and {@code fields}, a comma
+ * separated list of {@code size} and {@code signatures} to be given of each container. If there are
+ * more containers, {@code next} of the response is the {@code after} of the next page.
+ */
+class ContainerListing {
+
+  private ContainerListing() {}
+
+  /**
+   * Sends the page the query asks for.
+   *
+   * @param exchange of a GET request.
+   * @param catalog the containers are listed from.
+   * @param query of the request.
+   * @param summaries gives the fields of a container, if the query asks for any.
+   * @throws IOException if the response could not be written.
+   */
+  static void send(
+      HttpExchange exchange, ContainerCatalog catalog, Query query, Summaries summaries)
+      throws IOException {
+    // Read before the names, so the tag is never newer than the listing
+    long version = catalog.version();
+    boolean gzip = acceptsGzip(exchange.getRequestHeaders());
+    String eTag =
+        "\""
+            + Long.toHexString(catalog.epoch())
+            + "-"
+            + Long.toHexString(version)
+            + (gzip ? "-gzip" : "")
+            + "\"";
+
+    Headers responseHeaders = exchange.getResponseHeaders();
+    responseHeaders.set("ETag", eTag);
+    responseHeaders.set("Vary", "Accept-Encoding");
+    String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+    if (ifNoneMatch != null && ContainerDownload.matches(ifNoneMatch, eTag)) {
+      exchange.sendResponseHeaders(304, -1);
+      return;
+    }
+    responseHeaders.set("Content-Type", "application/json; charset=utf-8");
+    if (gzip) {
+      responseHeaders.set("Content-Encoding", "gzip");
+    }
+    // The length is not known before the listing is written, 0 makes the response chunked
+    exchange.sendResponseHeaders(200, 0);
+
+    OutputStream body = exchange.getResponseBody();
+    if (gzip) {
+      body = new GZIPOutputStream(body, 8192);
+    }
+    try (JsonWriter json =
+            new JsonWriter(
+                new BufferedWriter(new OutputStreamWriter(body, StandardCharsets.UTF_8)));
+        Stream<String> names = catalog.names(query.prefix, query.after)) {
+      json.beginObject();
+      json.name("containers").beginArray();
+      Iterator<String> iterator = names.iterator();
+      int count = 0;
+      String last = null;
+      while (count < query.limit && iterator.hasNext()) {
+        String name = iterator.next();
+        if (query.hasFields()) {
+          Summary summary = summaries.of(name, query.signatures);
+          if (summary == null) {
+            // Deleted meanwhile
+            continue;
+          }
+          json.beginObject();
+          json.name("name").value(name);
+          if (query.size) {
+            json.name("size").value(summary.size);
+          }
+          if (query.signatures && summary.signatures != null) {
+            json.name("signatures").value(summary.signatures);
+          }
+          json.endObject();
+        } else {
+          json.value(name);
+        }
+        count++;
+        last = name;
+      }
+      json.endArray();
+      json.name("numberOfContainers").value(count);
+      if (iterator.hasNext()) {
+        json.name("next").value(last);
+      }
+      json.endObject();
+    }
+  }
+
+  /** @return whether the request accepts a gzipped response. */
+  static boolean acceptsGzip(Headers requestHeaders) {
+    String acceptEncoding = requestHeaders.getFirst("Accept-Encoding");
+    if (acceptEncoding == null) {
+      return false;
+    }
+    for (String coding : acceptEncoding.split(",")) {
+      String[] parameters = coding.split(";");
+      if (!parameters[0].trim().equalsIgnoreCase("gzip")) {
+        continue;
+      }
+      for (int i = 1; i < parameters.length; i++) {
+        String parameter = parameters[i].replace(" ", "");
+        if (parameter.matches("q=0(\\.0*)?")) {
+          return false;
+        }
+      }
+      return true;
+    }
+    return false;
+  }
+
+  /** Gives the fields of a container. */
+  interface Summaries {
+
+    /**
+     * @param name of the container.
+     * @param signatures whether the signatures are to be counted.
+     * @return the fields of the container, or null if it does not exist anymore.
+     */
+    Summary of(String name, boolean signatures) throws IOException;
+  }
+
+  /** The fields of a container. */
+  static class Summary {
+
+    private final long size;
+    private final Integer signatures;
+
+    /**
+     * @param size of the container file in bytes.
+     * @param signatures number of signatures in the container, null if they were not counted.
+     */
+    Summary(long size, Integer signatures) {
+      this.size = size;
+      this.signatures = signatures;
+    }
+  }
+
+  /** What a listing request asks for. */
+  static class Query {
+
+    private String prefix = "";
+    private String after;
+    private int limit = Integer.MAX_VALUE;
+    private boolean size;
+    private boolean signatures;
+
+    /**
+     * @param rawQuery of the request URI, still encoded, or null.
+     * @throws IllegalArgumentException with a message for the client if the query is not valid.
+     */
+    static Query parse(String rawQuery) {
+      Query query = new Query();
+      if (rawQuery == null || rawQuery.isEmpty()) {
+        return query;
+      }
+      for (String parameter : rawQuery.split("&")) {
+        int equals = parameter.indexOf('=');
+        String key = decode(equals < 0 ? parameter : parameter.substring(0, equals));
+        String value = equals < 0 ? "" : decode(parameter.substring(equals + 1));
+        switch (key) {
+          case "prefix":
+            query.prefix = value;
+            break;
+          case "after":
+            query.after = value;
+            break;
+          case "limit":
+            try {
+              query.limit = Integer.parseInt(value);
+            } catch (NumberFormatException e) {
+              query.limit = 0;
+            }
+            if (query.limit < 1) {
+              throw new IllegalArgumentException("The limit has to be a positive number.");
+            }
+            break;
+          case "fields":
+            for (String field : value.split(",")) {
+              if (field.equals("size")) {
+                query.size = true;
+              } else if (field.equals("signatures")) {
+                query.signatures = true;
+              } else if (!field.isEmpty()) {
+                throw new IllegalArgumentException("Unknown field " + field + ".");
+              }
+            }
+            break;
+          default:
+            // Ignored, like any unknown parameter
+        }
+      }
+      return query;
+    }
+
+    boolean hasFields() {
+      return size || signatures;
+    }
+
+    private static String decode(String value) {
+      try {
+        return URLDecoder.decode(value, "UTF-8");
+      } catch (UnsupportedEncodingException | IllegalArgumentException e) {
+        throw new IllegalArgumentException("The query is not encoded properly.");
+      }
+    }
+  }
+}
@@ -0,0 +1,126 @@
+package com.guardtime.assignment;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Lock table keyed by container name. Changes to a container (signing, deleting a signature) are
+ * serialized, while different containers can be changed fully in parallel. Readers of a container
+ * share its lock, so they see either the state before or after a change but never one in the
+ * middle of being written. The locks are fair, so waiting requests get their turn in the order
+ * they came, and give up after a timeout. A lock exists only while someone holds or waits for it.
+ *
+ * <p>The locks are not bound to the thread that took them, so a lock can be held while the signing
+ * of the container goes on on other threads and be released by whichever thread finishes it.
+ */
+class ContainerLocks {
+
+  // A reader takes one permit, a writer all of them
+  private static final int MAX_READERS = Integer.MAX_VALUE;
+
+  private final ConcurrentMap<String, Entry> locks = new ConcurrentHashMap<>();
+  private final long timeoutMillis;
+
+  ContainerLocks(long timeoutMillis) {
+    this.timeoutMillis = timeoutMillis;
+  }
+
+  /**
+   * Creates the lock table with the timeout given with the system property {@code
+   * container.lock.timeout.ms}, 30 seconds by default.
+   */
+  static ContainerLocks fromSystemProperties() {
+    return new ContainerLocks(Long.getLong("container.lock.timeout.ms", 30_000));
+  }
+
+  /** Takes the exclusive lock of the container, for changing it. */
+  Lock acquireWrite(String name) throws LockTimeoutException {
+    return acquire(name, true);
+  }
+
+  /** Takes the shared lock of the container, for reading it. */
+  Lock acquireRead(String name) throws LockTimeoutException {
+    return acquire(name, false);
+  }
+
+  /** @return the shared lock of the container, or null if it is not free right now. */
+  Lock tryAcquireRead(String name) {
+    try {
+      return acquire(name, false, 0);
+    } catch (LockTimeoutException e) {
+      return null;
+    }
+  }
+
+  /** @return how many containers are locked or waited for at the moment. */
+  int size() {
+    return locks.size();
+  }
+
+  private Lock acquire(String name, boolean exclusive) throws LockTimeoutException {
+    return acquire(name, exclusive, timeoutMillis);
+  }
+
+  private Lock acquire(String name, boolean exclusive, long timeoutMillis)
+      throws LockTimeoutException {
+    Entry entry =
+        locks.compute(
+            name,
+            (key, existing) -> {
+              Entry held = existing == null ? new Entry() : existing;
+              held.users++;
+              return held;
+            });
+    int permits = exclusive ? MAX_READERS : 1;
+    boolean acquired = false;
+    try {
+      acquired = entry.permits.tryAcquire(permits, timeoutMillis, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      if (!acquired) {
+        release(name);
+      }
+    }
+    if (!acquired) {
+      throw new LockTimeoutException("Container " + name + " is busy.");
+    }
+    AtomicBoolean held = new AtomicBoolean(true);
+    return () -> {
+      // Releasing twice would hand out permits that were never taken
+      if (held.getAndSet(false)) {
+        entry.permits.release(permits);
+        release(name);
+      }
+    };
+  }
+
+  private void release(String name) {
+    locks.computeIfPresent(name, (key, entry) -> --entry.users == 0 ? null : entry);
+  }
+
+  /** A held lock, released by closing it. */
+  interface Lock extends AutoCloseable {
+
+    @Override
+    void close();
+  }
+
+  /** Thrown when the lock of a container could not be taken in time. */
+  static class LockTimeoutException extends Exception {
+
+    LockTimeoutException(String message) {
+      super(message);
+    }
+  }
+
+  private static class Entry {
+
+    private final Semaphore permits = new Semaphore(MAX_READERS, true);
+    // Guarded by the map, which only changes it inside compute
+    private int users;
+  }
+}
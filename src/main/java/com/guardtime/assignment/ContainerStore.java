@@ -0,0 +1,227 @@
+package com.guardtime.assignment;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Where the containers are stored on disk. A directory of many hundred thousand files is slow to
+ * look up in and to list, so the containers are spread over a tree of directories. Each level of
+ * the tree is named after one byte of the SHA-256 hash of the container name, with two levels the
+ * container {@code konteiner} is stored as {@code <root>/xx/yy/konteiner.zip}. 256 directories on
+ * each level keep even a hundred million containers at some 1500 per directory.
+ *
+ * <p>The path of a container is computed from its name alone, so no lookup lists a directory. With
+ * no levels the containers are stored in the root itself, as earlier versions did. The server
+ * moves the containers of its store in to the layout it is configured with when it starts, {@link
+ * #main(String[])} does the same without starting it.
+ */
+final class ContainerStore {
+
+  static final int MAX_LEVELS = 4;
+
+  private final Path root;
+  private final int levels;
+
+  /**
+   * @param root directory of the store.
+   * @param levels of directories between the root and the containers.
+   */
+  ContainerStore(Path root, int levels) {
+    if (levels < 0 || levels > MAX_LEVELS) {
+      throw new IllegalArgumentException(
+          "Containers can be sharded on 0 to " + MAX_LEVELS + " levels, not " + levels);
+    }
+    this.root = root;
+    this.levels = levels;
+  }
+
+  /**
+   * Creates a store in {@code containers.dir} with {@code containers.shard.levels} levels of
+   * directories.
+   */
+  static ContainerStore fromSystemProperties() {
+    return new ContainerStore(
+        Paths.get(System.getProperty("containers.dir", "src/main/resources/containers")),
+        Integer.getInteger("containers.shard.levels", 2));
+  }
+
+  /** @return the directory of the store. */
+  Path getRoot() {
+    return root;
+  }
+
+  /** @return levels of directories between the root and the containers. */
+  int getLevels() {
+    return levels;
+  }
+
+  /** @return where the container with the name is stored, whether it exists or not. */
+  Path pathOf(String name) {
+    Path directory = root;
+    if (levels > 0) {
+      byte[] hash = sha256(name);
+      for (int i = 0; i < levels; i++) {
+        directory = directory.resolve(shard(hash[i]));
+      }
+    }
+    return directory.resolve(name + ContainerCatalog.EXTENSION);
+  }
+
+  /**
+   * Lists the containers that are stored where their names lead to. It has to go through every
+   * directory of the store, so it is only done when the store is opened.
+   *
+   * @return names of the containers.
+   */
+  List<String> names() throws IOException {
+    List<String> names = new ArrayList<>();
+    if (Files.isDirectory(root)) {
+      collect(root, 0, names, null);
+    }
+    return names;
+  }
+
+  /** @return whether a sharded store has containers left in its root by an earlier version. */
+  boolean hasUnshardedContainers() throws IOException {
+    if (levels == 0 || !Files.isDirectory(root)) {
+      return false;
+    }
+    try (DirectoryStream<Path> paths =
+        Files.newDirectoryStream(root, "*" + ContainerCatalog.EXTENSION)) {
+      return paths.iterator().hasNext();
+    }
+  }
+
+  /**
+   * Moves every container in the store, from the root or from a tree of another number of levels,
+   * to where it is looked up. Directories of the old tree that are left empty are removed. The
+   * server does it when it starts, no other server may be running on the store meanwhile.
+   *
+   * @return the number of containers moved.
+   */
+  int migrate() throws IOException {
+    if (!Files.isDirectory(root)) {
+      return 0;
+    }
+    List<Path> misplaced = new ArrayList<>();
+    collect(root, 0, null, misplaced);
+    int moved = 0;
+    for (Path path : misplaced) {
+      String fileName = path.getFileName().toString();
+      Path target =
+          pathOf(fileName.substring(0, fileName.length() - ContainerCatalog.EXTENSION.length()));
+      if (Files.exists(target)) {
+        System.err.println("Not moving " + path + ", " + target + " already exists.");
+        continue;
+      }
+      Files.createDirectories(target.getParent());
+      try {
+        Files.move(path, target, StandardCopyOption.ATOMIC_MOVE);
+      } catch (AtomicMoveNotSupportedException e) {
+        Files.move(path, target);
+      }
+      moved++;
+    }
+    removeEmptyShards(root, 0);
+    return moved;
+  }
+
+  /**
+   * Goes through the directory and the shard directories under it.
+   *
+   * @param names if not null, is given the containers that are where their names lead to.
+   * @param misplaced if not null, is given the containers that are not.
+   */
+  private void collect(Path directory, int level, List<String> names, List<Path> misplaced)
+      throws IOException {
+    try (DirectoryStream<Path> paths = Files.newDirectoryStream(directory)) {
+      for (Path path : paths) {
+        String fileName = path.getFileName().toString();
+        if (Files.isDirectory(path)) {
+          // Only the shards, not the signing jobs or anything else kept in the root
+          if (isShard(fileName) && level < MAX_LEVELS) {
+            collect(path, level + 1, names, misplaced);
+          }
+        } else if (fileName.endsWith(ContainerCatalog.EXTENSION) && Files.isRegularFile(path)) {
+          String name =
+              fileName.substring(0, fileName.length() - ContainerCatalog.EXTENSION.length());
+          boolean inPlace = level == levels && path.equals(pathOf(name));
+          if (inPlace && names != null) {
+            names.add(name);
+          } else if (!inPlace && misplaced != null) {
+            misplaced.add(path);
+          }
+        }
+      }
+    }
+  }
+
+  /** @return whether the directory was removed. */
+  private static boolean removeEmptyShards(Path directory, int level) throws IOException {
+    boolean empty = true;
+    List<Path> shards = new ArrayList<>();
+    try (DirectoryStream<Path> paths = Files.newDirectoryStream(directory)) {
+      for (Path path : paths) {
+        if (Files.isDirectory(path) && isShard(path.getFileName().toString())) {
+          shards.add(path);
+        } else {
+          empty = false;
+        }
+      }
+    }
+    for (Path shard : shards) {
+      if (level >= MAX_LEVELS || !removeEmptyShards(shard, level + 1)) {
+        empty = false;
+      }
+    }
+    if (empty && level > 0) {
+      Files.delete(directory);
+      return true;
+    }
+    return false;
+  }
+
+  private static boolean isShard(String fileName) {
+    return fileName.length() == 2
+        && fileName.equals(fileName.toLowerCase(Locale.ROOT))
+        && Character.digit(fileName.charAt(0), 16) >= 0
+        && Character.digit(fileName.charAt(1), 16) >= 0;
+  }
+
+  private static String shard(byte b) {
+    return String.format("%02x", b & 0xFF);
+  }
+
+  private static byte[] sha256(String name) {
+    try {
+      return MessageDigest.getInstance("SHA-256").digest(name.getBytes(StandardCharsets.UTF_8));
+    } catch (NoSuchAlgorithmException e) {
+      // Every JVM has SHA-256
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Moves the containers of {@code containers.dir} in to {@code containers.shard.levels} levels of
+   * directories, e.g. a flat store of an earlier version in to the sharded layout.
+   */
+  public static void main(String[] args) throws IOException {
+    ContainerStore store = fromSystemProperties();
+    // The journal names the containers by their paths, so it is written to them before they move
+    ContainerJournal.fromSystemProperties(store).close();
+    int moved = store.migrate();
+    System.out.println(
+        "Moved " + moved + " containers in to " + store.levels + " levels under " + store.root);
+  }
+}
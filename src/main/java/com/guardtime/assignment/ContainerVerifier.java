@@ -0,0 +1,420 @@
+package com.guardtime.assignment;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import com.guardtime.ksi.PublicationsHandler;
+import com.guardtime.ksi.PublicationsHandlerBuilder;
+import com.guardtime.ksi.Reader;
+import com.guardtime.ksi.SignatureReader;
+import com.guardtime.ksi.SignatureVerifier;
+import com.guardtime.ksi.Verifier;
+import com.guardtime.ksi.exceptions.KSIException;
+import com.guardtime.ksi.hashing.DataHash;
+import com.guardtime.ksi.hashing.DataHasher;
+import com.guardtime.ksi.hashing.HashAlgorithm;
+import com.guardtime.ksi.service.client.http.HttpSettings;
+import com.guardtime.ksi.service.http.simple.SimpleHttpPublicationsFileClient;
+import com.guardtime.ksi.trust.X509CertificateSubjectRdnSelector;
+import com.guardtime.ksi.unisignature.KSISignature;
+import com.guardtime.ksi.unisignature.verifier.VerificationResult;
+import com.guardtime.ksi.unisignature.verifier.policies.ContextAwarePolicy;
+import com.guardtime.ksi.unisignature.verifier.policies.ContextAwarePolicyAdapter;
+import com.guardtime.ksi.util.Base16;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Verifies the signatures of a container. Each manifest is checked against the digests of the
+ * datafiles and each KSI signature is verified against the hash of its manifest with a KSI
+ * verification policy: the key based policy if a publications file is configured with {@code
+ * -Dpublications.file.url}, otherwise the internal policy, which needs no external services.
+ *
+ * <p>The results of the signatures are kept in a bounded LRU cache, keyed by the container, the
+ * digests of the signature and the manifest and the digests of the datafiles. An audit of an
+ * unchanged container then only hashes its datafiles, the signatures are not verified again.
+ */
+class ContainerVerifier {
+
+  private static final String SIGNATURE_PREFIX = "META-INF/signature";
+
+  private final Reader reader = new SignatureReader();
+  private final Verifier verifier = new SignatureVerifier();
+  private final ContextAwarePolicy policy;
+  private final Map<String, SignatureResult> cache;
+  private final AtomicLong cacheHits = new AtomicLong();
+  private final AtomicLong cacheMisses = new AtomicLong();
+
+  /**
+   * @param policy the signatures are verified with.
+   * @param cacheSize how many signature results are kept.
+   */
+  ContainerVerifier(ContextAwarePolicy policy, int cacheSize) {
+    this.policy = policy;
+    this.cache =
+        new LinkedHashMap<String, SignatureResult>(16, 0.75f, true) {
+          @Override
+          protected boolean removeEldestEntry(Map.Entry<String, SignatureResult> eldest) {
+            return size() > cacheSize;
+          }
+        };
+  }
+
+  /**
+   * Creates a verifier configured with the system properties {@code publications.file.url},
+   * {@code publications.file.constraint} (by default {@code E=publications@guardtime.com}) and
+   * {@code verification.cache.size} (10000 by default).
+   */
+  static ContainerVerifier fromSystemProperties() throws KSIException {
+    String publicationsFileUrl = System.getProperty("publications.file.url");
+    ContextAwarePolicy policy;
+    if (publicationsFileUrl == null) {
+      policy = ContextAwarePolicyAdapter.createInternalPolicy();
+    } else {
+      PublicationsHandler publicationsHandler =
+          new PublicationsHandlerBuilder()
+              .setKsiProtocolPublicationsFileClient(
+                  new SimpleHttpPublicationsFileClient(new HttpSettings(publicationsFileUrl)))
+              .setPublicationsFileCertificateConstraints(
+                  new X509CertificateSubjectRdnSelector(
+                      System.getProperty(
+                          "publications.file.constraint", "E=publications@guardtime.com")))
+              .build();
+      policy = ContextAwarePolicyAdapter.createKeyPolicy(publicationsHandler);
+    }
+    return new ContainerVerifier(policy, Integer.getInteger("verification.cache.size", 10_000));
+  }
+
+  /**
+   * Verifies all the signatures of a container. The caller keeps the container from changing.
+   *
+   * @param name of the container.
+   * @param archive the container, opened for reading.
+   * @param datafiles metadata of the datafiles, hashed from their current content with the
+   *     algorithms of the hashing policy.
+   * @param digests hashes the datafiles with an algorithm a manifest uses but the policy does not.
+   * @return a json with the result of each signature and whether all of them are valid.
+   */
+  JsonObject verify(
+      String name, ContainerArchive archive, List<MetaData> datafiles, DatafileDigests digests)
+      throws IOException {
+    Map<Integer, ZipEntryRecord> manifests = new TreeMap<>();
+    Map<Integer, ZipEntryRecord> signatures = new TreeMap<>();
+    for (ZipEntryRecord entry : archive.getEntries()) {
+      String entryName = entry.getName();
+      if (Manifest.isManifest(entryName)) {
+        manifests.put(number(entryName, Manifest.PREFIX), entry);
+      } else if (entryName.startsWith(SIGNATURE_PREFIX) && entryName.endsWith(".ksi")) {
+        signatures.put(number(entryName, SIGNATURE_PREFIX), entry);
+      }
+    }
+
+    String datafilesDigest = digestOf(datafiles);
+    CurrentDatafiles current = new CurrentDatafiles(datafiles, digests);
+    JsonArray results = new JsonArray();
+    boolean valid = !signatures.isEmpty();
+    for (Map.Entry<Integer, ZipEntryRecord> signature : signatures.entrySet()) {
+      int number = signature.getKey();
+      byte[] signatureBytes = read(archive, signature.getValue());
+      ZipEntryRecord manifestEntry = manifests.get(number);
+      SignatureResult result;
+      if (manifestEntry == null) {
+        result = new SignatureResult(number, null, false, "Manifest of the signature is missing.");
+      } else {
+        // The manifest is compared with the datafiles and hashed in the same pass
+        ManifestCheck manifest = new ManifestCheck(current);
+        String manifestError = null;
+        try (InputStream in = archive.getInputStream(manifestEntry)) {
+          manifest.hash = Manifest.read(in, manifest);
+        } catch (Manifest.MalformedManifestException e) {
+          manifestError = e.getMessage();
+        }
+        if (manifestError != null) {
+          result =
+              new SignatureResult(
+                  number, null, false, "Manifest could not be read: " + manifestError);
+        } else {
+          String key =
+              name
+                  + '\n'
+                  + Base16.encode(hash(signatureBytes).getValue())
+                  + '\n'
+                  + Base16.encode(manifest.hash.getValue())
+                  + '\n'
+                  + datafilesDigest;
+          result = cached(key);
+          if (result == null) {
+            result = verify(number, signatureBytes, manifest);
+            if (result != null) {
+              cache(key, result);
+            } else {
+              result =
+                  new SignatureResult(number, null, false, "Signature could not be verified.");
+            }
+          }
+        }
+      }
+      valid &= result.valid;
+      results.add(result.toJson());
+    }
+
+    JsonObject jsonObject = new JsonObject();
+    jsonObject.add("name", new JsonPrimitive(name));
+    jsonObject.add("valid", new JsonPrimitive(valid));
+    jsonObject.add("signatures", results);
+    return jsonObject;
+  }
+
+  /** @return how many signature results were found in the cache. */
+  long getCacheHits() {
+    return cacheHits.get();
+  }
+
+  /** @return how many signatures had to be verified. */
+  long getCacheMisses() {
+    return cacheMisses.get();
+  }
+
+  /**
+   * @return the result of the signature, or null if it could not be verified this time, e.g.
+   *     because the publications file could not be fetched.
+   */
+  private SignatureResult verify(int number, byte[] signatureBytes, ManifestCheck manifest) {
+    KSISignature signature;
+    try {
+      signature = reader.read(new ByteArrayInputStream(signatureBytes));
+    } catch (KSIException e) {
+      return new SignatureResult(number, null, false, "Signature could not be read.");
+    }
+    String userId = SignerIndex.getSignerId(signature);
+    if (userId == null) {
+      return new SignatureResult(number, null, false, "Signature does not name its signer.");
+    }
+
+    if (!(SIGNATURE_PREFIX + number + ".ksi").equals(manifest.signatureUri)) {
+      return new SignatureResult(number, userId, false, "Manifest is not of this signature.");
+    }
+    if (!manifest.matches()) {
+      return new SignatureResult(number, userId, false, "Datafiles do not match the manifest.");
+    }
+
+    try {
+      VerificationResult result = verifier.verify(signature, manifest.hash, policy);
+      if (result.isOk()) {
+        return new SignatureResult(number, userId, true, null);
+      }
+      return new SignatureResult(
+          number,
+          userId,
+          false,
+          "Signature does not verify.",
+          result.getErrorCode() == null ? null : result.getErrorCode().getCode());
+    } catch (KSIException e) {
+      e.printStackTrace();
+      return null;
+    }
+  }
+
+  private SignatureResult cached(String key) {
+    SignatureResult result;
+    synchronized (cache) {
+      result = cache.get(key);
+    }
+    (result == null ? cacheMisses : cacheHits).incrementAndGet();
+    return result;
+  }
+
+  private void cache(String key, SignatureResult result) {
+    synchronized (cache) {
+      cache.put(key, result);
+    }
+  }
+
+  /** @return a digest of all the datafiles, independent of their order. */
+  private static String digestOf(List<MetaData> datafiles) {
+    List<MetaData> sorted = new ArrayList<>(datafiles);
+    sorted.sort(Comparator.comparing(MetaData::getUri));
+    StringBuilder text = new StringBuilder();
+    for (MetaData df : sorted) {
+      text.append(df.getUri())
+          .append('\n')
+          .append(df.getHashAlgorithm())
+          .append('\n')
+          .append(df.getHash())
+          .append('\n');
+    }
+    return Base16.encode(hash(text.toString().getBytes(StandardCharsets.UTF_8)).getValue());
+  }
+
+  private static DataHash hash(byte[] data) {
+    DataHasher dataHasher = new DataHasher(HashAlgorithm.SHA2_256);
+    dataHasher.addData(data);
+    return dataHasher.getHash();
+  }
+
+  private static byte[] read(ContainerArchive archive, ZipEntryRecord entry) throws IOException {
+    ByteArrayOutputStream content = new ByteArrayOutputStream();
+    byte[] buffer = new byte[8192];
+    try (InputStream in = archive.getInputStream(entry)) {
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        content.write(buffer, 0, read);
+      }
+    }
+    return content.toByteArray();
+  }
+
+  private static int number(String entryName, String prefix) {
+    try {
+      return Integer.parseInt(entryName.substring(prefix.length(), entryName.lastIndexOf('.')));
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  /** Hashes the datafiles of the container being verified with the given algorithm. */
+  interface DatafileDigests {
+
+    List<MetaData> hash(HashAlgorithm algorithm);
+  }
+
+  /**
+   * The current datafiles of a container, by hash algorithm. Those of an algorithm the hashing
+   * policy does not have are hashed when a manifest first needs them.
+   */
+  private static class CurrentDatafiles {
+
+    // Keyed by the name of the hash algorithm, null if the algorithm can not be hashed with
+    private final Map<String, Set<MetaData>> byAlgorithm = new HashMap<>();
+    private final DatafileDigests digests;
+    private final boolean empty;
+
+    CurrentDatafiles(List<MetaData> datafiles, DatafileDigests digests) {
+      this.digests = digests;
+      this.empty = datafiles.isEmpty();
+      for (MetaData datafile : datafiles) {
+        byAlgorithm
+            .computeIfAbsent(datafile.getHashAlgorithm(), key -> new HashSet<>())
+            .add(datafile);
+      }
+    }
+
+    /** @return the datafiles hashed with the algorithm, or null if it is not known. */
+    Set<MetaData> get(String algorithmName) {
+      if (!byAlgorithm.containsKey(algorithmName)) {
+        Set<MetaData> datafiles = null;
+        try {
+          HashAlgorithm algorithm = HashAlgorithm.getByName(algorithmName);
+          if (algorithm != null) {
+            datafiles = new HashSet<>(digests.hash(algorithm));
+          }
+        } catch (IllegalArgumentException e) {
+          // An algorithm that is unknown or not available can not be checked
+        }
+        byAlgorithm.put(algorithmName, datafiles);
+      }
+      return byAlgorithm.get(algorithmName);
+    }
+  }
+
+  /**
+   * Compares the datafiles listed in a manifest, as it is read, with the current datafiles of the
+   * container. Every algorithm the manifest uses has to list all the datafiles.
+   */
+  private static class ManifestCheck implements Manifest.Handler {
+
+    private final CurrentDatafiles current;
+    // Keyed by the name of the hash algorithm, the current datafiles not listed so far
+    private final Map<String, Set<MetaData>> unlisted = new HashMap<>();
+    private boolean unknownListed;
+    private String signatureUri;
+    private DataHash hash;
+
+    ManifestCheck(CurrentDatafiles current) {
+      this.current = current;
+    }
+
+    @Override
+    public void datafile(MetaData datafile) {
+      Set<MetaData> datafiles = current.get(datafile.getHashAlgorithm());
+      if (datafiles == null || !datafiles.contains(datafile)) {
+        unknownListed = true;
+        return;
+      }
+      unlisted
+          .computeIfAbsent(datafile.getHashAlgorithm(), key -> new HashSet<>(datafiles))
+          .remove(datafile);
+    }
+
+    @Override
+    public void signatureUri(String uri) {
+      signatureUri = uri;
+    }
+
+    /** @return whether the manifest lists exactly the current datafiles. */
+    boolean matches() {
+      if (unknownListed || (unlisted.isEmpty() && !current.empty)) {
+        return false;
+      }
+      for (Set<MetaData> datafiles : unlisted.values()) {
+        if (!datafiles.isEmpty()) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
+  /** Outcome of verifying one signature. */
+  private static class SignatureResult {
+
+    private final int signatureNumber;
+    private final String userId;
+    private final boolean valid;
+    private final String error;
+    private final String errorCode;
+
+    SignatureResult(int signatureNumber, String userId, boolean valid, String error) {
+      this(signatureNumber, userId, valid, error, null);
+    }
+
+    SignatureResult(
+        int signatureNumber, String userId, boolean valid, String error, String errorCode) {
+      this.signatureNumber = signatureNumber;
+      this.userId = userId;
+      this.valid = valid;
+      this.error = error;
+      this.errorCode = errorCode;
+    }
+
+    JsonObject toJson() {
+      JsonObject json = new JsonObject();
+      json.add("signatureNumber", new JsonPrimitive(signatureNumber));
+      if (userId != null) {
+        json.add("userId", new JsonPrimitive(userId));
+      }
+      json.add("valid", new JsonPrimitive(valid));
+      if (error != null) {
+        json.add("Error", new JsonPrimitive(error));
+      }
+      if (errorCode != null) {
+        json.add("errorCode", new JsonPrimitive(errorCode));
+      }
+      return json;
+    }
+  }
+}
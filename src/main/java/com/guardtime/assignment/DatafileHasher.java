@@ -0,0 +1,208 @@
+package com.guardtime.assignment;
+
+import com.guardtime.ksi.hashing.HashAlgorithm;
+import com.guardtime.ksi.util.Base16;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Hashes the datafiles of a container on a fork-join pool, one datafile per task, so a container
+ * of many datafiles is hashed by as many threads as the pool has. Each datafile is read once and
+ * hashed with every algorithm of the hashing policy in the same pass, the read buffers are reused
+ * from one datafile to the next.
+ *
+ * <p>The policy is given with the system property {@code hashing.algorithms}, a comma separated
+ * list of KSI hash algorithm names such as {@code SHA-256} (the default), {@code SHA-512} or
+ * {@code SHA3-256}. The SHA-3 algorithms are hashed with the JDK, so they need JDK 9 or newer. The
+ * pool has {@code hashing.threads} threads, by default as many as there are processors.
+ */
+class DatafileHasher {
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private final ForkJoinPool pool;
+  private final List<HashAlgorithm> algorithms;
+  // Buffers not in use, there are never more than the tasks that ran at the same time
+  private final Queue<byte[]> buffers = new ConcurrentLinkedQueue<>();
+
+  /**
+   * @param pool the datafiles are hashed on.
+   * @param algorithms of the hashing policy.
+   */
+  DatafileHasher(ForkJoinPool pool, List<HashAlgorithm> algorithms) {
+    this.pool = pool;
+    this.algorithms = Collections.unmodifiableList(new ArrayList<>(algorithms));
+  }
+
+  /** Creates a hasher configured with the system properties. */
+  static DatafileHasher fromSystemProperties() {
+    int threads =
+        Integer.getInteger("hashing.threads", Runtime.getRuntime().availableProcessors());
+    return new DatafileHasher(new ForkJoinPool(Math.max(1, threads)), policyFromSystemProperties());
+  }
+
+  /** @return the algorithms of the hashing policy given with {@code hashing.algorithms}. */
+  static List<HashAlgorithm> policyFromSystemProperties() {
+    return parsePolicy(System.getProperty("hashing.algorithms", HashAlgorithm.SHA2_256.getName()));
+  }
+
+  /**
+   * @param policy comma separated names of hash algorithms.
+   * @return the algorithms, in the order they were given.
+   * @throws IllegalArgumentException if an algorithm is unknown, not trusted or not available.
+   */
+  static List<HashAlgorithm> parsePolicy(String policy) {
+    List<HashAlgorithm> algorithms = new ArrayList<>();
+    for (String name : policy.split(",")) {
+      HashAlgorithm algorithm = HashAlgorithm.getByName(name.trim());
+      if (algorithm == null) {
+        throw new IllegalArgumentException("Unknown hash algorithm: " + name);
+      }
+      if (algorithm.getStatus() == HashAlgorithm.Status.NOT_TRUSTED) {
+        throw new IllegalArgumentException("Hash algorithm is not trusted: " + name);
+      }
+      newDigest(algorithm);
+      if (!algorithms.contains(algorithm)) {
+        algorithms.add(algorithm);
+      }
+    }
+    if (algorithms.isEmpty()) {
+      throw new IllegalArgumentException("No hash algorithm in the policy: " + policy);
+    }
+    return algorithms;
+  }
+
+  /** @return the algorithms of the hashing policy. */
+  List<HashAlgorithm> getAlgorithms() {
+    return algorithms;
+  }
+
+  /**
+   * Hashes the datafiles with the algorithms of the policy.
+   *
+   * @see #hash(ContainerArchive, List, List)
+   */
+  List<MetaData> hash(ContainerArchive archive, List<ZipEntryRecord> datafiles) {
+    return hash(archive, datafiles, algorithms);
+  }
+
+  /**
+   * Hashes the datafiles in parallel. A datafile that can not be read is left out, as it can not
+   * be signed either.
+   *
+   * @param archive the datafiles are read from, it may be read by many threads at once.
+   * @param datafiles entries of the datafiles.
+   * @param algorithms each datafile is hashed with.
+   * @return metadata of the datafiles in the order they were given, for each datafile one for each
+   *     algorithm in the order they were given.
+   * @throws IllegalArgumentException if an algorithm is not available in this JVM.
+   */
+  List<MetaData> hash(
+      ContainerArchive archive, List<ZipEntryRecord> datafiles, List<HashAlgorithm> algorithms) {
+    // Rather than once for every datafile
+    algorithms.forEach(DatafileHasher::newDigest);
+    List<MetaData> metaData = new ArrayList<>(datafiles.size() * algorithms.size());
+    if (datafiles.size() < 2) {
+      // Not worth handing over to the pool
+      for (ZipEntryRecord datafile : datafiles) {
+        try {
+          metaData.addAll(hash(archive, datafile, algorithms));
+        } catch (IOException e) {
+          e.printStackTrace();
+        }
+      }
+      return metaData;
+    }
+
+    List<ForkJoinTask<List<MetaData>>> tasks = new ArrayList<>(datafiles.size());
+    for (ZipEntryRecord datafile : datafiles) {
+      tasks.add(
+          pool.submit(
+              () -> {
+                try {
+                  return hash(archive, datafile, algorithms);
+                } catch (IOException e) {
+                  throw new UncheckedIOException(e);
+                }
+              }));
+    }
+    for (ForkJoinTask<List<MetaData>> task : tasks) {
+      try {
+        metaData.addAll(task.join());
+      } catch (RuntimeException e) {
+        e.printStackTrace();
+      }
+    }
+    return metaData;
+  }
+
+  private List<MetaData> hash(
+      ContainerArchive archive, ZipEntryRecord datafile, List<HashAlgorithm> algorithms)
+      throws IOException {
+    Digests digests = new Digests(algorithms);
+    byte[] buffer = buffers.poll();
+    if (buffer == null) {
+      buffer = new byte[BUFFER_SIZE];
+    }
+    try (InputStream in = archive.getInputStream(datafile)) {
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        digests.update(buffer, 0, read);
+      }
+    } finally {
+      buffers.offer(buffer);
+    }
+    return digests.toMetaData(datafile.getName());
+  }
+
+  private static MessageDigest newDigest(HashAlgorithm algorithm) {
+    try {
+      return MessageDigest.getInstance(algorithm.getName());
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalArgumentException(
+          "Hash algorithm is not available in this JVM: " + algorithm.getName(), e);
+    }
+  }
+
+  /** The digests of one datafile with several algorithms, updated in the same pass. */
+  static class Digests {
+
+    private final List<HashAlgorithm> algorithms;
+    private final MessageDigest[] digests;
+
+    Digests(List<HashAlgorithm> algorithms) {
+      this.algorithms = algorithms;
+      this.digests = new MessageDigest[algorithms.size()];
+      for (int i = 0; i < digests.length; i++) {
+        digests[i] = newDigest(algorithms.get(i));
+      }
+    }
+
+    void update(byte[] data, int offset, int length) {
+      for (MessageDigest digest : digests) {
+        digest.update(data, offset, length);
+      }
+    }
+
+    /** @return metadata of the datafile, one for each algorithm. */
+    List<MetaData> toMetaData(String uri) {
+      List<MetaData> metaData = new ArrayList<>(digests.length);
+      for (int i = 0; i < digests.length; i++) {
+        metaData.add(
+            new MetaData(uri, algorithms.get(i).getName(), Base16.encode(digests[i].digest())));
+      }
+      return metaData;
+    }
+  }
+}
@@ -0,0 +1,71 @@
+package com.guardtime.assignment;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The digests of the datafiles of a container, persisted inside the container when it is created.
+ * Since the datafiles never change after that, signing can build the manifest from the index
+ * instead of inflating and hashing every datafile again.
+ */
+class DigestIndex {
+
+  static final String ENTRY_NAME = "META-INF/digests.json";
+
+  private static final Gson GSON = new Gson();
+  private static final Type META_DATA_LIST = new TypeToken<List<MetaData>>() {}.getType();
+
+  private DigestIndex() {}
+
+  /** @return the metadata of the datafiles as the content of the index entry. */
+  static byte[] toBytes(List<MetaData> metaData) {
+    return GSON.toJson(metaData, META_DATA_LIST).getBytes(StandardCharsets.UTF_8);
+  }
+
+  /** @return the metadata of the datafiles read from the content of the index entry. */
+  static List<MetaData> read(InputStream in) throws IOException {
+    try (Reader reader = new InputStreamReader(in, StandardCharsets.UTF_8)) {
+      return GSON.fromJson(reader, META_DATA_LIST);
+    }
+  }
+
+  /**
+   * Compares the index with the datafiles hashed again. The datafiles may be hashed in another
+   * order than they were indexed in, so only which datafiles and how many times count.
+   *
+   * @param indexed the metadata read from the index.
+   * @param hashed the metadata of the datafiles hashed again.
+   * @return whether both have the same metadata.
+   */
+  static boolean matches(List<MetaData> indexed, List<MetaData> hashed) {
+    if (indexed.size() != hashed.size()) {
+      return false;
+    }
+    Map<MetaData, Integer> counts = new HashMap<>();
+    for (MetaData datafile : indexed) {
+      counts.merge(datafile, 1, Integer::sum);
+    }
+    for (MetaData datafile : hashed) {
+      Integer count = counts.get(datafile);
+      if (count == null) {
+        return false;
+      }
+      if (count == 1) {
+        counts.remove(datafile);
+      } else {
+        counts.put(datafile, count - 1);
+      }
+    }
+    return counts.isEmpty();
+  }
+}
@@ -0,0 +1,287 @@
+package com.guardtime.assignment;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives the endpoints of a running server at a target rate and reports the latency percentiles
+ * of each endpoint. Requests are started on a fixed schedule no matter how long the earlier ones
+ * take, and the latency of a request is measured from when it was due, so a server that falls
+ * behind shows in the percentiles instead of slowing the load down.
+ *
+ * <p>Configured with the system properties {@code load.url} (http://localhost:1234 by default),
+ * {@code load.rps} (requests per second, 50 by default), {@code load.duration.s} (30 by default),
+ * {@code load.mix} (the weights of the endpoints, {@code sign:6,read:2,verify:1,download:1} by
+ * default, {@code create} and {@code delete} can be added), {@code load.containers} (how many
+ * containers are created for the run, 10 by default), {@code load.threads} (how many requests may
+ * be open at once, 256 by default) and {@code load.timeout.ms} (30000 by default).
+ */
+public class LoadGenerator {
+
+  private static final String[] ENDPOINTS = {
+    "create", "read", "sign", "verify", "download", "delete"
+  };
+
+  private final String url;
+  private final int timeoutMillis;
+  private final Map<String, Integer> mix;
+  private final int totalWeight;
+  private final List<String> containers = new ArrayList<>();
+  private final Map<String, Recorder> recorders = new LinkedHashMap<>();
+  private final String run = Long.toString(System.currentTimeMillis(), 36);
+  private final AtomicInteger created = new AtomicInteger();
+
+  LoadGenerator(String url, int timeoutMillis, Map<String, Integer> mix) {
+    this.url = url;
+    this.timeoutMillis = timeoutMillis;
+    this.mix = mix;
+    this.totalWeight = mix.values().stream().mapToInt(Integer::intValue).sum();
+    for (String endpoint : mix.keySet()) {
+      recorders.put(endpoint, new Recorder());
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    LoadGenerator generator =
+        new LoadGenerator(
+            System.getProperty("load.url", "http://localhost:1234"),
+            Integer.getInteger("load.timeout.ms", 30_000),
+            parseMix(System.getProperty("load.mix", "sign:6,read:2,verify:1,download:1")));
+    generator.prepare(Integer.getInteger("load.containers", 10));
+    generator.run(
+        Integer.getInteger("load.rps", 50),
+        Integer.getInteger("load.duration.s", 30),
+        Integer.getInteger("load.threads", 256));
+    System.out.print(generator.report());
+  }
+
+  /**
+   * Parses the weights of the endpoints, such as {@code sign:6,read:2}.
+   *
+   * @throws IllegalArgumentException if an endpoint is unknown or no weight is positive.
+   */
+  static Map<String, Integer> parseMix(String mix) {
+    Map<String, Integer> weights = new LinkedHashMap<>();
+    for (String part : mix.split(",")) {
+      String[] endpointAndWeight = part.trim().split(":");
+      if (!Arrays.asList(ENDPOINTS).contains(endpointAndWeight[0])) {
+        throw new IllegalArgumentException("Unknown endpoint: " + endpointAndWeight[0]);
+      }
+      int weight = endpointAndWeight.length > 1 ? Integer.parseInt(endpointAndWeight[1]) : 1;
+      if (weight > 0) {
+        weights.put(endpointAndWeight[0], weight);
+      }
+    }
+    if (weights.isEmpty()) {
+      throw new IllegalArgumentException("No endpoint to send requests to: " + mix);
+    }
+    return weights;
+  }
+
+  /** Creates the containers the requests are sent for. */
+  void prepare(int count) throws IOException {
+    for (int i = 0; i < Math.max(1, count); i++) {
+      String name = "load-" + run + "-" + i;
+      int status = send("PUT", "/create", "{\"name\":\"" + name + "\"}");
+      if (status != 201) {
+        throw new IOException("Could not create the container " + name + ": " + status);
+      }
+      containers.add(name);
+    }
+  }
+
+  /**
+   * Sends requests at the given rate for the given time and waits for the answers.
+   *
+   * @param rps how many requests are started per second.
+   * @param seconds how long requests are started for.
+   * @param threads how many requests may be open at once, the rest wait for their turn.
+   */
+  void run(int rps, int seconds, int threads) throws InterruptedException {
+    ExecutorService senders = Executors.newFixedThreadPool(threads);
+    long interval = TimeUnit.SECONDS.toNanos(1) / Math.max(1, rps);
+    long start = System.nanoTime();
+    long total = (long) rps * seconds;
+    for (long i = 0; i < total; i++) {
+      long due = start + i * interval;
+      long wait = due - System.nanoTime();
+      if (wait > 0) {
+        LockSupport.parkNanos(wait);
+      }
+      String endpoint = pickEndpoint();
+      senders.execute(() -> recorders.get(endpoint).record(sendTo(endpoint), due));
+    }
+    senders.shutdown();
+    senders.awaitTermination(
+        timeoutMillis + TimeUnit.SECONDS.toMillis(seconds), TimeUnit.MILLISECONDS);
+    long elapsed = System.nanoTime() - start;
+    for (Recorder recorder : recorders.values()) {
+      recorder.elapsedNanos = elapsed;
+    }
+  }
+
+  /** @return a table of the count, the errors, the rate and the latency percentiles. */
+  String report() {
+    StringBuilder report = new StringBuilder();
+    report.append(
+        String.format(
+            "%-10s %8s %8s %8s %9s %9s %9s %9s %9s%n",
+            "endpoint", "count", "errors", "rps", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms",
+            "max ms"));
+    for (Map.Entry<String, Recorder> entry : recorders.entrySet()) {
+      Recorder recorder = entry.getValue();
+      long[] latencies = recorder.sorted();
+      report.append(
+          String.format(
+              "%-10s %8d %8d %8.1f %9.1f %9.1f %9.1f %9.1f %9.1f%n",
+              entry.getKey(),
+              latencies.length,
+              recorder.errorCount(),
+              latencies.length * 1e9 / Math.max(1, recorder.elapsedNanos),
+              millis(percentile(latencies, 50)),
+              millis(percentile(latencies, 90)),
+              millis(percentile(latencies, 99)),
+              millis(percentile(latencies, 99.9)),
+              millis(percentile(latencies, 100))));
+    }
+    for (Map.Entry<String, Recorder> entry : recorders.entrySet()) {
+      Map<String, Integer> errors = entry.getValue().errors;
+      if (!errors.isEmpty()) {
+        report.append(entry.getKey()).append(" errors by status: ").append(errors).append('\n');
+      }
+    }
+    return report.toString();
+  }
+
+  /** @return the nearest rank percentile of the sorted values, or 0 if there are none. */
+  static long percentile(long[] sorted, double percentile) {
+    if (sorted.length == 0) {
+      return 0;
+    }
+    int rank = (int) Math.ceil(percentile / 100 * sorted.length);
+    return sorted[Math.min(sorted.length, Math.max(1, rank)) - 1];
+  }
+
+  private static double millis(long nanos) {
+    return nanos / 1e6;
+  }
+
+  private String pickEndpoint() {
+    int pick = ThreadLocalRandom.current().nextInt(totalWeight);
+    for (Map.Entry<String, Integer> entry : mix.entrySet()) {
+      pick -= entry.getValue();
+      if (pick < 0) {
+        return entry.getKey();
+      }
+    }
+    throw new IllegalStateException("The weights changed.");
+  }
+
+  /** @return the status of the response, or -1 if there was none. */
+  private int sendTo(String endpoint) {
+    String container = containers.get(ThreadLocalRandom.current().nextInt(containers.size()));
+    String userId = "load-user-" + ThreadLocalRandom.current().nextInt(10);
+    try {
+      switch (endpoint) {
+        case "create":
+          String name = "load-" + run + "-new-" + created.incrementAndGet();
+          return send("PUT", "/create", "{\"name\":\"" + name + "\"}");
+        case "read":
+          return send("GET", "/read", null);
+        case "sign":
+          return send(
+              "POST",
+              "/sign",
+              "{\"name\":\"" + container + "\",\"userId\":\"" + userId + "\"}");
+        case "verify":
+          return send("GET", "/verify?name=" + encode(container), null);
+        case "download":
+          return send("GET", "/download?name=" + encode(container), null);
+        case "delete":
+          return send(
+              "DELETE", "/delete?name=" + encode(container) + "&userId=" + encode(userId), null);
+        default:
+          throw new IllegalArgumentException("Unknown endpoint: " + endpoint);
+      }
+    } catch (IOException e) {
+      return -1;
+    }
+  }
+
+  /** Sends the request and reads the whole response, so the connection can be reused. */
+  private int send(String method, String path, String json) throws IOException {
+    HttpURLConnection connection = (HttpURLConnection) new URL(url + path).openConnection();
+    connection.setRequestMethod(method);
+    connection.setConnectTimeout(timeoutMillis);
+    connection.setReadTimeout(timeoutMillis);
+    if (json != null) {
+      connection.setDoOutput(true);
+      connection.setRequestProperty("Content-Type", "application/json");
+      try (OutputStream out = connection.getOutputStream()) {
+        out.write(json.getBytes(StandardCharsets.UTF_8));
+      }
+    }
+    int status = connection.getResponseCode();
+    InputStream body = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+    if (body != null) {
+      try (InputStream in = body) {
+        byte[] buffer = new byte[8192];
+        while (in.read(buffer) >= 0) {
+          // Only the time it takes matters
+        }
+      }
+    }
+    return status;
+  }
+
+  private static String encode(String value) throws IOException {
+    return URLEncoder.encode(value, "UTF-8");
+  }
+
+  /** The latencies and the errors of the requests to one endpoint. */
+  private static class Recorder {
+
+    private long[] latencies = new long[1024];
+    private int count;
+    // Keyed by the status code, or "io" if there was no response
+    private final Map<String, Integer> errors = new TreeMap<>();
+    private volatile long elapsedNanos;
+
+    synchronized void record(int status, long due) {
+      if (count == latencies.length) {
+        latencies = Arrays.copyOf(latencies, count * 2);
+      }
+      latencies[count++] = System.nanoTime() - due;
+      if (status < 0 || status >= 400) {
+        errors.merge(status < 0 ? "io" : Integer.toString(status), 1, Integer::sum);
+      }
+    }
+
+    synchronized long[] sorted() {
+      long[] sorted = Arrays.copyOf(latencies, count);
+      Arrays.sort(sorted);
+      return sorted;
+    }
+
+    synchronized int errorCount() {
+      return errors.values().stream().mapToInt(Integer::intValue).sum();
+    }
+  }
+}
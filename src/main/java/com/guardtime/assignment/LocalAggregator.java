@@ -0,0 +1,359 @@
+package com.guardtime.assignment;
+
+import com.guardtime.ksi.exceptions.KSIException;
+import com.guardtime.ksi.hashing.DataHash;
+import com.guardtime.ksi.hashing.DataHasher;
+import com.guardtime.ksi.hashing.HashAlgorithm;
+import com.guardtime.ksi.pdu.PduVersion;
+import com.guardtime.ksi.service.Future;
+import com.guardtime.ksi.service.client.KSIClientException;
+import com.guardtime.ksi.service.client.KSIServiceCredentials;
+import com.guardtime.ksi.service.client.KSISigningClient;
+import com.guardtime.ksi.service.client.ServiceCredentials;
+import com.guardtime.ksi.tlv.TLVElement;
+import com.guardtime.ksi.tlv.TLVInputStream;
+import com.guardtime.ksi.tlv.TLVParserException;
+import com.guardtime.ksi.util.Util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongSupplier;
+
+/**
+ * Stand-in for the KSI aggregator that answers the aggregation requests in the same process, so
+ * the service can be tested, benchmarked and load tested without credentials or network. The
+ * responses are structurally valid: they are authenticated with the login key and carry an
+ * aggregation hash chain from the requested hash and a calendar hash chain, so the signatures pass
+ * the internal verification policy. They are not anchored to the real calendar, so the key based
+ * and publication based policies reject them.
+ *
+ * <p>How the aggregator behaves is configurable: how long it takes to answer, how often it fails,
+ * the highest level of a request it accepts and how many requests it accepts per round.
+ */
+class LocalAggregator implements KSISigningClient {
+
+  private static final int AGGREGATION_REQUEST = 0x220;
+  private static final int AGGREGATION_RESPONSE = 0x221;
+  private static final int HEADER = 0x01;
+  private static final int AGGREGATION_PAYLOAD = 0x02;
+  private static final int CONFIGURATION_PAYLOAD = 0x04;
+  private static final int MAC = 0x1F;
+  private static final int AGGREGATION_CHAIN = 0x801;
+  private static final int CALENDAR_CHAIN = 0x802;
+  private static final int LEFT_LINK = 0x07;
+  private static final int RIGHT_LINK = 0x08;
+
+  // Status codes of the aggregation responses
+  private static final int OK = 0;
+  private static final int LEVEL_TOO_LARGE = 0x0104;
+  private static final int TOO_MANY_REQUESTS = 0x0106;
+  private static final int INTERNAL_ERROR = 0x0200;
+
+  private static final HashAlgorithm ALGORITHM = HashAlgorithm.SHA2_256;
+  // Stands in for the rest of the aggregation tree the requested hash is aggregated with
+  private static final DataHash SIBLING =
+      new DataHasher(ALGORITHM).addData("local".getBytes(StandardCharsets.UTF_8)).getHash();
+
+  private final ServiceCredentials credentials;
+  private final LongSupplier latency;
+  private final double errorRate;
+  private final long maxLevel;
+  private final int maxRequests;
+  private final long roundMillis;
+  private final ScheduledExecutorService responder;
+
+  // The round that is being filled and how many requests it has, guarded by this
+  private long round;
+  private int requestsInRound;
+
+  /**
+   * @param credentials the responses are authenticated with.
+   * @param latency gives how many milliseconds each response is delayed by.
+   * @param errorRate the share of requests that are answered with an error, from 0 to 1.
+   * @param maxLevel the highest level of a request that is accepted.
+   * @param maxRequests how many requests are accepted per round, 0 for no limit.
+   * @param roundMillis how long a round is.
+   */
+  LocalAggregator(
+      ServiceCredentials credentials,
+      LongSupplier latency,
+      double errorRate,
+      long maxLevel,
+      int maxRequests,
+      long roundMillis) {
+    this.credentials = credentials;
+    this.latency = latency;
+    this.errorRate = errorRate;
+    this.maxLevel = maxLevel;
+    this.maxRequests = maxRequests;
+    this.roundMillis = Math.max(1, roundMillis);
+    AtomicInteger count = new AtomicInteger();
+    this.responder =
+        Executors.newScheduledThreadPool(
+            2,
+            runnable -> {
+              Thread thread = new Thread(runnable, "local-aggregator-" + count.incrementAndGet());
+              thread.setDaemon(true);
+              return thread;
+            });
+  }
+
+  /** An aggregator that answers every request at once. */
+  LocalAggregator() {
+    this(new KSIServiceCredentials("anon", "anon"), () -> 0, 0, 255, 0, 1000);
+  }
+
+  /**
+   * Creates an aggregator configured with the system properties {@code local.aggregator.latency}
+   * (see {@link #parseLatency(String)}, {@code fixed:0} by default), {@code
+   * local.aggregator.error.rate} (0 by default), {@code local.aggregator.max.level} (255 by
+   * default), {@code local.aggregator.max.requests} (no limit by default) and {@code
+   * local.aggregator.round.ms} (1000 by default). The responses are authenticated with {@code
+   * ksi.login.id} and {@code ksi.login.key} if they are given.
+   */
+  static LocalAggregator fromSystemProperties() {
+    return new LocalAggregator(
+        new KSIServiceCredentials(
+            System.getProperty("ksi.login.id", "anon"),
+            System.getProperty("ksi.login.key", "anon")),
+        parseLatency(System.getProperty("local.aggregator.latency", "fixed:0")),
+        Double.parseDouble(System.getProperty("local.aggregator.error.rate", "0")),
+        Long.getLong("local.aggregator.max.level", 255),
+        Integer.getInteger("local.aggregator.max.requests", 0),
+        Long.getLong("local.aggregator.round.ms", 1000));
+  }
+
+  /**
+   * Parses a latency distribution, in milliseconds: {@code fixed:<ms>}, {@code
+   * uniform:<min>-<max>}, {@code exponential:<mean>} or {@code normal:<mean>,<deviation>}. Normal
+   * latencies below zero are taken as zero.
+   *
+   * @return gives the latency of the next response.
+   * @throws IllegalArgumentException if the distribution is not one of these.
+   */
+  static LongSupplier parseLatency(String distribution) {
+    int colon = distribution.indexOf(':');
+    String type = colon < 0 ? distribution : distribution.substring(0, colon);
+    String[] values = distribution.substring(colon + 1).split("[-,]");
+    try {
+      switch (type) {
+        case "fixed":
+          long fixed = Long.parseLong(values[0]);
+          return () -> fixed;
+        case "uniform":
+          long min = Long.parseLong(values[0]);
+          long max = Long.parseLong(values[1]);
+          return () -> ThreadLocalRandom.current().nextLong(min, max + 1);
+        case "exponential":
+          double mean = Double.parseDouble(values[0]);
+          return () -> Math.round(-mean * Math.log(1 - ThreadLocalRandom.current().nextDouble()));
+        case "normal":
+          double average = Double.parseDouble(values[0]);
+          double deviation = Double.parseDouble(values[1]);
+          return () ->
+              Math.max(
+                  0, Math.round(average + deviation * ThreadLocalRandom.current().nextGaussian()));
+        default:
+          break;
+      }
+    } catch (RuntimeException e) {
+      throw new IllegalArgumentException("Invalid latency: " + distribution, e);
+    }
+    throw new IllegalArgumentException("Unknown latency distribution: " + distribution);
+  }
+
+  @Override
+  public Future<TLVElement> sign(InputStream request) throws KSIClientException {
+    TLVElement response;
+    try {
+      response = respond(new TLVInputStream(request).readElement());
+    } catch (IOException | KSIException e) {
+      throw new KSIClientException("Could not answer the aggregation request.", e);
+    }
+    CompletableFuture<TLVElement> result = new CompletableFuture<>();
+    long delay = latency.getAsLong();
+    if (delay > 0) {
+      responder.schedule(() -> result.complete(response), delay, TimeUnit.MILLISECONDS);
+    } else {
+      result.complete(response);
+    }
+    return new Future<TLVElement>() {
+      @Override
+      public TLVElement getResult() throws KSIException {
+        try {
+          return result.get();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new KSIClientException("Interrupted while waiting for the response.", e);
+        } catch (ExecutionException e) {
+          throw new KSIClientException("Could not answer the aggregation request.", e.getCause());
+        }
+      }
+
+      @Override
+      public boolean isFinished() {
+        return result.isDone();
+      }
+    };
+  }
+
+  @Override
+  public ServiceCredentials getServiceCredentials() {
+    return credentials;
+  }
+
+  @Override
+  public PduVersion getPduVersion() {
+    return PduVersion.V2;
+  }
+
+  @Override
+  public void close() {
+    responder.shutdownNow();
+  }
+
+  private TLVElement respond(TLVElement request) throws KSIException {
+    if (request.getType() != AGGREGATION_REQUEST) {
+      throw new KSIClientException("Not an aggregation request: " + request.getType());
+    }
+    TLVElement payload;
+    if (request.getFirstChildElement(CONFIGURATION_PAYLOAD) != null) {
+      payload = configuration();
+    } else {
+      payload = aggregation(request.getFirstChildElement(AGGREGATION_PAYLOAD));
+    }
+
+    TLVElement header = new TLVElement(false, false, HEADER);
+    header.addChildElement(TLVElement.create(0x01, credentials.getLoginId()));
+    TLVElement response = new TLVElement(false, false, AGGREGATION_RESPONSE);
+    response.addChildElement(header);
+    response.addChildElement(payload);
+    authenticate(response);
+    return response;
+  }
+
+  private TLVElement aggregation(TLVElement request) throws KSIException {
+    if (request == null) {
+      throw new KSIClientException("The aggregation request has no payload.");
+    }
+    long requestId = request.getFirstChildElement(0x01).getDecodedLong();
+    DataHash hash = request.getFirstChildElement(0x02).getDecodedDataHash();
+    TLVElement levelElement = request.getFirstChildElement(0x03);
+    long level = levelElement == null ? 0 : levelElement.getDecodedLong();
+
+    TLVElement payload = new TLVElement(false, false, AGGREGATION_PAYLOAD);
+    payload.addChildElement(TLVElement.create(0x01, requestId));
+    if (level > maxLevel) {
+      return error(payload, LEVEL_TOO_LARGE, "The level of the request is too large.");
+    }
+    if (!admit()) {
+      return error(payload, TOO_MANY_REQUESTS, "The round has too many requests.");
+    }
+    if (errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate) {
+      return error(payload, INTERNAL_ERROR, "The local aggregator failed on purpose.");
+    }
+
+    long time = System.currentTimeMillis() / 1000;
+    payload.addChildElement(TLVElement.create(0x04, OK));
+    payload.addChildElement(aggregationChain(hash, time));
+    payload.addChildElement(calendarChain(aggregationOutput(hash, level), time));
+    return payload;
+  }
+
+  private TLVElement configuration() throws TLVParserException {
+    TLVElement payload = new TLVElement(false, false, CONFIGURATION_PAYLOAD);
+    payload.addChildElement(TLVElement.create(0x01, maxLevel));
+    payload.addChildElement(TLVElement.create(0x02, ALGORITHM));
+    payload.addChildElement(TLVElement.create(0x03, roundMillis));
+    if (maxRequests > 0) {
+      payload.addChildElement(TLVElement.create(0x04, maxRequests));
+    }
+    return payload;
+  }
+
+  /** @return whether the round the request arrived in has room for it. */
+  private synchronized boolean admit() {
+    if (maxRequests <= 0) {
+      return true;
+    }
+    long current = System.currentTimeMillis() / roundMillis;
+    if (current != round) {
+      round = current;
+      requestsInRound = 0;
+    }
+    return ++requestsInRound <= maxRequests;
+  }
+
+  private static TLVElement error(TLVElement payload, int status, String message)
+      throws TLVParserException {
+    payload.addChildElement(TLVElement.create(0x04, status));
+    payload.addChildElement(TLVElement.create(0x05, message));
+    return payload;
+  }
+
+  /** @return a chain of one link that aggregates the hash with a sibling up to the round root. */
+  private static TLVElement aggregationChain(DataHash hash, long time) throws TLVParserException {
+    TLVElement chain = new TLVElement(false, false, AGGREGATION_CHAIN);
+    chain.addChildElement(TLVElement.create(0x02, time));
+    // The input hash is the left child of the only link
+    chain.addChildElement(TLVElement.create(0x03, 3));
+    chain.addChildElement(TLVElement.create(0x05, hash));
+    chain.addChildElement(TLVElement.create(0x06, ALGORITHM));
+    TLVElement link = new TLVElement(false, false, LEFT_LINK);
+    link.addChildElement(TLVElement.create(0x02, SIBLING));
+    chain.addChildElement(link);
+    return chain;
+  }
+
+  /** @return the root the chain ends in, the level of the link is one above the input level. */
+  private static DataHash aggregationOutput(DataHash input, long level) {
+    return new DataHasher(ALGORITHM)
+        .addData(input.getImprint())
+        .addData(SIBLING.getImprint())
+        .addData(new byte[] {(byte) (level + 1)})
+        .getHash();
+  }
+
+  /**
+   * @return a calendar chain published at the aggregation time, shaped so that the registration
+   *     time calculated from its links is the same time.
+   */
+  private static TLVElement calendarChain(DataHash input, long time) throws TLVParserException {
+    TLVElement chain = new TLVElement(false, false, CALENDAR_CHAIN);
+    chain.addChildElement(TLVElement.create(0x01, time));
+    chain.addChildElement(TLVElement.create(0x02, time));
+    chain.addChildElement(TLVElement.create(0x05, input));
+    for (int i = Long.bitCount(time); i > 0; i--) {
+      chain.addChildElement(TLVElement.create(RIGHT_LINK, SIBLING));
+    }
+    return chain;
+  }
+
+  /** Adds the HMAC of the message, calculated over everything that precedes the digest. */
+  private void authenticate(TLVElement response) throws KSIException {
+    HashAlgorithm algorithm = credentials.getHmacAlgorithm();
+    response.addChildElement(
+        TLVElement.create(MAC, new DataHash(algorithm, new byte[algorithm.getLength()])));
+    byte[] encoded = response.getEncoded();
+    byte[] mac;
+    try {
+      mac =
+          Util.calculateHMAC(
+              Arrays.copyOf(encoded, encoded.length - algorithm.getLength()),
+              credentials.getLoginKey(),
+              algorithm.getName());
+    } catch (Exception e) {
+      throw new KSIClientException("Could not authenticate the response.", e);
+    }
+    response.getFirstChildElement(MAC).setDataHashContent(new DataHash(algorithm, mac));
+  }
+}
@@ -1,5 +1,6 @@
 package com.guardtime.assignment;
 
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
 import com.sun.net.httpserver.HttpServer;
@@ -10,6 +11,8 @@ import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.net.InetSocketAddress;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * The main class that deals with all the web logic.
@@ -18,99 +21,274 @@ public class Main {
 
   public static void main(String[] args) throws IOException {
     ContainerApi containerAPI = new ContainerApi();
+    containerAPI.recoverSigningJobs();
 
     int serverPort = 1234;
     HttpServer server = HttpServer.create(new InetSocketAddress(serverPort), 0);
+    // Which threads the requests run on and how many of each endpoint may run at once
+    ServerExecution execution = ServerExecution.fromSystemProperties();
+    int processors = Runtime.getRuntime().availableProcessors();
     server.createContext(
         "/create",
-        (exchange -> {
-          if ("PUT".equals(exchange.getRequestMethod())) {
-
-            InputStream inputStream = exchange.getRequestBody();
-            JsonParser jsonParser = new JsonParser();
-            JsonObject jsonObject =
-                (JsonObject)
-                    jsonParser.parse(new InputStreamReader(inputStream, StandardCharsets.UTF_8));
-
-            String fileName = jsonObject.get("name").getAsString();
-            String response = containerAPI.createContainer(fileName);
-            int statusCode = response.length() < 1 ? 201 : 409;
-            exchange.sendResponseHeaders(statusCode, response.getBytes().length);
-            OutputStream output = exchange.getResponseBody();
-            output.write(response.getBytes());
-            output.flush();
-          } else {
-            exchange.sendResponseHeaders(405, -1); // 405 Method Not Allowed
-          }
-          exchange.close();
-        }));
+        execution.limit(
+            "create",
+            processors,
+            exchange -> {
+              if ("PUT".equals(exchange.getRequestMethod())) {
+
+                InputStream inputStream = exchange.getRequestBody();
+                String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+                String response;
+                if (contentType == null || contentType.startsWith("application/json")) {
+                  JsonParser jsonParser = new JsonParser();
+                  JsonObject jsonObject =
+                      (JsonObject)
+                          jsonParser.parse(
+                              new InputStreamReader(inputStream, StandardCharsets.UTF_8));
+
+                  String fileName = jsonObject.get("name").getAsString();
+                  response = containerAPI.createContainer(fileName);
+                } else {
+                  // The datafiles are uploaded in the body, the name is given in the query
+                  String query = exchange.getRequestURI().getQuery();
+                  String fileName = query == null ? null : getQueryParameterValue(query, "name");
+                  response = containerAPI.createContainer(fileName, contentType, inputStream);
+                }
+                int statusCode = response.length() < 1 ? 201 : 409;
+                exchange.sendResponseHeaders(statusCode, response.getBytes().length);
+                OutputStream output = exchange.getResponseBody();
+                output.write(response.getBytes());
+                output.flush();
+              } else {
+                exchange.sendResponseHeaders(405, -1); // 405 Method Not Allowed
+              }
+              exchange.close();
+            }));
 
     server.createContext(
         "/read",
-        (exchange -> {
-          if ("GET".equals(exchange.getRequestMethod())) {
-            String response = containerAPI.readContainers();
-            int statusCode = 200;
-            exchange.sendResponseHeaders(statusCode, response.getBytes().length);
-            OutputStream output = exchange.getResponseBody();
-            output.write(response.getBytes());
-            output.flush();
-          } else {
-            exchange.sendResponseHeaders(405, -1); // 405 Method Not Allowed
-          }
-          exchange.close();
-        }));
+        execution.limit(
+            "read",
+            0,
+            exchange -> {
+              if ("GET".equals(exchange.getRequestMethod())) {
+                // The listing is streamed by the API, only errors are left to be answered here
+                String response = containerAPI.readContainers(exchange);
+                if (response.length() > 0) {
+                  byte[] bytes = response.getBytes(StandardCharsets.UTF_8);
+                  exchange.sendResponseHeaders(409, bytes.length);
+                  OutputStream output = exchange.getResponseBody();
+                  output.write(bytes);
+                  output.flush();
+                }
+              } else {
+                exchange.sendResponseHeaders(405, -1); // 405 Method Not Allowed
+              }
+              exchange.close();
+            }));
+
+    server.createContext(
+        "/download",
+        execution.limit(
+            "download",
+            32,
+            exchange -> {
+              String method = exchange.getRequestMethod();
+              if ("GET".equals(method) || "HEAD".equals(method)) {
+
+                String query = exchange.getRequestURI().getQuery();
+                String name = query == null ? null : getQueryParameterValue(query, "name");
+
+                // The container is sent by the API, only errors are left to be answered here
+                String response = containerAPI.download(name, exchange);
+                if (response.length() > 0) {
+                  exchange.sendResponseHeaders(409, response.getBytes().length);
+                  OutputStream output = exchange.getResponseBody();
+                  output.write(response.getBytes());
+                  output.flush();
+                }
+              } else {
+                exchange.sendResponseHeaders(405, -1); // 405 Method Not Allowed
+              }
+              exchange.close();
+            }));
+
+    server.createContext(
+        "/verify",
+        execution.limit(
+            "verify",
+            processors,
+            exchange -> {
+              if ("GET".equals(exchange.getRequestMethod())) {
+
+                String query = exchange.getRequestURI().getQuery();
+                String name = query == null ? null : getQueryParameterValue(query, "name");
+
+                String response = containerAPI.verify(name);
+                JsonObject responseObject = (JsonObject) new JsonParser().parse(response);
+                int statusCode = responseObject.has("Error") ? 409 : 200;
+                exchange.sendResponseHeaders(statusCode, response.getBytes().length);
+                OutputStream output = exchange.getResponseBody();
+                output.write(response.getBytes());
+                output.flush();
+              } else {
+                exchange.sendResponseHeaders(405, -1); // 405 Method Not Allowed
+              }
+              exchange.close();
+            }));
 
     server.createContext(
         "/sign",
-        (exchange -> {
-          if ("POST".equals(exchange.getRequestMethod())) {
-
-            InputStream inputStream = exchange.getRequestBody();
-            JsonParser jsonParser = new JsonParser();
-            JsonObject jsonObject =
-                (JsonObject)
-                    jsonParser.parse(new InputStreamReader(inputStream, StandardCharsets.UTF_8));
-
-            String fileName = jsonObject.get("name").getAsString();
-            String userId = jsonObject.get("userId").getAsString();
-            String response = containerAPI.sign(fileName, userId);
-            int statusCode = response.length() < 1 ? 201 : 409;
-            exchange.sendResponseHeaders(statusCode, response.getBytes().length);
-            OutputStream output = exchange.getResponseBody();
-            output.write(response.getBytes());
-            output.flush();
-          } else {
-            exchange.sendResponseHeaders(405, -1); // 405 Method Not Allowed
-          }
-          exchange.close();
-        }));
+        execution.limit(
+            "sign",
+            64,
+            exchange -> {
+              if ("POST".equals(exchange.getRequestMethod())) {
+
+                InputStream inputStream = exchange.getRequestBody();
+                JsonParser jsonParser = new JsonParser();
+                JsonObject jsonObject =
+                    (JsonObject)
+                        jsonParser.parse(
+                            new InputStreamReader(inputStream, StandardCharsets.UTF_8));
+
+                String fileName = jsonObject.get("name").getAsString();
+                String userId = jsonObject.get("userId").getAsString();
+                String query = exchange.getRequestURI().getQuery();
+                String response;
+                int statusCode;
+                if (query != null && "true".equals(getQueryParameterValue(query, "async"))) {
+                  // Answered as soon as the job is queued, its status is read from /jobs/{id}
+                  response = containerAPI.signAsync(fileName, userId);
+                  JsonObject responseObject = (JsonObject) jsonParser.parse(response);
+                  statusCode = responseObject.has("Error") ? 409 : 202;
+                } else {
+                  response = containerAPI.sign(fileName, userId);
+                  statusCode = response.length() < 1 ? 201 : 409;
+                }
+                exchange.sendResponseHeaders(statusCode, response.getBytes().length);
+                OutputStream output = exchange.getResponseBody();
+                output.write(response.getBytes());
+                output.flush();
+              } else {
+                exchange.sendResponseHeaders(405, -1); // 405 Method Not Allowed
+              }
+              exchange.close();
+            }));
+
+    server.createContext(
+        "/sign/bulk",
+        execution.limit(
+            "bulk",
+            4,
+            exchange -> {
+              if ("POST".equals(exchange.getRequestMethod())) {
+
+                InputStream inputStream = exchange.getRequestBody();
+                JsonParser jsonParser = new JsonParser();
+                JsonObject jsonObject =
+                    (JsonObject)
+                        jsonParser.parse(
+                            new InputStreamReader(inputStream, StandardCharsets.UTF_8));
+
+                List<String> fileNames = new ArrayList<>();
+                if (jsonObject.has("names")) {
+                  for (JsonElement name : jsonObject.getAsJsonArray("names")) {
+                    fileNames.add(name.isJsonNull() ? null : name.getAsString());
+                  }
+                }
+                String userId = jsonObject.get("userId").getAsString();
+                String response = containerAPI.signBulk(fileNames, userId);
+                JsonObject responseObject = (JsonObject) jsonParser.parse(response);
+                int statusCode = responseObject.has("Error") ? 409 : 200;
+                exchange.sendResponseHeaders(statusCode, response.getBytes().length);
+                OutputStream output = exchange.getResponseBody();
+                output.write(response.getBytes());
+                output.flush();
+              } else {
+                exchange.sendResponseHeaders(405, -1); // 405 Method Not Allowed
+              }
+              exchange.close();
+            }));
+
+    server.createContext(
+        "/jobs/",
+        execution.limit(
+            "jobs",
+            0,
+            exchange -> {
+              if ("GET".equals(exchange.getRequestMethod())) {
+                String jobId = exchange.getRequestURI().getPath().substring("/jobs/".length());
+                String response = containerAPI.readJob(jobId);
+                if (response.length() < 1) {
+                  exchange.sendResponseHeaders(404, -1);
+                } else {
+                  exchange.sendResponseHeaders(200, response.getBytes().length);
+                  OutputStream output = exchange.getResponseBody();
+                  output.write(response.getBytes());
+                  output.flush();
+                }
+              } else {
+                exchange.sendResponseHeaders(405, -1); // 405 Method Not Allowed
+              }
+              exchange.close();
+            }));
 
     server.createContext(
         "/delete",
-        (exchange -> {
-          if ("DELETE".equals(exchange.getRequestMethod())) {
+        execution.limit(
+            "delete",
+            processors,
+            exchange -> {
+              if ("DELETE".equals(exchange.getRequestMethod())) {
 
-            String query = exchange.getRequestURI().getQuery();
+                String query = exchange.getRequestURI().getQuery();
 
-            String name = getQueryParameterValue(query, "name");
-            String userId = getQueryParameterValue(query, "userId");
+                String name = getQueryParameterValue(query, "name");
+                String userId = getQueryParameterValue(query, "userId");
 
-            String response = containerAPI.delete(name, userId);
+                String response = containerAPI.delete(name, userId);
 
-            int statusCode = response.length() < 1 ? 201 : 409;
-            exchange.sendResponseHeaders(statusCode, response.getBytes().length);
-            OutputStream output = exchange.getResponseBody();
-            output.write(response.getBytes());
-            output.flush();
-          } else {
-            exchange.sendResponseHeaders(405, -1); // 405 Method Not Allowed
-          }
-          exchange.close();
-        }));
+                int statusCode = response.length() < 1 ? 201 : 409;
+                exchange.sendResponseHeaders(statusCode, response.getBytes().length);
+                OutputStream output = exchange.getResponseBody();
+                output.write(response.getBytes());
+                output.flush();
+              } else {
+                exchange.sendResponseHeaders(405, -1); // 405 Method Not Allowed
+              }
+              exchange.close();
+            }));
+
+    server.createContext(
+        "/metrics",
+        execution.limit(
+            "metrics",
+            0,
+            exchange -> {
+              if ("GET".equals(exchange.getRequestMethod())) {
+                byte[] response = Metrics.REGISTRY.scrape().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4");
+                exchange.sendResponseHeaders(200, response.length);
+                OutputStream output = exchange.getResponseBody();
+                output.write(response);
+                output.flush();
+              } else {
+                exchange.sendResponseHeaders(405, -1); // 405 Method Not Allowed
+              }
+              exchange.close();
+            }));
 
-    server.setExecutor(null); // creates a default executor
+    server.setExecutor(execution.executor());
     server.start();
+    Runtime.getRuntime()
+        .addShutdownHook(
+            new Thread(
+                () -> {
+                  server.stop(1);
+                  containerAPI.close();
+                },
+                "shutdown"));
   }
 
   /**
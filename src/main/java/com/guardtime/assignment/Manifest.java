@@ -0,0 +1,347 @@
+package com.guardtime.assignment;
+
+import com.guardtime.ksi.hashing.DataHash;
+import com.guardtime.ksi.hashing.DataHasher;
+import com.guardtime.ksi.hashing.HashAlgorithm;
+import com.guardtime.ksi.util.Base16;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The manifest of a signature, i.e. the datafiles of the container with their hashes and the
+ * signature that signs them. It is encoded in the TLV format of KSI, so it can be read with the TLV
+ * parser of the KSI SDK, as a sequence of elements:
+ *
+ * <pre>
+ *   0x01 datafile, once for each datafile
+ *     0x01 uri, a UTF-8 string ending with a zero byte
+ *     0x02 imprint, the id of the hash algorithm followed by the raw hash
+ *   0x02 signature uri, a UTF-8 string ending with a zero byte
+ * </pre>
+ *
+ * <p>The manifest is written element by element and hashed while it is written, and read element
+ * by element, so neither needs the whole manifest in memory. Manifests written as text lines by
+ * earlier versions can still be read.
+ */
+class Manifest implements ZipWriter.EntryContent {
+
+  static final String PREFIX = "META-INF/manifest";
+  static final String EXTENSION = ".tlv";
+
+  private static final int DATAFILE = 0x01;
+  private static final int DATAFILE_URI = 0x01;
+  private static final int DATAFILE_IMPRINT = 0x02;
+  private static final int SIGNATURE_URI = 0x02;
+
+  private static final int FLAG_TLV16 = 0x80;
+  private static final int FLAG_NON_CRITICAL = 0x40;
+  private static final int MAX_TLV8_LENGTH = 0xFF;
+  private static final int MAX_TLV16_LENGTH = 0xFFFF;
+  private static final HashAlgorithm HASH_ALGORITHM = HashAlgorithm.SHA2_256;
+
+  private final List<MetaData> datafiles;
+  private final String signatureUri;
+  private DataHash hash;
+
+  /**
+   * @param datafiles metadata of the datafiles to be signed.
+   * @param signatureNumber of the signature the manifest is for.
+   */
+  Manifest(List<MetaData> datafiles, int signatureNumber) {
+    this.datafiles = datafiles;
+    this.signatureUri = "META-INF/signature" + signatureNumber + ".ksi";
+  }
+
+  /** @return name of the manifest entry of the signature. */
+  static String entryName(int signatureNumber) {
+    return PREFIX + signatureNumber + EXTENSION;
+  }
+
+  /** @return whether the entry is a manifest. */
+  static boolean isManifest(String entryName) {
+    return entryName.startsWith(PREFIX) && entryName.endsWith(EXTENSION);
+  }
+
+  /** Encodes the manifest, hashing the bytes as they are written. */
+  @Override
+  public void writeTo(OutputStream out) throws IOException {
+    DataHasher dataHasher = new DataHasher(HASH_ALGORITHM);
+    byte[] element = new byte[256];
+    for (MetaData datafile : datafiles) {
+      byte[] uri = string(datafile.getUri());
+      byte[] imprint =
+          new DataHash(
+                  HashAlgorithm.getByName(datafile.getHashAlgorithm()),
+                  Base16.decode(datafile.getHash()))
+              .getImprint();
+      int uriLength = headerLength(uri.length) + uri.length;
+      int contentLength = uriLength + headerLength(imprint.length) + imprint.length;
+      int length = headerLength(contentLength) + contentLength;
+      if (element.length < length) {
+        element = new byte[Math.max(length, 2 * element.length)];
+      }
+      int position = header(element, 0, DATAFILE, contentLength);
+      position = header(element, position, DATAFILE_URI, uri.length);
+      System.arraycopy(uri, 0, element, position, uri.length);
+      position = header(element, position + uri.length, DATAFILE_IMPRINT, imprint.length);
+      System.arraycopy(imprint, 0, element, position, imprint.length);
+      out.write(element, 0, length);
+      dataHasher.addData(element, 0, length);
+    }
+    byte[] uri = string(signatureUri);
+    int position = header(element, 0, SIGNATURE_URI, uri.length);
+    out.write(element, 0, position);
+    out.write(uri);
+    dataHasher.addData(element, 0, position);
+    dataHasher.addData(uri);
+    hash = dataHasher.getHash();
+  }
+
+  /** @return the hash of the encoded manifest, which is what the signature signs. */
+  DataHash getHash() throws IOException {
+    if (hash == null) {
+      writeTo(
+          new OutputStream() {
+            @Override
+            public void write(int b) {}
+
+            @Override
+            public void write(byte[] b, int off, int len) {}
+          });
+    }
+    return hash;
+  }
+
+  /**
+   * Reads a manifest element by element, hashing the bytes as they are read.
+   *
+   * @param in the content of the manifest entry.
+   * @param handler is given the elements as they are read.
+   * @return the hash of the manifest.
+   * @throws MalformedManifestException if the content is not a manifest.
+   */
+  static DataHash read(InputStream in, Handler handler) throws IOException {
+    HashingInputStream hashing = new HashingInputStream(in);
+    PushbackInputStream content =
+        new PushbackInputStream(new BufferedInputStream(hashing, 8192), 1);
+    int first = content.read();
+    if (first >= 0) {
+      content.unread(first);
+    }
+    if (first == 'D' || first == 's') {
+      readText(content, handler);
+    } else {
+      readTlv(content, handler);
+    }
+    return hashing.dataHasher.getHash();
+  }
+
+  private static void readTlv(InputStream in, Handler handler) throws IOException {
+    int first;
+    while ((first = in.read()) >= 0) {
+      int type = first & 0x1F;
+      int length;
+      if ((first & FLAG_TLV16) != 0) {
+        type = (type << 8) | readByte(in);
+        length = (readByte(in) << 8) | readByte(in);
+      } else {
+        length = readByte(in);
+      }
+      byte[] content = readFully(in, length);
+      if (type == DATAFILE) {
+        handler.datafile(datafile(content));
+      } else if (type == SIGNATURE_URI) {
+        handler.signatureUri(string(content, 0, content.length));
+      } else if ((first & FLAG_NON_CRITICAL) == 0) {
+        throw new MalformedManifestException("Unknown critical element 0x" + hex(type));
+      }
+    }
+  }
+
+  private static MetaData datafile(byte[] content) throws MalformedManifestException {
+    String uri = null;
+    DataHash imprint = null;
+    int position = 0;
+    while (position < content.length) {
+      int first = content[position++] & 0xFF;
+      int type = first & 0x1F;
+      int length;
+      if ((first & FLAG_TLV16) != 0) {
+        if (position + 3 > content.length) {
+          throw new MalformedManifestException("Datafile element is truncated.");
+        }
+        type = (type << 8) | (content[position] & 0xFF);
+        length = ((content[position + 1] & 0xFF) << 8) | (content[position + 2] & 0xFF);
+        position += 3;
+      } else {
+        if (position + 1 > content.length) {
+          throw new MalformedManifestException("Datafile element is truncated.");
+        }
+        length = content[position++] & 0xFF;
+      }
+      if (position + length > content.length) {
+        throw new MalformedManifestException("Datafile element is truncated.");
+      }
+      if (type == DATAFILE_URI) {
+        uri = string(content, position, length);
+      } else if (type == DATAFILE_IMPRINT) {
+        byte[] bytes = Arrays.copyOfRange(content, position, position + length);
+        if (!DataHash.isDataHash(bytes)) {
+          throw new MalformedManifestException("Datafile imprint is not a hash.");
+        }
+        imprint = new DataHash(bytes);
+      } else if ((first & FLAG_NON_CRITICAL) == 0) {
+        throw new MalformedManifestException("Unknown critical element 0x" + hex(type));
+      }
+      position += length;
+    }
+    if (uri == null || imprint == null) {
+      throw new MalformedManifestException("Datafile element lacks its uri or imprint.");
+    }
+    return new MetaData(uri, imprint.getAlgorithm().getName(), Base16.encode(imprint.getValue()));
+  }
+
+  /** Reads a manifest written as text lines by earlier versions. */
+  private static void readText(InputStream in, Handler handler) throws IOException {
+    BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+    String uri = null;
+    String hashAlgorithm = null;
+    String line;
+    while ((line = reader.readLine()) != null) {
+      String trimmed = line.trim();
+      if (trimmed.startsWith("uri=")) {
+        uri = trimmed.substring("uri=".length());
+      } else if (trimmed.startsWith("hash-algorithm=")) {
+        hashAlgorithm = trimmed.substring("hash-algorithm=".length());
+      } else if (trimmed.startsWith("hash=")) {
+        handler.datafile(new MetaData(uri, hashAlgorithm, trimmed.substring("hash=".length())));
+      } else if (trimmed.startsWith("signature-uri=")) {
+        handler.signatureUri(trimmed.substring("signature-uri=".length()));
+      }
+    }
+  }
+
+  /** @return the header length of an element with content of the given length. */
+  private static int headerLength(int length) {
+    return length > MAX_TLV8_LENGTH ? 4 : 2;
+  }
+
+  /**
+   * Writes the header of a critical element.
+   *
+   * @return the position after the header.
+   */
+  private static int header(byte[] buffer, int position, int type, int length) throws IOException {
+    if (length > MAX_TLV16_LENGTH) {
+      throw new IOException("Manifest element 0x" + hex(type) + " is too long: " + length);
+    }
+    if (length > MAX_TLV8_LENGTH) {
+      buffer[position] = (byte) (FLAG_TLV16 | (type >>> 8));
+      buffer[position + 1] = (byte) type;
+      buffer[position + 2] = (byte) (length >>> 8);
+      buffer[position + 3] = (byte) length;
+      return position + 4;
+    }
+    buffer[position] = (byte) type;
+    buffer[position + 1] = (byte) length;
+    return position + 2;
+  }
+
+  /** @return the string in UTF-8, ending with a zero byte as KSI strings do. */
+  private static byte[] string(String value) {
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    return Arrays.copyOf(bytes, bytes.length + 1);
+  }
+
+  private static String string(byte[] content, int offset, int length)
+      throws MalformedManifestException {
+    if (length == 0 || content[offset + length - 1] != 0) {
+      throw new MalformedManifestException("String does not end with a zero byte.");
+    }
+    return new String(content, offset, length - 1, StandardCharsets.UTF_8);
+  }
+
+  private static int readByte(InputStream in) throws IOException {
+    int b = in.read();
+    if (b < 0) {
+      throw new MalformedManifestException("Manifest ends in the middle of an element.");
+    }
+    return b;
+  }
+
+  private static byte[] readFully(InputStream in, int length) throws IOException {
+    byte[] content = new byte[length];
+    int read = 0;
+    while (read < length) {
+      int count = in.read(content, read, length - read);
+      if (count < 0) {
+        throw new MalformedManifestException("Manifest ends in the middle of an element.");
+      }
+      read += count;
+    }
+    return content;
+  }
+
+  private static String hex(int type) {
+    return Integer.toHexString(type);
+  }
+
+  /** Is given the elements of a manifest as they are read. */
+  interface Handler {
+
+    void datafile(MetaData datafile) throws IOException;
+
+    void signatureUri(String uri) throws IOException;
+  }
+
+  /** Thrown when the content of a manifest entry is not a manifest. */
+  static class MalformedManifestException extends IOException {
+
+    MalformedManifestException(String message) {
+      super(message);
+    }
+  }
+
+  /** Hashes the bytes as they are read. */
+  private static class HashingInputStream extends FilterInputStream {
+
+    private final DataHasher dataHasher = new DataHasher(HASH_ALGORITHM);
+
+    HashingInputStream(InputStream in) {
+      super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = in.read();
+      if (b >= 0) {
+        dataHasher.addData(new byte[] {(byte) b});
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      int read = in.read(b, off, len);
+      if (read > 0) {
+        dataHasher.addData(b, off, read);
+      }
+      return read;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      throw new IOException("Every byte of the manifest has to be hashed.");
+    }
+  }
+}
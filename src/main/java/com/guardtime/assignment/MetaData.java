@@ -1,5 +1,7 @@
 package com.guardtime.assignment;
 
+import java.util.Objects;
+
 /** A class representing a POJO of a single metadata content of a datafile in the manifest file. */
 public class MetaData {
 
@@ -24,4 +26,23 @@ public class MetaData {
   String getHash() {
     return hash;
   }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (!(o instanceof MetaData)) {
+      return false;
+    }
+    MetaData metaData = (MetaData) o;
+    return uri.equals(metaData.uri)
+        && hashAlgorithm.equals(metaData.hashAlgorithm)
+        && hash.equals(metaData.hash);
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(uri, hashAlgorithm, hash);
+  }
 }
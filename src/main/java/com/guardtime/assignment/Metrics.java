@@ -0,0 +1,221 @@
+package com.guardtime.assignment;
+
+import java.math.BigDecimal;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.DoubleSupplier;
+import java.util.function.LongSupplier;
+
+/**
+ * Metrics of the whole process, exposed in the Prometheus text format on {@code GET /metrics}.
+ * Counters and histograms are registered once, when the code that updates them is set up, and are
+ * then updated with plain atomic operations, so recording a value takes no lock and allocates
+ * nothing. Gauges, and counters that are kept elsewhere already, are read through a supplier only
+ * when the metrics are scraped.
+ *
+ * <p>A series is identified by its name and labels. Registering a counter or a histogram again
+ * returns the one registered before, registering a supplier again replaces the one before, so a
+ * component that is created anew reports its own state.
+ */
+final class Metrics {
+
+  /** The metrics of the process. */
+  static final Metrics REGISTRY = new Metrics();
+
+  // Upper bounds of the histogram buckets: 100 microseconds doubled 20 times, up to 105 seconds
+  private static final long[] BOUNDS = new long[21];
+  private static final String[] BOUND_LABELS = new String[BOUNDS.length + 1];
+
+  static {
+    for (int i = 0; i < BOUNDS.length; i++) {
+      BOUNDS[i] = TimeUnit.MICROSECONDS.toNanos(100) << i;
+      BOUND_LABELS[i] = BigDecimal.valueOf(BOUNDS[i], 9).stripTrailingZeros().toPlainString();
+    }
+    BOUND_LABELS[BOUNDS.length] = "+Inf";
+  }
+
+  // Keyed by the metric name, guarded by this
+  private final Map<String, Family> families = new LinkedHashMap<>();
+
+  /**
+   * @param name of the counter, ending in {@code _total}.
+   * @param help describes what is counted.
+   * @param labels names and values of the labels, one after the other.
+   * @return the counter of the series.
+   */
+  synchronized Counter counter(String name, String help, String... labels) {
+    return (Counter) family(name, help, "counter").series.computeIfAbsent(
+        labelText(labels), key -> new Counter());
+  }
+
+  /**
+   * Registers a counter whose value is kept elsewhere.
+   *
+   * @param value gives the count when the metrics are scraped.
+   */
+  synchronized void counter(String name, String help, LongSupplier value, String... labels) {
+    Series series = (out, metric, labelText) -> line(out, metric, labelText, value.getAsLong());
+    family(name, help, "counter").series.put(labelText(labels), series);
+  }
+
+  /**
+   * Registers a gauge.
+   *
+   * @param value gives the current value when the metrics are scraped.
+   */
+  synchronized void gauge(String name, String help, DoubleSupplier value, String... labels) {
+    Series series = (out, metric, labelText) -> line(out, metric, labelText, value.getAsDouble());
+    family(name, help, "gauge").series.put(labelText(labels), series);
+  }
+
+  /**
+   * @param name of the histogram, ending in {@code _seconds}.
+   * @param help describes what is timed.
+   * @param labels names and values of the labels, one after the other.
+   * @return the histogram of durations of the series.
+   */
+  synchronized Histogram histogram(String name, String help, String... labels) {
+    return (Histogram) family(name, help, "histogram").series.computeIfAbsent(
+        labelText(labels), key -> new Histogram());
+  }
+
+  /** @return all the metrics in the Prometheus text format. */
+  synchronized String scrape() {
+    StringBuilder out = new StringBuilder(4096);
+    for (Map.Entry<String, Family> entry : families.entrySet()) {
+      Family family = entry.getValue();
+      out.append("# HELP ").append(entry.getKey()).append(' ').append(family.help).append('\n');
+      out.append("# TYPE ").append(entry.getKey()).append(' ').append(family.type).append('\n');
+      for (Map.Entry<String, Series> series : family.series.entrySet()) {
+        series.getValue().writeTo(out, entry.getKey(), series.getKey());
+      }
+    }
+    return out.toString();
+  }
+
+  private Family family(String name, String help, String type) {
+    Family family = families.computeIfAbsent(name, key -> new Family(help, type));
+    if (!family.type.equals(type)) {
+      throw new IllegalArgumentException(name + " is a " + family.type + ", not a " + type);
+    }
+    return family;
+  }
+
+  /** @return the labels as they are written between the braces. */
+  private static String labelText(String... labels) {
+    if (labels.length % 2 != 0) {
+      throw new IllegalArgumentException("Every label needs a name and a value.");
+    }
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < labels.length; i += 2) {
+      if (i > 0) {
+        text.append(',');
+      }
+      text.append(labels[i]).append("=\"");
+      for (char c : labels[i + 1].toCharArray()) {
+        if (c == '\\' || c == '"') {
+          text.append('\\').append(c);
+        } else if (c == '\n') {
+          text.append("\\n");
+        } else {
+          text.append(c);
+        }
+      }
+      text.append('"');
+    }
+    return text.toString();
+  }
+
+  private static void line(StringBuilder out, String metric, String labelText, Object value) {
+    out.append(metric);
+    if (!labelText.isEmpty()) {
+      out.append('{').append(labelText).append('}');
+    }
+    out.append(' ').append(value).append('\n');
+  }
+
+  /** The series of one metric. */
+  private static class Family {
+
+    private final String help;
+    private final String type;
+    // Keyed by the label text
+    private final Map<String, Series> series = new LinkedHashMap<>();
+
+    Family(String help, String type) {
+      this.help = help;
+      this.type = type;
+    }
+  }
+
+  /** One series of a metric, written when the metrics are scraped. */
+  private interface Series {
+
+    void writeTo(StringBuilder out, String metric, String labelText);
+  }
+
+  /** A count that only grows. */
+  static final class Counter implements Series {
+
+    private final AtomicLong count = new AtomicLong();
+
+    void increment() {
+      count.incrementAndGet();
+    }
+
+    void add(long amount) {
+      count.addAndGet(amount);
+    }
+
+    long get() {
+      return count.get();
+    }
+
+    @Override
+    public void writeTo(StringBuilder out, String metric, String labelText) {
+      line(out, metric, labelText, count.get());
+    }
+  }
+
+  /** Durations counted in to buckets that double in size. */
+  static final class Histogram implements Series {
+
+    // Not cumulative, the last bucket has the durations above every bound
+    private final AtomicLongArray buckets = new AtomicLongArray(BOUNDS.length + 1);
+    private final AtomicLong sumNanos = new AtomicLong();
+
+    /** @param nanos how long the timed thing took. */
+    void recordNanos(long nanos) {
+      int bucket = 0;
+      while (bucket < BOUNDS.length && nanos > BOUNDS[bucket]) {
+        bucket++;
+      }
+      buckets.incrementAndGet(bucket);
+      sumNanos.addAndGet(nanos);
+    }
+
+    /** @return how many durations have been recorded. */
+    long count() {
+      long count = 0;
+      for (int i = 0; i < buckets.length(); i++) {
+        count += buckets.get(i);
+      }
+      return count;
+    }
+
+    @Override
+    public void writeTo(StringBuilder out, String metric, String labelText) {
+      String prefix = labelText.isEmpty() ? "" : labelText + ",";
+      long cumulative = 0;
+      for (int i = 0; i < buckets.length(); i++) {
+        cumulative += buckets.get(i);
+        line(out, metric + "_bucket", prefix + "le=\"" + BOUND_LABELS[i] + "\"", cumulative);
+      }
+      line(out, metric + "_sum", labelText, sumNanos.get() / 1e9);
+      line(out, metric + "_count", labelText, cumulative);
+    }
+  }
+}
@@ -0,0 +1,120 @@
+package com.guardtime.assignment;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * Containers whose datafiles are in the {@link BlobStore}, rendered as whole zip files so they can
+ * be downloaded like any other container, ranges and conditional requests included. A rendering
+ * has the modification time of its container, so it is rendered again only once the container
+ * has changed. Only the renderings of the {@code containers.rendered.max} most recently downloaded
+ * containers are kept, the rest are deleted.
+ */
+class RenderedContainers {
+
+  private final ContainerStore renderings;
+  private final BlobStore blobStore;
+  // Names of the rendered containers, the least recently downloaded first
+  private final Map<String, Path> recent;
+
+  /**
+   * Deletes the renderings left from before.
+   *
+   * @param renderings where the renderings are kept.
+   * @param blobStore the datafiles are read from.
+   * @param max number of renderings kept.
+   */
+  RenderedContainers(ContainerStore renderings, BlobStore blobStore, int max) throws IOException {
+    this.renderings = renderings;
+    this.blobStore = blobStore;
+    this.recent =
+        new LinkedHashMap<String, Path>(16, 0.75f, true) {
+          @Override
+          protected boolean removeEldestEntry(Map.Entry<String, Path> eldest) {
+            if (size() <= max) {
+              return false;
+            }
+            try {
+              Files.deleteIfExists(eldest.getValue());
+            } catch (IOException e) {
+              e.printStackTrace();
+            }
+            return true;
+          }
+        };
+    if (Files.exists(renderings.getRoot())) {
+      try (Stream<Path> paths = Files.walk(renderings.getRoot())) {
+        paths
+            .sorted(Comparator.reverseOrder())
+            .filter(path -> !path.equals(renderings.getRoot()))
+            .forEach(path -> path.toFile().delete());
+      }
+    }
+  }
+
+  /**
+   * Keeps the renderings in {@code .rendered} of the container store, at most {@code
+   * containers.rendered.max} of them, by default 100.
+   */
+  static RenderedContainers fromSystemProperties(ContainerStore containerStore, BlobStore blobStore)
+      throws IOException {
+    Path root = containerStore.getRoot().resolve(".rendered");
+    return new RenderedContainers(
+        new ContainerStore(root, containerStore.getLevels()),
+        blobStore,
+        Integer.getInteger("containers.rendered.max", 100));
+  }
+
+  /**
+   * Renders the container if its datafiles are in the blob store and it has changed since it was
+   * last rendered. The caller makes sure the container does not change meanwhile.
+   *
+   * @param name of the container.
+   * @param container path of the container.
+   * @return the path of the file to be downloaded, the container itself if it has the datafiles.
+   */
+  Path get(String name, Path container) throws IOException {
+    if (!blobStore.exists()) {
+      return container;
+    }
+    Path rendered = renderings.pathOf(name);
+    FileTime modified = Files.getLastModifiedTime(container);
+    if (!Files.exists(rendered) || !Files.getLastModifiedTime(rendered).equals(modified)) {
+      try (ContainerArchive archive = ContainerArchive.openForReading(container, blobStore)) {
+        if (!archive.hasReferencedDatafiles()) {
+          return container;
+        }
+        Files.createDirectories(rendered.getParent());
+        // Downloads of the same container may render it at the same time, the last one wins
+        Path temporary = Files.createTempFile(rendered.getParent(), name, ".tmp");
+        try {
+          try (OutputStream out =
+              new BufferedOutputStream(Files.newOutputStream(temporary), 64 * 1024)) {
+            archive.render(out);
+          }
+          Files.setLastModifiedTime(temporary, modified);
+          Files.move(
+              temporary,
+              rendered,
+              StandardCopyOption.REPLACE_EXISTING,
+              StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+          Files.deleteIfExists(temporary);
+        }
+      }
+    }
+    synchronized (recent) {
+      recent.put(name, rendered);
+    }
+    return rendered;
+  }
+}
@@ -0,0 +1,248 @@
+package com.guardtime.assignment;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decides which threads the requests of the HttpServer run on. Requests are accepted by a bounded
+ * pool of threads, or by a virtual thread per request when running on a JDK that has them. When the
+ * pool and its admission queue are full, requests are answered with 503 straight away instead of
+ * queuing without a limit.
+ *
+ * <p>Endpoints can be given a limit of their own, e.g. {@code -Dserver.limit.sign=32}. Their
+ * requests are handed over to a separate bounded executor, so a burst of slow signing requests can
+ * not take the threads the other endpoints need. When an endpoint's queue is full, its requests are
+ * answered with 429.
+ */
+class ServerExecution {
+
+  // Set while a request is run on the thread that tried to hand it over to the full pool
+  private static final ThreadLocal<Boolean> REJECTED = ThreadLocal.withInitial(() -> false);
+
+  private final boolean virtualThreads;
+  private final Executor executor;
+
+  private ServerExecution(boolean virtualThreads, int threads, int queue) {
+    this.virtualThreads = virtualThreads && virtualThreadFactory("request") != null;
+    if (this.virtualThreads) {
+      ThreadFactory factory = virtualThreadFactory("request");
+      executor = command -> factory.newThread(command).start();
+    } else {
+      if (virtualThreads) {
+        System.err.println("Virtual threads are not available, using a thread pool instead.");
+      }
+      ThreadPoolExecutor requestPool =
+          new ThreadPoolExecutor(
+              threads,
+              threads,
+              60,
+              TimeUnit.SECONDS,
+              new ArrayBlockingQueue<>(Math.max(1, queue)),
+              platformThreadFactory("request"),
+              (command, pool) -> {
+                // Runs the request on the calling thread only to answer it with 503
+                REJECTED.set(true);
+                try {
+                  command.run();
+                } finally {
+                  REJECTED.set(false);
+                }
+              });
+      registerQueueDepth("request", requestPool);
+      executor = requestPool;
+    }
+  }
+
+  /**
+   * Configures the execution from the system properties {@code server.execution} ({@code pool} or
+   * {@code virtual}), {@code server.threads} and {@code server.queue}.
+   */
+  static ServerExecution fromSystemProperties() {
+    int processors = Runtime.getRuntime().availableProcessors();
+    return new ServerExecution(
+        "virtual".equals(System.getProperty("server.execution", "pool")),
+        Integer.getInteger("server.threads", Math.max(4, 2 * processors)),
+        Integer.getInteger("server.queue", 1000));
+  }
+
+  /** @return the executor to be given to the HttpServer. */
+  Executor executor() {
+    return executor;
+  }
+
+  /**
+   * Wraps the handler of an endpoint with admission control. The concurrency of the endpoint is
+   * limited if {@code server.limit.<endpoint>} is set or a default is given, its queue length can
+   * be set with {@code server.limit.<endpoint>.queue}. The time from the arrival of a request
+   * until it was answered, waiting in the queue included, and the status of the answer are recorded
+   * in the {@link Metrics}.
+   *
+   * @param endpoint name of the endpoint, used in the property names.
+   * @param defaultLimit how many requests of the endpoint may run at once if the property is not
+   *     set, 0 for no limit of its own.
+   * @param handler of the endpoint.
+   * @return the handler to be registered for the endpoint.
+   */
+  HttpHandler limit(String endpoint, int defaultLimit, HttpHandler handler) {
+    int limit = Integer.getInteger("server.limit." + endpoint, defaultLimit);
+    int queue = Integer.getInteger("server.limit." + endpoint + ".queue", 100);
+    Executor endpointExecutor = limit > 0 ? endpointExecutor(endpoint, limit, queue) : null;
+    Metrics.Histogram latency =
+        Metrics.REGISTRY.histogram(
+            "http_request_duration_seconds",
+            "Time from the arrival of a request until it was answered.",
+            "endpoint",
+            endpoint);
+    // Indexed by the first digit of the status code, the handlers answer with 2xx to 5xx only
+    Metrics.Counter[] responses = new Metrics.Counter[6];
+    for (int i = 2; i < responses.length; i++) {
+      responses[i] =
+          Metrics.REGISTRY.counter(
+              "http_responses_total",
+              "Responses by endpoint and class of the status code.",
+              "endpoint",
+              endpoint,
+              "code",
+              i + "xx");
+    }
+    Recorder recorder =
+        (exchange, arrivedAt) -> {
+          latency.recordNanos(System.nanoTime() - arrivedAt);
+          int statusClass = exchange.getResponseCode() / 100;
+          if (statusClass >= 2 && statusClass < responses.length) {
+            responses[statusClass].increment();
+          }
+        };
+
+    return exchange -> {
+      long arrivedAt = System.nanoTime();
+      if (REJECTED.get()) {
+        try {
+          reject(exchange, 503, "Server is too busy, try again later.");
+        } finally {
+          recorder.record(exchange, arrivedAt);
+        }
+        return;
+      }
+      if (endpointExecutor == null) {
+        try {
+          handler.handle(exchange);
+        } finally {
+          recorder.record(exchange, arrivedAt);
+        }
+        return;
+      }
+      try {
+        endpointExecutor.execute(
+            () -> {
+              try {
+                handle(handler, exchange);
+              } finally {
+                recorder.record(exchange, arrivedAt);
+              }
+            });
+      } catch (RejectedExecutionException e) {
+        try {
+          reject(exchange, 429, "Too many " + endpoint + " requests, try again later.");
+        } finally {
+          recorder.record(exchange, arrivedAt);
+        }
+      }
+    };
+  }
+
+  private Executor endpointExecutor(String endpoint, int limit, int queue) {
+    ThreadFactory threadFactory =
+        virtualThreads ? virtualThreadFactory(endpoint) : platformThreadFactory(endpoint);
+    ThreadPoolExecutor endpointExecutor =
+        new ThreadPoolExecutor(
+            limit,
+            limit,
+            60,
+            TimeUnit.SECONDS,
+            new ArrayBlockingQueue<>(Math.max(1, queue)),
+            threadFactory,
+            new ThreadPoolExecutor.AbortPolicy());
+    endpointExecutor.allowCoreThreadTimeOut(true);
+    registerQueueDepth(endpoint, endpointExecutor);
+    return endpointExecutor;
+  }
+
+  private static void registerQueueDepth(String name, ThreadPoolExecutor executor) {
+    Metrics.REGISTRY.gauge(
+        "server_queue_depth",
+        "Requests waiting for a thread of the executor.",
+        () -> executor.getQueue().size(),
+        "executor",
+        name);
+    Metrics.REGISTRY.gauge(
+        "server_active_threads",
+        "Threads of the executor running a request.",
+        executor::getActiveCount,
+        "executor",
+        name);
+  }
+
+  /** Runs the handler on an endpoint thread, where the HttpServer can not catch its errors. */
+  private static void handle(HttpHandler handler, HttpExchange exchange) {
+    try {
+      handler.handle(exchange);
+    } catch (Exception e) {
+      e.printStackTrace();
+      exchange.close();
+    }
+  }
+
+  private static void reject(HttpExchange exchange, int statusCode, String message)
+      throws IOException {
+    JsonObject obj = new JsonObject();
+    obj.add("Error", new JsonPrimitive(message));
+    byte[] response = obj.toString().getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().set("Retry-After", "1");
+    exchange.sendResponseHeaders(statusCode, response.length);
+    try (OutputStream output = exchange.getResponseBody()) {
+      output.write(response);
+    }
+    exchange.close();
+  }
+
+  /** Records how a request was answered. */
+  private interface Recorder {
+
+    void record(HttpExchange exchange, long arrivedAt);
+  }
+
+  private static ThreadFactory platformThreadFactory(String name) {
+    AtomicInteger count = new AtomicInteger();
+    return runnable -> {
+      Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    };
+  }
+
+  /** @return a factory of virtual threads, or null if the JDK does not have them. */
+  private static ThreadFactory virtualThreadFactory(String name) {
+    try {
+      Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+      Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+      builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, name, 1L);
+      return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+    } catch (ReflectiveOperationException e) {
+      return null;
+    }
+  }
+}
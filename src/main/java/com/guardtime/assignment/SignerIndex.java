@@ -0,0 +1,142 @@
+package com.guardtime.assignment;
+
+import com.google.gson.Gson;
+import com.guardtime.ksi.exceptions.KSIException;
+import com.guardtime.ksi.unisignature.Identity;
+import com.guardtime.ksi.unisignature.KSISignature;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Index of who signed a container, persisted inside the container. Maps each userId to the numbers
+ * of the manifest and signature files signed by that user and keeps the number for the next
+ * signature, so neither signing nor deleting has to parse the KSI signatures in the container.
+ */
+class SignerIndex {
+
+  static final String ENTRY_NAME = "META-INF/signers.json";
+  private static final String SIGNATURE_PREFIX = "META-INF/signature";
+
+  private static final Gson GSON = new Gson();
+
+  private int next = 1;
+  private Map<String, List<Integer>> signers = new HashMap<>();
+
+  /** @return the number for the next manifest and signature file. */
+  int nextSignatureNumber() {
+    return next;
+  }
+
+  /** Records a signature of the user. */
+  void add(String userId, int signatureNumber) {
+    signers.computeIfAbsent(userId, id -> new ArrayList<>()).add(signatureNumber);
+    markUsed(signatureNumber);
+  }
+
+  /** Makes sure the number is not given out for a new signature, e.g. if a file already uses it. */
+  void markUsed(int signatureNumber) {
+    next = Math.max(next, signatureNumber + 1);
+  }
+
+  /** @return numbers of the signatures of the user. */
+  List<Integer> get(String userId) {
+    return signers.getOrDefault(userId, Collections.emptyList());
+  }
+
+  /**
+   * Forgets the signatures of the user. The numbers are not given out again.
+   *
+   * @return numbers of the signatures the user had.
+   */
+  List<Integer> remove(String userId) {
+    List<Integer> removed = signers.remove(userId);
+    return removed == null ? Collections.emptyList() : removed;
+  }
+
+  /** @return the number of signatures in the container. */
+  int size() {
+    return signers.values().stream().mapToInt(List::size).sum();
+  }
+
+  /** @return the index as the content of the index entry. */
+  byte[] toBytes() {
+    return GSON.toJson(this).getBytes(StandardCharsets.UTF_8);
+  }
+
+  /** @return the index read from the content of the index entry. */
+  static SignerIndex read(InputStream in) throws IOException {
+    try (Reader reader = new InputStreamReader(in, StandardCharsets.UTF_8)) {
+      SignerIndex signerIndex = GSON.fromJson(reader, SignerIndex.class);
+      return signerIndex == null ? new SignerIndex() : signerIndex;
+    }
+  }
+
+  /**
+   * Builds the index of a container signed before the index existed, by reading the signatures in
+   * it. The numbers of manifests left without their signature, and of signatures that do not name
+   * their signer, are not given out again either.
+   *
+   * @param archive the .zip container.
+   * @param signers finds who made each signature.
+   * @return the signer index of the container.
+   */
+  static SignerIndex build(ContainerArchive archive, Signers signers)
+      throws IOException, KSIException {
+    SignerIndex signerIndex = new SignerIndex();
+    for (ZipEntryRecord entry : archive.getEntries()) {
+      String name = entry.getName();
+      if (name.startsWith(SIGNATURE_PREFIX) && name.endsWith(".ksi")) {
+        int signatureNumber = getFileNumber(name, SIGNATURE_PREFIX);
+        String userId;
+        try (InputStream in = archive.getInputStream(entry)) {
+          userId = signers.signerOf(in);
+        }
+        if (userId == null) {
+          signerIndex.markUsed(signatureNumber);
+        } else {
+          signerIndex.add(userId, signatureNumber);
+        }
+      } else if (Manifest.isManifest(name)) {
+        signerIndex.markUsed(getFileNumber(name, Manifest.PREFIX));
+      }
+    }
+    return signerIndex;
+  }
+
+  /**
+   * Finds the userId in the identity metadata of the signature.
+   *
+   * @return the user who signed the manifest, null if the signature has no identity metadata.
+   */
+  static String getSignerId(KSISignature signature) {
+    Identity[] identity = signature.getAggregationHashChainIdentity();
+    if (identity == null || identity.length == 0) {
+      return null;
+    }
+    return identity[identity.length - 1].getDecodedClientId();
+  }
+
+  /** @return the number in the name of a manifest or signature file. */
+  private static int getFileNumber(String entryName, String prefix) {
+    return Integer.parseInt(entryName.substring(prefix.length(), entryName.lastIndexOf('.')));
+  }
+
+  /** Finds who made a signature stored in a container. */
+  interface Signers {
+
+    /**
+     * @param signature the content of the signature file.
+     * @return the userId of the signer, null if the signature does not name one.
+     */
+    String signerOf(InputStream signature) throws IOException, KSIException;
+  }
+}
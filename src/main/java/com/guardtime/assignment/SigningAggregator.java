@@ -0,0 +1,310 @@
+package com.guardtime.assignment;
+
+import com.guardtime.ksi.blocksigner.IdentityMetadata;
+import com.guardtime.ksi.blocksigner.KsiBlockSigner;
+import com.guardtime.ksi.exceptions.KSIException;
+import com.guardtime.ksi.hashing.DataHash;
+import com.guardtime.ksi.service.client.KSISigningClient;
+import com.guardtime.ksi.unisignature.KSISignature;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesces concurrent signing requests into KSI block-signing rounds. Every hash handed to {@link
+ * #sign(DataHash, String)} is queued, and a dispatcher thread gathers the queue into a batch of up
+ * to {@code maxBatchSize} hashes, waiting at most {@code maxWaitMillis} after the first one arrived.
+ * The whole batch is then signed with a single {@link KsiBlockSigner}, i.e. with one aggregator
+ * round-trip, and every caller receives its own signature carrying its own {@link
+ * IdentityMetadata}.
+ *
+ * <p>The time each round took, i.e. the round-trip to the aggregator, and the time requests waited
+ * for their round are recorded in the {@link Metrics}.
+ */
+class SigningAggregator {
+
+  private static final Metrics.Histogram ROUND_DURATION =
+      Metrics.REGISTRY.histogram(
+          "ksi_round_duration_seconds", "Time a block signing round with the aggregator took.");
+  private static final Metrics.Histogram WAIT_DURATION =
+      Metrics.REGISTRY.histogram(
+          "ksi_signing_wait_seconds", "Time a hash waited in the queue before its round started.");
+
+  private final KSISigningClient ksiSigningClient;
+  private final int maxBatchSize;
+  private final long maxWaitNanos;
+  private final long timeoutMillis;
+
+  private final BlockingQueue<PendingSignature> queue = new LinkedBlockingQueue<>();
+  // Limits how many rounds may be in flight, so the dispatcher keeps gathering while they run
+  private final Semaphore rounds;
+  private final ExecutorService roundExecutor;
+  private final Thread dispatcher;
+  private volatile boolean running = true;
+
+  private final AtomicLong batchCount = new AtomicLong();
+  private final AtomicLong signatureCount = new AtomicLong();
+  private final AtomicLong maxBatch = new AtomicLong();
+  private final AtomicLong totalWaitNanos = new AtomicLong();
+  private final AtomicLong totalRoundNanos = new AtomicLong();
+
+  /**
+   * @param ksiSigningClient used for the block signing rounds.
+   * @param maxBatchSize the maximum number of hashes signed in one round.
+   * @param maxWaitMillis how long the first request of a batch may wait for others to join it.
+   * @param maxConcurrentRounds how many rounds may be sent to the aggregator at the same time.
+   * @param timeoutMillis how long {@link #sign(DataHash, String)} waits for the signature.
+   */
+  SigningAggregator(
+      KSISigningClient ksiSigningClient,
+      int maxBatchSize,
+      long maxWaitMillis,
+      int maxConcurrentRounds,
+      long timeoutMillis) {
+    this.ksiSigningClient = ksiSigningClient;
+    this.maxBatchSize = Math.max(1, maxBatchSize);
+    this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, maxWaitMillis));
+    this.timeoutMillis = Math.max(1, timeoutMillis);
+    this.rounds = new Semaphore(Math.max(1, maxConcurrentRounds));
+    this.roundExecutor =
+        Executors.newFixedThreadPool(
+            Math.max(1, maxConcurrentRounds),
+            runnable -> {
+              Thread thread = new Thread(runnable, "ksi-signing-round");
+              thread.setDaemon(true);
+              return thread;
+            });
+    this.dispatcher = new Thread(this::dispatch, "ksi-signing-aggregator");
+    this.dispatcher.setDaemon(true);
+    this.dispatcher.start();
+
+    // Replaces the series of an aggregator that was set up before this one
+    Metrics.REGISTRY.gauge(
+        "ksi_signing_queue_depth", "Hashes waiting for a signing round.", this::getQueueDepth);
+    Metrics.REGISTRY.counter(
+        "ksi_rounds_total", "Block signing rounds sent to the aggregator.", this::getBatchCount);
+    Metrics.REGISTRY.counter(
+        "ksi_signatures_total", "Signatures of the block signing rounds.", this::getSignatureCount);
+  }
+
+  /**
+   * Creates an aggregator configured from the system properties {@code signing.batch.size},
+   * {@code signing.batch.wait.ms}, {@code signing.batch.rounds} and {@code signing.timeout.ms}.
+   */
+  static SigningAggregator fromSystemProperties(KSISigningClient ksiSigningClient) {
+    return new SigningAggregator(
+        ksiSigningClient,
+        Integer.getInteger("signing.batch.size", 256),
+        Long.getLong("signing.batch.wait.ms", 10),
+        Integer.getInteger("signing.batch.rounds", 2),
+        Long.getLong("signing.timeout.ms", 60_000));
+  }
+
+  /**
+   * Signs the hash together with whatever other hashes are waiting to be signed. Blocks until the
+   * round the hash ended up in has finished, or the timeout has passed.
+   *
+   * @param hash to be signed.
+   * @param userId that will be put in to the identity metadata of the signature.
+   * @return the signature of the given hash.
+   */
+  KSISignature sign(DataHash hash, String userId) throws KSIException {
+    CompletableFuture<KSISignature> signature = submit(hash, userId);
+    try {
+      return signature.get(timeoutMillis, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new KSIException("Interrupted while waiting for the signature.", e);
+    } catch (TimeoutException e) {
+      // Should the round still finish, its signature is dropped
+      signature.cancel(false);
+      throw new KSIException("No signature within " + timeoutMillis + " ms.", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof KSIException) {
+        throw (KSIException) e.getCause();
+      }
+      throw new KSIException("Signing failed.", e.getCause());
+    }
+  }
+
+  /**
+   * Queues the hash for the next signing round without waiting for it.
+   *
+   * @param hash to be signed.
+   * @param userId that will be put in to the identity metadata of the signature.
+   * @return a future that completes with the signature once its round has finished.
+   */
+  CompletableFuture<KSISignature> submit(DataHash hash, String userId) {
+    PendingSignature pending = new PendingSignature(hash, userId);
+    if (!running) {
+      pending.result.completeExceptionally(new KSIException("Signing aggregator is shut down."));
+      return pending.result;
+    }
+    queue.add(pending);
+    return pending.result;
+  }
+
+  /**
+   * Stops gathering new batches. Requests still waiting in the queue, or in a batch that was being
+   * gathered, are failed.
+   */
+  void shutdown() {
+    running = false;
+    dispatcher.interrupt();
+    roundExecutor.shutdown();
+    List<PendingSignature> abandoned = new ArrayList<>();
+    queue.drainTo(abandoned);
+    abandoned.forEach(
+        pending ->
+            pending.result.completeExceptionally(
+                new KSIException("Signing aggregator is shut down.")));
+  }
+
+  long getBatchCount() {
+    return batchCount.get();
+  }
+
+  long getSignatureCount() {
+    return signatureCount.get();
+  }
+
+  long getMaxBatchSize() {
+    return maxBatch.get();
+  }
+
+  double getAverageBatchSize() {
+    long batches = batchCount.get();
+    return batches == 0 ? 0 : (double) signatureCount.get() / batches;
+  }
+
+  /** @return how long a request waited in the queue before its round started, on average. */
+  double getAverageWaitMillis() {
+    long signatures = signatureCount.get();
+    return signatures == 0 ? 0 : totalWaitNanos.get() / 1e6 / signatures;
+  }
+
+  /** @return how long one aggregator round took, on average. */
+  double getAverageRoundMillis() {
+    long batches = batchCount.get();
+    return batches == 0 ? 0 : totalRoundNanos.get() / 1e6 / batches;
+  }
+
+  int getQueueDepth() {
+    return queue.size();
+  }
+
+  /** Gathers the queued requests in to batches and hands them over to the round executor. */
+  private void dispatch() {
+    while (running) {
+      List<PendingSignature> batch = new ArrayList<>();
+      try {
+        rounds.acquire();
+        gatherBatch(batch);
+        roundExecutor.execute(
+            () -> {
+              try {
+                signBatch(batch);
+              } finally {
+                rounds.release();
+              }
+            });
+      } catch (InterruptedException | RejectedExecutionException e) {
+        // Shut down, the requests taken off the queue would not be answered otherwise
+        batch.forEach(
+            pending ->
+                pending.result.completeExceptionally(
+                    new KSIException("Signing aggregator is shut down.")));
+        return;
+      }
+    }
+  }
+
+  /** Takes the queued requests in to the batch, waiting for the first one and then for others. */
+  private void gatherBatch(List<PendingSignature> batch) throws InterruptedException {
+    batch.add(queue.take());
+    long deadline = batch.get(0).enqueuedAt + maxWaitNanos;
+    while (batch.size() < maxBatchSize) {
+      long remaining = deadline - System.nanoTime();
+      if (remaining <= 0) {
+        queue.drainTo(batch, maxBatchSize - batch.size());
+        break;
+      }
+      PendingSignature next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+      if (next == null) {
+        break;
+      }
+      batch.add(next);
+    }
+  }
+
+  /**
+   * Signs the batch as one block. Should the block signer refuse a hash because its tree is full,
+   * the rest of the batch is signed in a following block.
+   */
+  private void signBatch(List<PendingSignature> batch) {
+    long startedAt = System.nanoTime();
+    for (PendingSignature pending : batch) {
+      totalWaitNanos.addAndGet(startedAt - pending.enqueuedAt);
+      WAIT_DURATION.recordNanos(startedAt - pending.enqueuedAt);
+    }
+    int from = 0;
+    while (from < batch.size()) {
+      long roundStartedAt = System.nanoTime();
+      int to = from;
+      try {
+        KsiBlockSigner ksiBlockSigner = new KsiBlockSigner(ksiSigningClient);
+        while (to < batch.size()
+            && ksiBlockSigner.add(batch.get(to).hash, new IdentityMetadata(batch.get(to).userId))) {
+          to++;
+        }
+        if (to == from) {
+          throw new KSIException("Block signer did not accept any hashes.");
+        }
+        List<KSISignature> signatures = ksiBlockSigner.sign();
+        for (int i = from; i < to; i++) {
+          batch.get(i).result.complete(signatures.get(i - from));
+        }
+      } catch (Exception e) {
+        // Fails the hashes of this block, or all the remaining ones if none were accepted
+        int failedTo = to == from ? batch.size() : to;
+        for (int i = from; i < failedTo; i++) {
+          batch.get(i).result.completeExceptionally(e);
+        }
+        to = failedTo;
+      } finally {
+        batchCount.incrementAndGet();
+        signatureCount.addAndGet(to - from);
+        maxBatch.accumulateAndGet(to - from, Math::max);
+        long roundNanos = System.nanoTime() - roundStartedAt;
+        totalRoundNanos.addAndGet(roundNanos);
+        ROUND_DURATION.recordNanos(roundNanos);
+      }
+      from = to;
+    }
+  }
+
+  /** A hash waiting for its signing round. */
+  private static class PendingSignature {
+
+    private final DataHash hash;
+    private final String userId;
+    private final long enqueuedAt = System.nanoTime();
+    private final CompletableFuture<KSISignature> result = new CompletableFuture<>();
+
+    PendingSignature(DataHash hash, String userId) {
+      this.hash = hash;
+      this.userId = userId;
+    }
+  }
+}
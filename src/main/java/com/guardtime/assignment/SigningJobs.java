@@ -0,0 +1,370 @@
+package com.guardtime.assignment;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.guardtime.ksi.exceptions.KSIException;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntConsumer;
+
+/**
+ * Signing jobs that are run in the background, so a sign request can be answered before the
+ * signing is done. Every job is persisted as a file in the jobs directory whenever its status
+ * changes, so jobs that were queued or running when the server stopped are run again once {@link
+ * #recover()} is called after it is started. Finished jobs are kept for {@code
+ * signing.jobs.retention.hours} (24 by default) for their status to be read, then forgotten.
+ *
+ * <p>A running job is persisted with the number reserved for its signature before the signature is
+ * written to the container. A job that was running when the server stopped may have written it
+ * already, so it is only run again if the signer index of the container does not have that
+ * signature of the user.
+ */
+class SigningJobs {
+
+  private static final Gson GSON = new Gson();
+  private static final String EXTENSION = ".json";
+
+  /** Status of a job. */
+  enum Status {
+    QUEUED,
+    RUNNING,
+    DONE,
+    FAILED
+  }
+
+  // Directories whose jobs were recovered, each one only once per process
+  private static final Set<Path> RECOVERED = ConcurrentHashMap.newKeySet();
+
+  /** Signs a container, see {@link ContainerApi#sign(String, String, IntConsumer, IntConsumer)}. */
+  interface Signer {
+
+    /**
+     * @param reserved is given the number of the signature before the container is signed.
+     * @param signed is given the number of the signature once it is persisted.
+     * @return a json with the appropriate error message or empty string if signing was successful.
+     */
+    String sign(String fileName, String userId, IntConsumer reserved, IntConsumer signed);
+
+    /** @return whether the container has the signature of the user with the number. */
+    boolean isSigned(String fileName, String userId, int signatureNumber)
+        throws IOException, KSIException;
+  }
+
+  private final Path directory;
+  private final Signer signer;
+  private final int maxPending;
+  private final long retentionMillis;
+  private final ConcurrentMap<String, Job> jobs = new ConcurrentHashMap<>();
+  private final AtomicInteger pending = new AtomicInteger();
+  private final ThreadPoolExecutor workers;
+  private final ScheduledExecutorService cleaner;
+  // Set once the jobs are stopped, the outcome of those cut short is not persisted
+  private volatile boolean stopped;
+
+  /**
+   * Creates the job queue, the jobs already in the directory are loaded by {@link #recover()}.
+   *
+   * @param directory where the jobs are persisted.
+   * @param signer that does the signing.
+   * @param threads how many jobs are run at once.
+   * @param maxPending how many jobs may be queued or running before new ones are refused.
+   * @param retentionMillis how long finished jobs are kept.
+   */
+  SigningJobs(Path directory, Signer signer, int threads, int maxPending, long retentionMillis)
+      throws IOException {
+    this.directory = directory;
+    this.signer = signer;
+    this.maxPending = maxPending;
+    this.retentionMillis = retentionMillis;
+    AtomicInteger count = new AtomicInteger();
+    workers =
+        new ThreadPoolExecutor(
+            threads,
+            threads,
+            0,
+            TimeUnit.MILLISECONDS,
+            new LinkedBlockingQueue<>(),
+            runnable -> {
+              Thread thread = new Thread(runnable, "signing-job-" + count.incrementAndGet());
+              thread.setDaemon(true);
+              return thread;
+            });
+    cleaner =
+        Executors.newSingleThreadScheduledExecutor(
+            runnable -> {
+              Thread thread = new Thread(runnable, "signing-job-cleaner");
+              thread.setDaemon(true);
+              return thread;
+            });
+
+    Files.createDirectories(directory);
+    cleaner.scheduleWithFixedDelay(this::removeExpired, 1, 1, TimeUnit.HOURS);
+  }
+
+  /**
+   * Creates the job queue in the given directory, configured with the system properties {@code
+   * signing.jobs.threads} (4 by default), {@code signing.jobs.max} (10000 by default) and {@code
+   * signing.jobs.retention.hours}.
+   */
+  static SigningJobs fromSystemProperties(Path directory, Signer signer) throws IOException {
+    return new SigningJobs(
+        directory,
+        signer,
+        Math.max(1, Integer.getInteger("signing.jobs.threads", 4)),
+        Integer.getInteger("signing.jobs.max", 10_000),
+        TimeUnit.HOURS.toMillis(Long.getLong("signing.jobs.retention.hours", 24)));
+  }
+
+  /**
+   * Persists a new job and queues it to be run.
+   *
+   * @return the job, or null if too many jobs are waiting already.
+   * @throws IOException if the job could not be persisted.
+   */
+  Job submit(String fileName, String userId) throws IOException {
+    if (pending.incrementAndGet() > maxPending) {
+      pending.decrementAndGet();
+      return null;
+    }
+    Job job = new Job(UUID.randomUUID().toString(), fileName, userId);
+    try {
+      persist(job);
+    } catch (IOException e) {
+      pending.decrementAndGet();
+      throw e;
+    }
+    jobs.put(job.id, job);
+    workers.execute(() -> run(job));
+    return job;
+  }
+
+  /** @return the job with the id, or null if there is no such job. */
+  Job get(String id) {
+    return jobs.get(id);
+  }
+
+  /** @return how many jobs are queued or running. */
+  int pending() {
+    return pending.get();
+  }
+
+  /** Stops running jobs, the unfinished ones are run again on the next start. */
+  void shutdown() {
+    stopped = true;
+    workers.shutdownNow();
+    cleaner.shutdownNow();
+  }
+
+  private void run(Job job) {
+    try {
+      Integer reserved = job.getSignatureNumber();
+      if (reserved != null && signer.isSigned(job.name, job.userId, reserved)) {
+        // Written to the container before the server stopped
+        job.update(Status.DONE, reserved, null);
+      } else {
+        job.update(Status.RUNNING, null, null);
+        persistQuietly(job);
+        Integer[] signatureNumber = new Integer[1];
+        String error =
+            signer.sign(
+                job.name,
+                job.userId,
+                number -> {
+                  job.update(Status.RUNNING, number, null);
+                  persistQuietly(job);
+                },
+                number -> signatureNumber[0] = number);
+        if (stopped) {
+          // Failed because the jobs were stopped, the job is left to be run on the next start
+          return;
+        }
+        if (error.isEmpty()) {
+          job.update(Status.DONE, signatureNumber[0], null);
+        } else {
+          job.update(Status.FAILED, null, errorMessage(error));
+        }
+      }
+    } catch (IOException | KSIException | RuntimeException e) {
+      e.printStackTrace();
+      job.update(Status.FAILED, null, "Container could not be signed.");
+    } finally {
+      pending.decrementAndGet();
+    }
+    persistQuietly(job);
+  }
+
+  /**
+   * Loads the persisted jobs, queued and interrupted ones are run again in submission order. The
+   * jobs of a directory are only recovered once per process, by whichever queue comes first.
+   */
+  void recover() throws IOException {
+    if (!RECOVERED.add(directory.toAbsolutePath().normalize())) {
+      return;
+    }
+    try (DirectoryStream<Path> paths = Files.newDirectoryStream(directory, "*.tmp")) {
+      for (Path path : paths) {
+        // Left behind by a crash in the middle of persisting a job
+        Files.delete(path);
+      }
+    }
+    List<Job> unfinished = new ArrayList<>();
+    try (DirectoryStream<Path> paths = Files.newDirectoryStream(directory, "*" + EXTENSION)) {
+      for (Path path : paths) {
+        Job job;
+        try (Reader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+          job = GSON.fromJson(reader, Job.class);
+        } catch (RuntimeException e) {
+          job = null;
+        }
+        if (job == null || !isValidId(job.id)) {
+          System.err.println("Skipping unreadable signing job " + path);
+          continue;
+        }
+        jobs.put(job.id, job);
+        if (job.status == Status.QUEUED || job.status == Status.RUNNING) {
+          unfinished.add(job);
+        }
+      }
+    }
+    unfinished.sort(Comparator.comparingLong(job -> job.submitted));
+    for (Job job : unfinished) {
+      // The reserved number is kept, to find out whether the signature was written already
+      job.update(Status.QUEUED, job.getSignatureNumber(), null);
+      pending.incrementAndGet();
+      workers.execute(() -> run(job));
+    }
+  }
+
+  private void removeExpired() {
+    long expiry = System.currentTimeMillis() - retentionMillis;
+    for (Job job : jobs.values()) {
+      if (job.isFinished() && job.finished < expiry) {
+        try {
+          Files.deleteIfExists(path(job.id));
+          jobs.remove(job.id);
+        } catch (IOException e) {
+          e.printStackTrace();
+        }
+      }
+    }
+  }
+
+  /** Writes the job to a temporary file first, so a crash never leaves half a job behind. */
+  private void persist(Job job) throws IOException {
+    Path temporary = directory.resolve(job.id + ".tmp");
+    try (Writer writer = Files.newBufferedWriter(temporary, StandardCharsets.UTF_8)) {
+      writer.write(job.toJson());
+    }
+    Files.move(
+        temporary,
+        path(job.id),
+        StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  private void persistQuietly(Job job) {
+    try {
+      persist(job);
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  private Path path(String id) {
+    return directory.resolve(id + EXTENSION);
+  }
+
+  /** @return the message of an error in the json form the API returns, or the json as it is. */
+  private static String errorMessage(String error) {
+    try {
+      return new JsonParser().parse(error).getAsJsonObject().get("Error").getAsString();
+    } catch (RuntimeException e) {
+      return error;
+    }
+  }
+
+  /** @return whether the text could be the id of a job, so it is safe to use it in a path. */
+  static boolean isValidId(String id) {
+    try {
+      return id != null && UUID.fromString(id).toString().equals(id);
+    } catch (IllegalArgumentException e) {
+      return false;
+    }
+  }
+
+  /** A signing job and its outcome, persisted as json. */
+  static class Job {
+
+    private String id;
+    private String name;
+    private String userId;
+    private Status status;
+    private Integer signatureNumber;
+    private String error;
+    private long submitted;
+    private long finished;
+
+    Job(String id, String name, String userId) {
+      this.id = id;
+      this.name = name;
+      this.userId = userId;
+      this.status = Status.QUEUED;
+      this.submitted = System.currentTimeMillis();
+    }
+
+    String getId() {
+      return id;
+    }
+
+    synchronized Status getStatus() {
+      return status;
+    }
+
+    synchronized Integer getSignatureNumber() {
+      return signatureNumber;
+    }
+
+    synchronized boolean isFinished() {
+      return status == Status.DONE || status == Status.FAILED;
+    }
+
+    private synchronized void update(Status status, Integer signatureNumber, String error) {
+      this.status = status;
+      this.signatureNumber = signatureNumber;
+      this.error = error;
+      this.finished = isFinished() ? System.currentTimeMillis() : 0;
+    }
+
+    /** @return the job as json, without the userId. */
+    synchronized String toStatusJson() {
+      JsonObject json = GSON.toJsonTree(this).getAsJsonObject();
+      json.remove("userId");
+      return json.toString();
+    }
+
+    private synchronized String toJson() {
+      return GSON.toJson(this);
+    }
+  }
+}
@@ -0,0 +1,553 @@
+package com.guardtime.assignment;
+
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Datafiles uploaded in the body of a create request: a zip or a tar archive, or a multipart form
+ * whose file fields are the datafiles. The body is read only once, as a stream. The datafiles are
+ * visited one at a time and the content of one can be read only until the next one is asked for,
+ * so nothing is staged on disk or kept in memory.
+ *
+ * <p>Directories, the META-INF directory of an uploaded container and .DS_Store files are left
+ * out. Names that would lead out of the container, such as {@code ../x}, are rejected.
+ */
+abstract class Upload {
+
+  private String name;
+  private long lastModified;
+  private InputStream content;
+
+  /**
+   * @param contentType of the request body.
+   * @return whether datafiles can be read from a body of that type.
+   */
+  static boolean isSupported(String contentType) {
+    return type(contentType) != null;
+  }
+
+  /**
+   * @param contentType of the request body, one of those {@link #isSupported} accepts.
+   * @param body of the request.
+   * @return the upload, positioned before its first datafile.
+   */
+  static Upload open(String contentType, InputStream body) throws IOException {
+    String type = type(contentType);
+    if (type == null) {
+      throw new IOException("Uploads of type " + contentType + " are not supported.");
+    }
+    switch (type) {
+      case "multipart/form-data":
+        return new MultipartUpload(body, parameter(contentType, "boundary"));
+      case "application/x-tar":
+        return new TarUpload(body);
+      default:
+        return new ZipUpload(body);
+    }
+  }
+
+  /**
+   * Moves on to the next datafile, skipping what was left unread of the current one.
+   *
+   * @return false if there are no more datafiles.
+   */
+  abstract boolean next() throws IOException;
+
+  /** @return the name of the current datafile, relative to the root of the container. */
+  String getName() {
+    return name;
+  }
+
+  /** @return when the current datafile was last modified, in milliseconds. */
+  long getLastModified() {
+    return lastModified;
+  }
+
+  /** @return the content of the current datafile. Does not need to be closed. */
+  InputStream getContent() {
+    return content;
+  }
+
+  /** Makes the given file the current datafile, if its name is one of a datafile. */
+  boolean setCurrent(String rawName, long lastModified, InputStream content) throws IOException {
+    String name = sanitize(rawName);
+    if (name == null) {
+      return false;
+    }
+    this.name = name;
+    this.lastModified = lastModified >= 0 ? lastModified : System.currentTimeMillis();
+    this.content = content;
+    return true;
+  }
+
+  /**
+   * @param rawName of a file in the upload.
+   * @return the name of the datafile, or null if the file is not a datafile.
+   * @throws IOException if the name would lead out of the container.
+   */
+  static String sanitize(String rawName) throws IOException {
+    if (rawName == null || rawName.endsWith("/") || rawName.endsWith("\\")) {
+      return null;
+    }
+    List<String> segments = new ArrayList<>();
+    for (String segment : rawName.replace('\\', '/').split("/")) {
+      if (segment.equals("..")) {
+        throw new IOException("Datafile name " + rawName + " is not allowed.");
+      }
+      if (!segment.isEmpty() && !segment.equals(".")) {
+        segments.add(segment);
+      }
+    }
+    if (segments.isEmpty()
+        || segments.get(0).equals("META-INF")
+        || segments.get(segments.size() - 1).startsWith(".DS_S")) {
+      return null;
+    }
+    return String.join("/", segments);
+  }
+
+  private static String type(String contentType) {
+    if (contentType == null) {
+      return null;
+    }
+    String type = contentType.split(";")[0].trim().toLowerCase(Locale.ROOT);
+    switch (type) {
+      case "multipart/form-data":
+        return parameter(contentType, "boundary") != null ? type : null;
+      case "application/x-tar":
+      case "application/tar":
+        return "application/x-tar";
+      case "application/zip":
+      case "application/x-zip-compressed":
+        return "application/zip";
+      default:
+        return null;
+    }
+  }
+
+  /** @return the value of a parameter of a header such as Content-Type or Content-Disposition. */
+  static String parameter(String header, String parameter) {
+    for (String part : header.split(";")) {
+      int equals = part.indexOf('=');
+      if (equals > 0 && part.substring(0, equals).trim().equalsIgnoreCase(parameter)) {
+        String value = part.substring(equals + 1).trim();
+        if (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")) {
+          value = value.substring(1, value.length() - 1);
+        }
+        return value;
+      }
+    }
+    return null;
+  }
+
+  /** A zip archive, read with ZipInputStream so the central directory at its end is not needed. */
+  private static class ZipUpload extends Upload {
+
+    private final ZipInputStream zipInputStream;
+    private final InputStream entryContent;
+
+    ZipUpload(InputStream body) {
+      zipInputStream = new ZipInputStream(body, StandardCharsets.UTF_8);
+      // The datafiles are read by someone who must not close the whole archive
+      entryContent =
+          new FilterInputStream(zipInputStream) {
+            @Override
+            public void close() {}
+          };
+    }
+
+    @Override
+    boolean next() throws IOException {
+      ZipEntry entry;
+      while ((entry = zipInputStream.getNextEntry()) != null) {
+        if (!entry.isDirectory() && setCurrent(entry.getName(), entry.getTime(), entryContent)) {
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+
+  /** A ustar archive, with the GNU and pax extensions for long names. */
+  private static class TarUpload extends Upload {
+
+    private static final int BLOCK_SIZE = 512;
+
+    private final InputStream in;
+    private final byte[] header = new byte[BLOCK_SIZE];
+    // What is left of the content of the current file, and the padding after it
+    private long remaining;
+    private long padding;
+
+    TarUpload(InputStream in) {
+      this.in = in;
+    }
+
+    @Override
+    boolean next() throws IOException {
+      String longName = null;
+      while (true) {
+        skip(remaining + padding);
+        remaining = 0;
+        padding = 0;
+        if (!readHeader()) {
+          return false;
+        }
+        long size = parseNumber(124, 12);
+        long lastModified = parseNumber(136, 12) * 1000;
+        char type = (char) header[156];
+        remaining = size;
+        padding = (BLOCK_SIZE - size % BLOCK_SIZE) % BLOCK_SIZE;
+
+        if (type == 'L') {
+          longName = trim(readContent(size));
+        } else if (type == 'x') {
+          String path = paxPath(readContent(size));
+          longName = path != null ? path : longName;
+        } else if (type == '0' || type == '\0' || type == '7') {
+          String name = longName != null ? longName : headerName();
+          longName = null;
+          if (setCurrent(name, lastModified, new ContentInputStream())) {
+            return true;
+          }
+        } else {
+          // Directories, links, devices and global headers are no datafiles
+          longName = null;
+        }
+      }
+    }
+
+    /** @return false if the archive has ended. */
+    private boolean readHeader() throws IOException {
+      int length = 0;
+      while (length < BLOCK_SIZE) {
+        int read = in.read(header, length, BLOCK_SIZE - length);
+        if (read < 0) {
+          if (length == 0) {
+            return false;
+          }
+          throw new EOFException("Tar archive ended in the middle of a header.");
+        }
+        length += read;
+      }
+      long checksum = 0;
+      boolean empty = true;
+      for (int i = 0; i < BLOCK_SIZE; i++) {
+        checksum += i >= 148 && i < 156 ? ' ' : header[i] & 0xFF;
+        empty &= header[i] == 0;
+      }
+      if (empty) {
+        return false;
+      }
+      if (checksum != parseNumber(148, 8)) {
+        throw new IOException("Upload is not a valid tar archive.");
+      }
+      return true;
+    }
+
+    private String headerName() {
+      String name = string(0, 100);
+      boolean ustar = string(257, 5).equals("ustar");
+      String prefix = ustar ? string(345, 155) : "";
+      return prefix.isEmpty() ? name : prefix + "/" + name;
+    }
+
+    /** Numbers are octal text, or big-endian binary if the first bit is set. */
+    private long parseNumber(int offset, int length) throws IOException {
+      if ((header[offset] & 0x80) != 0) {
+        long value = header[offset] & 0x7F;
+        for (int i = offset + 1; i < offset + length; i++) {
+          value = (value << 8) | (header[i] & 0xFF);
+        }
+        return value;
+      }
+      String text = string(offset, length).trim();
+      try {
+        return text.isEmpty() ? 0 : Long.parseLong(text, 8);
+      } catch (NumberFormatException e) {
+        throw new IOException("Upload is not a valid tar archive.");
+      }
+    }
+
+    private String string(int offset, int length) {
+      int end = offset;
+      while (end < offset + length && header[end] != 0) {
+        end++;
+      }
+      return new String(header, offset, end - offset, StandardCharsets.UTF_8);
+    }
+
+    /** Reads the content of an extension header, which is small. */
+    private byte[] readContent(long size) throws IOException {
+      if (size > 1024 * 1024) {
+        throw new IOException("Tar extension header is too large.");
+      }
+      byte[] content = new byte[(int) size];
+      int length = 0;
+      while (length < content.length) {
+        int read = in.read(content, length, content.length - length);
+        if (read < 0) {
+          throw new EOFException("Tar archive ended in the middle of a file.");
+        }
+        length += read;
+      }
+      remaining = 0;
+      return content;
+    }
+
+    private static String trim(byte[] name) {
+      int end = 0;
+      while (end < name.length && name[end] != 0) {
+        end++;
+      }
+      return new String(name, 0, end, StandardCharsets.UTF_8);
+    }
+
+    /** Pax records are of the form "length key=value\n". */
+    private static String paxPath(byte[] records) {
+      String path = null;
+      int position = 0;
+      while (position < records.length) {
+        int space = position;
+        while (space < records.length && records[space] != ' ') {
+          space++;
+        }
+        int length;
+        try {
+          length =
+              Integer.parseInt(
+                  new String(records, position, space - position, StandardCharsets.UTF_8));
+        } catch (NumberFormatException e) {
+          break;
+        }
+        if (length <= 0 || position + length > records.length) {
+          break;
+        }
+        String record =
+            new String(records, space + 1, position + length - space - 2, StandardCharsets.UTF_8);
+        if (record.startsWith("path=")) {
+          path = record.substring("path=".length());
+        }
+        position += length;
+      }
+      return path;
+    }
+
+    private void skip(long count) throws IOException {
+      byte[] buffer = new byte[8192];
+      while (count > 0) {
+        int read = in.read(buffer, 0, (int) Math.min(buffer.length, count));
+        if (read < 0) {
+          throw new EOFException("Tar archive ended in the middle of a file.");
+        }
+        count -= read;
+      }
+    }
+
+    /** Content of the current file, ends where the file ends in the archive. */
+    private class ContentInputStream extends InputStream {
+
+      @Override
+      public int read() throws IOException {
+        byte[] single = new byte[1];
+        return read(single, 0, 1) < 0 ? -1 : single[0] & 0xFF;
+      }
+
+      @Override
+      public int read(byte[] buffer, int offset, int length) throws IOException {
+        if (remaining == 0) {
+          return -1;
+        }
+        int read = in.read(buffer, offset, (int) Math.min(length, remaining));
+        if (read < 0) {
+          throw new EOFException("Tar archive ended in the middle of a file.");
+        }
+        remaining -= read;
+        return read;
+      }
+    }
+  }
+
+  /**
+   * A multipart/form-data body. The body is scanned for the boundary through a fixed size buffer,
+   * the content of a part is handed out up to where the boundary could start.
+   */
+  private static class MultipartUpload extends Upload {
+
+    private static final int MAX_HEADER_LENGTH = 8 * 1024;
+
+    private final InputStream in;
+    private final byte[] delimiter;
+    private final byte[] buffer = new byte[64 * 1024];
+    private int position;
+    private int limit;
+    // The preamble before the first boundary is skipped like the content of a part
+    private boolean partEnded;
+    private boolean finished;
+
+    MultipartUpload(InputStream in, String boundary) {
+      this.in = in;
+      this.delimiter = ("\r\n--" + boundary).getBytes(StandardCharsets.ISO_8859_1);
+      // The first boundary is not preceded by a line break, so one is put in front of the body
+      buffer[0] = '\r';
+      buffer[1] = '\n';
+      limit = 2;
+    }
+
+    @Override
+    boolean next() throws IOException {
+      byte[] skipped = new byte[8192];
+      while (true) {
+        while (readPart(skipped, 0, skipped.length) >= 0) {
+          // Skips what was not read of the previous part
+        }
+        if (finished) {
+          return false;
+        }
+        if (!fill(2)) {
+          throw new EOFException("Multipart upload ended without its closing boundary.");
+        }
+        if (buffer[position] == '-' && buffer[position + 1] == '-') {
+          finished = true;
+          return false;
+        }
+        readLine();
+
+        String disposition = null;
+        String line;
+        int headerLength = 0;
+        while (!(line = readLine()).isEmpty()) {
+          headerLength += line.length();
+          if (headerLength > MAX_HEADER_LENGTH) {
+            throw new IOException("Headers of a multipart upload are too long.");
+          }
+          int colon = line.indexOf(':');
+          String headerName = colon > 0 ? line.substring(0, colon).trim() : "";
+          if (headerName.equalsIgnoreCase("Content-Disposition")) {
+            disposition = line.substring(colon + 1);
+          }
+        }
+        partEnded = false;
+
+        // Only the parts with a file name are datafiles, other form fields are skipped
+        String fileName = disposition == null ? null : parameter(disposition, "filename");
+        if (fileName != null
+            && setCurrent(fileName, System.currentTimeMillis(), new PartInputStream())) {
+          return true;
+        }
+      }
+    }
+
+    /** Reads the content of the current part, returns -1 once the boundary is reached. */
+    private int readPart(byte[] target, int offset, int length) throws IOException {
+      if (partEnded) {
+        return -1;
+      }
+      if (limit - position < delimiter.length) {
+        fill(delimiter.length);
+      }
+      int found = indexOfDelimiter();
+      int available;
+      if (found >= 0) {
+        available = found - position;
+        if (available == 0) {
+          position += delimiter.length;
+          partEnded = true;
+          return -1;
+        }
+      } else {
+        if (limit - position < delimiter.length) {
+          throw new EOFException("Multipart upload ended in the middle of a part.");
+        }
+        // The end of the buffer could be the start of the boundary
+        available = limit - position - delimiter.length + 1;
+      }
+      int read = Math.min(length, available);
+      System.arraycopy(buffer, position, target, offset, read);
+      position += read;
+      return read;
+    }
+
+    private int indexOfDelimiter() {
+      outer:
+      for (int i = position; i <= limit - delimiter.length; i++) {
+        for (int j = 0; j < delimiter.length; j++) {
+          if (buffer[i + j] != delimiter[j]) {
+            continue outer;
+          }
+        }
+        return i;
+      }
+      return -1;
+    }
+
+    /** Reads a header line, without its line break. */
+    private String readLine() throws IOException {
+      int searched = position;
+      while (true) {
+        for (int i = searched; i < limit - 1; i++) {
+          if (buffer[i] == '\r' && buffer[i + 1] == '\n') {
+            String line = new String(buffer, position, i - position, StandardCharsets.UTF_8);
+            position = i + 2;
+            return line;
+          }
+        }
+        int available = limit - position;
+        if (available > MAX_HEADER_LENGTH) {
+          throw new IOException("Headers of a multipart upload are too long.");
+        }
+        searched = Math.max(0, limit - 1 - position);
+        if (!fill(available + 1)) {
+          throw new EOFException("Multipart upload ended in the middle of its headers.");
+        }
+        // The buffer was compacted, the search continues where it stopped
+        searched += position;
+      }
+    }
+
+    /**
+     * Moves the unread bytes to the start of the buffer and reads until at least the given number
+     * is available.
+     *
+     * @return false if the body ended before that.
+     */
+    private boolean fill(int needed) throws IOException {
+      if (position > 0) {
+        System.arraycopy(buffer, position, buffer, 0, limit - position);
+        limit -= position;
+        position = 0;
+      }
+      while (limit < needed) {
+        int read = in.read(buffer, limit, buffer.length - limit);
+        if (read < 0) {
+          return false;
+        }
+        limit += read;
+      }
+      return true;
+    }
+
+    /** Content of the current part. */
+    private class PartInputStream extends InputStream {
+
+      @Override
+      public int read() throws IOException {
+        byte[] single = new byte[1];
+        return read(single, 0, 1) < 0 ? -1 : single[0] & 0xFF;
+      }
+
+      @Override
+      public int read(byte[] target, int offset, int length) throws IOException {
+        return length == 0 ? 0 : readPart(target, offset, length);
+      }
+    }
+  }
+}
@@ -0,0 +1,80 @@
+package com.guardtime.assignment;
+
+/** A class representing the central directory record of a single entry in a zip container. */
+class ZipEntryRecord {
+
+  static final int STORED = 0;
+  static final int DEFLATED = 8;
+
+  private final String name;
+  private final int method;
+  private final int flags;
+  private final long dosTime;
+  private final long crc;
+  private final long compressedSize;
+  private final long size;
+  private final long localHeaderOffset;
+
+  ZipEntryRecord(
+      String name,
+      int method,
+      int flags,
+      long dosTime,
+      long crc,
+      long compressedSize,
+      long size,
+      long localHeaderOffset) {
+    this.name = name;
+    this.method = method;
+    this.flags = flags;
+    this.dosTime = dosTime;
+    this.crc = crc;
+    this.compressedSize = compressedSize;
+    this.size = size;
+    this.localHeaderOffset = localHeaderOffset;
+  }
+
+  /** @return a copy of the record with the CRC and sizes known after writing the data. */
+  ZipEntryRecord withData(long crc, long compressedSize, long size) {
+    return new ZipEntryRecord(
+        name, method, flags, dosTime, crc, compressedSize, size, localHeaderOffset);
+  }
+
+  /** @return a copy of the record whose local entry was moved to the given offset. */
+  ZipEntryRecord withLocalHeaderOffset(long localHeaderOffset) {
+    return new ZipEntryRecord(
+        name, method, flags, dosTime, crc, compressedSize, size, localHeaderOffset);
+  }
+
+  String getName() {
+    return name;
+  }
+
+  int getMethod() {
+    return method;
+  }
+
+  int getFlags() {
+    return flags;
+  }
+
+  long getDosTime() {
+    return dosTime;
+  }
+
+  long getCrc() {
+    return crc;
+  }
+
+  long getCompressedSize() {
+    return compressedSize;
+  }
+
+  long getSize() {
+    return size;
+  }
+
+  long getLocalHeaderOffset() {
+    return localHeaderOffset;
+  }
+}
@@ -0,0 +1,457 @@
+package com.guardtime.assignment;
+
+import java.io.Closeable;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Writes a zip archive entry by entry. Unlike {@link java.util.zip.ZipOutputStream} it accepts data
+ * that is already deflated, so entries can be compressed elsewhere (e.g. in parallel) and only
+ * assembled here. Deflated entries are followed by a data descriptor, stored entries carry their
+ * sizes and CRC in the local header, so the archive stays readable by {@link
+ * java.util.zip.ZipInputStream}. Sizes and offsets past 4GB are written as zip64.
+ */
+class ZipWriter implements Closeable {
+
+  static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+  static final int DATA_DESCRIPTOR_SIGNATURE = 0x08074b50;
+  static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+  static final int ZIP64_END_SIGNATURE = 0x06064b50;
+  static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+  static final int END_SIGNATURE = 0x06054b50;
+  static final int ZIP64_EXTRA_ID = 0x0001;
+  static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+
+  static final int FLAG_DATA_DESCRIPTOR = 1 << 3;
+  static final int FLAG_UTF8 = 1 << 11;
+
+  private static final int VERSION_DEFAULT = 20;
+  private static final int VERSION_ZIP64 = 45;
+
+  private final PositionOutputStream out;
+  private final List<ZipEntryRecord> entries;
+  // The deflated entry currently being written
+  private ZipEntryRecord current;
+  private long currentDataStart;
+  private long centralDirectoryOffset = -1;
+
+  /** Starts a new archive at the beginning of the stream. */
+  ZipWriter(OutputStream out) {
+    this(out, 0, new ArrayList<>());
+  }
+
+  /**
+   * Continues an existing archive.
+   *
+   * @param out positioned where the next local entry is to be written.
+   * @param offset of that position from the beginning of the archive.
+   * @param entries already in the archive before the offset, they are kept in the central
+   *     directory.
+   */
+  ZipWriter(OutputStream out, long offset, List<ZipEntryRecord> entries) {
+    this.out = new PositionOutputStream(out, offset);
+    this.entries = new ArrayList<>(entries);
+  }
+
+  /** @return position of the next byte written, counted from the beginning of the archive. */
+  long position() {
+    return out.position;
+  }
+
+  /** @return where the central directory was written, once the archive is finished. */
+  long getCentralDirectoryOffset() {
+    return centralDirectoryOffset;
+  }
+
+  /** @return the entries written so far, in the order of their local headers. */
+  List<ZipEntryRecord> getEntries() {
+    return entries;
+  }
+
+  /**
+   * Starts a deflated entry, its compressed data is given through {@link #writeDeflated}.
+   *
+   * @param name of the entry.
+   * @param lastModified time in milliseconds.
+   */
+  void beginDeflated(String name, long lastModified) throws IOException {
+    if (current != null) {
+      throw new IllegalStateException("Entry " + current.getName() + " is not finished.");
+    }
+    current =
+        new ZipEntryRecord(
+            name,
+            ZipEntryRecord.DEFLATED,
+            FLAG_DATA_DESCRIPTOR | FLAG_UTF8,
+            toDosTime(lastModified),
+            0,
+            0,
+            0,
+            out.position);
+    writeLocalHeader(current);
+    currentDataStart = out.position;
+  }
+
+  /** Writes raw deflate data of the current entry. */
+  void writeDeflated(byte[] data, int offset, int length) throws IOException {
+    out.write(data, offset, length);
+  }
+
+  /**
+   * Finishes the current deflated entry with a data descriptor.
+   *
+   * @param crc of the uncompressed data.
+   * @param size of the uncompressed data.
+   */
+  void endDeflated(long crc, long size) throws IOException {
+    long compressedSize = out.position - currentDataStart;
+    ZipEntryRecord entry = current.withData(crc, compressedSize, size);
+    current = null;
+
+    boolean zip64 = compressedSize >= ZIP64_MAGIC || size >= ZIP64_MAGIC;
+    byte[] descriptor = new byte[zip64 ? 24 : 16];
+    putInt(descriptor, 0, DATA_DESCRIPTOR_SIGNATURE);
+    putInt(descriptor, 4, crc);
+    if (zip64) {
+      putLong(descriptor, 8, compressedSize);
+      putLong(descriptor, 16, size);
+    } else {
+      putInt(descriptor, 8, compressedSize);
+      putInt(descriptor, 12, size);
+    }
+    out.write(descriptor);
+    entries.add(entry);
+  }
+
+  /**
+   * Writes an entry without compression. The CRC and size have to be known in advance, because
+   * stored entries can not be followed by a data descriptor.
+   *
+   * @param name of the entry.
+   * @param lastModified time in milliseconds.
+   * @param crc of the data.
+   * @param size of the data.
+   * @param data exactly size bytes of the entry content.
+   */
+  void writeStored(String name, long lastModified, long crc, long size, InputStream data)
+      throws IOException {
+    ZipEntryRecord entry =
+        new ZipEntryRecord(
+            name, ZipEntryRecord.STORED, FLAG_UTF8, toDosTime(lastModified), crc, size, size,
+            out.position);
+    writeLocalHeader(entry);
+    copy(name, data, size);
+    entries.add(entry);
+  }
+
+  /**
+   * Copies an entry of another archive as it is, without inflating and deflating it again.
+   *
+   * @param entry record of the entry in the other archive, the name may differ.
+   * @param data exactly the compressed size bytes of the raw entry data.
+   */
+  void copyEntry(ZipEntryRecord entry, InputStream data) throws IOException {
+    // The CRC and sizes are known, so they go in to the local header instead of a data descriptor
+    ZipEntryRecord copy =
+        new ZipEntryRecord(
+            entry.getName(),
+            entry.getMethod(),
+            entry.getFlags() & ~FLAG_DATA_DESCRIPTOR,
+            entry.getDosTime(),
+            entry.getCrc(),
+            entry.getCompressedSize(),
+            entry.getSize(),
+            out.position);
+    writeLocalHeader(copy);
+    copy(entry.getName(), data, entry.getCompressedSize());
+    entries.add(copy);
+  }
+
+  /**
+   * Deflates and writes a small entry that is held in memory, such as an index or a manifest.
+   *
+   * @param name of the entry.
+   * @param content of the entry.
+   */
+  void writeEntry(String name, byte[] content) throws IOException {
+    CRC32 crc = new CRC32();
+    crc.update(content, 0, content.length);
+    Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    try {
+      deflater.setInput(content);
+      deflater.finish();
+      beginDeflated(name, System.currentTimeMillis());
+      byte[] buffer = new byte[Math.max(512, content.length / 2)];
+      while (!deflater.finished()) {
+        int length = deflater.deflate(buffer);
+        writeDeflated(buffer, 0, length);
+      }
+      endDeflated(crc.getValue(), content.length);
+    } finally {
+      deflater.end();
+    }
+  }
+
+  /**
+   * Deflates and writes an entry whose content is written straight in to the archive, so it is
+   * never held in memory as a whole.
+   *
+   * @param name of the entry.
+   * @param content writes the content of the entry.
+   */
+  void writeEntry(String name, EntryContent content) throws IOException {
+    Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    try {
+      beginDeflated(name, System.currentTimeMillis());
+      // Writes the deflated bytes to the archive, without closing it
+      OutputStream deflated =
+          new FilterOutputStream(out) {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+              writeDeflated(b, off, len);
+            }
+
+            @Override
+            public void close() {}
+          };
+      DeflaterOutputStream compressing = new DeflaterOutputStream(deflated, deflater, 8192);
+      CrcOutputStream uncompressed = new CrcOutputStream(compressing);
+      content.writeTo(uncompressed);
+      compressing.finish();
+      endDeflated(uncompressed.crc.getValue(), uncompressed.size);
+    } finally {
+      deflater.end();
+    }
+  }
+
+  /** Writes the central directory. No entries can be added after this. */
+  void finish() throws IOException {
+    if (current != null) {
+      throw new IllegalStateException("Entry " + current.getName() + " is not finished.");
+    }
+    centralDirectoryOffset = out.position;
+    for (ZipEntryRecord entry : entries) {
+      writeCentralHeader(entry);
+    }
+    long centralDirectorySize = out.position - centralDirectoryOffset;
+
+    if (entries.size() >= 0xFFFF
+        || centralDirectoryOffset >= ZIP64_MAGIC
+        || centralDirectorySize >= ZIP64_MAGIC) {
+      long zip64EndOffset = out.position;
+      byte[] zip64End = new byte[56];
+      putInt(zip64End, 0, ZIP64_END_SIGNATURE);
+      putLong(zip64End, 4, zip64End.length - 12);
+      putShort(zip64End, 12, VERSION_ZIP64);
+      putShort(zip64End, 14, VERSION_ZIP64);
+      putLong(zip64End, 24, entries.size());
+      putLong(zip64End, 32, entries.size());
+      putLong(zip64End, 40, centralDirectorySize);
+      putLong(zip64End, 48, centralDirectoryOffset);
+      out.write(zip64End);
+
+      byte[] locator = new byte[20];
+      putInt(locator, 0, ZIP64_LOCATOR_SIGNATURE);
+      putLong(locator, 8, zip64EndOffset);
+      putInt(locator, 16, 1);
+      out.write(locator);
+    }
+
+    byte[] end = new byte[22];
+    putInt(end, 0, END_SIGNATURE);
+    putShort(end, 8, Math.min(entries.size(), 0xFFFF));
+    putShort(end, 10, Math.min(entries.size(), 0xFFFF));
+    putInt(end, 12, Math.min(centralDirectorySize, ZIP64_MAGIC));
+    putInt(end, 16, Math.min(centralDirectoryOffset, ZIP64_MAGIC));
+    out.write(end);
+    out.flush();
+  }
+
+  @Override
+  public void close() throws IOException {
+    out.close();
+  }
+
+  private void copy(String name, InputStream data, long size) throws IOException {
+    byte[] buffer = new byte[64 * 1024];
+    long remaining = size;
+    while (remaining > 0) {
+      int read = data.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+      if (read < 0) {
+        throw new IOException("Entry " + name + " ended before its expected size.");
+      }
+      out.write(buffer, 0, read);
+      remaining -= read;
+    }
+  }
+
+  private void writeLocalHeader(ZipEntryRecord entry) throws IOException {
+    byte[] name = entry.getName().getBytes(StandardCharsets.UTF_8);
+    byte[] header = new byte[30 + name.length];
+    putInt(header, 0, LOCAL_HEADER_SIGNATURE);
+    putShort(header, 4, VERSION_DEFAULT);
+    putShort(header, 6, entry.getFlags());
+    putShort(header, 8, entry.getMethod());
+    putInt(header, 10, entry.getDosTime());
+    if ((entry.getFlags() & FLAG_DATA_DESCRIPTOR) == 0) {
+      putInt(header, 14, entry.getCrc());
+      putInt(header, 18, Math.min(entry.getCompressedSize(), ZIP64_MAGIC));
+      putInt(header, 22, Math.min(entry.getSize(), ZIP64_MAGIC));
+    }
+    putShort(header, 26, name.length);
+    System.arraycopy(name, 0, header, 30, name.length);
+    if (entry.getSize() >= ZIP64_MAGIC || entry.getCompressedSize() >= ZIP64_MAGIC) {
+      // Entries past 4GB whose sizes are known up front need them in a zip64 extra field
+      putShort(header, 4, VERSION_ZIP64);
+      putShort(header, 28, 20);
+      out.write(header);
+      byte[] extra = new byte[20];
+      putShort(extra, 0, ZIP64_EXTRA_ID);
+      putShort(extra, 2, 16);
+      putLong(extra, 4, entry.getSize());
+      putLong(extra, 12, entry.getCompressedSize());
+      out.write(extra);
+    } else {
+      out.write(header);
+    }
+  }
+
+  private void writeCentralHeader(ZipEntryRecord entry) throws IOException {
+    byte[] name = entry.getName().getBytes(StandardCharsets.UTF_8);
+    boolean sizeOverflow = entry.getSize() >= ZIP64_MAGIC;
+    boolean compressedSizeOverflow = entry.getCompressedSize() >= ZIP64_MAGIC;
+    boolean offsetOverflow = entry.getLocalHeaderOffset() >= ZIP64_MAGIC;
+    int extraLength =
+        (sizeOverflow ? 8 : 0) + (compressedSizeOverflow ? 8 : 0) + (offsetOverflow ? 8 : 0);
+    boolean zip64 = extraLength > 0;
+
+    byte[] header = new byte[46 + name.length + (zip64 ? 4 + extraLength : 0)];
+    putInt(header, 0, CENTRAL_HEADER_SIGNATURE);
+    putShort(header, 4, zip64 ? VERSION_ZIP64 : VERSION_DEFAULT);
+    putShort(header, 6, zip64 ? VERSION_ZIP64 : VERSION_DEFAULT);
+    putShort(header, 8, entry.getFlags());
+    putShort(header, 10, entry.getMethod());
+    putInt(header, 12, entry.getDosTime());
+    putInt(header, 16, entry.getCrc());
+    putInt(header, 20, Math.min(entry.getCompressedSize(), ZIP64_MAGIC));
+    putInt(header, 24, Math.min(entry.getSize(), ZIP64_MAGIC));
+    putShort(header, 28, name.length);
+    putShort(header, 30, zip64 ? 4 + extraLength : 0);
+    putInt(header, 42, Math.min(entry.getLocalHeaderOffset(), ZIP64_MAGIC));
+    System.arraycopy(name, 0, header, 46, name.length);
+    if (zip64) {
+      int position = 46 + name.length;
+      putShort(header, position, ZIP64_EXTRA_ID);
+      putShort(header, position + 2, extraLength);
+      position += 4;
+      if (sizeOverflow) {
+        putLong(header, position, entry.getSize());
+        position += 8;
+      }
+      if (compressedSizeOverflow) {
+        putLong(header, position, entry.getCompressedSize());
+        position += 8;
+      }
+      if (offsetOverflow) {
+        putLong(header, position, entry.getLocalHeaderOffset());
+      }
+    }
+    out.write(header);
+  }
+
+  /** Converts milliseconds to the MS-DOS date and time used by zip headers. */
+  static long toDosTime(long millis) {
+    LocalDateTime time =
+        LocalDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneId.systemDefault());
+    if (time.getYear() < 1980) {
+      return (1 << 21) | (1 << 16);
+    }
+    return ((long) (time.getYear() - 1980) << 25)
+        | (time.getMonthValue() << 21)
+        | (time.getDayOfMonth() << 16)
+        | (time.getHour() << 11)
+        | (time.getMinute() << 5)
+        | (time.getSecond() >> 1);
+  }
+
+  static void putShort(byte[] buffer, int offset, long value) {
+    buffer[offset] = (byte) value;
+    buffer[offset + 1] = (byte) (value >>> 8);
+  }
+
+  static void putInt(byte[] buffer, int offset, long value) {
+    putShort(buffer, offset, value);
+    putShort(buffer, offset + 2, value >>> 16);
+  }
+
+  static void putLong(byte[] buffer, int offset, long value) {
+    putInt(buffer, offset, value);
+    putInt(buffer, offset + 4, value >>> 32);
+  }
+
+  /** The content of an entry, written when the entry is. */
+  interface EntryContent {
+
+    /** @param out where the uncompressed content is written to, it is not to be closed. */
+    void writeTo(OutputStream out) throws IOException;
+  }
+
+  /** Keeps track of the CRC and the size of the uncompressed data of an entry. */
+  private static class CrcOutputStream extends FilterOutputStream {
+
+    private final CRC32 crc = new CRC32();
+    private long size;
+
+    CrcOutputStream(OutputStream out) {
+      super(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      crc.update(b);
+      size++;
+      out.write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      crc.update(b, off, len);
+      size += len;
+      out.write(b, off, len);
+    }
+  }
+
+  /** Keeps track of the archive offset of the bytes written. */
+  private static class PositionOutputStream extends FilterOutputStream {
+
+    private long position;
+
+    PositionOutputStream(OutputStream out, long position) {
+      super(out);
+      this.position = position;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      out.write(b);
+      position++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      out.write(b, off, len);
+      position += len;
+    }
+  }
+}
@@ -1,3 +1,4 @@
+import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
 import com.google.gson.JsonPrimitive;
@@ -7,12 +8,15 @@ import com.guardtime.ksi.SignatureReader;
 import com.guardtime.ksi.exceptions.KSIException;
 import com.guardtime.ksi.unisignature.Identity;
 import com.guardtime.ksi.unisignature.KSISignature;
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
 import java.io.*;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 
@@ -27,6 +31,11 @@ public class ContainerApiTest {
     containerApi = new ContainerApi();
   }
 
+  @After
+  public void closeContainerApi() {
+    containerApi.close();
+  }
+
   public ContainerApi getContainerApi() {
     return containerApi;
   }
@@ -34,7 +43,7 @@ public class ContainerApiTest {
   /** Checks if container is being created. */
   @Test
   public void createContainerTest() throws IOException {
-    String pathToContainer = "src/main/resources/containers/konteiner.zip";
+    String pathToContainer = ContainerApi.getContainerPath(CONTAINER).toString();
     containerApi.createContainer(CONTAINER);
     File container = new File(pathToContainer);
     assert (container.exists());
@@ -44,7 +53,7 @@ public class ContainerApiTest {
   /** Checks if container's name is being returned in the json. */
   @Test
   public void readContainerTest() throws IOException {
-    String pathToContainer = "src/main/resources/containers/konteiner.zip";
+    String pathToContainer = ContainerApi.getContainerPath(CONTAINER).toString();
     containerApi.createContainer(CONTAINER);
     String response = containerApi.readContainers();
     JsonParser parser = new JsonParser();
@@ -59,7 +68,7 @@ public class ContainerApiTest {
 
     containerApi.createContainer(CONTAINER);
     containerApi.sign(CONTAINER, USER);
-    String pathToContainer = "src/main/resources/containers/konteiner.zip";
+    String pathToContainer = ContainerApi.getContainerPath(CONTAINER).toString();
     String destDirectory = "src/main/resources/containers/temp";
     // unpack .zip container
     unzip(pathToContainer, destDirectory);
@@ -107,7 +116,7 @@ public class ContainerApiTest {
     containerApi.sign(CONTAINER, USER);
     containerApi.delete(CONTAINER, USER);
 
-    String pathToContainer = "src/main/resources/containers/konteiner.zip";
+    String pathToContainer = ContainerApi.getContainerPath(CONTAINER).toString();
     String destDirectory = "src/main/resources/containers/temp";
     // unpack .zip container
     unzip(pathToContainer, destDirectory);
@@ -123,7 +132,8 @@ public class ContainerApiTest {
 
     // check for other files in the directory. For every signature there should be two files (manifest and signature files)
     File files = new File("src/main/resources/containers/temp/META-INF");
-    String[] fileNames = files.list();
+    String[] fileNames =
+        files.list((dir, name) -> name.startsWith("manifest") || name.startsWith("signature"));
     assert (fileNames.length == 2);
 
     // deletes unzipped files
@@ -145,6 +155,60 @@ public class ContainerApiTest {
 
   }
 
+  /** Signs a container and checks that its signature verifies, also when read from the cache. */
+  @Test
+  public void verifyContainerTest() throws IOException {
+    containerApi.createContainer(CONTAINER);
+    containerApi.sign(CONTAINER, USER);
+
+    JsonParser parser = new JsonParser();
+    JsonObject json = (JsonObject) parser.parse(containerApi.verify(CONTAINER));
+    assert (json.get("valid").getAsBoolean());
+    JsonObject signature = json.getAsJsonArray("signatures").get(0).getAsJsonObject();
+    assert (signature.get("userId").getAsString().equals(USER));
+    assert (containerApi.verify(CONTAINER).equals(json.toString()));
+
+    Files.delete(ContainerApi.getContainerPath(CONTAINER));
+  }
+
+  /** Signs two containers with one bulk request. */
+  @Test
+  public void bulkSignTest() throws IOException {
+    String secondContainer = "teine";
+    containerApi.createContainer(CONTAINER);
+    containerApi.createContainer(secondContainer);
+    String response =
+        containerApi.signBulk(Arrays.asList(CONTAINER, secondContainer, "missing"), USER);
+
+    JsonParser parser = new JsonParser();
+    JsonArray results = ((JsonObject) parser.parse(response)).getAsJsonArray("results");
+    assert (results.size() == 3);
+    assert (results.get(0).getAsJsonObject().get("signatureNumber").getAsInt() == 1);
+    assert (results.get(1).getAsJsonObject().get("signatureNumber").getAsInt() == 1);
+    assert (results.get(2).getAsJsonObject().has("Error"));
+
+    Files.delete(ContainerApi.getContainerPath(CONTAINER));
+    Files.delete(ContainerApi.getContainerPath(secondContainer));
+  }
+
+  /** Signs a container twice at the same time, the signatures get numbers of their own. */
+  @Test
+  public void concurrentSignTest() throws IOException {
+    containerApi.createContainer(CONTAINER);
+    CompletableFuture<String> first =
+        CompletableFuture.supplyAsync(() -> containerApi.sign(CONTAINER, USER));
+    CompletableFuture<String> second =
+        CompletableFuture.supplyAsync(() -> containerApi.sign(CONTAINER, "jane.doe"));
+    assert (first.join().isEmpty());
+    assert (second.join().isEmpty());
+
+    JsonObject json = (JsonObject) new JsonParser().parse(containerApi.verify(CONTAINER));
+    assert (json.get("valid").getAsBoolean());
+    assert (json.getAsJsonArray("signatures").size() == 2);
+
+    Files.delete(ContainerApi.getContainerPath(CONTAINER));
+  }
+
 
   /**
    * Extracts a zip file specified by the zipFilePath to a directory specified by destDirectory
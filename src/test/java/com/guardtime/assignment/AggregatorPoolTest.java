@@ -0,0 +1,131 @@
+package com.guardtime.assignment;
+
+import com.guardtime.ksi.Signer;
+import com.guardtime.ksi.SignerBuilder;
+import com.guardtime.ksi.exceptions.KSIException;
+import com.guardtime.ksi.hashing.DataHash;
+import com.guardtime.ksi.hashing.DataHasher;
+import com.guardtime.ksi.hashing.HashAlgorithm;
+import com.guardtime.ksi.service.KSISigningClientServiceAdapter;
+import com.guardtime.ksi.service.client.KSIServiceCredentials;
+import com.guardtime.ksi.service.client.KSISigningClient;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+public class AggregatorPoolTest {
+
+  private static final DataHash HASH =
+      new DataHasher(HashAlgorithm.SHA2_256)
+          .addData("manifest".getBytes(StandardCharsets.UTF_8))
+          .getHash();
+
+  /** Checks that a request to an aggregator that turned slow is answered by the other one. */
+  @Test
+  public void hedgeTest() throws Exception {
+    AtomicLong fastLatency = new AtomicLong(5);
+    AggregatorPool pool =
+        new AggregatorPool(
+            aggregators(aggregator(fastLatency::get, 0), aggregator(() -> 200, 0)),
+            15,
+            5,
+            10_000,
+            0.1,
+            10);
+    Signer signer = signer(pool);
+    // Enough answers for the percentile, the first aggregator is the faster one
+    for (int i = 0; i < 40; i++) {
+      signer.sign(HASH);
+    }
+    long hedged = pool.getHedgeCount();
+
+    fastLatency.set(2000);
+    long start = System.nanoTime();
+    signer.sign(HASH);
+    assert (System.nanoTime() - start < 1_000_000_000);
+    assert (pool.getHedgeCount() > hedged);
+    pool.close();
+  }
+
+  /** Checks that a failing aggregator is left alone, and tried again after a while. */
+  @Test
+  public void circuitBreakerTest() throws Exception {
+    AtomicInteger failingRequests = new AtomicInteger();
+    AggregatorPool pool =
+        new AggregatorPool(
+            aggregators(
+                aggregator(
+                    () -> {
+                      failingRequests.incrementAndGet();
+                      return 0;
+                    },
+                    1),
+                aggregator(() -> 0, 0)),
+            10_000,
+            3,
+            200,
+            0.1,
+            100);
+    Signer signer = signer(pool);
+    for (int i = 0; i < 10; i++) {
+      signer.sign(HASH);
+    }
+    assert (failingRequests.get() == 3);
+    assert (pool.isOpen("a"));
+    assert (pool.getRetryCount() == 3);
+
+    Thread.sleep(300);
+    signer.sign(HASH);
+    assert (failingRequests.get() == 4);
+    assert (pool.isOpen("a"));
+    pool.close();
+  }
+
+  /** Checks that failures are not retried beyond the budget of the other aggregator. */
+  @Test
+  public void retryBudgetTest() throws Exception {
+    AggregatorPool pool =
+        new AggregatorPool(
+            aggregators(aggregator(() -> 0, 1), aggregator(() -> 0, 0)),
+            10_000,
+            100,
+            10_000,
+            0,
+            2);
+    Signer signer = signer(pool);
+    signer.sign(HASH);
+    signer.sign(HASH);
+    try {
+      signer.sign(HASH);
+      assert (false);
+    } catch (KSIException e) {
+      assert (e.getMessage().contains("0x200"));
+    }
+    assert (pool.getRetryCount() == 2);
+    pool.close();
+  }
+
+  private static Map<String, KSISigningClient> aggregators(
+      LocalAggregator first, LocalAggregator second) {
+    Map<String, KSISigningClient> aggregators = new LinkedHashMap<>();
+    aggregators.put("a", first);
+    aggregators.put("b", second);
+    return aggregators;
+  }
+
+  private static LocalAggregator aggregator(LongSupplier latency, double errorRate) {
+    return new LocalAggregator(
+        new KSIServiceCredentials("anon", "anon"), latency, errorRate, 255, 0, 1000);
+  }
+
+  private static Signer signer(AggregatorPool pool) {
+    return new SignerBuilder()
+        .setSigningService(new KSISigningClientServiceAdapter(pool))
+        .build();
+  }
+}
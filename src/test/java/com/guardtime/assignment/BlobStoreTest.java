@@ -0,0 +1,197 @@
+package com.guardtime.assignment;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+public class BlobStoreTest {
+
+  private final Map<String, byte[]> files = new HashMap<>();
+  private final ContainerCreator creator = new ContainerCreator(new ForkJoinPool(2));
+  private Path sourceDir;
+  private ContainerStore containerStore;
+  private BlobStore blobStore;
+
+  @Before
+  public void createSourceFiles() throws IOException {
+    sourceDir = Files.createTempDirectory("source");
+    containerStore = new ContainerStore(Files.createTempDirectory("containers"), 0);
+    blobStore = BlobStore.of(containerStore);
+
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; text.length() < 700_000; i++) {
+      text.append("line ").append(i).append(" of a datafile\n");
+    }
+    files.put("andmefail.txt", text.toString().getBytes(StandardCharsets.UTF_8));
+    byte[] image = new byte[100_000];
+    new Random(1).nextBytes(image);
+    files.put("picture.png", image);
+    // The same content twice is one blob
+    files.put("sub/copy.txt", text.toString().getBytes(StandardCharsets.UTF_8));
+    for (Map.Entry<String, byte[]> file : files.entrySet()) {
+      Path path = sourceDir.resolve(file.getKey());
+      Files.createDirectories(path.getParent());
+      Files.write(path, file.getValue());
+    }
+  }
+
+  @After
+  public void deleteFiles() throws IOException {
+    for (Path directory : Arrays.asList(sourceDir, containerStore.getRoot())) {
+      try (Stream<Path> paths = Files.walk(directory)) {
+        paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+      }
+    }
+  }
+
+  /** Checks that containers of the same files share the blobs and read back as before. */
+  @Test
+  public void deduplicationTest() throws IOException {
+    List<MetaData> first = create("first");
+    List<MetaData> second = create("second");
+    assert (first.equals(second));
+    assert (blobCount() == 2);
+    for (MetaData datafile : first) {
+      assert (blobStore.references(BlobStore.keyOf(datafile.getHash()))
+          == (datafile.getUri().endsWith(".txt") ? 4 : 2));
+    }
+
+    ByteArrayOutputStream plain = new ByteArrayOutputStream();
+    assert (creator.create(sourceDir, plain).equals(first));
+
+    try (ContainerArchive archive =
+        ContainerArchive.openForReading(containerStore.pathOf("first"), blobStore)) {
+      assert (archive.hasReferencedDatafiles());
+      for (Map.Entry<String, byte[]> file : files.entrySet()) {
+        try (InputStream in = archive.getInputStream(archive.getEntry(file.getKey()))) {
+          assert (Arrays.equals(readAll(in), file.getValue()));
+        }
+      }
+
+      // The rendering is a whole container, readable by anyone
+      ByteArrayOutputStream rendered = new ByteArrayOutputStream();
+      archive.render(rendered);
+      Map<String, byte[]> read = new HashMap<>();
+      try (ZipInputStream zipIn =
+          new ZipInputStream(new ByteArrayInputStream(rendered.toByteArray()))) {
+        ZipEntry entry;
+        while ((entry = zipIn.getNextEntry()) != null) {
+          read.put(entry.getName(), readAll(zipIn));
+        }
+      }
+      for (Map.Entry<String, byte[]> file : files.entrySet()) {
+        assert (Arrays.equals(read.get(file.getKey()), file.getValue()));
+      }
+      assert (!read.containsKey(BlobIndex.ENTRY_NAME));
+      assert (read.containsKey(DigestIndex.ENTRY_NAME));
+    }
+  }
+
+  /** Checks that an uploaded datafile the store already has is not stored again. */
+  @Test
+  public void uploadTest() throws IOException {
+    create("first");
+    ByteArrayOutputStream zip = new ByteArrayOutputStream();
+    try (ZipOutputStream zipOut = new ZipOutputStream(zip)) {
+      zipOut.putNextEntry(new ZipEntry("uploaded.txt"));
+      zipOut.write(files.get("andmefail.txt"));
+      zipOut.putNextEntry(new ZipEntry("new.txt"));
+      zipOut.write("new".getBytes(StandardCharsets.UTF_8));
+    }
+    try (OutputStream out = Files.newOutputStream(containerStore.pathOf("uploaded"))) {
+      Upload upload =
+          Upload.open("application/zip", new ByteArrayInputStream(zip.toByteArray()));
+      creator.create(upload, out, blobStore);
+    }
+    assert (blobCount() == 3);
+    try (ContainerArchive archive =
+        ContainerArchive.openForReading(containerStore.pathOf("uploaded"), blobStore)) {
+      assert (Arrays.equals(
+          readAll(archive.getInputStream(archive.getEntry("uploaded.txt"))),
+          files.get("andmefail.txt")));
+    }
+  }
+
+  /** Checks that the blobs no container refers to are deleted, and only those. */
+  @Test
+  public void garbageCollectionTest() throws IOException {
+    create("first");
+    create("second");
+    Files.delete(containerStore.pathOf("first"));
+    assert (blobStore.collectGarbage(containerStore) == 0);
+    for (MetaData datafile : create("third")) {
+      assert (blobStore.references(BlobStore.keyOf(datafile.getHash()))
+          == (datafile.getUri().endsWith(".txt") ? 4 : 2));
+    }
+
+    Files.delete(containerStore.pathOf("second"));
+    Files.delete(containerStore.pathOf("third"));
+    assert (blobStore.collectGarbage(containerStore) == 2);
+    assert (blobCount() == 0);
+  }
+
+  /** Checks that a blob whose reference count is lost is kept until the references are counted. */
+  @Test
+  public void lostReferencesTest() throws IOException {
+    List<MetaData> datafiles = create("first");
+    create("second");
+    String key = BlobStore.keyOf(datafiles.get(0).getHash());
+    Path references = blobStore.pathOf(key).resolveSibling(key + ".refs");
+    Files.delete(references);
+    assert (blobStore.references(key) == BlobStore.UNKNOWN_REFERENCES);
+    assert (blobStore.retain(key));
+    blobStore.release(key);
+    blobStore.release(key);
+    assert (Files.exists(blobStore.pathOf(key)));
+
+    Files.write(references, "not a count".getBytes(StandardCharsets.US_ASCII));
+    blobStore.release(key);
+    assert (Files.exists(blobStore.pathOf(key)));
+
+    assert (blobStore.collectGarbage(containerStore) == 0);
+    assert (blobStore.references(key) > 0);
+  }
+
+  private List<MetaData> create(String name) throws IOException {
+    try (OutputStream out = Files.newOutputStream(containerStore.pathOf(name))) {
+      return creator.create(sourceDir, out, blobStore);
+    }
+  }
+
+  private long blobCount() throws IOException {
+    Path root = containerStore.getRoot().resolve(".blobs");
+    try (Stream<Path> paths = Files.walk(root)) {
+      return paths.filter(path -> path.toString().endsWith(".zip")).count();
+    }
+  }
+
+  private static byte[] readAll(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[8192];
+    int read;
+    while ((read = in.read(buffer)) != -1) {
+      out.write(buffer, 0, read);
+    }
+    return out.toByteArray();
+  }
+}
@@ -0,0 +1,159 @@
+package com.guardtime.assignment;
+
+import com.guardtime.ksi.hashing.HashAlgorithm;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+public class CompressedEntryCacheTest {
+
+  private static final Metrics.Counter CACHED_ENTRIES =
+      Metrics.REGISTRY.counter(
+          "container_cached_entries_total", "Datafiles copied compressed from the entry cache.");
+
+  private final Map<String, byte[]> files = new HashMap<>();
+  private Path sourceDir;
+  private Path cacheDir;
+  private Path container;
+
+  @Before
+  public void createSourceFiles() throws IOException {
+    sourceDir = Files.createTempDirectory("source");
+    cacheDir = Files.createTempDirectory("cache");
+    container = Files.createTempFile("container", ".zip");
+
+    // Spans several chunks
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; text.length() < 1_500_000; i++) {
+      text.append("line ").append(i).append(" of a datafile\n");
+    }
+    files.put("andmefail.txt", text.toString().getBytes(StandardCharsets.UTF_8));
+    files.put("empty.txt", new byte[0]);
+    byte[] image = new byte[100_000];
+    new Random(1).nextBytes(image);
+    files.put("picture.png", image);
+    files.put("sub/nested.txt", "nested".getBytes(StandardCharsets.UTF_8));
+    for (Map.Entry<String, byte[]> file : files.entrySet()) {
+      Path path = sourceDir.resolve(file.getKey());
+      Files.createDirectories(path.getParent());
+      Files.write(path, file.getValue());
+    }
+  }
+
+  @After
+  public void deleteFiles() throws IOException {
+    for (Path directory : Arrays.asList(sourceDir, cacheDir)) {
+      try (Stream<Path> paths = Files.walk(directory)) {
+        paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+      }
+    }
+    Files.delete(container);
+  }
+
+  /** Checks that the second container of the same files is made of the cached entries. */
+  @Test
+  public void cachedCreateTest() throws IOException {
+    ContainerCreator creator = creator(new CompressedEntryCache(cacheDir, 64 * 1024 * 1024));
+    List<MetaData> first = create(creator, 0);
+    List<MetaData> second = create(creator, 3);
+    assert (first.equals(second));
+  }
+
+  /** Checks that a file changed without a change in size or time is compressed again. */
+  @Test
+  public void changedFileTest() throws IOException {
+    ContainerCreator creator = creator(new CompressedEntryCache(cacheDir, 64 * 1024 * 1024));
+    List<MetaData> first = create(creator, 0);
+
+    Path path = sourceDir.resolve("andmefail.txt");
+    FileTime modified = Files.getLastModifiedTime(path);
+    byte[] changed = files.get("andmefail.txt").clone();
+    changed[changed.length / 2] = '#';
+    Files.write(path, changed);
+    Files.setLastModifiedTime(path, modified);
+    files.put("andmefail.txt", changed);
+
+    List<MetaData> second = create(creator, 2);
+    assert (!first.equals(second));
+    assert (create(creator, 3).equals(second));
+  }
+
+  /** Checks that the cache keeps to its size, and is found again after a restart. */
+  @Test
+  public void evictionTest() throws IOException {
+    CompressedEntryCache cache = new CompressedEntryCache(cacheDir, 4096);
+    create(creator(cache), 0);
+    assert (cache.size() > 0 && cache.size() <= 4096);
+
+    CompressedEntryCache restarted = new CompressedEntryCache(cacheDir, 4096);
+    assert (restarted.size() == cache.size());
+    create(creator(restarted), 2);
+  }
+
+  private static ContainerCreator creator(CompressedEntryCache cache) {
+    return new ContainerCreator(
+        new ForkJoinPool(4), Collections.singletonList(HashAlgorithm.SHA2_256), cache);
+  }
+
+  /**
+   * Creates the container and checks that it has the source files.
+   *
+   * @param cached how many files should be copied from the cache.
+   */
+  private List<MetaData> create(ContainerCreator creator, int cached) throws IOException {
+    long before = CACHED_ENTRIES.get();
+    List<MetaData> metaData;
+    try (OutputStream out = Files.newOutputStream(container)) {
+      metaData = creator.create(sourceDir, out);
+    }
+    assert (CACHED_ENTRIES.get() - before == cached);
+
+    Map<String, byte[]> read = new HashMap<>();
+    try (ZipInputStream zipIn = new ZipInputStream(Files.newInputStream(container))) {
+      ZipEntry entry;
+      while ((entry = zipIn.getNextEntry()) != null) {
+        read.put(entry.getName(), readAll(zipIn));
+      }
+    }
+    try (ZipFile zipFile = new ZipFile(container.toFile())) {
+      for (Map.Entry<String, byte[]> file : files.entrySet()) {
+        assert (Arrays.equals(read.get(file.getKey()), file.getValue()));
+        try (InputStream in = zipFile.getInputStream(zipFile.getEntry(file.getKey()))) {
+          assert (Arrays.equals(readAll(in), file.getValue()));
+        }
+      }
+    }
+    return metaData;
+  }
+
+  private static byte[] readAll(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[8192];
+    int read;
+    while ((read = in.read(buffer)) != -1) {
+      out.write(buffer, 0, read);
+    }
+    return out.toByteArray();
+  }
+}
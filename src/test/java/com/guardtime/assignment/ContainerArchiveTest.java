@@ -0,0 +1,148 @@
+package com.guardtime.assignment;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+public class ContainerArchiveTest {
+
+  private Path container;
+  private byte[] datafile;
+
+  /** Creates a container the way older versions did, with a ZipOutputStream. */
+  @Before
+  public void createContainer() throws IOException {
+    container = Files.createTempFile("container", ".zip");
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < 10_000; i++) {
+      text.append("line ").append(i).append('\n');
+    }
+    datafile = text.toString().getBytes(StandardCharsets.UTF_8);
+    try (ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(container))) {
+      out.putNextEntry(new ZipEntry("andmefail.txt"));
+      out.write(datafile);
+      out.closeEntry();
+    }
+  }
+
+  @After
+  public void deleteContainer() throws IOException {
+    Files.delete(container);
+  }
+
+  /** Checks that appending leaves the datafiles untouched. */
+  @Test
+  public void appendTest() throws IOException {
+    long datafileEnd;
+    try (ContainerArchive archive = ContainerArchive.open(container)) {
+      ZipEntryRecord entry = archive.getEntry("andmefail.txt");
+      datafileEnd = entry.getLocalHeaderOffset() + entry.getCompressedSize();
+      archive.update(Collections.emptySet(), entries("META-INF/manifest1.tlv", "manifest"));
+    }
+    byte[] before = Files.readAllBytes(container);
+
+    try (ContainerArchive archive = ContainerArchive.open(container)) {
+      archive.update(Collections.emptySet(), entries("META-INF/signature1.ksi", "signature"));
+    }
+    byte[] after = Files.readAllBytes(container);
+    assert (Arrays.equals(
+        Arrays.copyOf(before, (int) datafileEnd), Arrays.copyOf(after, (int) datafileEnd)));
+
+    Map<String, String> content = readWithZipFile();
+    assert (content.size() == 3);
+    assert (content.get("andmefail.txt").equals(new String(datafile, StandardCharsets.UTF_8)));
+    assert (content.get("META-INF/manifest1.tlv").equals("manifest"));
+    assert (content.get("META-INF/signature1.ksi").equals("signature"));
+    assert (readWithZipInputStream().equals(content));
+  }
+
+  /** Checks that removed and replaced entries are gone and the ones after them are moved. */
+  @Test
+  public void removeAndReplaceTest() throws IOException {
+    try (ContainerArchive archive = ContainerArchive.open(container)) {
+      archive.update(
+          Collections.emptySet(),
+          entries(
+              "META-INF/manifest1.tlv", "manifest1",
+              "META-INF/signature1.ksi", "signature1",
+              "META-INF/manifest2.tlv", "manifest2",
+              "META-INF/signature2.ksi", "signature2",
+              SignerIndex.ENTRY_NAME, "index"));
+      archive.update(
+          Arrays.asList("META-INF/manifest1.tlv", "META-INF/signature1.ksi"),
+          entries(SignerIndex.ENTRY_NAME, "new index"));
+    }
+
+    Map<String, String> content = readWithZipFile();
+    assert (content.size() == 4);
+    assert (!content.containsKey("META-INF/manifest1.tlv"));
+    assert (content.get("META-INF/manifest2.tlv").equals("manifest2"));
+    assert (content.get("META-INF/signature2.ksi").equals("signature2"));
+    assert (content.get(SignerIndex.ENTRY_NAME).equals("new index"));
+    // A streaming reader must not see the removed entries either
+    assert (readWithZipInputStream().equals(content));
+
+    try (ContainerArchive archive = ContainerArchive.openForReading(container)) {
+      try (InputStream in = archive.getInputStream(archive.getEntry("andmefail.txt"))) {
+        assert (Arrays.equals(readAll(in), datafile));
+      }
+    }
+  }
+
+  private static Map<String, byte[]> entries(String... namesAndContents) {
+    Map<String, byte[]> entries = new LinkedHashMap<>();
+    for (int i = 0; i < namesAndContents.length; i += 2) {
+      entries.put(namesAndContents[i], namesAndContents[i + 1].getBytes(StandardCharsets.UTF_8));
+    }
+    return entries;
+  }
+
+  private Map<String, String> readWithZipFile() throws IOException {
+    Map<String, String> content = new HashMap<>();
+    try (ZipFile zipFile = new ZipFile(container.toFile())) {
+      for (ZipEntry entry : Collections.list(zipFile.entries())) {
+        try (InputStream in = zipFile.getInputStream(entry)) {
+          content.put(entry.getName(), new String(readAll(in), StandardCharsets.UTF_8));
+        }
+      }
+    }
+    return content;
+  }
+
+  private Map<String, String> readWithZipInputStream() throws IOException {
+    Map<String, String> content = new HashMap<>();
+    try (ZipInputStream zipIn = new ZipInputStream(Files.newInputStream(container))) {
+      ZipEntry entry;
+      while ((entry = zipIn.getNextEntry()) != null) {
+        content.put(entry.getName(), new String(readAll(zipIn), StandardCharsets.UTF_8));
+      }
+    }
+    return content;
+  }
+
+  private static byte[] readAll(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[8192];
+    int read;
+    while ((read = in.read(buffer)) != -1) {
+      out.write(buffer, 0, read);
+    }
+    return out.toByteArray();
+  }
+}
@@ -0,0 +1,90 @@
+package com.guardtime.assignment;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Stream;
+
+public class ContainerCatalogTest {
+
+  private Path directory;
+  private ContainerCatalog catalog;
+
+  @Before
+  public void createCatalog() throws IOException {
+    directory = Files.createTempDirectory("containers");
+    Files.createFile(directory.resolve("existing.zip"));
+    Files.createFile(directory.resolve(".DS_Store"));
+    catalog = new ContainerCatalog(new ContainerStore(directory, 0));
+  }
+
+  @After
+  public void deleteDirectory() throws IOException {
+    catalog.close();
+    try (Stream<Path> paths = Files.walk(directory)) {
+      paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+    }
+  }
+
+  /** Checks that the containers already in the directory are found. */
+  @Test
+  public void existingContainersTest() {
+    assert (catalog.contains("existing"));
+    assert (catalog.names().size() == 1);
+  }
+
+  /** Checks that a name can be reserved only once and is listed only after it is committed. */
+  @Test
+  public void reservationTest() {
+    assert (catalog.reserve("konteiner"));
+    assert (!catalog.reserve("konteiner"));
+    assert (!catalog.reserve("existing"));
+    assert (!catalog.names().contains("konteiner"));
+
+    catalog.commit("konteiner");
+    assert (catalog.names().contains("konteiner"));
+
+    assert (catalog.reserve("failed"));
+    catalog.release("failed");
+    assert (!catalog.contains("failed"));
+  }
+
+  /** Checks that containers added and removed by someone else are noticed. */
+  @Test
+  public void watchServiceTest() throws IOException, InterruptedException {
+    Files.createFile(directory.resolve("external.zip"));
+    waitUntil(() -> catalog.contains("external"));
+    Files.delete(directory.resolve("existing.zip"));
+    waitUntil(() -> !catalog.contains("existing"));
+  }
+
+  /** Checks that closing the catalog ends its watcher thread. */
+  @Test
+  public void closeTest() throws IOException {
+    long watchers = countWatchers();
+    catalog.close();
+    assert (countWatchers() == watchers - 1);
+  }
+
+  private static long countWatchers() {
+    return Thread.getAllStackTraces().keySet().stream()
+        .filter(thread -> thread.getName().equals("container-catalog-watcher"))
+        .count();
+  }
+
+  private static void waitUntil(BooleanSupplier condition)
+      throws InterruptedException {
+    // Some platforms poll for changes instead of getting notified
+    long deadline = System.currentTimeMillis() + 30_000;
+    while (!condition.getAsBoolean()) {
+      assert (System.currentTimeMillis() < deadline);
+      Thread.sleep(50);
+    }
+  }
+}
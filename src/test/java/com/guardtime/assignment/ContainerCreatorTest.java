@@ -0,0 +1,150 @@
+package com.guardtime.assignment;
+
+import com.guardtime.ksi.hashing.DataHasher;
+import com.guardtime.ksi.hashing.HashAlgorithm;
+import com.guardtime.ksi.util.Base16;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+public class ContainerCreatorTest {
+
+  private Path sourceDir;
+  private Path container;
+  private final Map<String, byte[]> files = new HashMap<>();
+  private List<MetaData> metaData;
+
+  @Before
+  public void createSourceFiles() throws IOException {
+    sourceDir = Files.createTempDirectory("source");
+    container = Files.createTempFile("container", ".zip");
+
+    // Spans several chunks, so the chunks have to be joined in to one deflate stream
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; text.length() < 1_500_000; i++) {
+      text.append("line ").append(i).append(" of a datafile\n");
+    }
+    files.put("andmefail.txt", text.toString().getBytes(StandardCharsets.UTF_8));
+    files.put("empty.txt", new byte[0]);
+    byte[] image = new byte[100_000];
+    new Random(1).nextBytes(image);
+    files.put("picture.png", image);
+    files.put("sub/nested.txt", "nested".getBytes(StandardCharsets.UTF_8));
+
+    for (Map.Entry<String, byte[]> file : files.entrySet()) {
+      Path path = sourceDir.resolve(file.getKey());
+      Files.createDirectories(path.getParent());
+      Files.write(path, file.getValue());
+    }
+    try (OutputStream out = Files.newOutputStream(container)) {
+      metaData = new ContainerCreator(new ForkJoinPool(4)).create(sourceDir, out);
+    }
+  }
+
+  @After
+  public void deleteFiles() throws IOException {
+    try (Stream<Path> paths = Files.walk(sourceDir)) {
+      paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+    }
+    Files.delete(container);
+  }
+
+  /** Checks that a streaming reader gets back the same content. */
+  @Test
+  public void containerIsReadableAsStreamTest() throws IOException {
+    Map<String, byte[]> read = new HashMap<>();
+    try (ZipInputStream zipIn = new ZipInputStream(Files.newInputStream(container))) {
+      ZipEntry entry;
+      while ((entry = zipIn.getNextEntry()) != null) {
+        read.put(entry.getName(), readAll(zipIn));
+      }
+    }
+    read.remove(DigestIndex.ENTRY_NAME);
+    assert (read.size() == files.size());
+    for (Map.Entry<String, byte[]> file : files.entrySet()) {
+      assert (Arrays.equals(read.get(file.getKey()), file.getValue()));
+    }
+  }
+
+  /** Checks the central directory and that already compressed files are stored. */
+  @Test
+  public void centralDirectoryTest() throws IOException {
+    try (ZipFile zipFile = new ZipFile(container.toFile())) {
+      assert (zipFile.size() == files.size() + 1);
+      for (Map.Entry<String, byte[]> file : files.entrySet()) {
+        ZipEntry entry = zipFile.getEntry(file.getKey());
+        try (InputStream in = zipFile.getInputStream(entry)) {
+          assert (Arrays.equals(readAll(in), file.getValue()));
+        }
+      }
+      assert (zipFile.getEntry("picture.png").getMethod() == ZipEntry.STORED);
+      assert (zipFile.getEntry("andmefail.txt").getMethod() == ZipEntry.DEFLATED);
+    }
+  }
+
+  /** Checks that the digest index holds the hash of every datafile. */
+  @Test
+  public void digestIndexTest() throws IOException {
+    try (ZipFile zipFile = new ZipFile(container.toFile())) {
+      List<MetaData> indexed;
+      try (InputStream in = zipFile.getInputStream(zipFile.getEntry(DigestIndex.ENTRY_NAME))) {
+        indexed = DigestIndex.read(in);
+      }
+      assert (indexed.equals(metaData));
+      assert (indexed.size() == files.size());
+      for (MetaData df : indexed) {
+        DataHasher dh = new DataHasher(HashAlgorithm.SHA2_256);
+        dh.addData(files.get(df.getUri()));
+        assert (df.getHash().equals(Base16.encode(dh.getHash().getValue())));
+      }
+    }
+  }
+
+  /** Checks that the index matches the datafiles hashed in another order, but not changed ones. */
+  @Test
+  public void digestIndexMatchesTest() {
+    List<MetaData> reversed = new ArrayList<>(metaData);
+    Collections.reverse(reversed);
+    assert (DigestIndex.matches(metaData, reversed));
+
+    List<MetaData> changed = new ArrayList<>(reversed);
+    MetaData first = changed.get(0);
+    changed.set(0, new MetaData(first.getUri(), first.getHashAlgorithm(), "00"));
+    assert (!DigestIndex.matches(metaData, changed));
+
+    List<MetaData> duplicated = new ArrayList<>(metaData);
+    duplicated.set(0, metaData.get(1));
+    assert (!DigestIndex.matches(metaData, duplicated));
+  }
+
+  private static byte[] readAll(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[8192];
+    int read;
+    while ((read = in.read(buffer)) != -1) {
+      out.write(buffer, 0, read);
+    }
+    return out.toByteArray();
+  }
+}
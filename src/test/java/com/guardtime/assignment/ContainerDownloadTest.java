@@ -0,0 +1,124 @@
+package com.guardtime.assignment;
+
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+
+public class ContainerDownloadTest {
+
+  private Path file;
+  private byte[] content;
+  private HttpServer server;
+
+  @Before
+  public void startServer() throws IOException {
+    content = new byte[3 * 1024 * 1024 + 17];
+    new Random(1).nextBytes(content);
+    file = Files.createTempFile("container", ".zip");
+    Files.write(file, content);
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext(
+        "/download",
+        exchange -> {
+          ContainerDownload.send(exchange, file);
+          exchange.close();
+        });
+    server.start();
+  }
+
+  @After
+  public void stopServer() throws IOException {
+    server.stop(0);
+    Files.deleteIfExists(file);
+  }
+
+  /** Checks that the whole container is sent and that an unchanged one is not sent again. */
+  @Test
+  public void conditionalDownloadTest() throws IOException {
+    HttpURLConnection connection = connect();
+    assert (connection.getResponseCode() == 200);
+    assert (Arrays.equals(read(connection), content));
+    String eTag = connection.getHeaderField("ETag");
+
+    connection = connect();
+    connection.setRequestProperty("If-None-Match", eTag);
+    assert (connection.getResponseCode() == 304);
+  }
+
+  /** Checks that a download can be resumed from where it stopped. */
+  @Test
+  public void rangeDownloadTest() throws IOException {
+    HttpURLConnection connection = connect();
+    connection.setRequestProperty("Range", "bytes=1000-");
+    assert (connection.getResponseCode() == 206);
+    assert (Arrays.equals(read(connection), Arrays.copyOfRange(content, 1000, content.length)));
+
+    connection = connect();
+    connection.setRequestProperty("Range", "bytes=" + content.length + "-");
+    assert (connection.getResponseCode() == 416);
+
+    connection = connect();
+    connection.setRequestProperty("Range", "bytes=-10");
+    connection.setRequestProperty("If-Range", "\"outdated\"");
+    assert (connection.getResponseCode() == 200);
+  }
+
+  /** Checks that a snapshot is sent as it was taken, although the end of the file changed since. */
+  @Test
+  public void snapshotTest() throws IOException {
+    long stableLength = content.length - 1000;
+    server.createContext(
+        "/snapshot",
+        exchange -> {
+          try (ContainerDownload.Snapshot snapshot =
+              ContainerDownload.snapshot(file, stableLength)) {
+            // As if the container was signed right after the lock was released
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+              ContainerJournal.writeTail(channel, stableLength, new byte[2000]);
+            }
+            ContainerDownload.send(exchange, snapshot);
+          }
+          exchange.close();
+        });
+
+    HttpURLConnection connection = connect("/snapshot");
+    assert (connection.getResponseCode() == 200);
+    assert (Arrays.equals(read(connection), content));
+
+    Files.write(file, content);
+    connection = connect("/snapshot");
+    connection.setRequestProperty("Range", "bytes=" + (stableLength - 10) + "-");
+    assert (connection.getResponseCode() == 206);
+    assert (Arrays.equals(
+        read(connection), Arrays.copyOfRange(content, (int) stableLength - 10, content.length)));
+  }
+
+  private HttpURLConnection connect() throws IOException {
+    return connect("/download");
+  }
+
+  private HttpURLConnection connect(String path) throws IOException {
+    URL url = new URL("http://localhost:" + server.getAddress().getPort() + path);
+    return (HttpURLConnection) url.openConnection();
+  }
+
+  private static byte[] read(HttpURLConnection connection) throws IOException {
+    try (InputStream input = connection.getInputStream()) {
+      return IOUtils.toByteArray(input);
+    }
+  }
+}
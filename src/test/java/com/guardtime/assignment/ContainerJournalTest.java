@@ -0,0 +1,219 @@
+package com.guardtime.assignment;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+public class ContainerJournalTest {
+
+  private Path directory;
+  private Path journalFile;
+
+  @Before
+  public void createDirectory() throws IOException {
+    directory = Files.createTempDirectory("store");
+    journalFile = directory.resolve(".journal").resolve("containers.journal");
+  }
+
+  @After
+  public void deleteDirectory() throws IOException {
+    try (Stream<Path> paths = Files.walk(directory)) {
+      paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+    }
+  }
+
+  /** Checks that an update cut short is finished when the journal is opened again. */
+  @Test
+  public void recoveryTest() throws IOException {
+    Path container = createContainer("container.zip");
+    ContainerJournal journal = new ContainerJournal(directory, Long.MAX_VALUE);
+    sign(container, journal, 2);
+    byte[] expected = Files.readAllBytes(container);
+
+    // As if the server stopped while the end of the container was being written
+    try (FileChannel channel = FileChannel.open(container, StandardOpenOption.WRITE)) {
+      channel.truncate(expected.length - 30);
+      channel.write(ByteBuffer.wrap(new byte[10]), expected.length - 60);
+    }
+    assert (Files.size(journalFile) > 0);
+
+    try (ContainerJournal recovered = new ContainerJournal(directory, Long.MAX_VALUE)) {
+      assert (Arrays.equals(Files.readAllBytes(container), expected));
+      assert (Files.size(journalFile) == 0);
+      assertSignatures(container, 2);
+    }
+    journal.close();
+  }
+
+  /** Checks that recovery stops at a record that was not written in full. */
+  @Test
+  public void tornRecordTest() throws IOException {
+    Path container = createContainer("container.zip");
+    ContainerJournal journal = new ContainerJournal(directory, Long.MAX_VALUE);
+    sign(container, journal, 2);
+    byte[] signed = Files.readAllBytes(container);
+    long journaled = Files.size(journalFile);
+    sign(container, journal, 3);
+
+    // The second record is cut, as if it was never synced, and the container is left as it was
+    try (FileChannel channel = FileChannel.open(journalFile, StandardOpenOption.WRITE)) {
+      channel.truncate(journaled + (Files.size(journalFile) - journaled) / 2);
+    }
+    Files.write(container, Arrays.copyOf(signed, signed.length - 5));
+
+    try (ContainerJournal recovered = new ContainerJournal(directory, Long.MAX_VALUE)) {
+      assert (Arrays.equals(Files.readAllBytes(container), signed));
+    }
+    journal.close();
+  }
+
+  /** Checks that concurrent updates are all written and share the syncs of the journal. */
+  @Test
+  public void groupCommitTest() throws Exception {
+    List<Path> containers = new ArrayList<>();
+    for (int i = 0; i < 8; i++) {
+      containers.add(createContainer("container" + i + ".zip"));
+    }
+    ContainerJournal journal = new ContainerJournal(directory, Long.MAX_VALUE);
+    ExecutorService executor = Executors.newFixedThreadPool(containers.size());
+    List<Future<?>> futures = new ArrayList<>();
+    for (Path container : containers) {
+      futures.add(
+          executor.submit(
+              () -> {
+                for (int number = 2; number <= 21; number++) {
+                  sign(container, journal, number);
+                }
+                return null;
+              }));
+    }
+    for (Future<?> future : futures) {
+      future.get();
+    }
+    executor.shutdown();
+    assert (journal.getRecordCount() == 160);
+    assert (journal.getSyncCount() <= journal.getRecordCount());
+
+    journal.close();
+    assert (Files.size(journalFile) == 0);
+    for (Path container : containers) {
+      assertSignatures(container, 21);
+    }
+  }
+
+  /** Checks that a change that could not be written through the channel is written again. */
+  @Test
+  public void writeAgainTest() throws IOException {
+    Path container = createContainer("container.zip");
+    byte[] tail = "changed".getBytes(StandardCharsets.UTF_8);
+    long offset = Files.size(container) - 10;
+    try (ContainerJournal journal = new ContainerJournal(directory, Long.MAX_VALUE);
+        FileChannel readOnly = FileChannel.open(container, StandardOpenOption.READ)) {
+      journal.write(container, readOnly, offset, tail);
+    }
+    byte[] written = Files.readAllBytes(container);
+    assert (written.length == offset + tail.length);
+    assert (Arrays.equals(Arrays.copyOfRange(written, (int) offset, written.length), tail));
+  }
+
+  /** Checks that a change that could not be written at all is not replayed later. */
+  @Test
+  public void undoTest() throws IOException {
+    Path container = createContainer("container.zip");
+    byte[] original = Files.readAllBytes(container);
+    Path moved = directory.resolve("moved.zip");
+    ContainerJournal journal = new ContainerJournal(directory, Long.MAX_VALUE);
+    try (FileChannel readOnly = FileChannel.open(container, StandardOpenOption.READ)) {
+      // Neither the channel nor the path can be written to
+      Files.move(container, moved);
+      Files.createDirectory(container);
+      journal.write(container, readOnly, 10, "changed".getBytes(StandardCharsets.UTF_8));
+      assert (false);
+    } catch (IOException | RuntimeException e) {
+      assert (e.getSuppressed().length == 2);
+    }
+    Files.delete(container);
+    Files.move(moved, container);
+
+    journal.close();
+    assert (Arrays.equals(Files.readAllBytes(container), original));
+    new ContainerJournal(directory, Long.MAX_VALUE).close();
+    assert (Arrays.equals(Files.readAllBytes(container), original));
+  }
+
+  /** Checks that the journal is emptied once it grows past its limit. */
+  @Test
+  public void checkpointTest() throws IOException {
+    Path container = createContainer("container.zip");
+    try (ContainerJournal journal = new ContainerJournal(directory, 1)) {
+      sign(container, journal, 2);
+      assert (Files.size(journalFile) == 0);
+      assertSignatures(container, 2);
+    }
+  }
+
+  private Path createContainer(String name) throws IOException {
+    Path container = directory.resolve(name);
+    try (OutputStream out = Files.newOutputStream(container)) {
+      ZipWriter zipWriter = new ZipWriter(out);
+      zipWriter.writeEntry("andmefail.txt", "datafile".getBytes(StandardCharsets.UTF_8));
+      zipWriter.writeEntry("META-INF/signature1.ksi", signature(1));
+      zipWriter.writeEntry(SignerIndex.ENTRY_NAME, index(1));
+      zipWriter.finish();
+    }
+    return container;
+  }
+
+  /** Adds a signature and replaces the index after it, the way signing changes a container. */
+  private static void sign(Path container, ContainerJournal journal, int number)
+      throws IOException {
+    try (ContainerArchive archive = ContainerArchive.open(container, null, journal)) {
+      Map<String, byte[]> add = new LinkedHashMap<>();
+      add.put("META-INF/signature" + number + ".ksi", signature(number));
+      add.put(SignerIndex.ENTRY_NAME, index(number));
+      archive.update(Collections.emptySet(), add);
+    }
+  }
+
+  private static void assertSignatures(Path container, int count) throws IOException {
+    try (ContainerArchive archive = ContainerArchive.openForReading(container)) {
+      assert (archive.getEntries().size() == count + 2);
+      for (int number = 1; number <= count; number++) {
+        ZipEntryRecord entry = archive.getEntry("META-INF/signature" + number + ".ksi");
+        try (InputStream in = archive.getInputStream(entry)) {
+          assert (Arrays.equals(IOUtils.toByteArray(in), signature(number)));
+        }
+      }
+    }
+  }
+
+  private static byte[] signature(int number) {
+    return ("signature " + number).getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static byte[] index(int count) {
+    return ("signatures " + count).getBytes(StandardCharsets.UTF_8);
+  }
+}
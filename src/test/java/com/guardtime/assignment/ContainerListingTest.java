@@ -0,0 +1,178 @@
+package com.guardtime.assignment;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+
+public class ContainerListingTest {
+
+  private Path directory;
+  private ContainerCatalog catalog;
+  private HttpServer server;
+
+  @Before
+  public void startServer() throws IOException {
+    directory = Files.createTempDirectory("store");
+    for (int i = 0; i < 25; i++) {
+      Files.write(directory.resolve(String.format("c%02d.zip", i)), new byte[i]);
+    }
+    Files.write(directory.resolve("other.zip"), new byte[0]);
+    catalog = new ContainerCatalog(new ContainerStore(directory, 0));
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext(
+        "/read",
+        exchange -> {
+          ContainerListing.send(
+              exchange,
+              catalog,
+              ContainerListing.Query.parse(exchange.getRequestURI().getRawQuery()),
+              (name, signatures) ->
+                  new ContainerListing.Summary(
+                      Files.size(directory.resolve(name + ".zip")), signatures ? 0 : null));
+          exchange.close();
+        });
+    server.start();
+  }
+
+  @After
+  public void stopServer() throws IOException {
+    server.stop(0);
+    catalog.close();
+    try (Stream<Path> paths = Files.walk(directory)) {
+      paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+    }
+  }
+
+  /** Checks that the pages of a prefix add up to the sorted names with it. */
+  @Test
+  public void pagingTest() throws IOException {
+    List<String> names = new ArrayList<>();
+    String query = "prefix=c&limit=10";
+    int pages = 0;
+    while (true) {
+      JsonObject page = read(connect(query));
+      pages++;
+      for (JsonElement name : page.getAsJsonArray("containers")) {
+        names.add(name.getAsString());
+      }
+      if (!page.has("next")) {
+        assert (page.get("numberOfContainers").getAsInt() == 5);
+        break;
+      }
+      assert (page.get("numberOfContainers").getAsInt() == 10);
+      query = "prefix=c&limit=10&after=" + page.get("next").getAsString();
+    }
+    assert (pages == 3);
+    List<String> expected = new ArrayList<>();
+    for (int i = 0; i < 25; i++) {
+      expected.add(String.format("c%02d", i));
+    }
+    assert (names.equals(expected));
+    assert (read(connect("")).get("numberOfContainers").getAsInt() == 26);
+  }
+
+  /** Checks that the listing is gzipped and is not sent again until the catalog changes. */
+  @Test
+  public void conditionalGzipTest() throws IOException {
+    HttpURLConnection connection = connect("limit=1");
+    connection.setRequestProperty("Accept-Encoding", "gzip");
+    assert (connection.getResponseCode() == 200);
+    assert ("gzip".equals(connection.getContentEncoding()));
+    String eTag = connection.getHeaderField("ETag");
+    try (InputStream in = new GZIPInputStream(connection.getInputStream())) {
+      JsonObject page = new JsonParser().parse(IOUtils.toString(in, StandardCharsets.UTF_8))
+          .getAsJsonObject();
+      assert (page.get("next").getAsString().equals("c00"));
+    }
+
+    connection = connect("limit=1");
+    connection.setRequestProperty("Accept-Encoding", "gzip");
+    connection.setRequestProperty("If-None-Match", eTag);
+    assert (connection.getResponseCode() == 304);
+
+    assert (catalog.reserve("added"));
+    catalog.commit("added");
+    connection = connect("limit=1");
+    connection.setRequestProperty("Accept-Encoding", "gzip");
+    connection.setRequestProperty("If-None-Match", eTag);
+    assert (connection.getResponseCode() == 200);
+  }
+
+  /** Checks that a listing of an earlier run is sent again after a restart. */
+  @Test
+  public void restartTest() throws IOException {
+    HttpURLConnection connection = connect("");
+    assert (connection.getResponseCode() == 200);
+    String eTag = connection.getHeaderField("ETag");
+
+    // The catalog of the restarted server is as many changes old, but the containers differ
+    catalog.close();
+    Files.delete(directory.resolve("other.zip"));
+    Files.write(directory.resolve("another.zip"), new byte[0]);
+    catalog = new ContainerCatalog(new ContainerStore(directory, 0));
+    connection = connect("");
+    connection.setRequestProperty("If-None-Match", eTag);
+    assert (connection.getResponseCode() == 200);
+    assert (!connection.getHeaderField("ETag").equals(eTag));
+    assert (read(connection).getAsJsonArray("containers").get(0).getAsString().equals("another"));
+  }
+
+  /** Checks that the fields asked for are given of each container, and only those. */
+  @Test
+  public void fieldsTest() throws IOException {
+    JsonArray containers = read(connect("prefix=c1&fields=size")).getAsJsonArray("containers");
+    assert (containers.size() == 10);
+    for (JsonElement element : containers) {
+      JsonObject container = element.getAsJsonObject();
+      String name = container.get("name").getAsString();
+      assert (container.get("size").getAsLong() == Integer.parseInt(name.substring(1)));
+      assert (!container.has("signatures"));
+    }
+    JsonObject container =
+        read(connect("prefix=other&fields=size,signatures"))
+            .getAsJsonArray("containers")
+            .get(0)
+            .getAsJsonObject();
+    assert (container.get("signatures").getAsInt() == 0);
+
+    try {
+      ContainerListing.Query.parse("limit=0");
+      assert (false);
+    } catch (IllegalArgumentException e) {
+      // Expected
+    }
+  }
+
+  private HttpURLConnection connect(String query) throws IOException {
+    URL url = new URL("http://localhost:" + server.getAddress().getPort() + "/read?" + query);
+    return (HttpURLConnection) url.openConnection();
+  }
+
+  private static JsonObject read(HttpURLConnection connection) throws IOException {
+    assert (connection.getResponseCode() == 200);
+    try (InputStream in = connection.getInputStream()) {
+      return new JsonParser().parse(IOUtils.toString(in, StandardCharsets.UTF_8))
+          .getAsJsonObject();
+    }
+  }
+}
@@ -0,0 +1,53 @@
+package com.guardtime.assignment;
+
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+public class ContainerLocksTest {
+
+  /** Checks that a container being changed can not be locked, but other containers can. */
+  @Test
+  public void writeLockTest() throws Exception {
+    ContainerLocks locks = new ContainerLocks(50);
+    try (ContainerLocks.Lock lock = locks.acquireWrite("first")) {
+      locks.acquireWrite("second").close();
+      CompletableFuture<Boolean> timedOut =
+          CompletableFuture.supplyAsync(
+              () -> {
+                try {
+                  locks.acquireRead("first").close();
+                  return false;
+                } catch (ContainerLocks.LockTimeoutException e) {
+                  return true;
+                }
+              });
+      assert (timedOut.get(5, TimeUnit.SECONDS));
+    }
+    locks.acquireWrite("first").close();
+    assert (locks.size() == 0);
+  }
+
+  /** Checks that readers share the lock and that it is forgotten once they are done. */
+  @Test
+  public void readLockTest() throws Exception {
+    ContainerLocks locks = new ContainerLocks(50);
+    ContainerLocks.Lock first = locks.acquireRead("container");
+    ContainerLocks.Lock second = locks.acquireRead("container");
+    assert (locks.size() == 1);
+    first.close();
+    second.close();
+    assert (locks.size() == 0);
+  }
+
+  /** Checks that a lock can be released by another thread than the one that took it. */
+  @Test
+  public void releaseOnOtherThreadTest() throws Exception {
+    ContainerLocks locks = new ContainerLocks(50);
+    ContainerLocks.Lock lock = locks.acquireWrite("container");
+    CompletableFuture.runAsync(lock::close).get(5, TimeUnit.SECONDS);
+    locks.acquireWrite("container").close();
+    assert (locks.size() == 0);
+  }
+}
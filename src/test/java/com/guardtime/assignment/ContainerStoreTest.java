@@ -0,0 +1,100 @@
+package com.guardtime.assignment;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.stream.Stream;
+
+public class ContainerStoreTest {
+
+  private static final List<String> NAMES = Arrays.asList("konteiner", "teine", "kolmas");
+
+  private Path directory;
+
+  @Before
+  public void createFlatStore() throws IOException {
+    directory = Files.createTempDirectory("store");
+    for (String name : NAMES) {
+      Files.write(directory.resolve(name + ContainerCatalog.EXTENSION), name.getBytes());
+    }
+    Files.createDirectories(directory.resolve(".jobs"));
+  }
+
+  @After
+  public void deleteDirectory() throws IOException {
+    try (Stream<Path> paths = Files.walk(directory)) {
+      paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+    }
+  }
+
+  /** Checks that a container is stored two hash named directories below the root. */
+  @Test
+  public void pathTest() {
+    ContainerStore store = new ContainerStore(directory, 2);
+    Path path = store.pathOf("konteiner");
+    assert (path.equals(store.pathOf("konteiner")));
+    assert (path.getFileName().toString().equals("konteiner.zip"));
+    assert (path.getParent().getParent().getParent().equals(directory));
+    assert (path.getParent().getFileName().toString().matches("[0-9a-f]{2}"));
+    assert (new ContainerStore(directory, 0).pathOf("konteiner")
+        .equals(directory.resolve("konteiner.zip")));
+  }
+
+  /** Checks that a flat store is migrated in to shards and back, leaving no empty shards. */
+  @Test
+  public void migrateTest() throws IOException {
+    ContainerStore sharded = new ContainerStore(directory, 2);
+    assert (sharded.names().isEmpty());
+    assert (sharded.hasUnshardedContainers());
+
+    assert (sharded.migrate() == NAMES.size());
+    assert (new HashSet<>(sharded.names()).equals(new HashSet<>(NAMES)));
+    assert (!sharded.hasUnshardedContainers());
+    for (String name : NAMES) {
+      assert (new String(Files.readAllBytes(sharded.pathOf(name))).equals(name));
+    }
+    assert (sharded.migrate() == 0);
+
+    ContainerStore flat = new ContainerStore(directory, 0);
+    assert (flat.migrate() == NAMES.size());
+    assert (new HashSet<>(flat.names()).equals(new HashSet<>(NAMES)));
+    try (Stream<Path> paths = Files.list(directory)) {
+      // Only the containers and the signing jobs are left
+      assert (paths.count() == NAMES.size() + 1);
+    }
+  }
+
+  /** Checks that a sharded catalog finds containers created and deleted by someone else. */
+  @Test
+  public void shardedCatalogTest() throws IOException {
+    ContainerStore store = new ContainerStore(directory, 2);
+    store.migrate();
+    try (ContainerCatalog catalog = new ContainerCatalog(store)) {
+      assert (catalog.contains("konteiner"));
+      assert (!catalog.contains("external"));
+
+      Files.createDirectories(store.pathOf("external").getParent());
+      Files.createFile(store.pathOf("external"));
+      assert (catalog.contains("external"));
+      assert (catalog.names().contains("external"));
+
+      Files.delete(store.pathOf("konteiner"));
+      assert (catalog.reserve("konteiner"));
+      catalog.release("konteiner");
+      assert (!catalog.contains("konteiner"));
+
+      // A miss drops the container from the catalog
+      Files.delete(store.pathOf("teine"));
+      assert (!catalog.contains("teine"));
+      assert (!catalog.names().contains("teine"));
+    }
+  }
+}
@@ -0,0 +1,147 @@
+package com.guardtime.assignment;
+
+import com.google.gson.JsonObject;
+import com.guardtime.ksi.SignerBuilder;
+import com.guardtime.ksi.hashing.DataHasher;
+import com.guardtime.ksi.hashing.HashAlgorithm;
+import com.guardtime.ksi.service.KSISigningClientServiceAdapter;
+import com.guardtime.ksi.unisignature.KSISignature;
+import com.guardtime.ksi.unisignature.verifier.policies.ContextAwarePolicyAdapter;
+import com.guardtime.ksi.util.Base16;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+public class ContainerVerifierTest {
+
+  private static final byte[] DATAFILE = "datafile".getBytes(StandardCharsets.UTF_8);
+
+  private final LocalAggregator aggregator = new LocalAggregator();
+  private SigningAggregator signingAggregator;
+  private ContainerVerifier containerVerifier;
+  private Path container;
+  private List<MetaData> datafiles;
+
+  @Before
+  public void createContainer() throws IOException {
+    signingAggregator = new SigningAggregator(aggregator, 256, 0, 1, 60_000);
+    containerVerifier =
+        new ContainerVerifier(ContextAwarePolicyAdapter.createInternalPolicy(), 100);
+    container = Files.createTempFile("container", ".zip");
+    datafiles = Collections.singletonList(metaData(DATAFILE));
+  }
+
+  @After
+  public void deleteContainer() throws IOException {
+    signingAggregator.shutdown();
+    Files.delete(container);
+  }
+
+  /** Checks that the result of an unchanged container comes from the cache. */
+  @Test
+  public void cacheHitTest() throws Exception {
+    writeContainer(datafiles);
+    JsonObject result = verify(datafiles);
+    assert (result.get("valid").getAsBoolean());
+    assert (signature(result).get("userId").getAsString().equals("John.Smith"));
+    assert (containerVerifier.getCacheMisses() == 1);
+    assert (containerVerifier.getCacheHits() == 0);
+
+    assert (verify(datafiles).equals(result));
+    assert (containerVerifier.getCacheMisses() == 1);
+    assert (containerVerifier.getCacheHits() == 1);
+  }
+
+  /** Checks that changed datafiles are not answered from the cache. */
+  @Test
+  public void invalidationTest() throws Exception {
+    writeContainer(datafiles);
+    assert (verify(datafiles).get("valid").getAsBoolean());
+
+    List<MetaData> changed =
+        Collections.singletonList(metaData("changed".getBytes(StandardCharsets.UTF_8)));
+    JsonObject result = verify(changed);
+    assert (containerVerifier.getCacheMisses() == 2);
+    assert (!result.get("valid").getAsBoolean());
+    assert (signature(result).get("Error").getAsString().contains("Datafiles do not match"));
+  }
+
+  /** Checks that a manifest changed after it was signed fails the signature. */
+  @Test
+  public void tamperedManifestTest() throws Exception {
+    List<MetaData> other =
+        Collections.singletonList(metaData("other".getBytes(StandardCharsets.UTF_8)));
+    // The manifest lists the current datafiles, but the signature is of another manifest
+    writeContainer(
+        datafiles, signingAggregator.sign(new Manifest(other, 1).getHash(), "John.Smith"));
+    JsonObject result = verify(datafiles);
+    assert (!result.get("valid").getAsBoolean());
+    assert (signature(result).get("Error").getAsString().equals("Signature does not verify."));
+  }
+
+  /** Checks that a signature without identity metadata fails instead of breaking the request. */
+  @Test
+  public void missingIdentityTest() throws Exception {
+    KSISignature signature =
+        new SignerBuilder()
+            .setSigningService(new KSISigningClientServiceAdapter(aggregator))
+            .build()
+            .sign(new Manifest(datafiles, 1).getHash());
+    writeContainer(datafiles, signature);
+    JsonObject result = verify(datafiles);
+    assert (!result.get("valid").getAsBoolean());
+    assert (signature(result).get("Error").getAsString().contains("does not name its signer"));
+  }
+
+  private JsonObject verify(List<MetaData> current) throws IOException {
+    try (ContainerArchive archive = ContainerArchive.openForReading(container)) {
+      return containerVerifier.verify(
+          "container", archive, current, algorithm -> Collections.emptyList());
+    }
+  }
+
+  private static JsonObject signature(JsonObject result) {
+    return result.getAsJsonArray("signatures").get(0).getAsJsonObject();
+  }
+
+  private void writeContainer(List<MetaData> signed) throws Exception {
+    writeContainer(
+        signed, signingAggregator.sign(new Manifest(signed, 1).getHash(), "John.Smith"));
+  }
+
+  /** Writes the datafile with the manifest of the datafiles and the signature. */
+  private void writeContainer(List<MetaData> listed, KSISignature signature) throws Exception {
+    ByteArrayOutputStream signatureBytes = new ByteArrayOutputStream();
+    signature.writeTo(signatureBytes);
+    try (OutputStream file = Files.newOutputStream(container);
+        ZipOutputStream out = new ZipOutputStream(file)) {
+      out.putNextEntry(new ZipEntry("andmefail.txt"));
+      out.write(DATAFILE);
+      out.putNextEntry(new ZipEntry(Manifest.entryName(1)));
+      new Manifest(listed, 1).writeTo(out);
+      out.putNextEntry(new ZipEntry("META-INF/signature1.ksi"));
+      signatureBytes.writeTo(out);
+      out.closeEntry();
+    }
+  }
+
+  private static MetaData metaData(byte[] content) {
+    DataHasher dataHasher = new DataHasher(HashAlgorithm.SHA2_256);
+    dataHasher.addData(content);
+    return new MetaData(
+        "andmefail.txt",
+        HashAlgorithm.SHA2_256.getName(),
+        Base16.encode(dataHasher.getHash().getValue()));
+  }
+}
@@ -0,0 +1,109 @@
+package com.guardtime.assignment;
+
+import com.guardtime.ksi.hashing.DataHasher;
+import com.guardtime.ksi.hashing.HashAlgorithm;
+import com.guardtime.ksi.util.Base16;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+public class DatafileHasherTest {
+
+  private final List<byte[]> contents = new ArrayList<>();
+  private Path container;
+
+  @Before
+  public void createContainer() throws Exception {
+    container = Files.createTempFile("hasher", ".zip");
+    Random random = new Random(1);
+    try (ZipWriter writer = new ZipWriter(Files.newOutputStream(container))) {
+      for (int i = 0; i < 20; i++) {
+        // Some larger than the read buffer
+        byte[] content = new byte[random.nextInt(200_000)];
+        random.nextBytes(content);
+        contents.add(content);
+        writer.writeEntry("datafile" + i + ".bin", content);
+      }
+      writer.finish();
+    }
+  }
+
+  @After
+  public void deleteContainer() throws Exception {
+    Files.delete(container);
+  }
+
+  /** Checks that datafiles hashed in parallel come back in order, hashed as DataHasher does. */
+  @Test
+  public void parallelTest() throws Exception {
+    DatafileHasher hasher =
+        new DatafileHasher(new ForkJoinPool(4), Collections.singletonList(HashAlgorithm.SHA2_256));
+    List<MetaData> metaData;
+    try (ContainerArchive archive = ContainerArchive.openForReading(container)) {
+      metaData = hasher.hash(archive, new ArrayList<>(archive.getEntries()));
+    }
+    assert (metaData.size() == contents.size());
+    for (int i = 0; i < contents.size(); i++) {
+      DataHasher dataHasher = new DataHasher(HashAlgorithm.SHA2_256);
+      dataHasher.addData(contents.get(i));
+      assert (metaData.get(i).getUri().equals("datafile" + i + ".bin"));
+      assert (metaData.get(i).getHashAlgorithm().equals("SHA-256"));
+      assert (metaData.get(i).getHash().equals(Base16.encode(dataHasher.getHash().getValue())));
+    }
+  }
+
+  /** Checks that each datafile is hashed with every algorithm of the policy. */
+  @Test
+  public void policyTest() throws Exception {
+    String policy = isAvailable("SHA3-256") ? "SHA-256, SHA-512, SHA3-256" : "SHA-256, SHA-512";
+    List<HashAlgorithm> algorithms = DatafileHasher.parsePolicy(policy);
+    assert (algorithms.size() == policy.split(",").length);
+    DatafileHasher hasher = new DatafileHasher(new ForkJoinPool(2), algorithms);
+    List<MetaData> metaData;
+    try (ContainerArchive archive = ContainerArchive.openForReading(container)) {
+      metaData = hasher.hash(archive, new ArrayList<>(archive.getEntries()));
+    }
+    assert (metaData.size() == contents.size() * algorithms.size());
+    for (int i = 0; i < metaData.size(); i++) {
+      HashAlgorithm algorithm = algorithms.get(i % algorithms.size());
+      byte[] expected =
+          MessageDigest.getInstance(algorithm.getName())
+              .digest(contents.get(i / algorithms.size()));
+      assert (metaData.get(i).getHashAlgorithm().equals(algorithm.getName()));
+      assert (metaData.get(i).getHash().equals(Base16.encode(expected)));
+    }
+  }
+
+  /** Checks that a policy of unknown or untrusted algorithms is refused. */
+  @Test
+  public void invalidPolicyTest() {
+    for (String policy : Arrays.asList("MD5", "SHA1", "SHA-256,MD5", " ")) {
+      try {
+        DatafileHasher.parsePolicy(policy);
+        assert (false);
+      } catch (IllegalArgumentException e) {
+        // Expected
+      }
+    }
+  }
+
+  private static boolean isAvailable(String algorithm) {
+    try {
+      MessageDigest.getInstance(algorithm);
+      return true;
+    } catch (NoSuchAlgorithmException e) {
+      return false;
+    }
+  }
+}
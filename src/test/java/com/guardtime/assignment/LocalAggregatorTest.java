@@ -0,0 +1,96 @@
+package com.guardtime.assignment;
+
+import com.guardtime.ksi.Signer;
+import com.guardtime.ksi.SignerBuilder;
+import com.guardtime.ksi.exceptions.KSIException;
+import com.guardtime.ksi.hashing.DataHash;
+import com.guardtime.ksi.hashing.DataHasher;
+import com.guardtime.ksi.hashing.HashAlgorithm;
+import com.guardtime.ksi.service.KSISigningClientServiceAdapter;
+import com.guardtime.ksi.service.client.KSIServiceCredentials;
+import com.guardtime.ksi.unisignature.KSISignature;
+import com.guardtime.ksi.unisignature.verifier.policies.ContextAwarePolicyAdapter;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.function.LongSupplier;
+
+public class LocalAggregatorTest {
+
+  private static final DataHash HASH =
+      new DataHasher(HashAlgorithm.SHA2_256)
+          .addData("manifest".getBytes(StandardCharsets.UTF_8))
+          .getHash();
+
+  /** Checks that the signatures pass the internal verification, also for hashes of a block. */
+  @Test
+  public void signatureTest() throws Exception {
+    Signer signer = signer(new LocalAggregator());
+    for (long level : new long[] {0, 5}) {
+      KSISignature signature = signer.sign(HASH, level);
+      assert (new com.guardtime.ksi.SignatureVerifier()
+          .verify(signature, HASH, level, ContextAwarePolicyAdapter.createInternalPolicy())
+          .isOk());
+    }
+  }
+
+  /** Checks that the requests over the limits, and the failures on purpose, are refused. */
+  @Test
+  public void limitsTest() throws Exception {
+    Signer limited = signer(aggregator(() -> 0, 0, 2, 1));
+    assert (failure(limited, 3).contains("0x104"));
+    limited.sign(HASH, 2);
+    assert (failure(limited, 0).contains("0x106"));
+    assert (failure(signer(aggregator(() -> 0, 1, 255, 0)), 0).contains("0x200"));
+  }
+
+  /** Checks the latency distributions and that the answer is delayed by the latency. */
+  @Test
+  public void latencyTest() throws Exception {
+    assert (LocalAggregator.parseLatency("fixed:7").getAsLong() == 7);
+    for (int i = 0; i < 100; i++) {
+      long uniform = LocalAggregator.parseLatency("uniform:10-20").getAsLong();
+      assert (uniform >= 10 && uniform <= 20);
+      assert (LocalAggregator.parseLatency("exponential:50").getAsLong() >= 0);
+      assert (LocalAggregator.parseLatency("normal:5,10").getAsLong() >= 0);
+    }
+
+    Signer slow = signer(aggregator(() -> 200, 0, 255, 0));
+    long start = System.nanoTime();
+    slow.sign(HASH);
+    assert (System.nanoTime() - start >= 200_000_000);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void unknownLatencyTest() {
+    LocalAggregator.parseLatency("gamma:3");
+  }
+
+  private static LocalAggregator aggregator(
+      LongSupplier latency, double errorRate, long maxLevel, int maxRequests) {
+    // The round is long enough for every request of the test to be in the same round
+    return new LocalAggregator(
+        new KSIServiceCredentials("anon", "anon"),
+        latency,
+        errorRate,
+        maxLevel,
+        maxRequests,
+        Long.MAX_VALUE);
+  }
+
+  private static Signer signer(LocalAggregator aggregator) {
+    return new SignerBuilder()
+        .setSigningService(new KSISigningClientServiceAdapter(aggregator))
+        .build();
+  }
+
+  /** @return the message of the error the signing failed with. */
+  private static String failure(Signer signer, long level) {
+    try {
+      signer.sign(HASH, level);
+    } catch (KSIException e) {
+      return e.getMessage();
+    }
+    throw new AssertionError("The signing did not fail.");
+  }
+}
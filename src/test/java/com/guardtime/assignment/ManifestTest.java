@@ -0,0 +1,164 @@
+package com.guardtime.assignment;
+
+import com.guardtime.ksi.hashing.DataHash;
+import com.guardtime.ksi.hashing.DataHasher;
+import com.guardtime.ksi.hashing.HashAlgorithm;
+import com.guardtime.ksi.tlv.TLVElement;
+import com.guardtime.ksi.tlv.TLVInputStream;
+import com.guardtime.ksi.util.Base16;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class ManifestTest {
+
+  private static final List<MetaData> DATAFILES =
+      Arrays.asList(
+          new MetaData("andmefail.txt", "SHA-256", Base16.encode(new byte[32])),
+          new MetaData(
+              "pildid/" + String.join("", Collections.nCopies(300, "\u00f5")) + ".png",
+              "SHA-256",
+              Base16.encode(hash("picture".getBytes(StandardCharsets.UTF_8)).getValue())));
+
+  /** Checks that a written manifest reads back the same and is hashed as it is written. */
+  @Test
+  public void roundTripTest() throws Exception {
+    Manifest manifest = new Manifest(DATAFILES, 3);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    manifest.writeTo(out);
+    byte[] content = out.toByteArray();
+    assert (manifest.getHash().equals(hash(content)));
+
+    List<MetaData> datafiles = new ArrayList<>();
+    List<String> signatureUris = new ArrayList<>();
+    DataHash readHash =
+        Manifest.read(new ByteArrayInputStream(content), handler(datafiles, signatureUris));
+    assert (readHash.equals(manifest.getHash()));
+    assert (datafiles.equals(DATAFILES));
+    assert (signatureUris.equals(Collections.singletonList("META-INF/signature3.ksi")));
+    assert (Manifest.entryName(3).equals("META-INF/manifest3.tlv"));
+    assert (Manifest.isManifest(Manifest.entryName(3)));
+  }
+
+  /** Checks that the TLV parser of the KSI SDK reads the manifest. */
+  @Test
+  public void sdkParserTest() throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    new Manifest(DATAFILES, 1).writeTo(out);
+    try (TLVInputStream in = new TLVInputStream(new ByteArrayInputStream(out.toByteArray()))) {
+      for (MetaData expected : DATAFILES) {
+        TLVElement datafile = in.readElement();
+        assert (datafile.getType() == 0x01);
+        assert (datafile.getFirstChildElement(0x01).getDecodedString().equals(expected.getUri()));
+        DataHash imprint = datafile.getFirstChildElement(0x02).getDecodedDataHash();
+        assert (imprint.getAlgorithm() == HashAlgorithm.SHA2_256);
+        assert (Base16.encode(imprint.getValue()).equals(expected.getHash()));
+      }
+      TLVElement signatureUri = in.readElement();
+      assert (signatureUri.getType() == 0x02);
+      assert (signatureUri.getDecodedString().equals("META-INF/signature1.ksi"));
+      assert (!in.hasNextElement());
+    }
+  }
+
+  /** Checks that manifests written as text by earlier versions are still read. */
+  @Test
+  public void textManifestTest() throws Exception {
+    String text =
+        "Datafile\n\turi=andmefail.txt\n\thash-algorithm=SHA-256\n\thash="
+            + DATAFILES.get(0).getHash()
+            + "\nsignature-uri=META-INF/signature1.ksi";
+    byte[] content = text.getBytes(StandardCharsets.UTF_8);
+    List<MetaData> datafiles = new ArrayList<>();
+    List<String> signatureUris = new ArrayList<>();
+    DataHash readHash =
+        Manifest.read(new ByteArrayInputStream(content), handler(datafiles, signatureUris));
+    assert (readHash.equals(hash(content)));
+    assert (datafiles.equals(DATAFILES.subList(0, 1)));
+    assert (signatureUris.equals(Collections.singletonList("META-INF/signature1.ksi")));
+  }
+
+  /** Checks that unknown critical elements and truncated manifests are refused. */
+  @Test
+  public void malformedTest() throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    new Manifest(DATAFILES, 1).writeTo(out);
+    byte[] content = out.toByteArray();
+    assertMalformed(Arrays.copyOf(content, content.length - 1));
+    assertMalformed(new byte[] {0x05, 0x01, 0x00});
+
+    // Unknown non-critical elements are skipped
+    byte[] extended = Arrays.copyOf(content, content.length + 3);
+    System.arraycopy(new byte[] {0x45, 0x01, 0x00}, 0, extended, content.length, 3);
+    List<MetaData> datafiles = new ArrayList<>();
+    Manifest.read(new ByteArrayInputStream(extended), handler(datafiles, new ArrayList<>()));
+    assert (datafiles.equals(DATAFILES));
+  }
+
+  /** Checks that a manifest written straight in to a container reads back from it. */
+  @Test
+  public void containerTest() throws Exception {
+    Path zip = Files.createTempFile("manifest", ".zip");
+    try {
+      try (ZipWriter writer = new ZipWriter(Files.newOutputStream(zip))) {
+        writer.writeEntry("andmefail.txt", new byte[0]);
+        writer.finish();
+      }
+      Manifest manifest = new Manifest(DATAFILES, 1);
+      try (ContainerArchive archive = ContainerArchive.open(zip)) {
+        archive.updateStreamed(
+            Collections.emptySet(), Collections.singletonMap(Manifest.entryName(1), manifest));
+      }
+      List<MetaData> datafiles = new ArrayList<>();
+      try (ContainerArchive archive = ContainerArchive.openForReading(zip)) {
+        DataHash readHash =
+            Manifest.read(
+                archive.getInputStream(archive.getEntry(Manifest.entryName(1))),
+                handler(datafiles, new ArrayList<>()));
+        assert (readHash.equals(manifest.getHash()));
+      }
+      assert (datafiles.equals(DATAFILES));
+    } finally {
+      Files.delete(zip);
+    }
+  }
+
+  private static void assertMalformed(byte[] content) throws IOException {
+    try {
+      Manifest.read(
+          new ByteArrayInputStream(content), handler(new ArrayList<>(), new ArrayList<>()));
+      assert (false);
+    } catch (Manifest.MalformedManifestException e) {
+      // Expected
+    }
+  }
+
+  private static Manifest.Handler handler(List<MetaData> datafiles, List<String> signatureUris) {
+    return new Manifest.Handler() {
+      @Override
+      public void datafile(MetaData datafile) {
+        datafiles.add(datafile);
+      }
+
+      @Override
+      public void signatureUri(String uri) {
+        signatureUris.add(uri);
+      }
+    };
+  }
+
+  private static DataHash hash(byte[] data) {
+    DataHasher dataHasher = new DataHasher(HashAlgorithm.SHA2_256);
+    dataHasher.addData(data);
+    return dataHasher.getHash();
+  }
+}
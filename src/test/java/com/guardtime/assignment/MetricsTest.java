@@ -0,0 +1,61 @@
+package com.guardtime.assignment;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+public class MetricsTest {
+
+  /** Checks that the buckets of a histogram are cumulative and its sum is in seconds. */
+  @Test
+  public void histogramTest() {
+    Metrics metrics = new Metrics();
+    Metrics.Histogram histogram =
+        metrics.histogram("test_duration_seconds", "Test durations.", "endpoint", "sign");
+    histogram.recordNanos(TimeUnit.MICROSECONDS.toNanos(50));
+    histogram.recordNanos(TimeUnit.MILLISECONDS.toNanos(1));
+    histogram.recordNanos(TimeUnit.SECONDS.toNanos(1000));
+    assert (histogram.count() == 3);
+
+    String scrape = metrics.scrape();
+    assert (scrape.contains("# TYPE test_duration_seconds histogram\n"));
+    assert (scrape.contains("test_duration_seconds_bucket{endpoint=\"sign\",le=\"0.0001\"} 1\n"));
+    assert (scrape.contains("test_duration_seconds_bucket{endpoint=\"sign\",le=\"0.0008\"} 1\n"));
+    assert (scrape.contains("test_duration_seconds_bucket{endpoint=\"sign\",le=\"0.0016\"} 2\n"));
+    assert (scrape.contains("test_duration_seconds_bucket{endpoint=\"sign\",le=\"+Inf\"} 3\n"));
+    assert (scrape.contains("test_duration_seconds_sum{endpoint=\"sign\"} 1000.00105\n"));
+    assert (scrape.contains("test_duration_seconds_count{endpoint=\"sign\"} 3\n"));
+  }
+
+  /** Checks that registering a series again returns or replaces the one before. */
+  @Test
+  public void registerAgainTest() {
+    Metrics metrics = new Metrics();
+    metrics.counter("test_total", "Test counter.", "code", "2xx").add(2);
+    metrics.counter("test_total", "Test counter.", "code", "2xx").increment();
+    metrics.counter("test_total", "Test counter.", "code", "5xx").increment();
+    metrics.gauge("test_depth", "Test gauge.", () -> 1);
+    metrics.gauge("test_depth", "Test gauge.", () -> 2);
+
+    String scrape = metrics.scrape();
+    assert (scrape.indexOf("# HELP test_total") == scrape.lastIndexOf("# HELP test_total"));
+    assert (scrape.contains("test_total{code=\"2xx\"} 3\n"));
+    assert (scrape.contains("test_total{code=\"5xx\"} 1\n"));
+    assert (scrape.contains("test_depth 2.0\n"));
+    assert (!scrape.contains("test_depth 1.0\n"));
+  }
+
+  /** Checks that label values are escaped and a name can not change its type. */
+  @Test
+  public void labelsTest() {
+    Metrics metrics = new Metrics();
+    metrics.counter("test_total", "Test counter.", "name", "a\"b\\c").increment();
+    assert (metrics.scrape().contains("test_total{name=\"a\\\"b\\\\c\"} 1\n"));
+    try {
+      metrics.histogram("test_total", "Test counter.");
+      assert (false);
+    } catch (IllegalArgumentException e) {
+      // A counter is not a histogram
+    }
+  }
+}
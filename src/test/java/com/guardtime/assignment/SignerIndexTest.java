@@ -0,0 +1,98 @@
+package com.guardtime.assignment;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+public class SignerIndexTest {
+
+  private Path container;
+
+  /** Creates a container signed before the signer index existed. */
+  @Before
+  public void createContainer() throws IOException {
+    container = Files.createTempFile("container", ".zip");
+    try (ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(container))) {
+      write(out, "andmefail.txt", "datafile");
+      write(out, "META-INF/manifest1.tlv", "manifest");
+      write(out, "META-INF/signature1.ksi", "John.Smith");
+      write(out, "META-INF/manifest2.tlv", "manifest");
+      write(out, "META-INF/signature2.ksi", "Jane.Doe");
+      write(out, "META-INF/manifest3.tlv", "manifest");
+      write(out, "META-INF/signature3.ksi", "John.Smith");
+      // Signed without identity metadata
+      write(out, "META-INF/manifest4.tlv", "manifest");
+      write(out, "META-INF/signature4.ksi", "");
+      // Left without its signature
+      write(out, "META-INF/manifest6.tlv", "manifest");
+    }
+  }
+
+  @After
+  public void deleteContainer() throws IOException {
+    Files.delete(container);
+  }
+
+  /** Checks the lookup of the signatures of a user and the numbers given out. */
+  @Test
+  public void lookupTest() throws IOException {
+    SignerIndex signerIndex = new SignerIndex();
+    assert (signerIndex.nextSignatureNumber() == 1);
+    signerIndex.add("John.Smith", 1);
+    signerIndex.add("Jane.Doe", 2);
+    signerIndex.add("John.Smith", 3);
+    assert (signerIndex.get("John.Smith").equals(Arrays.asList(1, 3)));
+    assert (signerIndex.get("Jane.Doe").equals(Collections.singletonList(2)));
+    assert (signerIndex.get("Nobody").isEmpty());
+    assert (signerIndex.size() == 3);
+    assert (signerIndex.nextSignatureNumber() == 4);
+
+    SignerIndex read = SignerIndex.read(new ByteArrayInputStream(signerIndex.toBytes()));
+    assert (read.get("John.Smith").equals(Arrays.asList(1, 3)));
+    assert (read.nextSignatureNumber() == 4);
+
+    assert (read.remove("John.Smith").equals(Arrays.asList(1, 3)));
+    assert (read.get("John.Smith").isEmpty());
+    assert (read.remove("John.Smith").isEmpty());
+    assert (read.size() == 1);
+    // The numbers of removed signatures are not given out again
+    assert (read.nextSignatureNumber() == 4);
+  }
+
+  /** Checks that the index of a container without one is built from its signatures. */
+  @Test
+  public void backfillTest() throws Exception {
+    SignerIndex signerIndex;
+    try (ContainerArchive archive = ContainerArchive.openForReading(container)) {
+      signerIndex =
+          SignerIndex.build(
+              archive,
+              in -> {
+                String userId = IOUtils.toString(in, StandardCharsets.UTF_8);
+                return userId.isEmpty() ? null : userId;
+              });
+    }
+    assert (signerIndex.get("John.Smith").equals(Arrays.asList(1, 3)));
+    assert (signerIndex.get("Jane.Doe").equals(Collections.singletonList(2)));
+    assert (signerIndex.size() == 3);
+    assert (signerIndex.nextSignatureNumber() == 7);
+  }
+
+  private static void write(ZipOutputStream out, String name, String content)
+      throws IOException {
+    out.putNextEntry(new ZipEntry(name));
+    out.write(content.getBytes(StandardCharsets.UTF_8));
+    out.closeEntry();
+  }
+}
@@ -0,0 +1,60 @@
+package com.guardtime.assignment;
+
+import com.guardtime.ksi.exceptions.KSIException;
+import com.guardtime.ksi.hashing.DataHash;
+import com.guardtime.ksi.hashing.DataHasher;
+import com.guardtime.ksi.hashing.HashAlgorithm;
+import com.guardtime.ksi.service.client.KSIServiceCredentials;
+import com.guardtime.ksi.unisignature.KSISignature;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+public class SigningAggregatorTest {
+
+  private static final DataHash HASH =
+      new DataHasher(HashAlgorithm.SHA2_256)
+          .addData("manifest".getBytes(StandardCharsets.UTF_8))
+          .getHash();
+
+  /** Checks that a request taken in to a batch that was still being gathered is failed. */
+  @Test
+  public void shutdownTest() throws Exception {
+    SigningAggregator signingAggregator =
+        new SigningAggregator(aggregator(0), 256, 10_000, 1, 60_000);
+    CompletableFuture<KSISignature> signature = signingAggregator.submit(HASH, "John.Smith");
+    // The dispatcher takes it and waits for others to join the batch
+    while (signingAggregator.getQueueDepth() > 0) {
+      Thread.sleep(1);
+    }
+    signingAggregator.shutdown();
+    try {
+      signature.get(1, TimeUnit.SECONDS);
+      assert (false);
+    } catch (ExecutionException e) {
+      assert (e.getCause() instanceof KSIException);
+    }
+  }
+
+  /** Checks that a caller stops waiting once the aggregator has not answered in time. */
+  @Test
+  public void timeoutTest() throws Exception {
+    SigningAggregator signingAggregator = new SigningAggregator(aggregator(5000), 256, 0, 1, 100);
+    long start = System.nanoTime();
+    try {
+      signingAggregator.sign(HASH, "John.Smith");
+      assert (false);
+    } catch (KSIException e) {
+      assert (System.nanoTime() - start < 2_000_000_000L);
+    }
+    signingAggregator.shutdown();
+  }
+
+  private static LocalAggregator aggregator(long latency) {
+    return new LocalAggregator(
+        new KSIServiceCredentials("anon", "anon"), () -> latency, 0, 255, 0, 1000);
+  }
+}
@@ -0,0 +1,160 @@
+package com.guardtime.assignment;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntConsumer;
+import java.util.stream.Stream;
+
+public class SigningJobsTest {
+
+  private Path directory;
+  private SigningJobs jobs;
+
+  @Before
+  public void createDirectory() throws IOException {
+    directory = Files.createTempDirectory("jobs");
+  }
+
+  @After
+  public void deleteDirectory() throws IOException {
+    if (jobs != null) {
+      jobs.shutdown();
+    }
+    try (Stream<Path> paths = Files.walk(directory)) {
+      paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+    }
+  }
+
+  /** Checks that a job reports the number of the signature, or why the signing failed. */
+  @Test
+  public void submitTest() throws Exception {
+    jobs = new SigningJobs(directory, new TestSigner(3), 2, 10, 60_000);
+    SigningJobs.Job done = jobs.submit("konteiner", "John.Smith");
+    SigningJobs.Job failed = jobs.submit("missing", "John.Smith");
+    waitUntilFinished(done);
+    waitUntilFinished(failed);
+
+    assert (done.getStatus() == SigningJobs.Status.DONE);
+    assert (done.getSignatureNumber() == 3);
+    assert (failed.getStatus() == SigningJobs.Status.FAILED);
+    assert (failed.toStatusJson().contains("Container with that name does not exist."));
+    assert (Files.exists(directory.resolve(done.getId() + ".json")));
+  }
+
+  /** Checks that a job that was running when the server stopped is run again on start. */
+  @Test
+  public void recoveryTest() throws Exception {
+    String id = writeRunningJob(null);
+
+    TestSigner signer = new TestSigner(1);
+    jobs = new SigningJobs(directory, signer, 1, 10, 60_000);
+    jobs.recover();
+    SigningJobs.Job job = jobs.get(id);
+    waitUntilFinished(job);
+    assert (job.getStatus() == SigningJobs.Status.DONE);
+    assert (job.getSignatureNumber() == 1);
+    assert (signer.signings.get() == 1);
+    assert (jobs.pending() == 0);
+
+    // Another queue of the same directory in this process does not run the jobs again
+    SigningJobs other = new SigningJobs(directory, signer, 1, 10, 60_000);
+    other.recover();
+    Thread.sleep(100);
+    assert (signer.signings.get() == 1);
+    other.shutdown();
+  }
+
+  /** Checks that a job whose signature was written before the server stopped is not run again. */
+  @Test
+  public void committedRecoveryTest() throws Exception {
+    String id = writeRunningJob(2);
+
+    TestSigner signer = new TestSigner(5);
+    signer.committed.add(2);
+    jobs = new SigningJobs(directory, signer, 1, 10, 60_000);
+    jobs.recover();
+    SigningJobs.Job job = jobs.get(id);
+    waitUntilFinished(job);
+    assert (job.getStatus() == SigningJobs.Status.DONE);
+    assert (job.getSignatureNumber() == 2);
+    assert (signer.signings.get() == 0);
+  }
+
+  /** Checks that a running job is persisted with its number before the container is signed. */
+  @Test
+  public void reservedNumberTest() throws Exception {
+    TestSigner signer = new TestSigner(4);
+    jobs = new SigningJobs(directory, signer, 1, 10, 60_000);
+    SigningJobs.Job job = jobs.submit("konteiner", "John.Smith");
+    waitUntilFinished(job);
+    assert (signer.persistedBeforeSigning.contains("\"signatureNumber\":4"));
+    assert (signer.persistedBeforeSigning.contains("RUNNING"));
+  }
+
+  private String writeRunningJob(Integer signatureNumber) throws IOException {
+    String id = UUID.randomUUID().toString();
+    String running =
+        "{\"id\":\"" + id + "\",\"name\":\"konteiner\",\"userId\":\"John.Smith\","
+            + "\"status\":\"RUNNING\","
+            + (signatureNumber == null ? "" : "\"signatureNumber\":" + signatureNumber + ",")
+            + "\"submitted\":1}";
+    Files.write(directory.resolve(id + ".json"), running.getBytes(StandardCharsets.UTF_8));
+    return id;
+  }
+
+  private static void waitUntilFinished(SigningJobs.Job job) throws InterruptedException {
+    for (int i = 0; i < 500 && !job.isFinished(); i++) {
+      Thread.sleep(10);
+    }
+  }
+
+  /** Signs every container with the same number, except the missing one. */
+  private class TestSigner implements SigningJobs.Signer {
+
+    private final int signatureNumber;
+    private final AtomicInteger signings = new AtomicInteger();
+    private final Set<Integer> committed = ConcurrentHashMap.newKeySet();
+    private volatile String persistedBeforeSigning = "";
+
+    TestSigner(int signatureNumber) {
+      this.signatureNumber = signatureNumber;
+    }
+
+    @Override
+    public String sign(String fileName, String userId, IntConsumer reserved, IntConsumer signed) {
+      if (fileName.equals("missing")) {
+        return "{\"Error\":\"Container with that name does not exist.\"}";
+      }
+      signings.incrementAndGet();
+      reserved.accept(signatureNumber);
+      try (Stream<Path> paths = Files.list(directory)) {
+        for (Path path : (Iterable<Path>) paths::iterator) {
+          persistedBeforeSigning +=
+              new String(Files.readAllBytes(path), StandardCharsets.UTF_8);
+        }
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+      committed.add(signatureNumber);
+      signed.accept(signatureNumber);
+      return "";
+    }
+
+    @Override
+    public boolean isSigned(String fileName, String userId, int signatureNumber) {
+      return committed.contains(signatureNumber);
+    }
+  }
+}
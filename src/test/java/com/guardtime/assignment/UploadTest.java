@@ -0,0 +1,136 @@
+package com.guardtime.assignment;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+public class UploadTest {
+
+  private final Map<String, byte[]> files = new LinkedHashMap<>();
+
+  public UploadTest() {
+    byte[] image = new byte[200_000];
+    new Random(1).nextBytes(image);
+    files.put("picture.png", image);
+    files.put("sub/andmefail.txt", "andmefail".getBytes(StandardCharsets.UTF_8));
+    files.put("empty.txt", new byte[0]);
+  }
+
+  /** Checks that an uploaded zip becomes a container with the same datafiles. */
+  @Test
+  public void zipUploadTest() throws IOException {
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    try (ZipOutputStream zip = new ZipOutputStream(body)) {
+      zip.putNextEntry(new ZipEntry("sub/"));
+      for (Map.Entry<String, byte[]> file : files.entrySet()) {
+        zip.putNextEntry(new ZipEntry(file.getKey()));
+        zip.write(file.getValue());
+      }
+      zip.putNextEntry(new ZipEntry("META-INF/signature1.ksi"));
+    }
+    assertContainer(upload("application/zip", body.toByteArray()));
+  }
+
+  /** Checks that an uploaded tar archive becomes a container with the same datafiles. */
+  @Test
+  public void tarUploadTest() throws IOException {
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    for (Map.Entry<String, byte[]> file : files.entrySet()) {
+      body.write(tarHeader(file.getKey(), file.getValue().length));
+      body.write(file.getValue());
+      body.write(new byte[(512 - file.getValue().length % 512) % 512]);
+    }
+    body.write(new byte[1024]);
+    assertContainer(upload("application/x-tar", body.toByteArray()));
+  }
+
+  /** Checks that the file fields of a form become datafiles and the other fields are skipped. */
+  @Test
+  public void multipartUploadTest() throws IOException {
+    String boundary = "----boundary";
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    body.write(("--" + boundary + "\r\nContent-Disposition: form-data; name=\"comment\"\r\n\r\n")
+        .getBytes(StandardCharsets.UTF_8));
+    body.write("not a datafile".getBytes(StandardCharsets.UTF_8));
+    for (Map.Entry<String, byte[]> file : files.entrySet()) {
+      body.write(("\r\n--" + boundary + "\r\nContent-Disposition: form-data; name=\"file\"; "
+              + "filename=\"" + file.getKey() + "\"\r\n"
+              + "Content-Type: application/octet-stream\r\n\r\n")
+          .getBytes(StandardCharsets.UTF_8));
+      body.write(file.getValue());
+    }
+    body.write(("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.UTF_8));
+    assertContainer(
+        upload("multipart/form-data; boundary=\"" + boundary + "\"", body.toByteArray()));
+  }
+
+  /** Checks that a datafile can not be placed outside of the container. */
+  @Test(expected = IOException.class)
+  public void pathTraversalTest() throws IOException {
+    Upload.sanitize("sub/../../etc/passwd");
+  }
+
+  private List<MetaData> upload(String contentType, byte[] body) throws IOException {
+    ByteArrayOutputStream container = new ByteArrayOutputStream();
+    Upload upload = Upload.open(contentType, new ByteArrayInputStream(body));
+    List<MetaData> metaData = new ContainerCreator(new ForkJoinPool(2)).create(upload, container);
+    try (ZipInputStream zip =
+        new ZipInputStream(new ByteArrayInputStream(container.toByteArray()))) {
+      ZipEntry entry;
+      int datafiles = 0;
+      while ((entry = zip.getNextEntry()) != null) {
+        if (entry.getName().startsWith("META-INF/")) {
+          assert (entry.getName().equals(DigestIndex.ENTRY_NAME));
+          continue;
+        }
+        datafiles++;
+        assert (Arrays.equals(IOUtils.toByteArray(zip), files.get(entry.getName())));
+      }
+      assert (datafiles == files.size());
+    }
+    return metaData;
+  }
+
+  private void assertContainer(List<MetaData> metaData) {
+    assert (metaData.size() == files.size());
+    for (MetaData df : metaData) {
+      assert (files.containsKey(df.getUri()));
+    }
+  }
+
+  private static byte[] tarHeader(String name, int size) {
+    byte[] header = new byte[512];
+    put(header, 0, name);
+    put(header, 100, "0000644");
+    put(header, 124, String.format("%011o", size));
+    put(header, 136, String.format("%011o", 1_500_000_000L));
+    header[156] = '0';
+    put(header, 257, "ustar");
+    put(header, 263, "00");
+    Arrays.fill(header, 148, 156, (byte) ' ');
+    int checksum = 0;
+    for (byte b : header) {
+      checksum += b & 0xFF;
+    }
+    put(header, 148, String.format("%06o", checksum));
+    return header;
+  }
+
+  private static void put(byte[] header, int offset, String value) {
+    byte[] bytes = value.getBytes(StandardCharsets.US_ASCII);
+    System.arraycopy(bytes, 0, header, offset, bytes.length);
+  }
+}